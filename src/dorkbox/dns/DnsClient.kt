@@ -17,17 +17,23 @@
 package dorkbox.dns
 
 import dorkbox.dns.dns.DnsQuestion
+import dorkbox.dns.dns.Name
 import dorkbox.dns.dns.constants.DnsRecordType
 import dorkbox.dns.dns.constants.DnsResponseCode
 import dorkbox.dns.dns.constants.DnsSection
 import dorkbox.dns.dns.records.DnsRecord
 import dorkbox.dns.dns.resolver.DnsNameResolver
 import dorkbox.dns.dns.resolver.DnsQueryLifecycleObserverFactory
+import dorkbox.dns.dns.resolver.DnsHedgingPolicy
+import dorkbox.dns.dns.resolver.DnsServerHealth
 import dorkbox.dns.dns.resolver.NoopDnsQueryLifecycleObserverFactory
 import dorkbox.dns.dns.resolver.addressProvider.DefaultDnsServerAddressStreamProvider
 import dorkbox.dns.dns.resolver.addressProvider.DnsServerAddressStreamProvider
+import dorkbox.dns.dns.resolver.addressProvider.RttDnsServerAddressStreamProvider
 import dorkbox.dns.dns.resolver.addressProvider.SequentialDnsServerAddressStreamProvider
 import dorkbox.dns.dns.resolver.cache.DefaultDnsCache
+import dorkbox.dns.dns.resolver.cache.DnsRecordCache
+import dorkbox.dns.dns.resolver.cache.DnsZoneMissTracker
 import dorkbox.dns.dns.resolver.cache.DnsCache
 import dorkbox.dns.dns.utils.NamedThreadFactory
 import dorkbox.dns.util.NativeLibrary
@@ -42,14 +48,19 @@ import io.netty.channel.EventLoopGroup
 import io.netty.channel.ReflectiveChannelFactory
 import io.netty.channel.epoll.EpollDatagramChannel
 import io.netty.channel.epoll.EpollEventLoopGroup
+import io.netty.channel.epoll.EpollSocketChannel
 import io.netty.channel.kqueue.KQueueDatagramChannel
 import io.netty.channel.kqueue.KQueueEventLoopGroup
+import io.netty.channel.kqueue.KQueueSocketChannel
 import io.netty.channel.nio.NioEventLoopGroup
 import io.netty.channel.oio.OioEventLoopGroup
 import io.netty.channel.socket.DatagramChannel
 import io.netty.channel.socket.InternetProtocolFamily
+import io.netty.channel.socket.SocketChannel
 import io.netty.channel.socket.nio.NioDatagramChannel
+import io.netty.channel.socket.nio.NioSocketChannel
 import io.netty.channel.socket.oio.OioDatagramChannel
+import io.netty.channel.socket.oio.OioSocketChannel
 import java.net.InetAddress
 import java.net.InetSocketAddress
 import java.net.UnknownHostException
@@ -120,6 +131,11 @@ class DnsClient(nameServerAddresses: Collection<InetSocketAddress?>? = defaultNa
 
         private const val THREAD_NAME = "DnsClient"
 
+        /**
+         * The number of threads that send queries and read their answers. Every thread has its own UDP socket (see [socketCount]).
+         */
+        var workerThreadPoolSize = (Runtime.getRuntime().availableProcessors() / 2).coerceAtLeast(1)
+
         /**
          * Compute a [ResolvedAddressTypes] from some [InternetProtocolFamily]s.
          * An empty input will return the default value, based on "java.net" System properties.
@@ -144,6 +160,7 @@ class DnsClient(nameServerAddresses: Collection<InetSocketAddress?>? = defaultNa
 
 
     private val channelType: Class<out DatagramChannel>
+    private val tcpChannelType: Class<out SocketChannel>
 
     /**
      * @return the DNS resolver used by the client. This is for more advanced functionality
@@ -156,9 +173,27 @@ class DnsClient(nameServerAddresses: Collection<InetSocketAddress?>? = defaultNa
     private var eventLoopGroup: EventLoopGroup? = null
     private var resolveCache: DnsCache? = null
     private var authoritativeDnsServerCache: DnsCache? = null
+    private var recordCache: DnsRecordCache? = null
+    private var recordCacheEnabled = true
     private var minTtl = 0
     private var maxTtl = Int.MAX_VALUE
     private var negativeTtl = 0
+    private var maxNegativeTtl = 3 * 60 * 60
+    private var nxDomainCut = true
+    private var maxMissesPerZone = 0
+    private var socketCount = 0
+    private var connectedSockets = false
+    private var forceTcp = false
+    private var tcpMaxConnections = 2
+    private var tcpMaxInFlightQueries = 64
+    private var tcpIdleTimeoutMillis = 10_000L
+    private var circuitFailureThreshold = 3
+    private var circuitOpenMillis = 10_000L
+    private var hedgePercentile = 95
+    private var hedgeBudgetPercent = 0
+    private var refreshAheadPercent = 10
+    private var refreshAheadMinHits = 2
+    private var maxCacheBytes = Long.MAX_VALUE
     private var queryTimeoutMillis: Long = 5000
     private var resolvedAddressTypes = DnsNameResolver.DEFAULT_RESOLVE_ADDRESS_TYPES
     private var recursionDesired = true
@@ -170,6 +205,7 @@ class DnsClient(nameServerAddresses: Collection<InetSocketAddress?>? = defaultNa
     private var searchDomains: Array<String>? = null
     private var ndots = -1
     private var decodeIdn = true
+    private val nameServers = nameServerAddresses?.filterNotNull() ?: DefaultDnsServerAddressStreamProvider.defaultAddressList()
 
     /**
      * Creates a new DNS client, using the provided server (default port 53) for DNS query resolution, with a cache that will obey the TTL of the response
@@ -202,17 +238,21 @@ class DnsClient(nameServerAddresses: Collection<InetSocketAddress?>? = defaultNa
             // android ONLY supports OIO (not NIO)
             eventLoopGroup = OioEventLoopGroup(1, threadFactory)
             channelType = OioDatagramChannel::class.java
+            tcpChannelType = OioSocketChannel::class.java
         } else if (isLinux && NativeLibrary.isAvailable) {
             // epoll network stack is MUCH faster (but only on linux)
-            eventLoopGroup = EpollEventLoopGroup(1, threadFactory)
+            eventLoopGroup = EpollEventLoopGroup(workerThreadPoolSize, threadFactory)
             channelType = EpollDatagramChannel::class.java
+            tcpChannelType = EpollSocketChannel::class.java
         } else if (isMacOsX && NativeLibrary.isAvailable) {
             // KQueue network stack is MUCH faster (but only on macosx)
-            eventLoopGroup = KQueueEventLoopGroup(1, threadFactory)
+            eventLoopGroup = KQueueEventLoopGroup(workerThreadPoolSize, threadFactory)
             channelType = KQueueDatagramChannel::class.java
+            tcpChannelType = KQueueSocketChannel::class.java
         } else {
-            eventLoopGroup = NioEventLoopGroup(1, threadFactory)
+            eventLoopGroup = NioEventLoopGroup(workerThreadPoolSize, threadFactory)
             channelType = NioDatagramChannel::class.java
+            tcpChannelType = NioSocketChannel::class.java
         }
 
         manageForShutdown(eventLoopGroup!!)
@@ -233,6 +273,20 @@ class DnsClient(nameServerAddresses: Collection<InetSocketAddress?>? = defaultNa
         return this
     }
 
+    /**
+     * Sets the cache of RRsets that answers [query] (for any record type), instead of the DNS servers. By default, a cache that
+     * holds up to 50,000 names is used, null disables it.
+     *
+     * @param recordCache the RRset cache
+     *
+     * @return `this`
+     */
+    fun recordCache(recordCache: DnsRecordCache?): DnsClient {
+        this.recordCache = recordCache
+        this.recordCacheEnabled = recordCache != null
+        return this
+    }
+
     /**
      * Set the factory used to generate objects which can observe individual DNS queries.
      *
@@ -288,6 +342,78 @@ class DnsClient(nameServerAddresses: Collection<InetSocketAddress?>? = defaultNa
         return this
     }
 
+    /**
+     * Sets the maximum TTL (in seconds) of cached negative answers: that a name does not exist (NXDOMAIN), or that it has no records
+     * of a type (NODATA). They are cached with the TTL of the SOA record of the response (RFC 2308), up to this.
+     * The default value is `10800` (3 hours), `0` disables caching them.
+     *
+     * @param maxNegativeTtl the maximum TTL for negative answers
+     *
+     * @return `this`
+     */
+    fun maxNegativeTtl(maxNegativeTtl: Int): DnsClient {
+        this.maxNegativeTtl = maxNegativeTtl
+        return this
+    }
+
+    /**
+     * Sets if a cached name that does not exist (NXDOMAIN) also answers for every name below it (RFC 8020), so they are not queried.
+     * The default value is `true`.
+     *
+     * @param nxDomainCut true if nothing exists below a name that does not exist
+     *
+     * @return `this`
+     */
+    fun nxDomainCut(nxDomainCut: Boolean): DnsClient {
+        this.nxDomainCut = nxDomainCut
+        return this
+    }
+
+    /**
+     * Limits how many names that do not exist (NXDOMAIN) are queried per zone and second. Once a zone is over the limit, the names in
+     * it that are not cached fail without being queried for the rest of that second, which stops a random-subdomain flood from
+     * reaching the DNS servers. The default value is `0`, which does not limit them.
+     *
+     * @param maxMissesPerZone the maximum number of names that do not exist per zone and second
+     *
+     * @return `this`
+     */
+    fun maxMissesPerZone(maxMissesPerZone: Int): DnsClient {
+        this.maxMissesPerZone = maxMissesPerZone
+        return this
+    }
+
+    /**
+     * Bounds the (estimated) size of each cache in bytes. When a cache is full, the hostnames that are used the least are evicted
+     * (W-TinyLFU). The default value is [Long.MAX_VALUE], which does not bound the caches.
+     *
+     * To use a different eviction policy, set a [DefaultDnsCache] with it via [resolveCache].
+     *
+     * @param maxCacheBytes the maximum size of each cache
+     *
+     * @return `this`
+     */
+    fun maxCacheBytes(maxCacheBytes: Long): DnsClient {
+        this.maxCacheBytes = maxCacheBytes
+        return this
+    }
+
+    /**
+     * Sets when popular cached entries are resolved again (in the background) before they expire. An entry that was looked up
+     * at least `minHits` times, and is looked up again during the last `percent` of its TTL, is refreshed once.
+     * The default value is `10` and `2`. A `percent` of `0` disables refreshing ahead of expiry.
+     *
+     * @param percent the percentage of the TTL (at the end of it) during which a lookup refreshes the entry
+     * @param minHits how often an entry must be looked up before it is worth refreshing
+     *
+     * @return `this`
+     */
+    fun refreshAhead(percent: Int, minHits: Int): DnsClient {
+        this.refreshAheadPercent = percent
+        this.refreshAheadMinHits = minHits
+        return this
+    }
+
     /**
      * Sets the timeout of each DNS query performed by this resolver (in milliseconds).
      *
@@ -363,6 +489,109 @@ class DnsClient(nameServerAddresses: Collection<InetSocketAddress?>? = defaultNa
         return this
     }
 
+    /**
+     * Sets the number of UDP sockets that queries are sent through. Each one is bound to a random source port, and they are spread
+     * across the threads of this client. The default value is `0`, which is one socket per thread (see [workerThreadPoolSize]).
+     *
+     * @param socketCount the number of UDP sockets
+     *
+     * @return `this`
+     */
+    fun socketCount(socketCount: Int): DnsClient {
+        this.socketCount = socketCount
+        return this
+    }
+
+    /**
+     * Sets if every DNS server gets a UDP socket of its own, which is connected to it. The kernel then only accepts answers from that
+     * DNS server, and when it is not listening (ICMP port unreachable) its queries fail right away, instead of after the query
+     * timeout. The default value is `false`.
+     *
+     * @param connectedSockets true to connect a socket to each DNS server
+     *
+     * @return `this`
+     */
+    fun connectedSockets(connectedSockets: Boolean): DnsClient {
+        this.connectedSockets = connectedSockets
+        return this
+    }
+
+    /**
+     * Sets when a DNS server that keeps failing is skipped. Once it did not answer `failureThreshold` queries in a row, it is skipped
+     * (unless it is the last DNS server left to try) for `openMillis`, and then a single query is sent to it to find out if it answers
+     * again. The default values are `3` queries and `10` seconds.
+     *
+     * @param failureThreshold the number of queries in a row that were not answered, or 0 to never skip a DNS server
+     * @param openMillis how long (in milliseconds) a DNS server is skipped
+     *
+     * @return `this`
+     */
+    fun circuitBreaker(failureThreshold: Int, openMillis: Long): DnsClient {
+        this.circuitFailureThreshold = failureThreshold
+        this.circuitOpenMillis = openMillis
+        return this
+    }
+
+    /**
+     * Sets when a query is also sent to the next DNS server (hedged), instead of waiting for its DNS server to time out. A query is
+     * hedged once it took longer than the `percentile` of the round trip times of its DNS server, the first good answer is used and
+     * the other query is cancelled. No more than `budgetPercent` percent of the queries are hedged. The default values are the `95`th
+     * percentile and `0` percent, so queries are not hedged.
+     *
+     * @param percentile the percentile (of the round trip times of a DNS server) after which a query to it is hedged
+     * @param budgetPercent the percentage of the queries that may be hedged, or 0 to never hedge a query
+     *
+     * @return `this`
+     */
+    fun hedging(percentile: Int, budgetPercent: Int): DnsClient {
+        this.hedgePercentile = percentile
+        this.hedgeBudgetPercent = budgetPercent
+        return this
+    }
+
+    /**
+     * Sets if every query is sent over TCP, instead of over UDP. Either way, a query whose answer did not fit into a datagram (it was
+     * truncated) is asked for again over TCP. The default value is `false`.
+     *
+     * @param forceTcp true to send every query over TCP
+     *
+     * @return `this`
+     */
+    fun forceTcp(forceTcp: Boolean): DnsClient {
+        this.forceTcp = forceTcp
+        return this
+    }
+
+    /**
+     * Sets how the persistent TCP connections to each DNS server are used. Queries are pipelined on a connection, and another one is
+     * only opened when every connection already has `maxInFlightQueries` queries in progress. The default values are `2` connections,
+     * `64` queries and `10` seconds.
+     *
+     * @param maxConnections the maximum number of TCP connections to each DNS server
+     * @param maxInFlightQueries the number of queries pipelined on a connection before another one is opened
+     * @param idleTimeoutMillis how long (in milliseconds) a connection without any queries in progress is kept open
+     *
+     * @return `this`
+     */
+    fun tcpConnections(maxConnections: Int, maxInFlightQueries: Int, idleTimeoutMillis: Long): DnsClient {
+        this.tcpMaxConnections = maxConnections
+        this.tcpMaxInFlightQueries = maxInFlightQueries
+        this.tcpIdleTimeoutMillis = idleTimeoutMillis
+        return this
+    }
+
+    /**
+     * Picks the DNS servers of this client by how fast they answered (their smoothed round trip time), instead of in their order. A
+     * DNS server that did not answer counts as a slow one, and is tried again once in a while. This replaces the
+     * [DnsServerAddressStreamProvider].
+     *
+     * @return `this`
+     */
+    fun selectNameServersByRtt(): DnsClient {
+        this.dnsServerAddressStreamProvider = RttDnsServerAddressStreamProvider(nameServers)
+        return this
+    }
+
     /**
      * Set the [DnsServerAddressStreamProvider] which is used to determine which DNS server is used to resolve
      * each hostname.
@@ -418,8 +647,9 @@ class DnsClient(nameServerAddresses: Collection<InetSocketAddress?>? = defaultNa
         return this
     }
 
-    private fun newCache(): DnsCache {
-        return DefaultDnsCache(minTtl, maxTtl, negativeTtl)
+    private fun newCache(refreshAheadPercent: Int = 0): DnsCache {
+        return DefaultDnsCache(minTtl, maxTtl, negativeTtl, refreshAheadPercent, refreshAheadMinHits, maxCacheBytes, maxNegativeTtl = maxNegativeTtl,
+                               nxDomainCut = nxDomainCut)
     }
 
     /**
@@ -453,7 +683,7 @@ class DnsClient(nameServerAddresses: Collection<InetSocketAddress?>? = defaultNa
         resolver = DnsNameResolver(
             eventLoopGroup!!.next(),
             channelFactory,
-            resolveCache ?: newCache(),
+            resolveCache ?: newCache(refreshAheadPercent),
             authoritativeDnsServerCache ?: newCache(),
             dnsQueryLifecycleObserverFactory,
             queryTimeoutMillis,
@@ -465,7 +695,21 @@ class DnsClient(nameServerAddresses: Collection<InetSocketAddress?>? = defaultNa
             dnsServerAddressStreamProvider,
             searchDomains,
             ndots,
-            decodeIdn
+            decodeIdn,
+            if (recordCacheEnabled) recordCache ?: DnsRecordCache(maxTtl = if (maxTtl == Int.MAX_VALUE) -1L else maxTtl.toLong(),
+                                                                  maxNegativeTtl = maxNegativeTtl.toLong(),
+                                                                  nxDomainCut = nxDomainCut,
+                                                                  missTracker = if (maxMissesPerZone > 0) DnsZoneMissTracker(maxMissesPerZone) else null) else null,
+            eventLoopGroup,
+            socketCount,
+            connectedSockets,
+            ReflectiveChannelFactory(tcpChannelType),
+            forceTcp,
+            tcpMaxConnections,
+            tcpMaxInFlightQueries,
+            tcpIdleTimeoutMillis,
+            if (circuitFailureThreshold > 0) DnsServerHealth(circuitFailureThreshold, circuitOpenMillis) else null,
+            if (hedgeBudgetPercent > 0) DnsHedgingPolicy(hedgePercentile, hedgeBudgetPercent) else null
         )
         return this
     }
@@ -480,8 +724,29 @@ class DnsClient(nameServerAddresses: Collection<InetSocketAddress?>? = defaultNa
         clearResolver()
     }
 
+    /**
+     * Removes the cached answers for the domain, and for every name below it, from the DNS resolver caches. The rest of the caches
+     * is kept, so the other names are still answered without querying the DNS servers.
+     *
+     * @param domain the domain, ie: example.com
+     *
+     * @return the number of names that were removed
+     */
+    fun purge(domain: String): Int {
+        val resolver = resolver ?: return 0
+
+        // the name servers of the domain (and of the zones below it) are looked up again as well
+        resolver.authoritativeDnsServerCache().purge(domain)
+
+        val count = resolver.resolveCache().purge(domain)
+        val recordCache = resolver.recordCache() ?: return count
+        return count + recordCache.purge(Name.fromString(domain, Name.root))
+    }
+
     private fun clearResolver() {
         resolver!!.resolveCache().clear()
+        resolver!!.recordCache()?.clear()
+        resolver!!.serverHealth()?.clear()
     }
 
     override fun stopExtraActions() {
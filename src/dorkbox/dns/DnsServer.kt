@@ -16,25 +16,36 @@
 package dorkbox.dns
 
 import dorkbox.dns.dns.DnsQuestion
+import dorkbox.dns.dns.Name
 import dorkbox.dns.dns.constants.DnsRecordType
 import dorkbox.dns.dns.records.ARecord
+import dorkbox.dns.dns.serverHandlers.DnsQueryCoalescer
+import dorkbox.dns.dns.serverHandlers.DnsResponseCache
 import dorkbox.dns.dns.serverHandlers.DnsServerHandler
+import dorkbox.dns.dns.serverHandlers.DnsTcpServerHandler
 import dorkbox.dns.dns.utils.NamedThreadFactory
+import dorkbox.dns.dns.zone.Zone
 import dorkbox.dns.util.NativeLibrary
 import dorkbox.dns.util.Shutdownable
 import dorkbox.netUtil.IP.toBytes
+import dorkbox.os.OS.isAndroid
 import dorkbox.os.OS.isLinux
 import dorkbox.os.OS.isMacOsX
 import dorkbox.updates.Updates.add
 import io.netty.bootstrap.Bootstrap
+import io.netty.bootstrap.ServerBootstrap
 import io.netty.buffer.PooledByteBufAllocator
 import io.netty.channel.*
+import io.netty.channel.epoll.EpollChannelOption
 import io.netty.channel.epoll.EpollDatagramChannel
 import io.netty.channel.epoll.EpollEventLoopGroup
+import io.netty.channel.epoll.EpollServerSocketChannel
 import io.netty.channel.kqueue.KQueueDatagramChannel
 import io.netty.channel.kqueue.KQueueEventLoopGroup
+import io.netty.channel.kqueue.KQueueServerSocketChannel
 import io.netty.channel.nio.NioEventLoopGroup
 import io.netty.channel.socket.nio.NioDatagramChannel
+import io.netty.channel.socket.nio.NioServerSocketChannel
 
 /**
  * from: https://blog.cloudflare.com/how-the-consumer-product-safety-commission-is-inadvertently-behind-the-internets-largest-ddos-attacks/
@@ -69,22 +80,114 @@ class DnsServer(host: String?, tcpPort: Int) : Shutdownable(DnsServer::class.jav
 
         var workerThreadPoolSize = (Runtime.getRuntime().availableProcessors() / 2).coerceAtLeast(1)
 
+        /**
+         * The number of pending TCP connections the OS will queue before refusing new ones
+         */
+        var tcpBacklogConnectionCount = 128
+
+        /**
+         * The maximum number of TCP connections that can be open at the same time. New connections over this limit are closed.
+         */
+        var tcpMaxConnections = 1024
+
+        /**
+         * The maximum number of queries a client can pipeline on one TCP connection before we stop reading from that connection
+         */
+        var tcpMaxInFlightQueries = 64
+
+        /**
+         * How long (in milliseconds) a TCP connection can sit without any queries or answers before it is closed (RFC 7766 6.2.3)
+         */
+        var tcpIdleTimeoutMillis = 10_000L
+
+        /**
+         * Linux (native epoll) only. Binds one UDP socket per worker event loop to the same port with SO_REUSEPORT, so the kernel
+         * spreads incoming queries across all of the worker threads (instead of one thread reading every packet).
+         */
+        var udpReusePort = true
+
+        /**
+         * Linux (native epoll) only. The number of datagrams to read with a single syscall (recvmmsg).
+         *
+         * Set to 1 to read one datagram at a time.
+         */
+        var udpBatchSize = 16
+
+        /**
+         * The largest query we expect to receive over UDP when reading in batches. Larger datagrams are truncated by the kernel.
+         */
+        var udpBatchMaxDatagramSize = 4096
+
+        /**
+         * Answers written while reading a batch of queries (UDP datagrams, or pipelined queries on a TCP connection) are flushed
+         * together once the batch has been read, instead of once per answer. With native epoll, this sends them with a single syscall.
+         */
+        var consolidateFlushes = true
+
+        /**
+         * When consolidating flushes, flush early once this many bytes are waiting to be sent
+         */
+        var maxPendingFlushBytes = 64 * 1024
+
+        /**
+         * The maximum number of rendered UDP answers to keep, so repeated queries are answered without decoding them. 0 to disable.
+         */
+        var wireCacheMaxEntries = 10_000
+
+        /**
+         * The approximate memory (in bytes) that the rendered UDP answers can use.
+         */
+        var wireCacheMaxBytes = 8L * 1024 * 1024
+
+        /**
+         * The maximum number of identical queries (same name, type, class and DO bit) that can wait on a single forwarded query.
+         * Queries past this are dropped until the answer arrives.
+         */
+        var maxCoalescedQueries = 1024
+
+        /**
+         * The approximate memory (in bytes) that cached forwarded responses can use. 0 to disable.
+         */
+        var responseCacheMaxBytes = 32L * 1024 * 1024
+
+        /**
+         * Serve-stale (RFC 8767). Expired forwarded responses are kept for this long, and are used (with a 30 second TTL) when the
+         * forwarder fails or is too slow. 0 to disable.
+         */
+        var serveStaleMaxMillis = 0L
+
+        /**
+         * With serve-stale, how long a client waits for the forwarder before it gets the stale answer. The refresh carries on in
+         * the background.
+         */
+        var clientResponseTimeoutMillis = 1800L
+
         init {
             // Add this project to the updates system, which verifies this class + UUID + version information
             add(DnsServer::class.java, "3aaf262a500147daa340f7274a481a2b", version)
         }
     }
 
-    // private final ServerBootstrap tcpBootstrap;
+    private val tcpBootstrap: ServerBootstrap
     private val udpBootstrap: Bootstrap
+    private val tcpPort: Int
     private val udpPort: Int
+    private val udpSocketCount: Int
     private var hostName: String? = null
     private val dnsServerHandler: DnsServerHandler
+    private val dnsTcpServerHandler: DnsTcpServerHandler
 
     init {
+        this.tcpPort = tcpPort
         udpPort = tcpPort
         hostName = host ?: "0.0.0.0"
-        dnsServerHandler = DnsServerHandler(logger)
+
+        val udpBatching = isLinux && NativeLibrary.isAvailable && udpBatchSize > 1
+        dnsServerHandler = DnsServerHandler(logger, consolidateFlushes, maxPendingFlushBytes, wireCacheMaxEntries, wireCacheMaxBytes, maxCoalescedQueries, responseCacheMaxBytes,
+                                            serveStaleMaxMillis, clientResponseTimeoutMillis)
+        dnsTcpServerHandler = DnsTcpServerHandler(logger, dnsServerHandler.decisionHandler,
+                                                  tcpMaxConnections, tcpMaxInFlightQueries, tcpIdleTimeoutMillis,
+                                                  consolidateFlushes, maxPendingFlushBytes)
         val threadName = DnsServer::class.java.simpleName
         val threadFactory = NamedThreadFactory(threadName, threadGroup)
         val boss: EventLoopGroup
@@ -103,59 +206,66 @@ class DnsServer(host: String?, tcpPort: Int) : Shutdownable(DnsServer::class.jav
         } else {
             // sometimes the native libraries cannot be loaded, so fall back to NIO
             boss = NioEventLoopGroup(1, namedThreadFactory)
-            work = DefaultEventLoopGroup(workerThreadPoolSize, threadFactory)
+            work = NioEventLoopGroup(workerThreadPoolSize, threadFactory)
         }
         manageForShutdown(boss)
         manageForShutdown(work)
 
 
-        // tcpBootstrap = new ServerBootstrap();
+        tcpBootstrap = ServerBootstrap()
         udpBootstrap = Bootstrap()
 
+        if (isLinux && NativeLibrary.isAvailable) {
+            // epoll network stack is MUCH faster (but only on linux)
+            tcpBootstrap.channel(EpollServerSocketChannel::class.java)
+        } else if (isMacOsX && NativeLibrary.isAvailable) {
+            // KQueue network stack is MUCH faster (but only on macosx)
+            tcpBootstrap.channel(KQueueServerSocketChannel::class.java)
+        } else {
+            tcpBootstrap.channel(NioServerSocketChannel::class.java)
+        }
+
+        tcpBootstrap.group(boss, work)
+            .option(ChannelOption.SO_BACKLOG, tcpBacklogConnectionCount)
+            .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+            .childOption(ChannelOption.SO_KEEPALIVE, true)
+            .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, WriteBufferWaterMark(WRITE_BUFF_LOW, WRITE_BUFF_HIGH))
+            .childHandler(dnsTcpServerHandler)
+
+        // have to check options.host for "0.0.0.0". we don't bind to "0.0.0.0", we bind to "null" to get the "any" address!
+        if (hostName == "0.0.0.0") {
+            tcpBootstrap.localAddress(tcpPort)
+        } else {
+            tcpBootstrap.localAddress(hostName, tcpPort)
+        }
+
+        // android screws up on this!!
+        tcpBootstrap.childOption(ChannelOption.TCP_NODELAY, !isAndroid)
 
-        // if (OS.isAndroid()) {
-        //     // android ONLY supports OIO (not NIO)
-        //     tcpBootstrap.channel(OioServerSocketChannel.class);
-        // }
-        // else if (OS.isLinux() && NativeLibrary.isAvailable()) {
-        //     // epoll network stack is MUCH faster (but only on linux)
-        //     tcpBootstrap.channel(EpollServerSocketChannel.class);
-        // }
-        // else if (OS.isMacOsX() && NativeLibrary.isAvailable()) {
-        //     // KQueue network stack is MUCH faster (but only on macosx)
-        //     tcpBootstrap.channel(KQueueServerSocketChannel.class);
-        // }
-        // else {
-        //     tcpBootstrap.channel(NioServerSocketChannel.class);
-        // }
-        //
-        // tcpBootstrap.group(boss, work)
-        //             .option(ChannelOption.SO_BACKLOG, backlogConnectionCount)
-        //             .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
-        //             .childOption(ChannelOption.SO_KEEPALIVE, true)
-        //             .option(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(WRITE_BUFF_LOW, WRITE_BUFF_HIGH))
-        //             .childHandler(dnsServerHandler);
-        //
-        // // have to check options.host for "0.0.0.0". we don't bind to "0.0.0.0", we bind to "null" to get the "any" address!
-        // if (hostName.equals("0.0.0.0")) {
-        //     tcpBootstrap.localAddress(tcpPort);
-        // }
-        // else {
-        //     tcpBootstrap.localAddress(hostName, tcpPort);
-        // }
-        //
-        //
-        // // android screws up on this!!
-        // tcpBootstrap.option(ChannelOption.TCP_NODELAY, !OS.isAndroid())
-        //             .childOption(ChannelOption.TCP_NODELAY, !OS.isAndroid());
         if (isLinux && NativeLibrary.isAvailable) {
             // epoll network stack is MUCH faster (but only on linux)
             udpBootstrap.channel(EpollDatagramChannel::class.java)
+
+            if (udpReusePort) {
+                // every socket is bound to the same port, and registered on the next worker event loop
+                udpBootstrap.option(EpollChannelOption.SO_REUSEPORT, true)
+                udpSocketCount = workerThreadPoolSize
+            } else {
+                udpSocketCount = 1
+            }
+
+            if (udpBatching) {
+                // the receive buffer is split into one slot per datagram, so it must be big enough to hold an entire batch
+                udpBootstrap.option(EpollChannelOption.MAX_DATAGRAM_PAYLOAD_SIZE, udpBatchMaxDatagramSize)
+                    .option(ChannelOption.RCVBUF_ALLOCATOR, FixedRecvByteBufAllocator(udpBatchSize * udpBatchMaxDatagramSize))
+            }
         } else if (isMacOsX && NativeLibrary.isAvailable) {
             // KQueue network stack is MUCH faster (but only on macosx)
             udpBootstrap.channel(KQueueDatagramChannel::class.java)
+            udpSocketCount = 1
         } else {
             udpBootstrap.channel(NioDatagramChannel::class.java)
+            udpSocketCount = 1
         }
         udpBootstrap.group(work).option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT).option(
                 ChannelOption.WRITE_BUFFER_WATER_MARK,
@@ -191,59 +301,56 @@ class DnsServer(host: String?, tcpPort: Int) : Shutdownable(DnsServer::class.jav
 
 
         // The bootstraps will be accessed ONE AT A TIME, in this order!
-        val future: ChannelFuture
         val logger2 = logger
 
 
         // TCP
         // Wait until the connection attempt succeeds or fails.
-        // try {
-        //     future = tcpBootstrap.bind();
-        //     future.await();
-        // } catch (Exception e) {
-        //     // String errorMessage = stopWithErrorMessage(logger2,
-        //     //                                            "Could not bind to address " + hostName + " TCP port " + tcpPort +
-        //     //                                            " on the server.",
-        //     //                                            e);
-        //     // throw new IllegalArgumentException(errorMessage);
-        //     throw new RuntimeException();
-        // }
-        //
-        // if (!future.isSuccess()) {
-        //     // String errorMessage = stopWithErrorMessage(logger2,
-        //     //                                            "Could not bind to address " + hostName + " TCP port " + tcpPort +
-        //     //                                            " on the server.",
-        //     //                                            future.cause());
-        //     // throw new IllegalArgumentException(errorMessage);
-        //     throw new RuntimeException();
-        // }
-        //
-        // // logger2.info("Listening on address {} at TCP port: {}", hostName, tcpPort);
-        //
-        // manageForShutdown(future);
-
-
-        // UDP
-        // Wait until the connection attempt succeeds or fails.
+        var future: ChannelFuture
         try {
-            future = udpBootstrap.bind()
+            future = tcpBootstrap.bind()
             future.await()
         } catch (e: Exception) {
             val errorMessage = stopWithErrorMessage(
-                logger2, "Could not bind to address $hostName UDP port $udpPort on the server.", e
+                logger2, "Could not bind to address $hostName TCP port $tcpPort on the server.", e
             )
             throw IllegalArgumentException(errorMessage)
         }
         if (!future.isSuccess) {
             val errorMessage = stopWithErrorMessage(
-                logger2, "Could not bind to address $hostName UDP port $udpPort on the server.", future.cause()
+                logger2, "Could not bind to address $hostName TCP port $tcpPort on the server.", future.cause()
             )
             throw IllegalArgumentException(errorMessage)
         }
 
-        // logger2.info("Listening on address {} at UDP port: {}", hostName, udpPort);
+        // logger2.info("Listening on address {} at TCP port: {}", hostName, tcpPort);
         manageForShutdown(future)
 
+
+        // UDP
+        // when using SO_REUSEPORT, there is one socket per worker event loop (all on the same port)
+        for (i in 0 until udpSocketCount) {
+            // Wait until the connection attempt succeeds or fails.
+            try {
+                future = udpBootstrap.bind()
+                future.await()
+            } catch (e: Exception) {
+                val errorMessage = stopWithErrorMessage(
+                    logger2, "Could not bind to address $hostName UDP port $udpPort on the server.", e
+                )
+                throw IllegalArgumentException(errorMessage)
+            }
+            if (!future.isSuccess) {
+                val errorMessage = stopWithErrorMessage(
+                    logger2, "Could not bind to address $hostName UDP port $udpPort on the server.", future.cause()
+                )
+                throw IllegalArgumentException(errorMessage)
+            }
+
+            // logger2.info("Listening on address {} at UDP port: {}", hostName, udpPort);
+            manageForShutdown(future)
+        }
+
         // we now BLOCK until the stop method is called.
         // if we want to continue running code in the server, bind should be called in a separate, non-daemon thread.
         if (blockUntilTerminate) {
@@ -267,4 +374,38 @@ class DnsServer(host: String?, tcpPort: Int) : Shutdownable(DnsServer::class.jav
         }
         dnsServerHandler.addARecord(name, records)
     }
+
+    /**
+     * The counters for the forwarded queries that were coalesced (identical queries that shared a single upstream fetch)
+     */
+    val coalescer: DnsQueryCoalescer
+        get() = dnsServerHandler.decisionHandler.coalescer
+
+    /**
+     * The cache of forwarded responses (with its hit, miss and eviction counts), or null if it is disabled
+     */
+    val responseCache: DnsResponseCache?
+        get() = dnsServerHandler.decisionHandler.responseCache
+
+    /**
+     * Adds a zone that this server is authoritative for. Queries (of any type) for names in the zone are answered from the zone,
+     * instead of being forwarded.
+     *
+     * @param zone the zone to answer queries from
+     */
+    fun addZone(zone: Zone) {
+        dnsServerHandler.addZone(zone)
+    }
+
+    /**
+     * Removes the cached answers for the domain, and for every name below it, without dropping the rest of the caches. The other
+     * names are still answered from the caches, so the upstream servers do not get a burst of queries like after a restart.
+     *
+     * @param domainName the domain to purge, ie: example.com
+     *
+     * @return the number of names (and forwarded responses) that were removed
+     */
+    fun purge(domainName: String): Int {
+        return dnsServerHandler.purge(Name.fromString(domainName, Name.root))
+    }
 }
@@ -34,7 +34,10 @@ open class DnsEnvelope : DnsMessage, AddressedEnvelope<DnsEnvelope, InetSocketAd
         this.remoteAddress = remoteAddress
     }
 
-    constructor(buffer: ByteBuf, localAddress: InetSocketAddress?, remoteAddress: InetSocketAddress?) : super(buffer) {
+    /**
+     * @param lazy if true, only the header and question are decoded now, and the rest is decoded when it is first accessed
+     */
+    constructor(buffer: ByteBuf, localAddress: InetSocketAddress?, remoteAddress: InetSocketAddress?, lazy: Boolean = false) : super(buffer, lazy) {
         this.localAddress = localAddress
         this.remoteAddress = remoteAddress
     }
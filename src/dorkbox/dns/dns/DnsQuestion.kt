@@ -21,6 +21,7 @@ import dorkbox.dns.dns.constants.DnsRecordType.ensureFQDN
 import dorkbox.dns.dns.constants.DnsSection
 import dorkbox.dns.dns.constants.Flags
 import dorkbox.dns.dns.records.DnsRecord
+import dorkbox.dns.dns.records.Header
 import io.netty.channel.AddressedEnvelope
 import java.net.IDN
 import java.net.InetSocketAddress
@@ -66,10 +67,21 @@ private constructor(val isResolveQuestion: Boolean) : DnsEnvelope() {
             }
         }
 
+        /**
+         * Creates a query for a name that is already a (fully qualified) [Name], for example one that was read from another query
+         */
+        fun newQuery(name: Name, type: Int, dclass: Int, isRecursionDesired: Boolean): DnsQuestion {
+            return newQuestion(name, type, dclass, isRecursionDesired, false)
+        }
+
         private fun newQuestion(inetHost: String, type: Int, isRecursionDesired: Boolean, isResolveQuestion: Boolean): DnsQuestion {
             val name = createName(inetHost, type)
+            return newQuestion(name, type, DnsClass.IN, isRecursionDesired, isResolveQuestion)
+        }
+
+        private fun newQuestion(name: Name, type: Int, dclass: Int, isRecursionDesired: Boolean, isResolveQuestion: Boolean): DnsQuestion {
             try {
-                val questionRecord = DnsRecord.newRecord(name, type, DnsClass.IN)
+                val questionRecord = DnsRecord.newRecord(name, type, dclass)
                 val question = DnsQuestion(isResolveQuestion)
                 question.header.opcode = DnsOpCode.QUERY
 
@@ -83,7 +95,7 @@ private constructor(val isResolveQuestion: Boolean) : DnsEnvelope() {
 
                 return question
             } catch (e: Exception) {
-                throw IllegalArgumentException("Unable to create a question for $inetHost", e)
+                throw IllegalArgumentException("Unable to create a question for $name", e)
             }
         }
 
@@ -110,6 +122,26 @@ private constructor(val isResolveQuestion: Boolean) : DnsEnvelope() {
         setRemoteAddress(id, recipient)
     }
 
+    /**
+     * Creates a new question that asks the same thing (with the same flags and EDNS options), which can be sent to another DNS server at
+     * the same time as this one. It is initialized (with its own ID) when it is sent.
+     */
+    fun duplicate(): DnsQuestion {
+        val question = DnsQuestion(isResolveQuestion)
+        for (section in DnsSection.QUESTION..DnsSection.ADDITIONAL) {
+            for (record in getSectionArray(section)) {
+                question.addRecord(record, section)
+            }
+        }
+
+        // same opcode, flags and record counts
+        question.header = header.clone() as Header
+
+        // keep the question around so we can compare the response to it.
+        question.retain()
+        return question
+    }
+
     override fun hashCode(): Int {
         var hashCode = super.hashCode()
         if (sender() != null) {
@@ -27,6 +27,34 @@ import java.net.InetSocketAddress
 class DnsServerResponse(dnsQuestion: DnsMessage, localAddress: InetSocketAddress?, remoteAddress: InetSocketAddress?)
     : DnsEnvelope(dnsQuestion.header.id, localAddress, remoteAddress) {
 
+    companion object {
+        /**
+         * The maximum size of a UDP response when the client did not advertise anything larger via EDNS (RFC 1035)
+         */
+        const val MIN_UDP_PAYLOAD_SIZE = 512
+    }
+
+    /**
+     * The largest UDP response the client will accept. Anything larger is truncated (with the TC bit set) so the client retries over TCP.
+     */
+    val maxUdpPayloadSize: Int
+
+    /**
+     * True if the client set the EDNS DO bit, and wants DNSSEC records in the answer
+     */
+    val dnssecOk: Boolean
+
+    init {
+        val optRecord = dnsQuestion.optRecord
+        if (optRecord != null) {
+            maxUdpPayloadSize = optRecord.payloadSize.coerceAtLeast(MIN_UDP_PAYLOAD_SIZE)
+            dnssecOk = optRecord.flags and 0x8000 != 0
+        } else {
+            maxUdpPayloadSize = MIN_UDP_PAYLOAD_SIZE
+            dnssecOk = false
+        }
+    }
+
     override fun hashCode(): Int {
         var hashCode = super.hashCode()
         if (sender() != null) {
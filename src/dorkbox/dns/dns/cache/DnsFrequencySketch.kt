@@ -0,0 +1,92 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.cache
+
+/**
+ * A count-min sketch of how often keys were seen, with 4-bit counters (so at most 15). Once enough keys have been added, every counter
+ * is halved, so the counts favor what was popular recently.
+ *
+ * It is shared by the caches of the resolver and of the server. This is not thread safe.
+ */
+internal class DnsFrequencySketch(expectedEntries: Int) {
+    companion object {
+        private val SEEDS = longArrayOf(-0x3a8f05c5e7ef6a77L, -0x4b47d5b1b8a0e4c5L, -0x61c8864680b583ebL, 0x27d4eb2f165667c5L)
+        private const val RESET_MASK = 0x7777777777777777L
+
+        private fun tableSize(expectedEntries: Int): Int {
+            val size = expectedEntries.coerceIn(16, 1 shl 24)
+            return Integer.highestOneBit(size - 1) shl 1
+        }
+    }
+
+    // each long has 16 counters
+    private val table = LongArray(tableSize(expectedEntries))
+    private val mask = table.size - 1
+    private val sampleSize = table.size * 10
+    private var additions = 0
+
+    private fun hash(hashCode: Int, row: Int): Long {
+        var h = (hashCode.toLong() + SEEDS[row]) * SEEDS[row]
+        h = h xor (h ushr 32)
+        return h
+    }
+
+    /**
+     * @return the estimated number of times the key was seen (at most 15)
+     */
+    fun frequency(hashCode: Int): Int {
+        var frequency = 15
+        for (row in 0 until 4) {
+            val h = hash(hashCode, row)
+            val index = ((h ushr 4).toInt()) and mask
+            val shift = (h.toInt() and 15) shl 2
+
+            frequency = frequency.coerceAtMost(((table[index] ushr shift) and 0xFL).toInt())
+        }
+        return frequency
+    }
+
+    /**
+     * Counts the key once more
+     */
+    fun increment(hashCode: Int) {
+        var added = false
+        for (row in 0 until 4) {
+            val h = hash(hashCode, row)
+            val index = ((h ushr 4).toInt()) and mask
+            val shift = (h.toInt() and 15) shl 2
+
+            if ((table[index] ushr shift) and 0xFL != 0xFL) {
+                table[index] += 1L shl shift
+                added = true
+            }
+        }
+
+        if (added && ++additions >= sampleSize) {
+            reset()
+        }
+    }
+
+    /**
+     * Halves every counter
+     */
+    private fun reset() {
+        for (i in table.indices) {
+            table[i] = (table[i] ushr 1) and RESET_MASK
+        }
+        additions /= 2
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.cache
+
+import dorkbox.dns.dns.Name
+import java.util.ArrayDeque
+import java.util.Locale
+
+/**
+ * Indexes the keys of a cache by the labels of their name, from the top level domain down (a trie of the reversed labels), so every
+ * key at or below a domain is found by walking the labels of the domain and then only the part of the trie below it. Labels are
+ * compared without case.
+ *
+ * The index does not hold the cached data, only its keys. The cache adds a key after it put it into its map, and removes it after
+ * it removed it from its map.
+ */
+internal class DnsSuffixIndex<K> {
+    companion object {
+        /**
+         * @return the lower-cased labels of the hostname, from the top level domain down (the final dot is ignored)
+         */
+        fun labels(hostname: String): List<String> {
+            val labels = ArrayList<String>(4)
+            var end = hostname.length
+            if (end > 0 && hostname[end - 1] == '.') {
+                end--
+            }
+
+            while (end > 0) {
+                val dot = hostname.lastIndexOf('.', end - 1)
+                labels.add(hostname.substring(dot + 1, end).lowercase(Locale.US))
+                end = dot
+            }
+            return labels
+        }
+
+        /**
+         * @return the lower-cased labels of the name, from the top level domain down (without the root label)
+         */
+        fun labels(name: Name): List<String> {
+            val count = name.labels() - if (name.isAbsolute) 1 else 0
+            val labels = ArrayList<String>(count)
+            for (i in count - 1 downTo 0) {
+                labels.add(name.getLabelString(i).lowercase(Locale.US))
+            }
+            return labels
+        }
+    }
+
+    private class Node<K> {
+        var children: HashMap<String, Node<K>>? = null
+        var keys: MutableSet<K>? = null
+
+        fun isEmpty(): Boolean {
+            return children.isNullOrEmpty() && keys.isNullOrEmpty()
+        }
+    }
+
+    private val root = Node<K>()
+
+    /**
+     * Adds the key of the name
+     */
+    fun add(labels: List<String>, key: K) {
+        synchronized(root) {
+            var node = root
+            for (label in labels) {
+                var children = node.children
+                if (children == null) {
+                    children = HashMap(4)
+                    node.children = children
+                }
+                node = children.getOrPut(label) { Node() }
+            }
+
+            var keys = node.keys
+            if (keys == null) {
+                keys = HashSet(2)
+                node.keys = keys
+            }
+            keys.add(key)
+        }
+    }
+
+    /**
+     * Removes the key of the name, and the part of the trie that is empty afterwards. The walk is as long as the name.
+     *
+     * @param isCached checked while the index is locked, if the key was put into the cache again in the meantime it is kept
+     */
+    fun remove(labels: List<String>, key: K, isCached: () -> Boolean = { false }) {
+        synchronized(root) {
+            if (isCached()) {
+                return
+            }
+
+            val path = arrayOfNulls<Node<K>>(labels.size + 1)
+            var node = root
+            path[0] = node
+            for (i in labels.indices) {
+                node = node.children?.get(labels[i]) ?: return
+                path[i + 1] = node
+            }
+
+            val keys = node.keys ?: return
+            if (!keys.remove(key)) {
+                return
+            }
+            if (keys.isEmpty()) {
+                node.keys = null
+            }
+
+            // prune the empty nodes, from the bottom up
+            for (i in labels.size downTo 1) {
+                if (!path[i]!!.isEmpty()) {
+                    break
+                }
+                path[i - 1]!!.children!!.remove(labels[i - 1])
+            }
+        }
+    }
+
+    /**
+     * @return every key at or below the domain
+     */
+    fun under(labels: List<String>): List<K> {
+        val found = ArrayList<K>()
+        synchronized(root) {
+            var node = root
+            for (label in labels) {
+                node = node.children?.get(label) ?: return found
+            }
+
+            val pending = ArrayDeque<Node<K>>()
+            pending.add(node)
+            while (pending.isNotEmpty()) {
+                val next = pending.poll()
+                next.keys?.let { found.addAll(it) }
+                next.children?.let { pending.addAll(it.values) }
+            }
+        }
+        return found
+    }
+
+    /**
+     * Removes every key
+     */
+    fun clear() {
+        synchronized(root) {
+            root.children = null
+            root.keys = null
+        }
+    }
+}
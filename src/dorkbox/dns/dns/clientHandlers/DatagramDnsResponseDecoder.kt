@@ -15,7 +15,6 @@
  */
 package dorkbox.dns.dns.clientHandlers
 
-import dorkbox.dns.dns.DnsInput
 import dorkbox.dns.dns.exceptions.WireParseException
 import dorkbox.dns.dns.records.Header
 import io.netty.channel.ChannelHandler.Sharable
@@ -38,8 +37,8 @@ class DatagramDnsResponseDecoder : MessageToMessageDecoder<DatagramPacket>() {
             throw WireParseException("invalid DNS header - ${buf.readableBytes()} is too short (< ${Header.LENGTH})")
         }
 
-        val dnsInput = DnsInput(buf)
-        val dnsMessage = DnsResponse(dnsInput, packet.sender(), packet.recipient())
+        // only the header and question are decoded now, the buffer is retained until the response is released
+        val dnsMessage = DnsResponse(buf, packet.sender(), packet.recipient())
         out.add(dnsMessage)
     }
 }
@@ -16,7 +16,7 @@
 package dorkbox.dns.dns.clientHandlers
 
 import dorkbox.dns.dns.DnsEnvelope
-import dorkbox.dns.dns.DnsInput
+import io.netty.buffer.ByteBuf
 import io.netty.channel.AddressedEnvelope
 import io.netty.util.internal.UnstableApi
 import java.net.InetSocketAddress
@@ -25,17 +25,22 @@ import java.net.InetSocketAddress
  * A [DnsResponse] implementation for UDP/IP.
  */
 @UnstableApi
-class DnsResponse(dnsInput: DnsInput,
-                  /**
-                   * @param localAddress the address of the sender
-                   */
-                  localAddress: InetSocketAddress?,
+class DnsResponse : DnsEnvelope {
+    /**
+     * @param localAddress the address of the sender
+     * @param remoteAddress the address of the recipient
+     */
+    constructor(buffer: ByteBuf, localAddress: InetSocketAddress?, remoteAddress: InetSocketAddress?) :
+        super(buffer, localAddress, remoteAddress, true)
 
-                  /**
-                   * @param remoteAddress the address of the recipient
-                   */
-                  remoteAddress: InetSocketAddress?) :
-    DnsEnvelope(dnsInput, localAddress, remoteAddress) {
+    /**
+     * Creates an empty response, for answers that do not come from the network (ie: from a cache)
+     *
+     * @param localAddress the address of the sender
+     * @param remoteAddress the address of the recipient
+     */
+    constructor(id: Int, localAddress: InetSocketAddress?, remoteAddress: InetSocketAddress?) :
+        super(id, localAddress, remoteAddress)
 
     override fun hashCode(): Int {
         var hashCode = super.hashCode()
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.clientHandlers
+
+import dorkbox.dns.dns.DnsOutput
+import dorkbox.dns.dns.DnsQuestion
+import io.netty.buffer.ByteBuf
+import io.netty.channel.ChannelHandler.Sharable
+import io.netty.channel.ChannelHandlerContext
+import io.netty.handler.codec.MessageToByteEncoder
+import io.netty.util.internal.UnstableApi
+import java.io.IOException
+
+/**
+ * Encodes a [DnsQuestion] for a TCP connection. The 2-byte length prefix is added by the frame prepender after it.
+ */
+@UnstableApi
+@Sharable
+class TcpDnsQueryEncoder : MessageToByteEncoder<DnsQuestion>() {
+    override fun encode(ctx: ChannelHandlerContext, question: DnsQuestion, out: ByteBuf) {
+        try {
+            question.toWire(DnsOutput(out))
+        } catch (e: Exception) {
+            // a partial query would corrupt the framing for every other query on this connection
+            out.clear()
+            throw IOException("Unable to write dns query: $question", e)
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.clientHandlers
+
+import dorkbox.dns.dns.exceptions.WireParseException
+import dorkbox.dns.dns.records.Header
+import io.netty.buffer.ByteBuf
+import io.netty.channel.ChannelHandler.Sharable
+import io.netty.channel.ChannelHandlerContext
+import io.netty.handler.codec.MessageToMessageDecoder
+import io.netty.util.internal.UnstableApi
+import java.net.InetSocketAddress
+
+/**
+ * Decodes a frame of a TCP connection (without its 2-byte length prefix) into a [DnsResponse].
+ */
+@UnstableApi
+@Sharable
+class TcpDnsResponseDecoder : MessageToMessageDecoder<ByteBuf>() {
+    override fun decode(ctx: ChannelHandlerContext, frame: ByteBuf, out: MutableList<Any>) {
+        // Check that the response is long enough.
+        if (frame.readableBytes() < Header.LENGTH) {
+            throw WireParseException("invalid DNS header - ${frame.readableBytes()} is too short (< ${Header.LENGTH})")
+        }
+
+        val channel = ctx.channel()
+
+        // only the header and question are decoded now, the frame is retained until the response is released
+        out.add(DnsResponse(frame, channel.remoteAddress() as? InetSocketAddress, channel.localAddress() as? InetSocketAddress))
+    }
+}
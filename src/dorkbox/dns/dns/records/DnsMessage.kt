@@ -110,6 +110,26 @@ open class DnsMessage private constructor(var header: Header) : AbstractReferenc
         private fun sameSet(r1: DnsRecord, r2: DnsRecord): Boolean {
             return r1.rRsetType == r2.rRsetType && r1.dclass == r2.dclass && r1.name.equals(r2.name)
         }
+
+        /**
+         * Skips over a name in wire format, without decoding it.
+         *
+         * @return the index after the name, or -1 if it is malformed
+         */
+        internal fun skipName(buf: ByteBuf, start: Int, end: Int): Int {
+            var pos = start
+            while (pos < end) {
+                val labelLength = buf.getUnsignedByte(pos).toInt()
+                when {
+                    labelLength == 0 -> return pos + 1
+                    // compression pointer, which always ends the name
+                    labelLength and 0xC0 == 0xC0 -> return if (pos + 2 <= end) pos + 2 else -1
+                    labelLength and 0xC0 != 0 -> return -1
+                    else -> pos += 1 + labelLength
+                }
+            }
+            return -1
+        }
     }
 
 
@@ -132,6 +152,17 @@ open class DnsMessage private constructor(var header: Header) : AbstractReferenc
     var tsigState = 0
     var sig0start = 0
 
+    // When parsed lazily, only the question is decoded up front. The other sections are kept as offsets into the (retained) buffer,
+    // and are decoded the first time they are accessed.
+    private var lazyBuf: ByteBuf? = null
+    @Volatile
+    private var lazySections = 0
+    private var lazyUpdate = false
+    private var lazyOffsets: IntArray? = null
+    private var lazyRecordCount = 0
+    private var lazySectionFirst: IntArray? = null
+    private var lazySectionCount: IntArray? = null
+
     /**
      * Creates a new DnsMessage with the specified DnsMessage ID
      */
@@ -154,7 +185,33 @@ open class DnsMessage private constructor(var header: Header) : AbstractReferenc
      *
      * @param dnsInput A DnsInput containing the DNS DnsMessage.
      */
-    constructor(dnsInput: DnsInput) : this(Header(dnsInput)) {
+    constructor(dnsInput: DnsInput) : this(dnsInput, null, false)
+
+    /**
+     * Creates a new DnsMessage from its DNS wire format representation
+     *
+     * @param byteBuffer A ByteBuf containing the DNS DnsMessage.
+     * @param lazy if true, only the header and question are decoded now. The other sections are decoded from the buffer (which is
+     * retained until this message is released) the first time they are accessed.
+     */
+    constructor(byteBuffer: ByteBuf, lazy: Boolean) : this(DnsInput(byteBuffer), byteBuffer, lazy)
+
+    /**
+     * Creates a new DnsMessage from its DNS wire format representation
+     *
+     * @param byteBuffer A ByteBuf containing the DNS DnsMessage.
+     */
+    constructor(byteBuffer: ByteBuf) : this(byteBuffer, false)
+
+    private constructor(dnsInput: DnsInput, byteBuffer: ByteBuf?, lazy: Boolean) : this(Header(dnsInput)) {
+        if (lazy && byteBuffer != null) {
+            indexSections(dnsInput, byteBuffer)
+        } else {
+            parseSections(dnsInput)
+        }
+    }
+
+    private fun parseSections(dnsInput: DnsInput) {
         val isUpdate = header.opcode == DnsOpCode.UPDATE
         val truncated = header.getFlag(Flags.TC)
 
@@ -194,13 +251,164 @@ open class DnsMessage private constructor(var header: Header) : AbstractReferenc
     }
 
     /**
-     * Creates a new DnsMessage from its DNS wire format representation
+     * Decodes the question, and records where every other record starts (without decoding them).
+     */
+    private fun indexSections(dnsInput: DnsInput, byteBuffer: ByteBuf) {
+        val isUpdate = header.opcode == DnsOpCode.UPDATE
+        val truncated = header.getFlag(Flags.TC)
+
+        // the question is needed for almost everything, so it is always decoded
+        val questionCount = header.getCount(DnsSection.QUESTION)
+        if (questionCount > 0) {
+            val records = newRecordList(questionCount)
+            setSection(DnsSection.QUESTION, records)
+
+            try {
+                for (j in 0 until questionCount) {
+                    records.add(fromWire(dnsInput, DnsSection.QUESTION, isUpdate))
+                }
+            } catch (e: WireParseException) {
+                if (!truncated) {
+                    throw e
+                }
+
+                size = dnsInput.readIndex()
+                return
+            }
+        }
+
+        val end = byteBuffer.writerIndex()
+        var pos = dnsInput.readIndex()
+        var validEnd = pos
+
+        val sectionFirst = IntArray(DnsSection.TOTAL_SECTION_COUNT)
+        val sectionCount = IntArray(DnsSection.TOTAL_SECTION_COUNT)
+        var total = 0
+        for (i in DnsSection.ANSWER..DnsSection.ADDITIONAL) {
+            sectionFirst[i] = total
+            sectionCount[i] = header.getCount(i)
+            total += sectionCount[i]
+        }
+
+        val offsets = IntArray(total)
+        var found = 0
+
+        walk@ for (i in DnsSection.ANSWER..DnsSection.ADDITIONAL) {
+            for (j in 0 until sectionCount[i]) {
+                val start = pos
+
+                // name, type, class, ttl, rdata length, rdata
+                pos = skipName(byteBuffer, pos, end)
+                if (pos == -1 || pos + 10 > end) {
+                    break@walk
+                }
+
+                val type = byteBuffer.getUnsignedShort(pos)
+                val rdataLength = byteBuffer.getUnsignedShort(pos + 8)
+                pos += 10 + rdataLength
+                if (pos > end) {
+                    break@walk
+                }
+
+                offsets[found++] = start
+                validEnd = pos
+
+                if (i == DnsSection.ADDITIONAL) {
+                    if (type == DnsRecordType.TSIG) {
+                        tsigstart = start
+                    }
+                    // SIG(0) has a "type covered" of 0
+                    else if (type == DnsRecordType.SIG && rdataLength >= 2 && byteBuffer.getUnsignedShort(pos - rdataLength) == 0) {
+                        sig0start = start
+                    }
+                }
+            }
+        }
+
+        if (found < total && !truncated) {
+            throw WireParseException("end of input")
+        }
+
+        var sections = 0
+        for (i in DnsSection.ANSWER..DnsSection.ADDITIONAL) {
+            if (sectionCount[i] > 0) {
+                sections = sections or (1 shl i)
+            }
+        }
+
+        lazyUpdate = isUpdate
+        lazyOffsets = offsets
+        lazyRecordCount = found
+        lazySectionFirst = sectionFirst
+        lazySectionCount = sectionCount
+        size = validEnd
+
+        if (sections != 0) {
+            lazyBuf = byteBuffer.retainedDuplicate()
+            lazySections = sections
+        }
+    }
+
+    /**
+     * Decodes the records of a lazily parsed section. This can happen on a different thread than the one that created the message.
+     */
+    private fun decodeSection(section: Int) {
+        synchronized(this) {
+            val bit = 1 shl section
+            if (lazySections and bit == 0) {
+                return
+            }
+
+            val first = lazySectionFirst!![section]
+            val count = (lazyRecordCount - first).coerceIn(0, lazySectionCount!![section])
+            val offsets = lazyOffsets!!
+
+            val records = newRecordList(count)
+            val dnsInput = DnsInput(lazyBuf!!.duplicate())
+
+            try {
+                for (j in 0 until count) {
+                    dnsInput.jump(offsets[first + j])
+                    records.add(fromWire(dnsInput, section, lazyUpdate))
+                }
+            } catch (e: WireParseException) {
+                if (!header.getFlag(Flags.TC)) {
+                    throw e
+                }
+            }
+
+            // this also clears the lazy bit for the section
+            setSection(section, records)
+        }
+    }
+
+    /**
+     * Positions the view over a record as it was received, so its fields can be read straight from the wire data without decoding
+     * the record. The QUESTION section is always decoded, so it does not have views.
      *
-     * @param byteBuffer A ByteBuf containing the DNS DnsMessage.
+     * @return false if there is no such record (or the message was not parsed lazily, or has been released)
      */
-    constructor(byteBuffer: ByteBuf) : this(DnsInput(byteBuffer))
+    fun recordView(section: Int, index: Int, view: DnsRecordView): Boolean {
+        val buf = lazyBuf ?: return false
+        if (section == DnsSection.QUESTION || section < 0 || section >= DnsSection.TOTAL_SECTION_COUNT) {
+            return false
+        }
+
+        val first = lazySectionFirst!![section]
+        val count = (lazyRecordCount - first).coerceIn(0, lazySectionCount!![section])
+        if (index < 0 || index >= count) {
+            return false
+        }
+
+        view.set(buf, lazyOffsets!![first + index])
+        return true
+    }
 
     private fun sectionAt(section: Int): Any? {
+        if (lazySections and (1 shl section) != 0) {
+            decodeSection(section)
+        }
+
         when (section) {
             DnsSection.QUESTION -> return questions
             DnsSection.ANSWER -> return answers
@@ -213,24 +421,17 @@ open class DnsMessage private constructor(var header: Header) : AbstractReferenc
 
     private fun setSection(section: Int, value: Any?) {
         when (section) {
-            DnsSection.QUESTION -> {
-                questions = value
-                return
-            }
-            DnsSection.ANSWER -> {
-                answers = value
-                return
-            }
-            DnsSection.AUTHORITY -> {
-                authorities = value
-                return
-            }
-            DnsSection.ADDITIONAL -> {
-                additionals = value
-                return
-            }
+            DnsSection.QUESTION -> questions = value
+            DnsSection.ANSWER -> answers = value
+            DnsSection.AUTHORITY -> authorities = value
+            DnsSection.ADDITIONAL -> additionals = value
+            else -> throw IndexOutOfBoundsException() // Should never reach here.
+        }
+
+        // the section is replaced, so it must not be decoded from the buffer. This is written last, so other threads see the records.
+        if (lazySections != 0) {
+            lazySections = lazySections and (1 shl section).inv()
         }
-        throw IndexOutOfBoundsException() // Should never reach here.
     }
 
     /**
@@ -549,8 +750,12 @@ open class DnsMessage private constructor(var header: Header) : AbstractReferenc
         return out.toByteArray()
     }
 
-    /** Returns true if the message could be rendered.  */
-    private fun toWire(out: DnsOutput, maxLength: Int): Boolean {
+    /**
+     * Renders the DnsMessage into the output, truncating it (and setting the TC bit) if it does not fit into the specified length.
+     *
+     * @return true if the message could be rendered.
+     */
+    fun toWire(out: DnsOutput, maxLength: Int): Boolean {
         if (maxLength < Header.LENGTH) {
             return false
         }
@@ -838,6 +1043,13 @@ open class DnsMessage private constructor(var header: Header) : AbstractReferenc
 
     override fun deallocate() {
         clear()
+
+        val buf = lazyBuf
+        if (buf != null) {
+            lazyBuf = null
+            buf.release()
+        }
+
         val leak = leakTracking
         if (leak != null) {
             val closed = leak.close(this)
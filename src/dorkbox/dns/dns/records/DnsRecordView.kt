@@ -0,0 +1,77 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.records
+
+import dorkbox.dns.dns.DnsInput
+import dorkbox.dns.dns.Name
+import io.netty.buffer.ByteBuf
+
+/**
+ * A read-only view over a record of a lazily parsed [DnsMessage]. The fields are read straight from the wire data, so nothing is
+ * decoded (or allocated) unless it is asked for. The same view can be moved from record to record with [DnsMessage.recordView].
+ *
+ * A view is only valid until the message it came from is released.
+ */
+class DnsRecordView {
+    private var buf: ByteBuf? = null
+    private var start = 0
+
+    // the index of the type, which is right after the name
+    private var fixed = 0
+
+    internal fun set(buf: ByteBuf, start: Int) {
+        this.buf = buf
+        this.start = start
+        this.fixed = DnsMessage.skipName(buf, start, buf.writerIndex())
+    }
+
+    val type: Int
+        get() = buf!!.getUnsignedShort(fixed)
+
+    val dclass: Int
+        get() = buf!!.getUnsignedShort(fixed + 2)
+
+    val ttl: Long
+        get() = buf!!.getUnsignedInt(fixed + 4)
+
+    val rdataLength: Int
+        get() = buf!!.getUnsignedShort(fixed + 8)
+
+    /**
+     * @return the rdata, as a slice of the message (this is not a copy)
+     */
+    fun rdata(): ByteBuf {
+        return buf!!.slice(fixed + 10, rdataLength)
+    }
+
+    /**
+     * Decodes the name of the record (compressed names are followed through the rest of the message)
+     */
+    fun name(): Name {
+        val dnsInput = DnsInput(buf!!.duplicate())
+        dnsInput.jump(start)
+        return Name(dnsInput)
+    }
+
+    /**
+     * Decodes the entire record
+     */
+    fun toRecord(section: Int): DnsRecord {
+        val dnsInput = DnsInput(buf!!.duplicate())
+        dnsInput.jump(start)
+        return DnsRecord.fromWire(dnsInput, section)
+    }
+}
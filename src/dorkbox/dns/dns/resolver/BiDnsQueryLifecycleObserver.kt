@@ -48,6 +48,14 @@ class BiDnsQueryLifecycleObserver(a: DnsQueryLifecycleObserver, b: DnsQueryLifec
         }
     }
 
+    override fun queryServerSkipped(dnsServerAddress: InetSocketAddress) {
+        try {
+            a.queryServerSkipped(dnsServerAddress)
+        } finally {
+            b.queryServerSkipped(dnsServerAddress)
+        }
+    }
+
     override fun queryCancelled(queriesRemaining: Int) {
         try {
             a.queryCancelled(queriesRemaining)
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.resolver
+
+import dorkbox.dns.dns.DnsQuestion
+import dorkbox.dns.dns.clientHandlers.DnsResponse
+import dorkbox.dns.dns.constants.DnsResponseCode
+import io.netty.channel.ChannelFuture
+import io.netty.channel.ChannelPromise
+import io.netty.util.concurrent.Future
+import io.netty.util.concurrent.FutureListener
+import io.netty.util.concurrent.Promise
+import io.netty.util.concurrent.ScheduledFuture
+import java.net.InetSocketAddress
+import java.util.concurrent.*
+
+/**
+ * A query that is also sent to the next DNS server (hedged) if its DNS server did not answer it in time. The first good answer
+ * (NOERROR or NXDOMAIN) completes the [promise], and the other query is cancelled, which frees its ID.
+ *
+ * Everything happens on the executor of the resolver, where the listeners of its promises are notified.
+ *
+ * @param nextNameServerAddr the DNS server that the hedge is sent to, or null if there are none left (or no queries are allowed)
+ * @param hedgeWritten called once the hedge was written
+ */
+internal class DnsHedgedQuery(
+    private val parent: DnsNameResolver,
+    private val policy: DnsHedgingPolicy,
+    private val question: DnsQuestion,
+    private val promise: Promise<DnsResponse>,
+    private val nextNameServerAddr: () -> InetSocketAddress?,
+    private val hedgeWritten: (InetSocketAddress, ChannelFuture) -> Unit
+) {
+    private lateinit var primary: Future<DnsResponse>
+    private var hedge: Future<DnsResponse>? = null
+    private var hedgeTimer: ScheduledFuture<*>? = null
+
+    /**
+     * An answer that was not good, which is used if the other query is not answered either
+     */
+    private var fallback: DnsResponse? = null
+
+    private val listener = FutureListener<DnsResponse> { future -> onComplete(future) }
+
+    fun query(nameServerAddr: InetSocketAddress, writePromise: ChannelPromise): Future<DnsResponse> {
+        primary = parent.query0(nameServerAddr, question, writePromise, parent.executor().newPromise())
+        primary.addListener(listener)
+
+        val delayNanos = policy.queried(nameServerAddr)
+        if (!promise.isDone && delayNanos < TimeUnit.MILLISECONDS.toNanos(parent.queryTimeoutMillis())) {
+            hedgeTimer = parent.executor().schedule(Runnable { hedge() }, delayNanos, TimeUnit.NANOSECONDS)
+        }
+
+        promise.addListener { future ->
+            if (future.isCancelled) {
+                hedgeTimer?.cancel(false)
+                primary.cancel(false)
+                hedge?.cancel(false)
+            }
+        }
+        return promise
+    }
+
+    private fun hedge() {
+        if (promise.isDone || !policy.tryHedge()) {
+            return
+        }
+        val nameServerAddr = nextNameServerAddr() ?: return
+
+        // sending the question sets its ID (and the DNS server), so the hedge needs a question of its own
+        val copy = question.duplicate()
+        val writePromise = parent.newWritePromise(nameServerAddr)
+        val hedge = parent.query0(nameServerAddr, copy, writePromise, parent.executor().newPromise())
+        this.hedge = hedge
+        hedgeWritten(nameServerAddr, writePromise)
+
+        hedge.addListener(listener)
+        hedge.addListener { copy.release() }
+    }
+
+    private fun onComplete(future: Future<DnsResponse>) {
+        if (future === primary) {
+            hedgeTimer?.cancel(false)
+        }
+        if (promise.isDone) {
+            // the other query won. The answer to a resolve question is released once its listeners were notified, any other answer
+            // is not passed on, so it is released here
+            if (future.isSuccess && !question.isResolveQuestion) {
+                future.now.release()
+            }
+            return
+        }
+
+        val other = if (future === primary) hedge else primary
+        val otherPending = other != null && !other.isDone
+
+        if (future.isSuccess) {
+            val response = future.now
+            val code = response.header.rcode
+            if (!otherPending || code == DnsResponseCode.NOERROR || code == DnsResponseCode.NXDOMAIN) {
+                val fallback = fallback
+                this.fallback = null
+
+                promise.trySuccess(response)
+                other?.cancel(false)
+                fallback?.release()
+            } else {
+                // the other query may still have a good answer
+                response.retain()
+                fallback = response
+            }
+            return
+        }
+
+        if (otherPending) {
+            return
+        }
+
+        val fallback = fallback
+        if (fallback != null) {
+            this.fallback = null
+            promise.trySuccess(fallback)
+            fallback.release()
+        } else {
+            promise.tryFailure(future.cause())
+        }
+    }
+}
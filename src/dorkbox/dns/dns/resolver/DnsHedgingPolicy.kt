@@ -0,0 +1,210 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.resolver
+
+import dorkbox.dns.dns.resolver.addressProvider.DnsServerObserver
+import io.netty.util.internal.ObjectUtil
+import java.net.InetSocketAddress
+import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Decides when a query that was not answered yet is also sent to the next DNS server (hedged), so a slow answer does not hold up the
+ * resolve. The first good answer wins, and the other query is cancelled.
+ *
+ * A query is hedged once it took longer than the [percentile] of the round trip times of its DNS server, so only the slowest queries
+ * are hedged. Until a DNS server answered enough queries for that to be known, [initialDelayMillis] is used.
+ *
+ * Every query adds [budgetPercent] percent of a hedge to the budget, and every hedge takes a whole one, so (after a short burst) no
+ * more than [budgetPercent] percent of the queries are hedged, even while every DNS server is slow.
+ *
+ * @param percentile the percentile (of the round trip times of a DNS server) after which a query to it is hedged
+ * @param budgetPercent the percentage of the queries that may be hedged
+ * @param minDelayMillis the shortest time (in milliseconds) a query waits before it is hedged
+ * @param initialDelayMillis how long (in milliseconds) a query waits before it is hedged, while the round trip times of its DNS
+ * server are not known yet
+ */
+class DnsHedgingPolicy(
+    percentile: Int = 95,
+    budgetPercent: Int = 5,
+    minDelayMillis: Long = 10L,
+    initialDelayMillis: Long = 200L,
+    maxServers: Int = 1024
+) : DnsServerObserver {
+
+    companion object {
+        /**
+         * The number of sub-buckets for every power of 2 (in microseconds), so a percentile is off by at most 25%
+         */
+        private const val SUB_BUCKET_BITS = 2
+        private const val SUB_BUCKETS = 1 shl SUB_BUCKET_BITS
+
+        /**
+         * Round trip times up to 2^28 microseconds (about 4 minutes), which is longer than any query timeout
+         */
+        private const val BUCKETS = 27 * SUB_BUCKETS
+
+        /**
+         * The number of answers from a DNS server before its percentile is used
+         */
+        private const val MIN_SAMPLES = 20
+
+        /**
+         * Once a DNS server has this many answers, they all count half as much, so the percentile follows how it answers now
+         */
+        private const val MAX_SAMPLES = 1000
+
+        /**
+         * A hedge is this many units of the budget, and every query adds `budgetPercent` of them
+         */
+        private const val HEDGE_COST = 100L
+
+        /**
+         * The number of hedges that can be sent in a burst
+         */
+        private const val MAX_BURST = 10
+
+        private fun bucket(micros: Long): Int {
+            if (micros < SUB_BUCKETS) {
+                return micros.toInt()
+            }
+            val msb = 63 - java.lang.Long.numberOfLeadingZeros(micros)
+            val sub = (micros ushr (msb - SUB_BUCKET_BITS)).toInt() and (SUB_BUCKETS - 1)
+            return ((msb - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub).coerceAtMost(BUCKETS - 1)
+        }
+
+        /**
+         * @return the largest round trip time (in microseconds) in the bucket
+         */
+        private fun upperBound(bucket: Int): Long {
+            if (bucket < SUB_BUCKETS) {
+                return bucket.toLong()
+            }
+            val msb = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1
+            val sub = (bucket % SUB_BUCKETS).toLong()
+            return ((SUB_BUCKETS + sub + 1) shl (msb - SUB_BUCKET_BITS)) - 1
+        }
+    }
+
+    private class Histogram {
+        val counts = IntArray(BUCKETS)
+        var total = 0
+    }
+
+    private val percentile: Int
+    private val budgetPerQuery: Long
+    private val minDelayNanos = TimeUnit.MILLISECONDS.toNanos(ObjectUtil.checkPositive(minDelayMillis, "minDelayMillis"))
+    private val initialDelayNanos = TimeUnit.MILLISECONDS.toNanos(ObjectUtil.checkPositive(initialDelayMillis, "initialDelayMillis"))
+    private val maxServers = ObjectUtil.checkPositive(maxServers, "maxServers")
+
+    private val histograms = ConcurrentHashMap<InetSocketAddress, Histogram>()
+    private val budget = AtomicLong(HEDGE_COST)
+
+    init {
+        require(percentile in 1..99) { "percentile: $percentile (expected: 1-99)" }
+        require(budgetPercent in 1..100) { "budgetPercent: $budgetPercent (expected: 1-100)" }
+        this.percentile = percentile
+        this.budgetPerQuery = budgetPercent.toLong()
+    }
+
+    override fun answered(address: InetSocketAddress, rttNanos: Long) {
+        var histogram = histograms[address]
+        if (histogram == null) {
+            if (histograms.size >= maxServers) {
+                return
+            }
+            val newHistogram = Histogram()
+            histogram = histograms.putIfAbsent(address, newHistogram) ?: newHistogram
+        }
+
+        val bucket = bucket(TimeUnit.NANOSECONDS.toMicros(rttNanos).coerceAtLeast(0L))
+        synchronized(histogram) {
+            if (histogram.total >= MAX_SAMPLES) {
+                var total = 0
+                val counts = histogram.counts
+                for (i in counts.indices) {
+                    counts[i] = counts[i] shr 1
+                    total += counts[i]
+                }
+                histogram.total = total
+            }
+
+            histogram.counts[bucket]++
+            histogram.total++
+        }
+    }
+
+    override fun failed(address: InetSocketAddress) {
+        // a query that was not answered has no round trip time, the circuit breaker takes care of DNS servers that do not answer
+    }
+
+    /**
+     * @return the round trip time (in nanoseconds) at the percentile of the DNS server, or -1 if it did not answer enough queries yet
+     */
+    fun percentileNanos(address: InetSocketAddress): Long {
+        val histogram = histograms[address] ?: return -1L
+        synchronized(histogram) {
+            if (histogram.total < MIN_SAMPLES) {
+                return -1L
+            }
+
+            // the first bucket at which the given percentage of the answers is reached
+            val target = (histogram.total.toLong() * percentile + 99) / 100
+            var count = 0L
+            val counts = histogram.counts
+            for (i in counts.indices) {
+                count += counts[i]
+                if (count >= target) {
+                    return TimeUnit.MICROSECONDS.toNanos(upperBound(i))
+                }
+            }
+            return TimeUnit.MICROSECONDS.toNanos(upperBound(BUCKETS - 1))
+        }
+    }
+
+    /**
+     * A query was sent, which adds to the budget for hedges.
+     *
+     * @return how long (in nanoseconds) to wait for the DNS server to answer, before the query is hedged
+     */
+    fun queried(address: InetSocketAddress): Long {
+        val max = HEDGE_COST * MAX_BURST
+        while (true) {
+            val current = budget.get()
+            if (current >= max || budget.compareAndSet(current, (current + budgetPerQuery).coerceAtMost(max))) {
+                break
+            }
+        }
+
+        val delay = percentileNanos(address)
+        return if (delay < 0) initialDelayNanos else delay.coerceAtLeast(minDelayNanos)
+    }
+
+    /**
+     * @return true if there is budget left for a hedge, which is taken from it
+     */
+    fun tryHedge(): Boolean {
+        while (true) {
+            val current = budget.get()
+            if (current < HEDGE_COST) {
+                return false
+            }
+            if (budget.compareAndSet(current, current - HEDGE_COST)) {
+                return true
+            }
+        }
+    }
+}
@@ -20,12 +20,21 @@ import dorkbox.dns.dns.DnsQuestion.Companion.hostNameAsciiFix
 import dorkbox.dns.dns.clientHandlers.DatagramDnsQueryEncoder
 import dorkbox.dns.dns.clientHandlers.DatagramDnsResponseDecoder
 import dorkbox.dns.dns.clientHandlers.DnsResponse
+import dorkbox.dns.dns.clientHandlers.TcpDnsQueryEncoder
+import dorkbox.dns.dns.clientHandlers.TcpDnsResponseDecoder
 import dorkbox.dns.dns.constants.DnsRecordType
+import dorkbox.dns.dns.constants.DnsResponseCode
+import dorkbox.dns.dns.constants.DnsSection
+import dorkbox.dns.dns.constants.Flags
+import dorkbox.dns.dns.records.DnsMessage
 import dorkbox.dns.dns.resolver.addressProvider.DefaultDnsServerAddressStreamProvider
 import dorkbox.dns.dns.resolver.addressProvider.DnsServerAddressStream
 import dorkbox.dns.dns.resolver.addressProvider.DnsServerAddressStreamProvider
 import dorkbox.dns.dns.resolver.addressProvider.DnsServerAddresses
+import dorkbox.dns.dns.resolver.addressProvider.DnsServerObserver
+import dorkbox.dns.dns.resolver.cache.DefaultDnsCache
 import dorkbox.dns.dns.resolver.cache.DnsCache
+import dorkbox.dns.dns.resolver.cache.DnsRecordCache
 import dorkbox.netUtil.Dns.defaultNameServers
 import dorkbox.netUtil.Dns.numberDots
 import dorkbox.netUtil.Dns.resolveFromHosts
@@ -37,22 +46,25 @@ import dorkbox.os.OS.isWindows
 import io.netty.bootstrap.Bootstrap
 import io.netty.channel.Channel
 import io.netty.channel.ChannelFactory
-import io.netty.channel.ChannelFutureListener
-import io.netty.channel.ChannelInitializer
 import io.netty.channel.ChannelOption
 import io.netty.channel.ChannelPromise
 import io.netty.channel.EventLoop
-import io.netty.channel.FixedRecvByteBufAllocator
+import io.netty.channel.EventLoopGroup
 import io.netty.channel.socket.DatagramChannel
 import io.netty.channel.socket.InternetProtocolFamily
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder
+import io.netty.handler.codec.LengthFieldPrepender
 import io.netty.resolver.InetNameResolver
 import io.netty.util.concurrent.FastThreadLocal
 import io.netty.util.concurrent.Future
 import io.netty.util.concurrent.Promise
 import io.netty.util.internal.ObjectUtil
+import io.netty.util.internal.PlatformDependent
+import io.netty.util.internal.ThrowableUtil
 import org.slf4j.LoggerFactory
 import java.net.InetAddress
 import java.net.InetSocketAddress
+import java.util.concurrent.ConcurrentHashMap
 import java.util.function.*
 
 /**
@@ -73,6 +85,18 @@ import java.util.function.*
  * @param searchDomains the list of search domain (can be null, if so, will try to default to the underlying platform ones)
  * @param ndots the ndots value
  * @param decodeIdn `true` if domain / host names should be decoded to unicode when received.
+ * @param recordCache the cache of RRsets used to answer [query], or null to always query the DNS servers
+ * @param socketGroup the [EventLoopGroup] that the UDP sockets are spread across, or null to only use [eventLoop]
+ * @param socketCount the number of UDP sockets that queries are sent through, or 0 for one per event loop of the [socketGroup]
+ * @param connectedSockets if every DNS server gets its own UDP socket (up to [MAX_CONNECTED_SOCKETS]), connected to it
+ * @param tcpChannelFactory the [ChannelFactory] that will create the TCP channels, or null to never query over TCP (a truncated answer is
+ * then handed back as it is)
+ * @param forceTcp if every query is sent over TCP, instead of only those whose answer was truncated
+ * @param tcpMaxConnections the maximum number of TCP connections to each DNS server
+ * @param tcpMaxInFlightQueries the number of queries pipelined on a TCP connection before another one is opened
+ * @param tcpIdleTimeoutMillis how long (in milliseconds) a TCP connection without any queries in progress is kept open
+ * @param serverHealth the circuit breakers that skip the DNS servers which keep failing, or null to always query every DNS server
+ * @param hedgingPolicy decides when a slow query is also sent to the next DNS server, or null to only move on after a timeout or error
  *
  * See [rfc3492](https://tools.ietf.org/html/rfc3492).
 */
@@ -91,23 +115,45 @@ class DnsNameResolver(
     dnsServerAddressStreamProvider: DnsServerAddressStreamProvider,
     searchDomains: Array<String>?,
     ndots: Int,
-    decodeIdn: Boolean
+    decodeIdn: Boolean,
+    recordCache: DnsRecordCache? = null,
+    socketGroup: EventLoopGroup? = null,
+    socketCount: Int = 0,
+    private val connectedSockets: Boolean = false,
+    tcpChannelFactory: ChannelFactory<out Channel>? = null,
+    private val forceTcp: Boolean = false,
+    tcpMaxConnections: Int = 2,
+    tcpMaxInFlightQueries: Int = 64,
+    tcpIdleTimeoutMillis: Long = 10_000L,
+    private val serverHealth: DnsServerHealth? = null,
+    private val hedgingPolicy: DnsHedgingPolicy? = null
 ) : InetNameResolver(eventLoop) {
 
     private val DNS_ENCODER: DatagramDnsQueryEncoder
-    val channelFuture: Future<Channel>
-    val ch: DatagramChannel
+    private val bootstrap: Bootstrap
+    private val socketGroup: EventLoopGroup
 
     /**
-     * Manages the [DnsQueryContext]s in progress and their query IDs.
+     * The UDP sockets that queries are sent through (spread across the event loops of the socket group), each with the queries in
+     * progress on it and their query IDs. With connected sockets, every DNS server also has a socket of its own.
      */
-    internal val queryContextManager = DnsQueryContextManager()
+    private val sockets: Array<DnsResolverSocket>
+    private val connected = ConcurrentHashMap<InetSocketAddress, DnsResolverSocket>()
+
+    /**
+     * The persistent TCP connections to each DNS server, for the answers that do not fit into a datagram
+     */
+    private val tcpPool: DnsTcpConnectionPool?
+
+    @Volatile
+    private var closed = false
 
     /**
      * Cache for [.doResolve] and [.doResolveAll].
      */
     private val resolveCache: DnsCache
     private val authoritativeDnsServerCache: DnsCache
+    private val recordCache: DnsRecordCache?
     private val queryTimeoutMillis: Long
     private val maxQueriesPerResolve: Int
     private val resolvedAddressTypes: ResolvedAddressTypes
@@ -122,6 +168,11 @@ class DnsNameResolver(
     private val maxPayloadSize: Int
     private val dnsServerAddressStreamProvider: DnsServerAddressStreamProvider
 
+    /**
+     * Is told how every query went, if the [DnsServerAddressStreamProvider] orders the DNS servers by how well they answer
+     */
+    private val serverObserver = dnsServerAddressStreamProvider as? DnsServerObserver
+
     private val nameServerAddrStream: FastThreadLocal<DnsServerAddressStream> = object : FastThreadLocal<DnsServerAddressStream>() {
         @Throws(Exception::class)
         override fun initialValue(): DnsServerAddressStream {
@@ -148,6 +199,7 @@ class DnsNameResolver(
         this.dnsServerAddressStreamProvider = dnsServerAddressStreamProvider
         this.resolveCache = resolveCache
         this.authoritativeDnsServerCache = authoritativeDnsServerCache
+        this.recordCache = recordCache
 
         if (traceEnabled) {
             if (dnsQueryLifecycleObserverFactory is NoopDnsQueryLifecycleObserverFactory) {
@@ -198,27 +250,61 @@ class DnsNameResolver(
         }
 
 
-        val b = Bootstrap()
-        b.group(executor())
-        b.channelFactory(channelFactory)
-        b.option(ChannelOption.DATAGRAM_CHANNEL_ACTIVE_ON_REGISTRATION, true)
-
         DNS_ENCODER = DatagramDnsQueryEncoder(maxPayloadSize)
 
-        val channelActivePromise = executor().newPromise<Channel>()
-        val responseHandler = DnsNameResolverResponseHandler(this, channelActivePromise)
+        bootstrap = Bootstrap()
+        bootstrap.channelFactory(channelFactory)
+
+        this.socketGroup = socketGroup ?: eventLoop
+        val count = if (socketCount > 0) socketCount else this.socketGroup.count().coerceAtLeast(1)
+        sockets = Array(count) { newSocket(null) }
+
+        if (tcpChannelFactory != null) {
+            val tcpBootstrap = Bootstrap()
+            tcpBootstrap.channelFactory(tcpChannelFactory)
+            tcpBootstrap.option(ChannelOption.TCP_NODELAY, true)
+
+            tcpPool = DnsTcpConnectionPool(tcpBootstrap, this.socketGroup, tcpMaxConnections, tcpMaxInFlightQueries, tcpIdleTimeoutMillis) { socket ->
+                arrayOf(LengthFieldBasedFrameDecoder(DnsMessage.MAXLENGTH + TCP_LENGTH_FIELD_SIZE, 0, TCP_LENGTH_FIELD_SIZE, 0, TCP_LENGTH_FIELD_SIZE),
+                        TCP_FRAME_PREPENDER, TCP_DECODER, TCP_ENCODER, DnsNameResolverResponseHandler(socket))
+            }
+        } else {
+            require(!forceTcp) { "forceTcp needs a tcpChannelFactory" }
+            tcpPool = null
+        }
+
+        if (resolveCache is DefaultDnsCache) {
+            resolveCache.refresher = { hostname -> refresh(hostname) }
+        }
+    }
+
+    /**
+     * Resolves the hostname again (in the background) so that the cache has a fresh answer before the current one expires.
+     *
+     * A failed refresh is not cached, the current entries stay valid until their TTL runs out.
+     */
+    private fun refresh(hostname: String) {
+        if (closed) {
+            return
+        }
 
-        b.handler(object : ChannelInitializer<DatagramChannel>() {
-            @Throws(Exception::class)
-            override fun initChannel(ch: DatagramChannel) {
-                ch.pipeline().addLast(DNS_DECODER, DNS_ENCODER, responseHandler)
+        val cache = object : DnsCache by resolveCache {
+            override fun cache(hostname: String, cause: Throwable, loop: EventLoop) {
             }
-        })
 
-        channelFuture = channelActivePromise
-        ch = b.register().channel() as DatagramChannel
-        ch.config().setRecvByteBufAllocator(FixedRecvByteBufAllocator(maxPayloadSize))
-        ch.closeFuture().addListener(ChannelFutureListener { resolveCache.clear() })
+            override fun cache(hostname: String, cause: Throwable, ttl: Long, loop: EventLoop) {
+            }
+        }
+
+        executor().execute {
+            val promise = executor().newPromise<List<InetAddress>>()
+            promise.addListener { future ->
+                if (!future.isSuccess) {
+                    logger.debug("Unable to refresh '{}' ahead of its expiry", hostname, future.cause())
+                }
+            }
+            doResolveAllUncached(hostname, promise, cache)
+        }
     }
 
     public override fun executor(): EventLoop {
@@ -236,14 +322,89 @@ class DnsNameResolver(
     }
 
     /**
-     * Closes the internal datagram channel used for sending and receiving DNS messages, and clears all DNS resource
+     * Closes the internal datagram channels used for sending and receiving DNS messages, and clears all DNS resource
      * records from the cache. Attempting to send a DNS query or to resolve a domain name will fail once this method
      * has been called.
      */
     override fun close() {
-        if (ch.isOpen) {
-            ch.close()
+        if (closed) {
+            return
         }
+        closed = true
+
+        for (socket in sockets) {
+            socket.close()
+        }
+        for (socket in connected.values) {
+            socket.close()
+        }
+        connected.clear()
+        tcpPool?.close()
+
+        resolveCache.clear()
+        recordCache?.clear()
+    }
+
+    private fun newSocket(remote: InetSocketAddress?): DnsResolverSocket {
+        val eventLoop = socketGroup.next()
+        return DnsResolverSocket(bootstrap, eventLoop, remote, maxPayloadSize) { socket ->
+            arrayOf(DNS_DECODER, DNS_ENCODER, DnsNameResolverResponseHandler(socket))
+        }
+    }
+
+    /**
+     * @return the socket to send a query to the DNS server through: a TCP connection if every query is sent over TCP, its own
+     * (connected) socket, or a random one of the pool
+     */
+    internal fun socket(nameServerAddr: InetSocketAddress): DnsResolverSocket {
+        if (forceTcp) {
+            return tcpPool!!.acquire(nameServerAddr)
+        }
+
+        if (connectedSockets && !closed) {
+            val socket = connected[nameServerAddr]
+            if (socket != null && socket.ch.isOpen) {
+                return socket
+            }
+
+            if (connected.size < MAX_CONNECTED_SOCKETS) {
+                val newSocket = connected.compute(nameServerAddr) { _, old ->
+                    if (old != null && old.ch.isOpen) old else newSocket(nameServerAddr)
+                }!!
+
+                // a socket that failed (or was closed) is replaced by the next query to the DNS server
+                newSocket.ch.closeFuture().addListener { connected.remove(nameServerAddr, newSocket) }
+                return newSocket
+            }
+        }
+
+        return sockets[PlatformDependent.threadLocalRandom().nextInt(sockets.size)]
+    }
+
+    /**
+     * Returns `true` if queries can be sent over TCP, ie: when their answer was truncated
+     */
+    val isTcpAvailable: Boolean
+        get() = tcpPool != null
+
+    /**
+     * Sends the query over one of the TCP connections to the DNS server, which are opened as needed
+     */
+    internal fun queryOverTcp(nameServerAddr: InetSocketAddress, question: DnsQuestion, promise: Promise<DnsResponse>) {
+        try {
+            val connection = tcpPool!!.acquire(nameServerAddr)
+            DnsQueryContext(this, connection, nameServerAddr, question, promise).query(connection.ch.newPromise())
+        } catch (e: Exception) {
+            question.release()
+            promise.tryFailure(e)
+        }
+    }
+
+    /**
+     * @return a promise to write a query to the DNS server with, it must be passed to [query0]
+     */
+    fun newWritePromise(nameServerAddr: InetSocketAddress): ChannelPromise {
+        return socket(nameServerAddr).ch.newPromise()
     }
 
     /**
@@ -457,6 +618,13 @@ class DnsNameResolver(
         return authoritativeDnsServerCache
     }
 
+    /**
+     * Returns the cache of RRsets used to answer [query], if there is one.
+     */
+    fun recordCache(): DnsRecordCache? {
+        return recordCache
+    }
+
     /**
      * Returns the timeout of each DNS query performed by this resolver (in milliseconds).
      * The default value is 5 seconds.
@@ -559,30 +727,88 @@ class DnsNameResolver(
      * Sends a DNS query with the specified question.
      */
     fun query(question: DnsQuestion): Future<DnsResponse> {
-        return query(nextNameServerAddress(), question)
+        return query(question, executor().newPromise())
     }
 
     private fun nextNameServerAddress(): InetSocketAddress {
-        return nameServerAddrStream.get().next()
+        // when the DNS servers are ordered by how well they answer, the order changes with every answer (a stream kept around would
+        // only take turns)
+        val stream = if (serverObserver != null) dnsServerAddressStreamProvider.nameServerAddressStream("") else nameServerAddrStream.get()
+
+        var nameServerAddr = stream.next()
+        if (serverHealth != null) {
+            // a DNS server whose circuit is open is skipped, unless it is the last one
+            for (i in 1 until stream.size()) {
+                if (serverHealth.isAvailable(nameServerAddr)) {
+                    break
+                }
+                nameServerAddr = stream.next()
+            }
+        }
+        return nameServerAddr
+    }
+
+    /**
+     * @return true if a query can be sent to the DNS server, false if its circuit is open (it did not answer its last queries)
+     */
+    internal fun isAvailable(nameServerAddr: InetSocketAddress): Boolean {
+        return serverHealth?.isAvailable(nameServerAddr) ?: true
+    }
+
+    /**
+     * The DNS server answered a query
+     */
+    internal fun serverAnswered(nameServerAddr: InetSocketAddress, rttNanos: Long) {
+        serverObserver?.answered(nameServerAddr, rttNanos)
+        serverHealth?.answered(nameServerAddr, rttNanos)
+        hedgingPolicy?.answered(nameServerAddr, rttNanos)
+    }
+
+    /**
+     * The DNS server did not answer a query, it timed out or is unreachable
+     */
+    internal fun serverFailed(nameServerAddr: InetSocketAddress) {
+        serverObserver?.failed(nameServerAddr)
+        serverHealth?.failed(nameServerAddr)
+    }
+
+    /**
+     * Returns the circuit breakers of the DNS servers, if there are any.
+     */
+    fun serverHealth(): DnsServerHealth? {
+        return serverHealth
+    }
+
+    /**
+     * Returns the policy that decides when a slow query is also sent to the next DNS server, if queries are hedged.
+     */
+    fun hedgingPolicy(): DnsHedgingPolicy? {
+        return hedgingPolicy
     }
 
     /**
      * Sends a DNS query with the specified question using the specified name server list.
      */
     fun query(nameServerAddr: InetSocketAddress, question: DnsQuestion): Future<DnsResponse> {
-        return query0(nameServerAddr, question, ch.eventLoop().newPromise())
+        return query0(nameServerAddr, question, executor().newPromise())
     }
 
     fun query0(nameServerAddr: InetSocketAddress, question: DnsQuestion, promise: Promise<DnsResponse>): Future<DnsResponse> {
-        return query0(nameServerAddr, question, ch.newPromise(), promise)
+        return query0(nameServerAddr, question, null, promise)
     }
 
+    /**
+     * @param writePromise from [newWritePromise] (which picks the socket the query is sent through), or null to pick one here
+     */
     fun query0(
         nameServerAddr: InetSocketAddress, question: DnsQuestion, writePromise: ChannelPromise?, promise: Promise<DnsResponse>
     ): Future<DnsResponse> {
-        assert(!writePromise!!.isVoid)
+        assert(writePromise == null || !writePromise.isVoid)
         return try {
-            DnsQueryContext(this, nameServerAddr, question, promise).query(writePromise)
+            val socket = if (writePromise == null) socket(nameServerAddr) else DnsResolverSocket.of(writePromise.channel())
+            requireNotNull(socket) { "the write promise is not for a socket of a resolver" }
+
+            DnsQueryContext(this, socket, nameServerAddr, question, promise).query(writePromise ?: socket.ch.newPromise())
             promise
         } catch (e: Exception) {
             promise.setFailure(e)
@@ -593,7 +819,86 @@ class DnsNameResolver(
      * Sends a DNS query with the specified question.
      */
     fun query(question: DnsQuestion, promise: Promise<DnsResponse>): Future<DnsResponse> {
-        return query(nextNameServerAddress(), question, promise)
+        val recordCache = recordCache ?: return query0(nextNameServerAddress(), question, promise)
+
+        val cached = cachedResponse(recordCache, question)
+        if (cached != null) {
+            // the question is never written (which would release it)
+            question.release()
+            if (!promise.trySuccess(cached)) {
+                cached.release()
+            }
+            return promise
+        }
+
+        // a random-subdomain flood is not passed on to the DNS servers
+        val record = question.question
+        if (record != null && recordCache.isFlooded(record.name)) {
+            question.release()
+            promise.tryFailure(ZONE_FLOODED_QUERY_FAILED_EXCEPTION)
+            return promise
+        }
+
+        // the response is cached before anyone else sees it, as they may release it right away
+        val queryPromise = executor().newPromise<DnsResponse>()
+        queryPromise.addListener { future ->
+            if (future.isSuccess) {
+                val response = future.now as DnsResponse
+                try {
+                    recordCache.addMessage(response)
+                } catch (e: Exception) {
+                    logger.debug("Unable to cache the response {}", response, e)
+                }
+
+                if (!promise.trySuccess(response)) {
+                    response.release()
+                }
+            } else {
+                promise.tryFailure(future.cause())
+            }
+        }
+
+        query0(nextNameServerAddress(), question, queryPromise)
+        return promise
+    }
+
+    /**
+     * @return a response with the answer to the question from the cache, or null if the cache does not have one
+     */
+    private fun cachedResponse(recordCache: DnsRecordCache, question: DnsQuestion): DnsResponse? {
+        val record = question.question ?: return null
+
+        // a client that asked for DNSSEC records must get the signatures (and proofs) as well, or its answer is bogus
+        val optRecord = question.optRecord
+        val dnssecOk = optRecord != null && optRecord.flags and DO_BIT != 0
+        val records = recordCache.answer(record.name, record.type, record.dclass, dnssecOk)
+        val negative = if (records == null) recordCache.negative(record.name, record.type, record.dclass, dnssecOk) ?: return null else null
+
+        val response = DnsResponse(question.header.id, null, null)
+        val header = response.header
+        header.setFlag(Flags.QR)
+        header.setFlag(Flags.RA)
+        if (question.header.getFlag(Flags.RD)) {
+            header.setFlag(Flags.RD)
+        }
+        header.rcode = if (negative != null && negative.isNxDomain) DnsResponseCode.NXDOMAIN else DnsResponseCode.NOERROR
+
+        response.addRecord(record, DnsSection.QUESTION)
+        if (records != null) {
+            for (answer in records) {
+                response.addRecord(answer, DnsSection.ANSWER)
+            }
+        }
+
+        if (negative != null) {
+            // the NSEC/NSEC3 records (and signatures) that prove it are only for those that asked for them
+            for (authority in negative.authority) {
+                if (dnssecOk || authority.type == DnsRecordType.SOA) {
+                    response.addRecord(authority, DnsSection.AUTHORITY)
+                }
+            }
+        }
+        return response
     }
 
     /**
@@ -607,6 +912,11 @@ class DnsNameResolver(
         internal val logger = LoggerFactory.getLogger(DnsNameResolver::class.java)
 
         private const val LOCALHOST = "localhost"
+
+        /**
+         * The DNSSEC OK flag of the OPT record (RFC 3225)
+         */
+        private const val DO_BIT = 0x8000
         private val LOCALHOST_ADDRESS: InetAddress
 
         private val IPV4_ONLY_RESOLVED_RECORD_TYPES = intArrayOf(DnsRecordType.A)
@@ -625,6 +935,23 @@ class DnsNameResolver(
         private val DEFAULT_NDOTS: Int
         private val DNS_DECODER = DatagramDnsResponseDecoder()
 
+        /**
+         * Every DNS message over TCP is prefixed with a 2-byte length field (RFC 1035 4.2.2)
+         */
+        private const val TCP_LENGTH_FIELD_SIZE = 2
+        private val TCP_DECODER = TcpDnsResponseDecoder()
+        private val TCP_ENCODER = TcpDnsQueryEncoder()
+        private val TCP_FRAME_PREPENDER = LengthFieldPrepender(TCP_LENGTH_FIELD_SIZE)
+
+        /**
+         * The maximum number of DNS servers that get a connected socket of their own, the others share the pool of sockets
+         */
+        const val MAX_CONNECTED_SOCKETS = 64
+
+        private val ZONE_FLOODED_QUERY_FAILED_EXCEPTION = ThrowableUtil.unknownStackTrace(
+            RuntimeException("Too many names that do not exist were asked for in the zone"), DnsNameResolver::class.java, "query(..)"
+        )
+
         init {
             if (IPv4.isPreferred) {
                 DEFAULT_RESOLVE_ADDRESS_TYPES = ResolvedAddressTypes.IPV4_ONLY
@@ -27,6 +27,7 @@ import dorkbox.dns.dns.records.CNAMERecord
 import dorkbox.dns.dns.records.DnsMessage
 import dorkbox.dns.dns.records.DnsRecord
 import dorkbox.dns.dns.records.NSRecord
+import dorkbox.dns.dns.records.SOARecord
 import dorkbox.dns.dns.resolver.addressProvider.DnsServerAddressStream
 import dorkbox.dns.dns.resolver.addressProvider.DnsServerAddresses
 import dorkbox.dns.dns.resolver.cache.DnsCache
@@ -56,6 +57,9 @@ internal abstract class DnsNameResolverContext<T>(
     private var resolvedEntries: MutableList<DnsCacheEntry>? = null
     private var triedCNAME = false
 
+    // the negative TTL of an NXDOMAIN response, -1 if there was none (or it did not have an SOA record)
+    private var nxDomainTtl = -1L
+
     fun resolve(promise: Promise<T>) {
         if (parent.searchDomains().isEmpty() || parent.ndots() == 0 || hostname.endsWith('.')) {
             internalResolve(promise)
@@ -104,9 +108,36 @@ internal abstract class DnsNameResolverContext<T>(
     }
 
     private fun internalResolve(promise: Promise<T>) {
+        // search domains are not looked up in the cache before they get here
+        val cachedEntries = resolveCache[hostname]
+        if (cachedEntries != null) {
+            val cause = synchronized(cachedEntries) {
+                if (cachedEntries.isEmpty()) null else cachedEntries[0].cause()
+            }
+            if (cause != null) {
+                promise.tryFailure(cause)
+                return
+            }
+        }
+
+        // nothing exists below a hostname that does not exist (RFC 8020)
+        if (resolveCache.isNxDomain(hostname)) {
+            val cause = UnknownHostException("failed to resolve '$hostname', a name above it does not exist")
+            cause.stackTrace = arrayOfNulls(0)
+            promise.tryFailure(cause)
+            return
+        }
+
+        // the types that the hostname is known to have no records of are not queried again
+        val recordTypes = parent.resolveRecordTypes().filter { !resolveCache.isNoData(hostname, it) }
+        if (recordTypes.isEmpty()) {
+            val cause = UnknownHostException("failed to resolve '$hostname', it has no records of the resolved types")
+            cause.stackTrace = arrayOfNulls(0)
+            promise.tryFailure(cause)
+            return
+        }
+
         val nameServerAddressStream = getNameServers(hostname)
-        val recordTypes = parent.resolveRecordTypes()
-        assert(recordTypes.size > 0)
         val end = recordTypes.size - 1
         for (i in 0 until end) {
             if (!resolveQuery(hostname, recordTypes[i], nameServerAddressStream.duplicate(), promise)) {
@@ -122,7 +153,7 @@ internal abstract class DnsNameResolverContext<T>(
     private fun addNameServerToCache(name: AuthoritativeNameServer, resolved: InetAddress, ttl: Long) {
         if (!name.isRootServer) {
             // Cache NS record if not for a root server as we should never cache for root servers.
-            parent.authoritativeDnsServerCache().cache(name.domainName(), resolved, ttl, parent.ch.eventLoop())
+            parent.authoritativeDnsServerCache().cache(name.domainName(), resolved, ttl, parent.executor())
         }
     }
 
@@ -211,11 +242,41 @@ internal abstract class DnsNameResolverContext<T>(
             return
         }
         --allowedQueries
-        val nameServerAddr = nameServerAddrStream.next()
-        val writePromise = parent.ch.newPromise()
-        val f = parent.query0(
-            nameServerAddr, question, writePromise, parent.ch.eventLoop().newPromise()
-        )
+
+        // the index of the last DNS server that was queried, which a hedge moves on
+        var nameServerAddrIndex = nameServerAddrStreamIndex - 1
+
+        fun nextNameServerAddr(): InetSocketAddress {
+            // a DNS server whose circuit is open is skipped, unless it is the last one left to try
+            nameServerAddrIndex++
+            var nameServerAddr = nameServerAddrStream.next()
+            while (nameServerAddrIndex + 1 < nameServerAddrStream.size() && !parent.isAvailable(nameServerAddr)) {
+                queryLifecycleObserver.queryServerSkipped(nameServerAddr)
+                nameServerAddrIndex++
+                nameServerAddr = nameServerAddrStream.next()
+            }
+            return nameServerAddr
+        }
+
+        val nameServerAddr = nextNameServerAddr()
+        val writePromise = parent.newWritePromise(nameServerAddr)
+
+        val hedgingPolicy = parent.hedgingPolicy()
+        val f = if (hedgingPolicy == null || nameServerAddrIndex + 1 >= nameServerAddrStream.size()) {
+            parent.query0(nameServerAddr, question, writePromise, parent.executor().newPromise())
+        } else {
+            // if the DNS server is slow to answer, the question is also sent to the next one
+            DnsHedgedQuery(parent, hedgingPolicy, question, parent.executor().newPromise(), {
+                if (nameServerAddrIndex + 1 >= nameServerAddrStream.size() || allowedQueries == 0) {
+                    null
+                } else {
+                    --allowedQueries
+                    nextNameServerAddr()
+                }
+            }, { hedgeAddr, hedgeWritePromise ->
+                queryLifecycleObserver.queryWritten(hedgeAddr, hedgeWritePromise)
+            }).query(nameServerAddr, writePromise)
+        }
         queriesInProgress.add(f)
         queryLifecycleObserver.queryWritten(nameServerAddr, writePromise)
         f.addListener(object : FutureListener<DnsResponse> {
@@ -237,7 +298,7 @@ internal abstract class DnsNameResolverContext<T>(
                 try {
                     if (future.isSuccess) {
                         onResponse(
-                            nameServerAddrStream, nameServerAddrStreamIndex, question, envelope, queryLifecycleObserver, promise
+                            nameServerAddrStream, nameServerAddrIndex, question, envelope, queryLifecycleObserver, promise
                         )
                     } else {
                         // Server did not respond or I/O error occurred; try again.
@@ -245,14 +306,14 @@ internal abstract class DnsNameResolverContext<T>(
 
                         // query uses the question again...
                         question.retain()
-                        resolveQuery(nameServerAddrStream, nameServerAddrStreamIndex + 1, question, promise)
+                        resolveQuery(nameServerAddrStream, nameServerAddrIndex + 1, question, promise)
                     }
                 } finally {
                     // future.result() should have refCnt=2
                     // question should have refCnt=1
                     tryToFinishResolve(
                         nameServerAddrStream,
-                        nameServerAddrStreamIndex,
+                        nameServerAddrIndex,
                         question,  // queryLifecycleObserver has already been terminated at this point so we must
                         // not allow it to be terminated again by tryToFinishResolve.
                         NoopDnsQueryLifecycleObserver.INSTANCE,
@@ -295,6 +356,8 @@ internal abstract class DnsNameResolverContext<T>(
                 nameServerAddrStream, nameServerAddrStreamIndex + 1, question, queryLifecycleObserver.queryNoAnswer(code), promise
             )
         } else {
+            // every question of this context is for the hostname
+            nxDomainTtl = Math.max(nxDomainTtl, negativeTtl(response))
             queryLifecycleObserver.queryFailed(NXDOMAIN_QUERY_FAILED_EXCEPTION)
         }
     }
@@ -378,7 +441,7 @@ internal abstract class DnsNameResolverContext<T>(
                 resolvedEntries = ArrayList(8)
             }
             val e = DnsCacheEntry(hostname, resolved)
-            resolveCache.cache(hostname, resolved, r.ttl, parent.ch.eventLoop())
+            resolveCache.cache(hostname, resolved, r.ttl, parent.executor())
             resolvedEntries!!.add(e)
             found = true
 
@@ -389,6 +452,11 @@ internal abstract class DnsNameResolverContext<T>(
             return
         }
         if (cnames.isEmpty()) {
+            // NODATA: the hostname exists, but has no records of this type
+            val ttl = negativeTtl(response)
+            if (ttl >= 0 && response.getSectionArray(DnsSection.ANSWER).isEmpty()) {
+                resolveCache.cacheNoData(hostname, qType, ttl, parent.executor())
+            }
             queryLifecycleObserver.queryFailed(NO_MATCHING_RECORD_QUERY_FAILED_EXCEPTION)
         } else {
             // We asked for A/AAAA but we got only CNAME.
@@ -547,7 +615,11 @@ internal abstract class DnsNameResolverContext<T>(
         }
         val cause = UnknownHostException(buf.toString())
         cause.stackTrace = arrayOfNulls(0)
-        resolveCache.cache(hostname, cause, parent.ch.eventLoop())
+        if (nxDomainTtl >= 0) {
+            resolveCache.cache(hostname, cause, nxDomainTtl, parent.executor())
+        } else {
+            resolveCache.cache(hostname, cause, parent.executor())
+        }
         promise.tryFailure(cause)
     }
 
@@ -714,6 +786,21 @@ internal abstract class DnsNameResolverContext<T>(
             RuntimeException("No name servers returned an answer"), DnsNameResolverContext::class.java, "tryToFinishResolve(..)"
         )
 
+        /**
+         * Returns the negative TTL of a response (RFC 2308, section 5): the minimum of the TTL and the MINIMUM field of the SOA
+         * record in the authority section, or -1 if there is none.
+         */
+        private fun negativeTtl(response: DnsResponse): Long {
+            val authority = response.getSectionArray(DnsSection.AUTHORITY)
+            for (i in authority.indices) {
+                val r = authority[i]
+                if (r.type == DnsRecordType.SOA) {
+                    return Math.min(r.ttl, (r as SOARecord).minimum)
+                }
+            }
+            return -1
+        }
+
         /**
          * Returns the `{ AuthoritativeNameServerList} which were included in { DnsSection#AUTHORITY}
          * or { null} if non are found.`
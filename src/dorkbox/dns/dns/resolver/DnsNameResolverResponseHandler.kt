@@ -16,31 +16,24 @@
 package dorkbox.dns.dns.resolver
 
 import dorkbox.dns.dns.clientHandlers.DnsResponse
-import io.netty.channel.Channel
 import io.netty.channel.ChannelHandlerContext
 import io.netty.channel.ChannelInboundHandlerAdapter
-import io.netty.util.concurrent.Promise
-
-internal class DnsNameResolverResponseHandler(
-    private val dnsNameResolver: DnsNameResolver,
-    private val channelActivePromise: Promise<Channel>
-) : ChannelInboundHandlerAdapter() {
-    @Throws(Exception::class)
-    override fun channelActive(ctx: ChannelHandlerContext) {
-        super.channelActive(ctx)
-        channelActivePromise.setSuccess(ctx.channel())
-    }
+import io.netty.util.internal.ThrowableUtil
+import java.net.PortUnreachableException
+import java.nio.channels.ClosedChannelException
 
+internal class DnsNameResolverResponseHandler(private val socket: DnsResolverSocket) : ChannelInboundHandlerAdapter() {
     @Throws(Exception::class)
     override fun channelRead(ctx: ChannelHandlerContext, msg: Any) {
         val response = msg as DnsResponse
         val queryId = response.header.iD
         if (DnsNameResolver.logger.isDebugEnabled) {
-            DnsNameResolver.logger.debug("{} RECEIVED: [{}: {}], {}", dnsNameResolver.ch, queryId, response.sender(), response)
+            DnsNameResolver.logger.debug("{} RECEIVED: [{}: {}], {}", ctx.channel(), queryId, response.sender(), response)
         }
-        val qCtx = dnsNameResolver.queryContextManager[response.sender()!!, queryId]
+        val qCtx = socket.queryContextManager[response.sender()!!, queryId]
         if (qCtx == null) {
-            DnsNameResolver.logger.warn("{} Received a DNS response with an unknown ID: {}", dnsNameResolver.ch, queryId)
+            DnsNameResolver.logger.warn("{} Received a DNS response with an unknown ID: {}", ctx.channel(), queryId)
+            response.release()
             return
         }
         qCtx.finish(response)
@@ -48,6 +41,30 @@ internal class DnsNameResolverResponseHandler(
 
     @Throws(Exception::class)
     override fun exceptionCaught(ctx: ChannelHandlerContext, cause: Throwable) {
-        DnsNameResolver.logger.warn("{} Unexpected exception: ", dnsNameResolver.ch, cause)
+        if (cause is PortUnreachableException && socket.remote != null) {
+            // the DNS server that the socket is connected to is not listening, there is no point in waiting for its answers
+            DnsNameResolver.logger.debug("{} DNS server {} is unreachable", ctx.channel(), socket.remote)
+            socket.failAll(cause)
+            return
+        }
+        DnsNameResolver.logger.warn("{} Unexpected exception: ", ctx.channel(), cause)
+
+        if (socket.isTcp) {
+            // the framing may be broken, the queries on it fail once it is closed
+            ctx.close()
+        }
+    }
+
+    @Throws(Exception::class)
+    override fun channelInactive(ctx: ChannelHandlerContext) {
+        // nothing is answered on a closed socket (ie: the DNS server closed the TCP connection), there is no point in waiting
+        socket.failAll(CLOSED_CHANNEL_EXCEPTION)
+        ctx.fireChannelInactive()
+    }
+
+    companion object {
+        private val CLOSED_CHANNEL_EXCEPTION = ThrowableUtil.unknownStackTrace(
+            ClosedChannelException(), DnsNameResolverResponseHandler::class.java, "channelInactive(..)"
+        )
     }
 }
@@ -18,6 +18,7 @@ package dorkbox.dns.dns.resolver
 import dorkbox.dns.dns.DnsQuestion
 import dorkbox.dns.dns.clientHandlers.DnsResponse
 import dorkbox.dns.dns.constants.DnsSection
+import dorkbox.dns.dns.constants.Flags
 import io.netty.channel.ChannelFuture
 import io.netty.channel.ChannelFutureListener
 import io.netty.channel.ChannelPromise
@@ -25,10 +26,12 @@ import io.netty.util.concurrent.Promise
 import io.netty.util.concurrent.ScheduledFuture
 import org.slf4j.LoggerFactory
 import java.net.InetSocketAddress
+import java.net.PortUnreachableException
 import java.util.concurrent.*
 
 internal class DnsQueryContext(
     private val parent: DnsNameResolver,
+    private val socket: DnsResolverSocket,
     private val nameServerAddr: InetSocketAddress,
     private val question: DnsQuestion,
     private val promise: Promise<DnsResponse>) {
@@ -37,13 +40,27 @@ internal class DnsQueryContext(
         private val logger = LoggerFactory.getLogger(DnsQueryContext::class.java)
     }
 
-    private val id: Int = parent.queryContextManager.add(this)
+    private val id: Int = socket.queryContextManager.add(this)
 
     @Volatile
     private var timeoutFuture: ScheduledFuture<*>? = null
 
+    /**
+     * When the query was sent, from [System.nanoTime]
+     */
+    @Volatile
+    private var sentNanos = 0L
+
     init {
         question.init(id, nameServerAddr)
+
+        // a query that was cancelled (ie: the hedge that lost) is not waited for, so its ID can be used again right away
+        promise.addListener { future ->
+            if (future.isCancelled && socket.queryContextManager[nameServerAddr, id] === this@DnsQueryContext) {
+                socket.queryContextManager.remove(nameServerAddr, id)
+                timeoutFuture?.cancel(false)
+            }
+        }
     }
 
     fun nameServerAddr(): InetSocketAddress {
@@ -59,30 +76,32 @@ internal class DnsQueryContext(
         val nameServerAddr = nameServerAddr()
 
         if (logger.isDebugEnabled) {
-            logger.debug("{} WRITE: [{}: {}], {}", parent.ch, id, nameServerAddr, question)
+            logger.debug("{} WRITE: [{}: {}], {}", socket.ch, id, nameServerAddr, question)
         }
 
         sendQuery(question, writePromise)
     }
 
     private fun sendQuery(query: DnsQuestion, writePromise: ChannelPromise) {
-        if (parent.channelFuture.isDone) {
+        val channelFuture = socket.channelFuture
+        if (channelFuture.isSuccess) {
             writeQuery(query, writePromise)
         } else {
-            parent.channelFuture.addListener { future ->
+            channelFuture.addListener { future ->
                 if (future.isSuccess) {
                     writeQuery(query, writePromise)
                 } else {
                     val cause = future.cause()
+                    socket.queryContextManager.remove(nameServerAddr, id)
                     promise.tryFailure(cause)
-                    writePromise.setFailure(cause)
+                    writePromise.tryFailure(cause)
                 }
             }
         }
     }
 
     private fun writeQuery(query: DnsQuestion, writePromise: ChannelPromise) {
-        val writeFuture = parent.ch.writeAndFlush(query, writePromise)
+        val writeFuture = socket.ch.writeAndFlush(query, writePromise)
         if (writeFuture.isDone) {
             onQueryWriteCompletion(writeFuture)
         } else {
@@ -97,22 +116,36 @@ internal class DnsQueryContext(
             return
         }
 
+        sentNanos = System.nanoTime()
+
         // Schedule a query timeout task if necessary.
         val queryTimeoutMillis = parent.queryTimeoutMillis()
         if (queryTimeoutMillis > 0) {
-            timeoutFuture = parent.ch.eventLoop().schedule(Runnable {
+            timeoutFuture = socket.ch.eventLoop().schedule(Runnable {
                     if (promise.isDone) {
                         // Received a response before the query times out.
                         return@Runnable
                     }
+                    parent.serverFailed(nameServerAddr)
                     setFailure("query timed out after $queryTimeoutMillis milliseconds", null)
                 }, queryTimeoutMillis, TimeUnit.MILLISECONDS)
         }
     }
 
+    /**
+     * Fails the query without waiting for an answer (it was already removed from the socket), ie: the DNS server is unreachable
+     */
+    fun fail(cause: Throwable) {
+        timeoutFuture?.cancel(false)
+        if (cause is PortUnreachableException) {
+            parent.serverFailed(nameServerAddr)
+        }
+        setFailure("query failed", cause)
+    }
+
     private fun setFailure(message: String, cause: Throwable?) {
         val nameServerAddr = nameServerAddr()
-        parent.queryContextManager.remove(nameServerAddr, id)
+        socket.queryContextManager.remove(nameServerAddr, id)
 
         val buf = StringBuilder(message.length + 64)
         buf.append('[').append(nameServerAddr).append("] ").append(message).append(" (no stack trace available)")
@@ -127,6 +160,19 @@ internal class DnsQueryContext(
     }
 
     fun finish(response: DnsResponse) {
+        val executor = parent.executor()
+        if (!executor.inEventLoop()) {
+            // the socket is on another event loop of the group. The listeners of the promise are only notified right away on the
+            // executor of the resolver, and they must have read a resolve question's answer before it is released
+            try {
+                executor.execute { finish(response) }
+            } catch (e: RejectedExecutionException) {
+                response.release()
+            }
+            return
+        }
+
+        var success = false
         try {
             val sectionArray = response.getSectionArray(DnsSection.QUESTION)
             if (sectionArray.size != 1) {
@@ -145,32 +191,64 @@ internal class DnsQueryContext(
                 return
             }
 
-            setSuccess(response)
+            val sentNanos = sentNanos
+            if (sentNanos != 0L) {
+                parent.serverAnswered(nameServerAddr, System.nanoTime() - sentNanos)
+            }
+
+            if (!socket.isTcp && response.header.getFlag(Flags.TC) && parent.isTcpAvailable) {
+                // the answer did not fit into a datagram, it is asked for again over TCP (RFC 7766 5)
+                retryOverTcp()
+                return
+            }
+
+            success = setSuccess(response)
         } finally {
-            if (question.isResolveQuestion) {
+            if (question.isResolveQuestion || !success) {
                 // for resolve questions (always A/AAAA), we convert the answer into InetAddress, however with OTHER TYPES, we pass
                 // back the result to the user, and if we release it, all the content will be cleared.
+                // Responses that don't match the question are never passed on, so they are always released.
                 response.release()
             }
         }
     }
 
-    private fun setSuccess(response: DnsResponse) {
-        parent.queryContextManager.remove(nameServerAddr(), id)
+    private fun retryOverTcp() {
+        if (socket.queryContextManager.remove(nameServerAddr, id) == null) {
+            // it already timed out
+            return
+        }
+        timeoutFuture?.cancel(false)
+
+        if (logger.isDebugEnabled) {
+            logger.debug("{} TRUNCATED: [{}: {}], retrying over TCP", socket.ch, id, nameServerAddr)
+        }
+
+        // writing a query releases it, and it is written once more
+        question.retain()
+        parent.queryOverTcp(nameServerAddr, question, promise)
+    }
+
+    /**
+     * @return true if the response was passed on, false if the query was already done (ie: it was cancelled because the other hedged
+     * query won) and nobody is going to release it
+     */
+    private fun setSuccess(response: DnsResponse): Boolean {
+        socket.queryContextManager.remove(nameServerAddr(), id)
 
         // Cancel the timeout task.
         val timeoutFuture = timeoutFuture
         timeoutFuture?.cancel(false)
 
         val promise = promise
-        if (promise.setUncancellable()) {
-            response.retain()
-            // response now has a refCnt = 2
-            if (!promise.trySuccess(response)) { // question is used here!
-                // We failed to notify the promise as it was failed before, thus we need to release the envelope
-                response.release()
-            }
-            response.release()
+        if (!promise.setUncancellable()) {
+            return false
         }
+
+        response.retain()
+        // response now has a refCnt = 2
+        val success = promise.trySuccess(response) // question is used here!
+        response.release()
+        return success
     }
 }
@@ -16,100 +16,127 @@
 package dorkbox.dns.dns.resolver
 
 import dorkbox.netUtil.IPv4
-import dorkbox.netUtil.IPv6
-import io.netty.util.collection.IntObjectHashMap
-import io.netty.util.collection.IntObjectMap
 import io.netty.util.internal.PlatformDependent
 import java.net.Inet4Address
 import java.net.Inet6Address
 import java.net.InetAddress
 import java.net.InetSocketAddress
 import java.net.UnknownHostException
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReferenceArray
 
+/**
+ * The outstanding queries of a resolver socket, by their ID. There is one slot per ID, so adding, finding and removing a query is a
+ * single atomic operation on its slot, without any locks.
+ *
+ * The IDs are shared by all the DNS servers that are queried through the socket, and are picked at random (RFC 5452). A response
+ * is only matched to a query if it came from the DNS server that the query was sent to.
+ */
 internal class DnsQueryContextManager {
     /**
-     * A map whose key is the DNS server address and value is the map of the DNS query ID and its corresponding [DnsQueryContext].
+     * The outstanding query of each ID. ID 0 is never used.
+     */
+    private val contexts = AtomicReferenceArray<DnsQueryContext?>(MAX_ID + 1)
+    private val count = AtomicInteger()
+
+    /**
+     * When the last query was added, from [System.nanoTime]
+     */
+    @Volatile
+    var lastAdded = System.nanoTime()
+        private set
+
+    /**
+     * The number of outstanding queries
      */
-    val map: MutableMap<InetSocketAddress, IntObjectMap<DnsQueryContext>> = HashMap()
+    val size: Int
+        get() = count.get()
 
     fun add(queryContext: DnsQueryContext): Int {
-        val contexts = getOrCreateContextMap(queryContext.nameServerAddr())
-        var id = PlatformDependent.threadLocalRandom().nextInt(65536 - 1) + 1
-        val maxTries = 65535 shl 1
-        var tries = 0
-
-        synchronized(contexts) {
-            while (true) {
-                if (!contexts.containsKey(id)) {
-                    contexts.put(id, queryContext)
-                    return id
-                }
-                id = id + 1 and 0xFFFF
-                check(++tries < maxTries) { "query ID space exhausted: " + queryContext.question() }
-            }
-        }
-    }
+        val random = PlatformDependent.threadLocalRandom()
 
-    private fun getOrCreateContextMap(nameServerAddr: InetSocketAddress): IntObjectMap<DnsQueryContext> {
-        synchronized(map) {
-            val contexts = map[nameServerAddr]
-            if (contexts != null) {
-                return contexts
+        // random probing finds a free ID quickly, unless nearly every ID is taken
+        for (i in 0 until RANDOM_TRIES) {
+            val id = random.nextInt(MAX_ID) + 1
+            if (contexts.get(id) == null && contexts.compareAndSet(id, null, queryContext)) {
+                return added(id)
             }
+        }
 
-            val newContexts: IntObjectMap<DnsQueryContext> = IntObjectHashMap()
-            val a = nameServerAddr.address
-            val port = nameServerAddr.port
-            map[nameServerAddr] = newContexts
-
-            if (a is Inet4Address) {
-                // Also add the mapping for the IPv4-compatible IPv6 address.
-                if (a.isLoopbackAddress) {
-                    map[InetSocketAddress(IPv6.LOCALHOST, port)] = newContexts
-                } else {
-                    map[InetSocketAddress(toCompactAddress(a), port)] = newContexts
-                }
-            } else if (a is Inet6Address) {
-                // Also add the mapping for the IPv4 address if this IPv6 address is compatible.
-                if (a.isLoopbackAddress) {
-                    map[InetSocketAddress(IPv4.LOCALHOST, port)] = newContexts
-                } else if (a.isIPv4CompatibleAddress) {
-                    map[InetSocketAddress(toIPv4Address(a), port)] = newContexts
-                }
+        var id = random.nextInt(MAX_ID) + 1
+        for (i in 0 until MAX_ID) {
+            if (contexts.get(id) == null && contexts.compareAndSet(id, null, queryContext)) {
+                return added(id)
             }
-            return newContexts
+            id = if (id == MAX_ID) 1 else id + 1
         }
+        throw IllegalStateException("query ID space exhausted: " + queryContext.question())
+    }
+
+    private fun added(id: Int): Int {
+        count.incrementAndGet()
+        lastAdded = System.nanoTime()
+        return id
     }
 
     operator fun get(nameServerAddr: InetSocketAddress, id: Int): DnsQueryContext? {
-        val contexts = getContextMap(nameServerAddr)
-        val qCtx: DnsQueryContext?
-        if (contexts != null) {
-            synchronized(contexts) { qCtx = contexts[id] }
-        } else {
-            qCtx = null
+        if (id <= 0 || id > MAX_ID) {
+            return null
         }
-        return qCtx
-    }
 
-    private fun getContextMap(nameServerAddr: InetSocketAddress): IntObjectMap<DnsQueryContext>? {
-        synchronized(map) { return map[nameServerAddr] }
+        val qCtx = contexts.get(id) ?: return null
+        return if (isSameServer(qCtx.nameServerAddr(), nameServerAddr)) qCtx else null
     }
 
     fun remove(nameServerAddr: InetSocketAddress, id: Int): DnsQueryContext? {
-        val contexts = getContextMap(nameServerAddr) ?: return null
-        synchronized(contexts) { return contexts.remove(id) }
+        val qCtx = get(nameServerAddr, id) ?: return null
+        if (!contexts.compareAndSet(id, qCtx, null)) {
+            return null
+        }
+        count.decrementAndGet()
+        return qCtx
+    }
+
+    /**
+     * Removes every outstanding query
+     *
+     * @return the queries that were removed
+     */
+    fun removeAll(): List<DnsQueryContext> {
+        val removed = ArrayList<DnsQueryContext>()
+        for (id in 1..MAX_ID) {
+            val qCtx = contexts.get(id) ?: continue
+            if (contexts.compareAndSet(id, qCtx, null)) {
+                count.decrementAndGet()
+                removed.add(qCtx)
+            }
+        }
+        return removed
     }
 
     companion object {
-        private fun toCompactAddress(a4: Inet4Address): Inet6Address {
-            val b4 = a4.address
-            val b6 = byteArrayOf(0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, b4[0], b4[1], b4[2], b4[3])
+        private const val MAX_ID = 0xFFFF
+        private const val RANDOM_TRIES = 16
 
-            return try {
-                InetAddress.getByAddress(b6) as Inet6Address
-            } catch (e: UnknownHostException) {
-                throw Error(e)
+        /**
+         * @return true if the addresses are the same DNS server. An IPv4 address is the same as its IPv4-compatible IPv6 address, and
+         * all the loopback addresses are the same.
+         */
+        private fun isSameServer(queried: InetSocketAddress, sender: InetSocketAddress): Boolean {
+            if (queried.port != sender.port) {
+                return false
+            }
+
+            val a = queried.address
+            val b = sender.address
+            return a == b || (a != null && b != null && canonical(a) == canonical(b))
+        }
+
+        private fun canonical(a: InetAddress): InetAddress {
+            return when {
+                a.isLoopbackAddress -> IPv4.LOCALHOST
+                a is Inet6Address && a.isIPv4CompatibleAddress -> toIPv4Address(a)
+                else -> a
             }
         }
 
@@ -29,6 +29,7 @@ import java.net.InetSocketAddress
  * OR
  *
  *  1. Object creation
+ *  1. [.queryServerSkipped] (any number of times)
  *  1. [.queryWritten]
  *  1. [.queryRedirected] or [.queryCNAMEd] or
  * [.queryNoAnswer] or [.queryCancelled] or
@@ -50,6 +51,15 @@ interface DnsQueryLifecycleObserver {
      */
     fun queryWritten(dnsServerAddress: InetSocketAddress, future: ChannelFuture)
 
+    /**
+     * The query was not sent to a DNS server, because it did not answer its last queries (its circuit is open, see [DnsServerHealth]).
+     * The query is sent to the next DNS server instead.
+     *
+     * @param dnsServerAddress The DNS server address which was skipped.
+     */
+    fun queryServerSkipped(dnsServerAddress: InetSocketAddress) {
+    }
+
     /**
      * The query may have been written but it was cancelled at some point.
      *
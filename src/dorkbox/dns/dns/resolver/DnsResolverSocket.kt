@@ -0,0 +1,172 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.resolver
+
+import io.netty.bootstrap.Bootstrap
+import io.netty.channel.Channel
+import io.netty.channel.ChannelFuture
+import io.netty.channel.ChannelFutureListener
+import io.netty.channel.ChannelHandler
+import io.netty.channel.ChannelInitializer
+import io.netty.channel.EventLoop
+import io.netty.channel.FixedRecvByteBufAllocator
+import io.netty.util.AttributeKey
+import io.netty.util.concurrent.Future
+import io.netty.util.concurrent.Promise
+import io.netty.util.internal.PlatformDependent
+import java.net.InetSocketAddress
+import java.nio.channels.ClosedChannelException
+
+/**
+ * One of the sockets that a [DnsNameResolver] sends its queries through, with the queries that are waiting for an answer on it.
+ *
+ * A UDP socket is bound to a random source port (RFC 5452), so a spoofed answer has to guess the port as well as the query ID. If it
+ * is for a single DNS server ([remote] is not null), it is also connected to that server: the kernel drops the answers from anyone
+ * else, and an ICMP port unreachable fails the queries on it right away, instead of after the query timeout.
+ *
+ * A TCP socket is always connected to a single DNS server, and the queries on it are pipelined (RFC 7766): they are all sent without
+ * waiting, and the answers are matched to them by their query ID, in whatever order they arrive.
+ *
+ * @param remote the DNS server that the socket is connected to, or null if it sends queries to any DNS server
+ * @param isTcp true if the bootstrap creates TCP channels, which must have a [remote]
+ */
+internal class DnsResolverSocket(
+    bootstrap: Bootstrap,
+    eventLoop: EventLoop,
+    val remote: InetSocketAddress?,
+    maxPayloadSize: Int,
+    val isTcp: Boolean = false,
+    handlers: (DnsResolverSocket) -> Array<ChannelHandler>
+) {
+    companion object {
+        /** how many random ports are tried, before the kernel picks one */
+        private const val BIND_TRIES = 8
+        private const val MIN_PORT = 1024
+        private const val MAX_PORT = 0xFFFF
+
+        /**
+         * The socket of a channel, so that it is found without searching every socket for it
+         */
+        private val SOCKET = AttributeKey.valueOf<DnsResolverSocket>(DnsResolverSocket::class.java, "SOCKET")
+
+        /**
+         * @return the socket of the channel, or null if it is not the channel of a socket
+         */
+        fun of(channel: Channel): DnsResolverSocket? {
+            return channel.attr(SOCKET).get()
+        }
+    }
+
+    /**
+     * The queries in progress on this socket, by their query ID
+     */
+    val queryContextManager = DnsQueryContextManager()
+
+    /**
+     * Completes when the socket is bound (and connected), and queries can be written to it
+     */
+    val channelFuture: Future<Channel>
+
+    val ch: Channel
+
+    init {
+        require(!isTcp || remote != null) { "a TCP socket must be connected to a DNS server" }
+
+        val channelActivePromise = eventLoop.newPromise<Channel>()
+        channelFuture = channelActivePromise
+
+        val b = bootstrap.clone(eventLoop)
+        b.handler(object : ChannelInitializer<Channel>() {
+            @Throws(Exception::class)
+            override fun initChannel(ch: Channel) {
+                ch.pipeline().addLast(*handlers(this@DnsResolverSocket))
+            }
+        })
+
+        val registerFuture = b.register()
+        ch = registerFuture.channel()
+        ch.attr(SOCKET).set(this)
+        if (!isTcp) {
+            ch.config().setRecvByteBufAllocator(FixedRecvByteBufAllocator(maxPayloadSize))
+        }
+        ch.closeFuture().addListener(ChannelFutureListener {
+            channelActivePromise.tryFailure(ClosedChannelException())
+        })
+
+        registerFuture.addListener(ChannelFutureListener { future ->
+            if (!future.isSuccess) {
+                channelActivePromise.tryFailure(future.cause())
+            } else if (isTcp) {
+                // the TCP handshake already proves that the DNS server is who it says it is, the kernel picks the source port
+                connect(channelActivePromise)
+            } else {
+                bind(BIND_TRIES, channelActivePromise)
+            }
+        })
+    }
+
+    private fun connect(channelActivePromise: Promise<Channel>) {
+        ch.connect(remote).addListener(ChannelFutureListener { connectFuture: ChannelFuture ->
+            if (connectFuture.isSuccess) {
+                channelActivePromise.trySuccess(ch)
+            } else {
+                channelActivePromise.tryFailure(connectFuture.cause())
+                ch.close()
+            }
+        })
+    }
+
+    /**
+     * Binds to a random port, and once all the random ports that were tried are taken, to a port that the kernel picks.
+     */
+    private fun bind(tries: Int, channelActivePromise: Promise<Channel>) {
+        val port = if (tries > 0) MIN_PORT + PlatformDependent.threadLocalRandom().nextInt(MAX_PORT - MIN_PORT + 1) else 0
+
+        ch.bind(InetSocketAddress(port)).addListener(ChannelFutureListener { future ->
+            if (future.isSuccess) {
+                if (remote == null) {
+                    channelActivePromise.trySuccess(ch)
+                } else {
+                    connect(channelActivePromise)
+                }
+            } else if (tries > 0 && ch.isOpen) {
+                bind(tries - 1, channelActivePromise)
+            } else {
+                channelActivePromise.tryFailure(future.cause())
+                ch.close()
+            }
+        })
+    }
+
+    /**
+     * Fails every query in progress on this socket, ie: because the DNS server it is connected to is unreachable
+     */
+    fun failAll(cause: Throwable) {
+        for (queryContext in queryContextManager.removeAll()) {
+            queryContext.fail(cause)
+        }
+    }
+
+    fun close() {
+        if (ch.isOpen) {
+            ch.close()
+        }
+    }
+
+    override fun toString(): String {
+        return ch.toString()
+    }
+}
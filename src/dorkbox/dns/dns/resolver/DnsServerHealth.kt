@@ -0,0 +1,138 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.resolver
+
+import dorkbox.dns.dns.resolver.addressProvider.DnsServerObserver
+import io.netty.util.internal.ObjectUtil
+import java.net.InetSocketAddress
+import java.util.concurrent.*
+
+/**
+ * Remembers which DNS servers keep failing (a circuit breaker per DNS server), so a dead one is not queried by every resolve, only
+ * for each of them to wait for the query timeout.
+ *
+ * Once a DNS server did not answer [failureThreshold] queries in a row, its circuit is [State.OPEN] and it is skipped. After
+ * [openMillis], the circuit is [State.HALF_OPEN]: a single query is sent to it as a probe, and the circuit is closed again if it is
+ * answered, or open for another [openMillis] if it is not.
+ *
+ * @param failureThreshold the number of queries in a row that were not answered, before the circuit of a DNS server is opened
+ * @param openMillis how long (in milliseconds) a DNS server is skipped, before a probe is sent to it
+ * @param maxServers the maximum number of failing DNS servers that are tracked
+ */
+class DnsServerHealth(failureThreshold: Int = 3, openMillis: Long = 10_000L, maxServers: Int = 10_000) : DnsServerObserver {
+    enum class State {
+        /** the DNS server is queried */
+        CLOSED,
+        /** the DNS server is skipped */
+        OPEN,
+        /** a single query is sent to the DNS server, to find out if it answers again */
+        HALF_OPEN
+    }
+
+    private class Health {
+        var failures = 0
+        var state = State.CLOSED
+        var changedNanos = 0L
+    }
+
+    private val failureThreshold = ObjectUtil.checkPositive(failureThreshold, "failureThreshold")
+    private val openNanos = TimeUnit.MILLISECONDS.toNanos(ObjectUtil.checkPositive(openMillis, "openMillis"))
+    private val maxServers = ObjectUtil.checkPositive(maxServers, "maxServers")
+
+    /**
+     * Only the DNS servers that failed their last query, the others are healthy
+     */
+    private val servers = ConcurrentHashMap<InetSocketAddress, Health>()
+
+    /**
+     * @return true if a query can be sent to the DNS server. For a DNS server whose circuit is half-open, only the first caller gets
+     * true, and must send the probe.
+     */
+    fun isAvailable(address: InetSocketAddress): Boolean {
+        if (servers.isEmpty()) {
+            return true
+        }
+        val health = servers[address] ?: return true
+
+        synchronized(health) {
+            return when (health.state) {
+                State.CLOSED -> true
+                else -> {
+                    // an open circuit is probed once it was open long enough, and a probe that went missing (it was never sent, or
+                    // its answer was never reported) is sent again
+                    val now = System.nanoTime()
+                    if (now - health.changedNanos < openNanos) {
+                        false
+                    } else {
+                        health.state = State.HALF_OPEN
+                        health.changedNanos = now
+                        true
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the state of the circuit of the DNS server
+     */
+    fun state(address: InetSocketAddress): State {
+        val health = servers[address] ?: return State.CLOSED
+        synchronized(health) {
+            return health.state
+        }
+    }
+
+    override fun answered(address: InetSocketAddress, rttNanos: Long) {
+        if (servers.isEmpty()) {
+            return
+        }
+
+        val health = servers.remove(address) ?: return
+        synchronized(health) {
+            if (health.state != State.CLOSED) {
+                DnsNameResolver.logger.debug("DNS server {} answers again, closing its circuit", address)
+            }
+        }
+    }
+
+    override fun failed(address: InetSocketAddress) {
+        var health = servers[address]
+        if (health == null) {
+            if (servers.size >= maxServers) {
+                return
+            }
+            val newHealth = Health()
+            health = servers.putIfAbsent(address, newHealth) ?: newHealth
+        }
+
+        synchronized(health) {
+            health.failures++
+            if (health.state == State.HALF_OPEN || (health.state == State.CLOSED && health.failures >= failureThreshold)) {
+                DnsNameResolver.logger.debug("DNS server {} did not answer {} queries in a row, opening its circuit", address, health.failures)
+                health.state = State.OPEN
+                health.changedNanos = System.nanoTime()
+            }
+        }
+    }
+
+    /**
+     * Forgets every DNS server, they are all healthy again.
+     */
+    fun clear() {
+        servers.clear()
+    }
+}
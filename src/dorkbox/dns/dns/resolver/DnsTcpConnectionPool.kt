@@ -0,0 +1,119 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.resolver
+
+import io.netty.bootstrap.Bootstrap
+import io.netty.channel.ChannelHandler
+import io.netty.channel.EventLoopGroup
+import io.netty.util.internal.ObjectUtil
+import java.net.InetSocketAddress
+import java.util.concurrent.*
+
+/**
+ * The persistent TCP connections to each DNS server. Queries are pipelined on them (RFC 7766 6.2.1.1), so a connection is only
+ * opened when every connection to the DNS server already has [maxInFlightQueries] queries in progress, and there are fewer than
+ * [maxConnections] of them. A connection without any queries in progress for [idleTimeoutMillis] is closed (RFC 7766 6.2.3).
+ *
+ * @param maxConnections the maximum number of TCP connections to each DNS server
+ * @param maxInFlightQueries the number of queries in progress on a connection before another connection is opened
+ * @param idleTimeoutMillis how long (in milliseconds) a connection without any queries in progress is kept open
+ */
+internal class DnsTcpConnectionPool(
+    private val bootstrap: Bootstrap,
+    private val group: EventLoopGroup,
+    maxConnections: Int,
+    maxInFlightQueries: Int,
+    idleTimeoutMillis: Long,
+    private val handlers: (DnsResolverSocket) -> Array<ChannelHandler>
+) {
+    private val maxConnections = ObjectUtil.checkPositive(maxConnections, "maxConnections")
+    private val maxInFlightQueries = ObjectUtil.checkPositive(maxInFlightQueries, "maxInFlightQueries")
+    private val idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(ObjectUtil.checkPositive(idleTimeoutMillis, "idleTimeoutMillis"))
+
+    private val connections = ConcurrentHashMap<InetSocketAddress, CopyOnWriteArrayList<DnsResolverSocket>>()
+
+    @Volatile
+    private var closed = false
+
+    /**
+     * @return the connection to the DNS server with the fewest queries in progress, or a new one if they are all busy
+     */
+    fun acquire(nameServerAddr: InetSocketAddress): DnsResolverSocket {
+        val pool = connections.computeIfAbsent(nameServerAddr) { CopyOnWriteArrayList() }
+
+        val idlest = idlest(pool)
+        if (idlest != null && (idlest.queryContextManager.size < maxInFlightQueries || pool.size >= maxConnections)) {
+            return idlest
+        }
+
+        synchronized(pool) {
+            // another thread may have opened one in the meantime
+            val current = idlest(pool)
+            if (current != null && (current.queryContextManager.size < maxInFlightQueries || pool.size >= maxConnections)) {
+                return current
+            }
+            check(!closed) { "the resolver is closed" }
+
+            val connection = DnsResolverSocket(bootstrap, group.next(), nameServerAddr, 0, true, handlers)
+            pool.add(connection)
+            connection.ch.closeFuture().addListener {
+                pool.remove(connection)
+            }
+            reapWhenIdle(connection, idleTimeoutNanos)
+            return connection
+        }
+    }
+
+    private fun idlest(pool: List<DnsResolverSocket>): DnsResolverSocket? {
+        var idlest: DnsResolverSocket? = null
+        for (connection in pool) {
+            if (connection.ch.isOpen && (idlest == null || connection.queryContextManager.size < idlest.queryContextManager.size)) {
+                idlest = connection
+            }
+        }
+        return idlest
+    }
+
+    private fun reapWhenIdle(connection: DnsResolverSocket, delayNanos: Long) {
+        connection.ch.eventLoop().schedule(Runnable {
+            if (!connection.ch.isOpen) {
+                return@Runnable
+            }
+
+            val queries = connection.queryContextManager
+            val remaining = idleTimeoutNanos - (System.nanoTime() - queries.lastAdded)
+            if (queries.size == 0 && remaining <= 0) {
+                DnsNameResolver.logger.trace("Closing idle TCP connection {}", connection)
+                connection.close()
+            } else {
+                reapWhenIdle(connection, if (remaining > 0) remaining else idleTimeoutNanos)
+            }
+        }, delayNanos, TimeUnit.NANOSECONDS)
+    }
+
+    /**
+     * Closes every connection, which fails the queries in progress on them
+     */
+    fun close() {
+        closed = true
+        for (pool in connections.values) {
+            for (connection in pool) {
+                connection.close()
+            }
+        }
+        connections.clear()
+    }
+}
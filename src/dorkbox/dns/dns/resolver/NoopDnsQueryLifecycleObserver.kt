@@ -21,6 +21,7 @@ import java.net.InetSocketAddress
 
 internal class NoopDnsQueryLifecycleObserver private constructor() : DnsQueryLifecycleObserver {
     override fun queryWritten(dnsServerAddress: InetSocketAddress, future: ChannelFuture) {}
+    override fun queryServerSkipped(dnsServerAddress: InetSocketAddress) {}
     override fun queryCancelled(queriesRemaining: Int) {}
     override fun queryRedirected(nameServers: List<InetSocketAddress>): DnsQueryLifecycleObserver {
         return this
@@ -27,6 +27,10 @@ internal class TraceDnsQueryLifecycleObserver(private val question: DnsMessage,
         this.dnsServerAddress = dnsServerAddress
     }
 
+    override fun queryServerSkipped(dnsServerAddress: InetSocketAddress) {
+        logger.trace("{} skipped {}, its circuit is open", question, dnsServerAddress)
+    }
+
     override fun queryCancelled(queriesRemaining: Int) {
         if (dnsServerAddress != null) {
             logger.trace("from {} : {} cancelled with {} queries remaining", dnsServerAddress, question, queriesRemaining)
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.resolver.addressProvider
+
+import java.net.InetSocketAddress
+
+/**
+ * Is told how every query to a DNS server went. A [DnsServerAddressStreamProvider] that also implements this can order its
+ * [DnsServerAddressStream] by how well each DNS server answers.
+ */
+interface DnsServerObserver {
+    /**
+     * The DNS server answered a query.
+     *
+     * @param rttNanos the time (in nanoseconds) from when the query was sent until it was answered
+     */
+    fun answered(address: InetSocketAddress, rttNanos: Long)
+
+    /**
+     * The DNS server did not answer a query, it timed out or the DNS server is unreachable.
+     */
+    fun failed(address: InetSocketAddress)
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.resolver.addressProvider
+
+import io.netty.util.internal.ObjectUtil
+import io.netty.util.internal.PlatformDependent
+import java.net.InetSocketAddress
+import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * A [DnsServerAddressStreamProvider] that yields the DNS servers from the fastest to the slowest, by their smoothed round trip time
+ * (SRTT), as BIND does.
+ *
+ * Every answer moves the SRTT of its DNS server 30% of the way to the time it took, and a query that was not answered counts as an
+ * answer that took [failurePenaltyMillis]. A DNS server that is not used has its SRTT lowered a little every time another one is
+ * picked, so a DNS server that was slow (or down) is tried again after a while, and used again once it has recovered. DNS servers
+ * that did not answer anything yet are tried first.
+ *
+ * @param failurePenaltyMillis how long (in milliseconds) a query that was not answered counts as
+ * @param decayPercent how much (in percent) the SRTT of the DNS servers that were not picked is lowered, every time one is picked
+ */
+class RttDnsServerAddressStreamProvider(
+    addresses: Iterable<InetSocketAddress>,
+    failurePenaltyMillis: Long = 2000L,
+    decayPercent: Int = 2
+) : DnsServerAddressStreamProvider, DnsServerObserver {
+
+    companion object {
+        /**
+         * The SRTT (in microseconds) of a DNS server that did not answer anything yet is a random number below this, so they are all
+         * tried (in a random order) before any DNS server that did answer
+         */
+        private const val UNTRIED_RTT_MICROS = 32
+
+        /**
+         * How much (in tenths) of the SRTT is kept for every answer
+         */
+        private const val SMOOTHING = 7
+    }
+
+    private val addresses: Array<InetSocketAddress>
+    private val indexes = HashMap<InetSocketAddress, Int>()
+    private val failurePenaltyMicros = TimeUnit.MILLISECONDS.toMicros(ObjectUtil.checkPositive(failurePenaltyMillis, "failurePenaltyMillis"))
+    private val keepPercent: Int
+
+    /**
+     * The SRTT (in microseconds) of each DNS server, by the index of its address
+     */
+    private val srtt: AtomicLongArray
+
+    init {
+        val list = ArrayList<InetSocketAddress>()
+        for (a in addresses) {
+            require(!a.isUnresolved) { "cannot use an unresolved DNS server address: $a" }
+            if (!indexes.containsKey(a)) {
+                indexes[a] = list.size
+                list.add(a)
+            }
+        }
+        require(list.isNotEmpty()) { "empty addresses" }
+        require(decayPercent in 0..99) { "decayPercent: $decayPercent (expected: 0-99)" }
+
+        this.addresses = list.toTypedArray()
+        this.keepPercent = 100 - decayPercent
+
+        val random = PlatformDependent.threadLocalRandom()
+        srtt = AtomicLongArray(list.size)
+        for (i in list.indices) {
+            srtt.set(i, 1L + random.nextInt(UNTRIED_RTT_MICROS))
+        }
+    }
+
+    /**
+     * @return the DNS servers, from the lowest SRTT to the highest
+     */
+    override fun nameServerAddressStream(hostname: String): DnsServerAddressStream {
+        val size = addresses.size
+        val rtt = LongArray(size) { srtt.get(it) }
+
+        // there are only a few DNS servers, an insertion sort is the fastest
+        val order = IntArray(size) { it }
+        for (i in 1 until size) {
+            val index = order[i]
+            var j = i - 1
+            while (j >= 0 && rtt[order[j]] > rtt[index]) {
+                order[j + 1] = order[j]
+                j--
+            }
+            order[j + 1] = index
+        }
+
+        // the others come a little closer to being picked again
+        for (i in 1 until size) {
+            update(order[i]) { it * keepPercent / 100 }
+        }
+
+        return SequentialDnsServerAddressStream(Array(size) { addresses[order[it]] }, 0)
+    }
+
+    override fun answered(address: InetSocketAddress, rttNanos: Long) {
+        val index = indexes[address] ?: return
+        val sample = TimeUnit.NANOSECONDS.toMicros(rttNanos).coerceAtLeast(1L)
+        update(index) { smooth(it, sample) }
+    }
+
+    override fun failed(address: InetSocketAddress) {
+        val index = indexes[address] ?: return
+        update(index) { smooth(it, failurePenaltyMicros) }
+    }
+
+    /**
+     * @return the smoothed round trip time (in microseconds) of the DNS server, or -1 if it is not one of the DNS servers
+     */
+    fun rttMicros(address: InetSocketAddress): Long {
+        val index = indexes[address] ?: return -1L
+        return srtt.get(index)
+    }
+
+    private fun smooth(srtt: Long, sample: Long): Long {
+        return (srtt * SMOOTHING + sample * (10 - SMOOTHING)) / 10
+    }
+
+    private inline fun update(index: Int, function: (Long) -> Long) {
+        while (true) {
+            val current = srtt.get(index)
+            if (srtt.compareAndSet(index, current, function(current).coerceAtLeast(1L))) {
+                return
+            }
+        }
+    }
+
+    override fun toString(): String {
+        val buf = StringBuilder(16 + addresses.size * 24)
+        buf.append("rtt(")
+        for (i in addresses.indices) {
+            buf.append(addresses[i]).append(": ").append(srtt.get(i)).append("us, ")
+        }
+        buf.setLength(buf.length - 2)
+        buf.append(')')
+        return buf.toString()
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.resolver.cache
+
+/**
+ * How credible the data in the [DnsRecordCache] is, depending on where it came from (RFC 2181, 5.4.1). Data is never replaced
+ * by data that is less credible.
+ */
+object Credibility {
+    /**
+     * A hint or cache file on disk.
+     */
+    const val HINT = 0
+
+    /**
+     * The additional section of a response.
+     */
+    const val ADDITIONAL = 1
+
+    /**
+     * Glue, the addresses of the name servers of a referral.
+     */
+    const val GLUE = 2
+
+    /**
+     * The authority section of a nonauthoritative response.
+     */
+    const val NONAUTH_AUTHORITY = 3
+
+    /**
+     * The answer section of a nonauthoritative response.
+     */
+    const val NONAUTH_ANSWER = 3
+
+    /**
+     * The authority section of an authoritative response.
+     */
+    const val AUTH_AUTHORITY = 4
+
+    /**
+     * The answer section of a authoritative response.
+     */
+    const val AUTH_ANSWER = 4
+
+    /**
+     * A zone.
+     */
+    const val ZONE = 5
+
+    /**
+     * Credible data.
+     */
+    const val NORMAL = 3
+
+    /**
+     * Data not required to be credible.
+     */
+    const val ANY = 1
+}
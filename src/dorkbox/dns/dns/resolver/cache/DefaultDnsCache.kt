@@ -15,23 +15,83 @@
  */
 package dorkbox.dns.dns.resolver.cache
 
+import dorkbox.dns.dns.cache.DnsSuffixIndex
+import dorkbox.dns.dns.constants.DnsRecordType
 import io.netty.channel.EventLoop
 import io.netty.util.internal.ObjectUtil
 import io.netty.util.internal.PlatformDependent
 import io.netty.util.internal.UnstableApi
+import java.net.Inet4Address
 import java.net.InetAddress
 import java.util.concurrent.*
+import java.util.concurrent.atomic.LongAdder
+import java.util.concurrent.locks.ReentrantLock
 
 /**
  * Default implementation of [DnsCache], backed by a [ConcurrentMap].
  * If any additional [DnsRecord] is used, no caching takes place.
+ *
+ * Entries expire with a (shared) timing wheel that ticks once per second while there are entries in the cache, instead of
+ * one scheduled task per entry. An entry that is looked up after its TTL ran out (but before the wheel reached it) is dropped
+ * by the lookup.
+ *
+ * Popular entries can be refreshed ahead of their expiry: when an entry that was looked up at least [refreshAheadMinHits] times
+ * is hit during the last [refreshAheadPercent] of its TTL, the [refresher] is asked (once) to resolve the hostname again, so
+ * the new answer is cached before the old one expires, and clients never have to wait for it.
+ *
+ * The cache can be bounded to [maxBytes] (an estimate of the heap it takes up), so that resolving a lot of unique names can not
+ * grow it without limit. When it is over the budget, the [evictionPolicy] picks the hostnames to evict (W-TinyLFU by default).
+ * Lookups do not take a lock, they are recorded in a striped buffer that is handed to the policy in batches.
+ *
+ * Negative answers (RFC 2308) are cached with the TTL of the SOA record of the response, up to [maxNegativeTtl]: a hostname that
+ * does not exist (NXDOMAIN) replaces all of its entries, and a hostname without records of a type (NODATA) is kept next to the
+ * addresses of the other type. [negativeTtl] is only used for failures without such an answer, ie: when no server responded.
+ *
+ * A hostname that does not exist is a cut (RFC 8020): if [nxDomainCut] is enabled, every hostname below it does not exist either,
+ * and that is found by looking up each of the suffixes of the hostname.
+ *
+ * The hostnames are also indexed by their labels (from the top level domain down), so a whole domain can be [purge]d without
+ * looking at the hostnames that are not in it.
  */
 @UnstableApi
-class DefaultDnsCache(minTtl: Int = 0, maxTtl: Int = Int.MAX_VALUE, negativeTtl: Int = 0) : DnsCache {
+class DefaultDnsCache(
+    minTtl: Int = 0,
+    maxTtl: Int = Int.MAX_VALUE,
+    negativeTtl: Int = 0,
+    refreshAheadPercent: Int = 10,
+    refreshAheadMinHits: Int = 2,
+    maxBytes: Long = Long.MAX_VALUE,
+    evictionPolicy: DnsCacheEvictionPolicy? = null,
+    maxNegativeTtl: Int = 3 * 60 * 60,
+    private val nxDomainCut: Boolean = true
+) : DnsCache {
     private val resolveCache = PlatformDependent.newConcurrentHashMap<String, MutableList<DnsCacheEntry>>()
+    private val index = DnsSuffixIndex<String>()
     private val minTtl: Int
     private val maxTtl: Int
     private val negativeTtl: Int
+    private val maxNegativeTtl: Int
+    private val refreshAheadPercent: Int
+    private val refreshAheadMinHits: Int
+
+    /**
+     * Called with the hostname of a popular entry that is about to expire. It must resolve the hostname again (asynchronously),
+     * and cache the result. If null, entries are not refreshed ahead of their expiry.
+     */
+    @Volatile
+    var refresher: ((String) -> Unit)? = null
+
+    private val expiry = DnsCacheExpiry(TimeUnit.SECONDS.toNanos(1)) { expired -> remove(expired) }
+
+    // only used when the cache is bounded. The weights and the policy are guarded by the eviction lock
+    private val maxBytes: Long
+    private val policy: DnsCacheEvictionPolicy?
+    private val evictionLock = ReentrantLock()
+    private val readBuffer = DnsCacheReadBuffer()
+    private val weights = HashMap<String, Long>()
+    private var weightedSize = 0L
+    private val evictions = LongAdder()
+
     /**
      * Create a cache.
      * @param minTtl the minimum TTL
@@ -51,6 +111,15 @@ class DefaultDnsCache(minTtl: Int = 0, maxTtl: Int = Int.MAX_VALUE, negativeTtl:
             )
         }
         this.negativeTtl = ObjectUtil.checkPositiveOrZero(negativeTtl, "negativeTtl")
+        this.maxNegativeTtl = ObjectUtil.checkPositiveOrZero(maxNegativeTtl, "maxNegativeTtl")
+        this.refreshAheadPercent = ObjectUtil.checkPositiveOrZero(refreshAheadPercent, "refreshAheadPercent")
+        if (refreshAheadPercent > 100) {
+            throw IllegalArgumentException("refreshAheadPercent: $refreshAheadPercent (expected: 0 <= refreshAheadPercent <= 100)")
+        }
+        this.refreshAheadMinHits = ObjectUtil.checkPositiveOrZero(refreshAheadMinHits, "refreshAheadMinHits")
+
+        this.maxBytes = ObjectUtil.checkPositive(maxBytes, "maxBytes")
+        this.policy = if (maxBytes == Long.MAX_VALUE) null else evictionPolicy ?: TinyLfuDnsCacheEvictionPolicy()
     }
 
     /**
@@ -79,31 +148,143 @@ class DefaultDnsCache(minTtl: Int = 0, maxTtl: Int = Int.MAX_VALUE, negativeTtl:
         return negativeTtl
     }
 
+    /**
+     * Returns the maximum TTL of the cache for negative answers (NXDOMAIN and NODATA) in seconds. The default value is `10800`
+     * (3 hours, RFC 2308), `0` disables the cache for negative answers.
+     */
+    fun maxNegativeTtl(): Int {
+        return maxNegativeTtl
+    }
+
+    /**
+     * Returns the percentage of the TTL (at the end of it) during which a hit refreshes an entry. `0` disables refresh-ahead.
+     */
+    fun refreshAheadPercent(): Int {
+        return refreshAheadPercent
+    }
+
+    /**
+     * Returns how often an entry must be looked up before it is worth refreshing ahead of its expiry.
+     */
+    fun refreshAheadMinHits(): Int {
+        return refreshAheadMinHits
+    }
+
+    /**
+     * Returns the maximum (estimated) size of the cache in bytes. The default value is [Long.MAX_VALUE], which does not bound the cache.
+     */
+    fun maxBytes(): Long {
+        return maxBytes
+    }
+
+    /**
+     * Returns the (estimated) size of the cache in bytes. It is only tracked when the cache is bounded.
+     */
+    fun weightedSize(): Long {
+        evictionLock.lock()
+        try {
+            return weightedSize
+        } finally {
+            evictionLock.unlock()
+        }
+    }
+
+    /**
+     * The number of hostnames removed from the cache to keep it within [maxBytes]
+     */
+    val evictionCount: Long
+        get() = evictions.sum()
+
     override fun clear() {
-        val i: MutableIterator<Map.Entry<String?, List<DnsCacheEntry?>>> = resolveCache.entries.iterator()
+        val i = resolveCache.entries.iterator()
         while (i.hasNext()) {
             val e = i.next()
             i.remove()
             cancelExpiration(e.value)
+            removed(e.key)
         }
     }
 
+    /**
+     * Returns the number of entries (addresses and failures) that are waiting to expire.
+     */
+    fun size(): Int {
+        return expiry.size()
+    }
+
     override fun clear(hostname: String): Boolean {
-        var removed = false
-        val i: MutableIterator<Map.Entry<String?, List<DnsCacheEntry?>>> = resolveCache.entries.iterator()
-        while (i.hasNext()) {
-            val e = i.next()
-            if ((e.key == hostname)) {
-                i.remove()
-                cancelExpiration(e.value)
-                removed = true
+        val entries = resolveCache.remove(hostname) ?: return false
+        cancelExpiration(entries)
+        removed(hostname)
+        return true
+    }
+
+    override fun purge(domain: String): Int {
+        var count = 0
+        for (hostname in index.under(DnsSuffixIndex.labels(domain))) {
+            if (clear(hostname)) {
+                count++
             }
         }
-        return removed
+        return count
     }
 
     override fun get(hostname: String):MutableList<DnsCacheEntry>? {
-        return resolveCache[hostname]
+        val entries = resolveCache[hostname] ?: return null
+
+        // the wheel only ticks once per second, entries that ran out in the meantime must not be used
+        val now = System.nanoTime()
+        val expired = synchronized(entries) {
+            val i = entries.iterator()
+            while (i.hasNext()) {
+                val e = i.next()
+                if (e.isExpired(now)) {
+                    expiry.remove(e)
+                    i.remove()
+                }
+            }
+
+            if (entries.isEmpty()) {
+                resolveCache.remove(hostname, entries)
+            }
+            entries.isEmpty()
+        }
+
+        if (expired) {
+            removed(hostname)
+            return null
+        }
+
+        if (policy != null && readBuffer.offer(hostname) && evictionLock.tryLock()) {
+            try {
+                drainReads(policy)
+            } finally {
+                evictionLock.unlock()
+            }
+        }
+
+        refreshAhead(hostname, entries)
+        return entries
+    }
+
+    /**
+     * Counts the hit on the (first) entry, and asks the [refresher] to resolve the hostname again when the entry is popular and
+     * near the end of its TTL. Only one refresh is started per entry, the new entries that it caches start over.
+     */
+    private fun refreshAhead(hostname: String, entries: MutableList<DnsCacheEntry>) {
+        val refresher = refresher ?: return
+
+        val entry = synchronized(entries) {
+            if (entries.isEmpty()) null else entries[0]
+        } ?: return
+
+        if (entry.address() == null) {
+            return
+        }
+
+        if (entry.hit() >= refreshAheadMinHits && entry.startRefresh(System.nanoTime())) {
+            refresher(hostname)
+        }
     }
 
     private fun cachedEntries(hostname: String): MutableList<DnsCacheEntry> {
@@ -112,6 +293,9 @@ class DefaultDnsCache(minTtl: Int = 0, maxTtl: Int = Int.MAX_VALUE, negativeTtl:
         if (oldEntries == null) {
             val newEntries: MutableList<DnsCacheEntry> = ArrayList(8)
             oldEntries = resolveCache.putIfAbsent(hostname, newEntries)
+            if (oldEntries == null) {
+                index.add(DnsSuffixIndex.labels(hostname), hostname)
+            }
             entries = oldEntries ?: newEntries
         } else {
             entries = oldEntries
@@ -126,59 +310,274 @@ class DefaultDnsCache(minTtl: Int = 0, maxTtl: Int = Int.MAX_VALUE, negativeTtl:
         val ttl = Math.max(minTtl, Math.min(maxTtl.toLong(), originalTtl).toInt())
         val entries = cachedEntries(hostname)
         val e = DnsCacheEntry(hostname, address)
+        val weight: Long
         synchronized(entries) {
             if (!entries.isEmpty()) {
                 val firstEntry: DnsCacheEntry? = entries.get(0)
                 if (firstEntry!!.cause() != null) {
                     assert(entries.size == 1)
-                    firstEntry.cancelExpiration()
+                    expiry.remove(firstEntry)
                     entries.clear()
+                } else {
+                    // a refresh returns the same addresses again, the new entry replaces the old one (and its expiration).
+                    // The hostname has records of this type now
+                    val type = if (address is Inet4Address) DnsRecordType.A else DnsRecordType.AAAA
+                    val i = entries.iterator()
+                    while (i.hasNext()) {
+                        val old = i.next()
+                        if (old.address() == address || old.noDataType() == type) {
+                            expiry.remove(old)
+                            i.remove()
+                        }
+                    }
                 }
             }
             entries.add(e)
+
+            val now = System.nanoTime()
+            if (refreshAheadPercent > 0 && ttl > 0) {
+                e.refreshAt = now + TimeUnit.SECONDS.toNanos(ttl.toLong()) * (100 - refreshAheadPercent) / 100
+            }
+            scheduleCacheExpiration(e, now, ttl, loop)
+            weight = weigh(hostname, entries)
         }
-        scheduleCacheExpiration(entries, e, ttl, loop)
+
+        // must not hold the lock of the entries, evicting other hostnames locks theirs
+        record(hostname, weight)
     }
 
     override fun cache(hostname: String, cause: Throwable, loop: EventLoop) {
         if (negativeTtl == 0) {
             return
         }
+        cacheFailure(hostname, cause, negativeTtl, loop)
+    }
+
+    override fun cache(hostname: String, cause: Throwable, ttl: Long, loop: EventLoop) {
+        val negativeTtl = Math.min(maxNegativeTtl.toLong(), ttl).toInt()
+        if (negativeTtl <= 0) {
+            return
+        }
+        cacheFailure(hostname, cause, negativeTtl, loop, true)
+    }
+
+    private fun cacheFailure(hostname: String, cause: Throwable, ttl: Int, loop: EventLoop, nxDomain: Boolean = false) {
         val entries = cachedEntries(hostname)
-        val e = DnsCacheEntry(hostname, cause)
+        val e = DnsCacheEntry(hostname, cause, nxDomain)
+        val weight: Long
         synchronized(entries) {
             val numEntries: Int = entries.size
             for (i in 0 until numEntries) {
-                entries[i].cancelExpiration()
+                expiry.remove(entries[i])
             }
             entries.clear()
             entries.add(e)
+
+            scheduleCacheExpiration(e, System.nanoTime(), ttl, loop)
+            weight = weigh(hostname, entries)
+        }
+
+        record(hostname, weight)
+    }
+
+    override fun cacheNoData(hostname: String, type: Int, ttl: Long, loop: EventLoop) {
+        val negativeTtl = Math.min(maxNegativeTtl.toLong(), ttl).toInt()
+        if (negativeTtl <= 0) {
+            return
+        }
+        val entries = cachedEntries(hostname)
+        val e = DnsCacheEntry(hostname, type)
+        val weight: Long
+        synchronized(entries) {
+            val i = entries.iterator()
+            while (i.hasNext()) {
+                val old = i.next()
+
+                // the hostname exists after all, and the addresses of this type (and the last answer for it) are stale
+                val stale = old.cause() != null || old.noDataType() == type ||
+                            (type == DnsRecordType.A && old.address() is Inet4Address) ||
+                            (type == DnsRecordType.AAAA && old.address() != null && old.address() !is Inet4Address)
+                if (stale) {
+                    expiry.remove(old)
+                    i.remove()
+                }
+            }
+            entries.add(e)
+
+            scheduleCacheExpiration(e, System.nanoTime(), negativeTtl, loop)
+            weight = weigh(hostname, entries)
         }
-        scheduleCacheExpiration(entries, e, negativeTtl, loop)
+
+        record(hostname, weight)
     }
 
-    private fun scheduleCacheExpiration(entries: MutableList<DnsCacheEntry>, e: DnsCacheEntry, ttl: Int, loop: EventLoop) {
-        e.scheduleExpiration(loop, {
-            synchronized(entries) {
-                entries.remove(e)
-                if (entries.isEmpty()) {
-                    resolveCache.remove(e.hostname())
+    override fun isNoData(hostname: String, type: Int): Boolean {
+        val entries = resolveCache[hostname] ?: return false
+        val now = System.nanoTime()
+        synchronized(entries) {
+            for (e in entries) {
+                if (e.noDataType() == type && !e.isExpired(now)) {
+                    return true
                 }
             }
-        }, ttl.toLong(), TimeUnit.SECONDS)
+        }
+        return false
     }
 
-    override fun toString(): String {
-        return StringBuilder().append("DefaultDnsCache(minTtl=").append(minTtl).append(", maxTtl=").append(maxTtl).append(", negativeTtl=")
-            .append(negativeTtl).append(", cached resolved hostname=").append(resolveCache.size).append(")").toString()
+    override fun isNxDomain(hostname: String): Boolean {
+        val now = System.nanoTime()
+        var name = hostname
+        while (true) {
+            val entries = resolveCache[name]
+            if (entries != null) {
+                synchronized(entries) {
+                    for (e in entries) {
+                        if (e.isNxDomain() && !e.isExpired(now)) {
+                            return true
+                        }
+                    }
+                }
+            }
+
+            if (!nxDomainCut) {
+                return false
+            }
+
+            // the parent of the hostname, the walk is over once the top level domain was looked up
+            val dot = name.indexOf('.')
+            if (dot < 0 || dot + 1 >= name.length) {
+                return false
+            }
+            name = name.substring(dot + 1)
+        }
+    }
+
+    private fun scheduleCacheExpiration(e: DnsCacheEntry, now: Long, ttl: Int, loop: EventLoop) {
+        e.expiresAt = now + TimeUnit.SECONDS.toNanos(ttl.toLong())
+        expiry.add(e, loop)
+    }
+
+    /**
+     * Removes a batch of expired entries (from the timing wheel) from the cache.
+     */
+    private fun remove(expired: List<DnsCacheEntry>) {
+        for (e in expired) {
+            val entries = resolveCache[e.hostname()]
+            if (entries != null) {
+                synchronized(entries) {
+                    entries.remove(e)
+                    if (entries.isEmpty()) {
+                        resolveCache.remove(e.hostname(), entries)
+                    }
+                }
+            }
+
+            if (entries == null || entries.isEmpty()) {
+                removed(e.hostname())
+            }
+        }
+    }
+
+    /**
+     * An estimate of the heap used by the hostname: the map entry, the list and the hostname, plus every cached address (or failure)
+     */
+    private fun weigh(hostname: String, entries: List<DnsCacheEntry>): Long {
+        var weight = 96L + 2 * hostname.length
+        for (e in entries) {
+            weight += 64 + (e.address()?.address?.size ?: 64)
+        }
+        return weight
+    }
+
+    /**
+     * Records the (new) weight of the hostname with the eviction policy, and evicts hostnames until the cache is within its budget
+     */
+    private fun record(hostname: String, weight: Long) {
+        val policy = policy ?: return
+
+        evictionLock.lock()
+        try {
+            drainReads(policy)
+
+            val old = weights.put(hostname, weight)
+            if (old == null) {
+                policy.onAdd(hostname)
+            } else {
+                weightedSize -= old
+            }
+            weightedSize += weight
+
+            while (weightedSize > maxBytes) {
+                val victim = policy.victim() ?: break
+                evict(policy, victim)
+            }
+        } finally {
+            evictionLock.unlock()
+        }
+    }
+
+    private fun evict(policy: DnsCacheEvictionPolicy, hostname: String) {
+        val weight = weights.remove(hostname)
+        if (weight != null) {
+            weightedSize -= weight
+        }
+        policy.onRemove(hostname)
+
+        val entries = resolveCache.remove(hostname)
+        if (entries != null) {
+            cancelExpiration(entries)
+            unindex(hostname)
+        }
+        evictions.increment()
     }
 
-    companion object {
-        private fun cancelExpiration(entries: List<DnsCacheEntry?>) {
+    /**
+     * Forgets the hostname in the index and the eviction policy, after it was removed from the cache (because it expired or was cleared)
+     */
+    private fun removed(hostname: String) {
+        unindex(hostname)
+
+        val policy = policy ?: return
+
+        evictionLock.lock()
+        try {
+            if (resolveCache.containsKey(hostname)) {
+                // it was cached again in the meantime
+                return
+            }
+
+            val weight = weights.remove(hostname) ?: return
+            weightedSize -= weight
+            policy.onRemove(hostname)
+        } finally {
+            evictionLock.unlock()
+        }
+    }
+
+    private fun unindex(hostname: String) {
+        // it may have been cached again in the meantime, it was indexed again after it was put into the cache
+        index.remove(DnsSuffixIndex.labels(hostname), hostname) { resolveCache.containsKey(hostname) }
+    }
+
+    private fun drainReads(policy: DnsCacheEvictionPolicy) {
+        readBuffer.drain { hostname ->
+            if (weights.containsKey(hostname)) {
+                policy.onAccess(hostname)
+            }
+        }
+    }
+
+    private fun cancelExpiration(entries: List<DnsCacheEntry>) {
+        synchronized(entries) {
             val numEntries = entries.size
             for (i in 0 until numEntries) {
-                entries[i]!!.cancelExpiration()
+                expiry.remove(entries[i])
             }
         }
     }
+
+    override fun toString(): String {
+        return StringBuilder().append("DefaultDnsCache(minTtl=").append(minTtl).append(", maxTtl=").append(maxTtl).append(", negativeTtl=")
+            .append(negativeTtl).append(", maxNegativeTtl=").append(maxNegativeTtl).append(", refreshAheadPercent=").append(refreshAheadPercent).append(", maxBytes=").append(maxBytes).append(", cached resolved hostname=").append(resolveCache.size).append(")").toString()
+    }
 }
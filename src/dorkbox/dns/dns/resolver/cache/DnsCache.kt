@@ -39,6 +39,14 @@ interface DnsCache {
      */
     fun clear(hostname: String): Boolean
 
+    /**
+     * Clears the resolved addresses of the specified domain, and of every host name below it, from the cache of this resolver.
+     * The rest of the cache is kept.
+     *
+     * @return the number of host names that were removed
+     */
+    fun purge(domain: String): Int
+
     /**
      * Return the cached entries for the given hostname.
      * @param hostname the hostname
@@ -62,4 +70,36 @@ interface DnsCache {
      * @param loop the [EventLoop] used to register the TTL timeout
      */
     fun cache(hostname: String, cause: Throwable, loop: EventLoop)
+
+    /**
+     * Cache that a given hostname does not exist (NXDOMAIN), with the negative TTL of the response (RFC 2308).
+     * @param hostname the hostname
+     * @param cause the resolution failure
+     * @param ttl the TTL of the negative answer, the minimum of the TTL and the MINIMUM field of the SOA record in the response
+     * @param loop the [EventLoop] used to register the TTL timeout
+     */
+    fun cache(hostname: String, cause: Throwable, ttl: Long, loop: EventLoop)
+
+    /**
+     * Cache that a given hostname exists, but has no records of a type (NODATA), with the negative TTL of the response (RFC 2308).
+     * @param hostname the hostname
+     * @param type the record type the hostname has no records of
+     * @param ttl the TTL of the negative answer, the minimum of the TTL and the MINIMUM field of the SOA record in the response
+     * @param loop the [EventLoop] used to register the TTL timeout
+     */
+    fun cacheNoData(hostname: String, type: Int, ttl: Long, loop: EventLoop)
+
+    /**
+     * Return if the given hostname is cached as having no records of a type (NODATA).
+     * @param hostname the hostname
+     * @param type the record type
+     */
+    fun isNoData(hostname: String, type: Int): Boolean
+
+    /**
+     * Return if the given hostname is cached as not existing (NXDOMAIN), or is below a hostname that is. Nothing exists below a
+     * name that does not exist (RFC 8020).
+     * @param hostname the hostname
+     */
+    fun isNxDomain(hostname: String): Boolean
 }
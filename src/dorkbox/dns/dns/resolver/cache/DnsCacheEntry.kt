@@ -15,12 +15,12 @@
  */
 package dorkbox.dns.dns.resolver.cache
 
-import io.netty.channel.EventLoop
-import io.netty.util.concurrent.ScheduledFuture
+import dorkbox.dns.dns.constants.DnsRecordType
 import io.netty.util.internal.ObjectUtil
 import io.netty.util.internal.UnstableApi
 import java.net.InetAddress
-import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
 
 /**
  * Entry in [DnsCache].
@@ -31,19 +31,54 @@ class DnsCacheEntry {
     private val address: InetAddress?
     private val cause: Throwable?
 
+    // the record type the hostname has no records of (NODATA), 0 for an address or a failure
+    private val noDataType: Int
+
+    // true if the failure is that the hostname does not exist (NXDOMAIN), so no name below it exists either
+    private val nxDomain: Boolean
+
+    /**
+     * When (System.nanoTime) this entry expires
+     */
+    @Volatile
+    internal var expiresAt = Long.MAX_VALUE
+
+    // the slot of the timing wheel this entry is linked into, guarded by the lock of the wheel
+    internal var deadlineTick = 0L
+    internal var level = -1
+    internal var slot = 0
+    internal var prev: DnsCacheEntry? = null
+    internal var next: DnsCacheEntry? = null
+
+    // for refresh-ahead: how often this entry was used, when (System.nanoTime) it is worth refreshing, and if it is being refreshed
+    private val hits = AtomicInteger()
+    private val refreshing = AtomicBoolean()
+
     @Volatile
-    private var expirationFuture: ScheduledFuture<*>? = null
+    internal var refreshAt = Long.MAX_VALUE
 
     constructor(hostname: String, address: InetAddress) {
         this.hostname = ObjectUtil.checkNotNull(hostname, "hostname")
         this.address = ObjectUtil.checkNotNull(address, "address")
         cause = null
+        noDataType = 0
+        nxDomain = false
     }
 
-    constructor(hostname: String, cause: Throwable) {
+    constructor(hostname: String, cause: Throwable, nxDomain: Boolean = false) {
         this.hostname = ObjectUtil.checkNotNull(hostname, "hostname")
         this.cause = ObjectUtil.checkNotNull(cause, "cause")
+        this.nxDomain = nxDomain
         address = null
+        noDataType = 0
+    }
+
+    constructor(hostname: String, noDataType: Int) {
+        this.hostname = ObjectUtil.checkNotNull(hostname, "hostname")
+        this.noDataType = ObjectUtil.checkPositive(noDataType, "noDataType")
+        address = null
+        cause = null
+        nxDomain = false
     }
 
     fun hostname(): String {
@@ -58,19 +93,55 @@ class DnsCacheEntry {
         return cause
     }
 
-    fun scheduleExpiration(loop: EventLoop, task: Runnable?, delay: Long, unit: TimeUnit?) {
-        assert(expirationFuture == null) { "expiration task scheduled already" }
-        expirationFuture = loop.schedule(task, delay, unit)
+    /**
+     * @return the record type the hostname has no records of (NODATA), or 0 if this entry is an address or a failure
+     */
+    fun noDataType(): Int {
+        return noDataType
+    }
+
+    /**
+     * @return true if this entry is a hostname that does not exist (NXDOMAIN)
+     */
+    fun isNxDomain(): Boolean {
+        return nxDomain
+    }
+
+    /**
+     * @return true if the TTL of this entry has run out
+     */
+    fun isExpired(now: Long = System.nanoTime()): Boolean {
+        return now - expiresAt >= 0
+    }
+
+    /**
+     * Counts a lookup of this entry
+     *
+     * @return how often this entry was looked up
+     */
+    fun hit(): Int {
+        return hits.incrementAndGet()
+    }
+
+    /**
+     * @return how often this entry was looked up
+     */
+    fun hits(): Int {
+        return hits.get()
     }
 
-    fun cancelExpiration() {
-        val expirationFuture = expirationFuture
-        expirationFuture?.cancel(false)
+    /**
+     * @return true if the entry is due for a refresh, and no other refresh was started for it yet
+     */
+    internal fun startRefresh(now: Long): Boolean {
+        return now - refreshAt >= 0 && refreshing.compareAndSet(false, true)
     }
 
     override fun toString(): String {
         return if (cause != null) {
             "$hostname/$cause"
+        } else if (noDataType != 0) {
+            "$hostname/NODATA ${DnsRecordType.string(noDataType)}"
         } else {
             address.toString()
         }
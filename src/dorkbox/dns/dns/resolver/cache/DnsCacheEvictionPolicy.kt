@@ -0,0 +1,43 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.resolver.cache
+
+/**
+ * Decides which hostname a size-bounded [DefaultDnsCache] (or which name a [DnsRecordCache]) evicts when it is over its budget.
+ *
+ * The cache only calls the policy while holding its eviction lock, so implementations do not have to be thread safe.
+ */
+interface DnsCacheEvictionPolicy {
+    /**
+     * A hostname was added to the cache
+     */
+    fun onAdd(hostname: String)
+
+    /**
+     * A cached hostname was looked up. Lookups are recorded in batches, and some of them are dropped when the cache is busy.
+     */
+    fun onAccess(hostname: String)
+
+    /**
+     * A hostname was removed from the cache (because it was evicted, expired or cleared)
+     */
+    fun onRemove(hostname: String)
+
+    /**
+     * @return the hostname that should be evicted next, or null if there is none. It is removed via [onRemove]
+     */
+    fun victim(): String?
+}
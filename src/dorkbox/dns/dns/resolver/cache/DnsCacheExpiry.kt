@@ -0,0 +1,247 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.resolver.cache
+
+import io.netty.channel.EventLoop
+import org.slf4j.LoggerFactory
+import java.util.concurrent.*
+
+/**
+ * Expires the entries of a [DefaultDnsCache] with a hierarchical timing wheel, instead of scheduling one task per entry.
+ *
+ * Each entry carries its deadline, and is linked into a slot of the wheel. Level 0 has one slot per tick, every level above it
+ * has slots that are 64 times larger. When the wheel reaches the start of a slot on a higher level, the entries in it are moved
+ * down into the lower levels. Adding and removing an entry is O(1), and one task (running once per tick, only while there are
+ * entries) expires all entries of a tick as a single batch.
+ *
+ * @param tickNanos the resolution of the wheel. Entries expire at most one tick late
+ * @param onExpired removes the expired entries from the cache. It is called without holding the lock of the wheel
+ */
+internal class DnsCacheExpiry(private val tickNanos: Long, private val onExpired: (List<DnsCacheEntry>) -> Unit) {
+    companion object {
+        private const val SLOT_BITS = 6
+        private const val SLOTS = 1 shl SLOT_BITS
+        private const val SLOT_MASK = (SLOTS - 1).toLong()
+
+        // enough levels to cover every (positive) tick
+        private const val LEVELS = (63 + SLOT_BITS - 1) / SLOT_BITS
+
+        private val logger = LoggerFactory.getLogger(DnsCacheExpiry::class.java)
+    }
+
+    private val origin = System.nanoTime()
+    private val wheel = Array(LEVELS) { arrayOfNulls<DnsCacheEntry>(SLOTS) }
+
+    // the next tick to expire
+    private var currentTick = 0L
+    private var size = 0
+
+    private var ticker: ScheduledFuture<*>? = null
+
+    /**
+     * Adds the entry to the wheel, so that it expires at its deadline ([DnsCacheEntry.expiresAt]). The first entry starts the
+     * task that advances the wheel on the given loop.
+     */
+    fun add(entry: DnsCacheEntry, loop: EventLoop) {
+        synchronized(this) {
+            insert(entry, System.nanoTime())
+
+            // the task is also started again if it was stopped from the outside (ie: by shutting down its loop)
+            val ticker = ticker
+            if (ticker == null || ticker.isDone) {
+                this.ticker = loop.scheduleAtFixedRate({ tick() }, tickNanos, tickNanos, TimeUnit.NANOSECONDS)
+            }
+        }
+    }
+
+    /**
+     * Removes the entry from the wheel, if it is in it. The task that advances the wheel stops once there are no entries left.
+     */
+    fun remove(entry: DnsCacheEntry) {
+        synchronized(this) {
+            unlink(entry)
+            stopIfEmpty()
+        }
+    }
+
+    /**
+     * Removes all entries from the wheel.
+     */
+    fun clear() {
+        synchronized(this) {
+            for (slots in wheel) {
+                for (i in slots.indices) {
+                    var entry = slots[i]
+                    while (entry != null) {
+                        val next = entry.next
+                        entry.prev = null
+                        entry.next = null
+                        entry.level = -1
+                        entry = next
+                    }
+                    slots[i] = null
+                }
+            }
+            size = 0
+            stopIfEmpty()
+        }
+    }
+
+    fun size(): Int {
+        synchronized(this) {
+            return size
+        }
+    }
+
+    /**
+     * Advances the wheel up to the given time, and removes the entries whose deadline has passed from the cache.
+     */
+    fun expire(now: Long) {
+        val expired = ArrayList<DnsCacheEntry>()
+
+        synchronized(this) {
+            val nowTick = floorTick(now)
+            while (currentTick <= nowTick && size > 0) {
+                val tick = currentTick
+
+                // move the entries that are now due within the lower levels down, from the top down so they cascade all the way
+                for (level in LEVELS - 1 downTo 1) {
+                    if (tick and ((1L shl (level * SLOT_BITS)) - 1) == 0L) {
+                        val slot = ((tick ushr (level * SLOT_BITS)) and SLOT_MASK).toInt()
+                        var entry = wheel[level][slot]
+                        wheel[level][slot] = null
+                        while (entry != null) {
+                            val next = entry.next
+                            entry.prev = null
+                            entry.next = null
+                            entry.level = -1
+                            size--
+                            link(entry, entry.deadlineTick)
+                            entry = next
+                        }
+                    }
+                }
+
+                val slot = (tick and SLOT_MASK).toInt()
+                var entry = wheel[0][slot]
+                wheel[0][slot] = null
+                while (entry != null) {
+                    val next = entry.next
+                    entry.prev = null
+                    entry.next = null
+                    entry.level = -1
+                    size--
+                    expired.add(entry)
+                    entry = next
+                }
+
+                currentTick++
+            }
+
+            if (size == 0 && currentTick <= nowTick) {
+                // nothing is waiting, there is no need to walk over the empty ticks
+                currentTick = nowTick + 1
+            }
+
+            stopIfEmpty()
+        }
+
+        if (expired.isNotEmpty()) {
+            onExpired(expired)
+        }
+    }
+
+    /**
+     * Runs once per tick. It never throws, because a periodic task that throws is never run again
+     */
+    private fun tick() {
+        try {
+            expire(System.nanoTime())
+        } catch (e: Exception) {
+            logger.error("Unable to remove the expired entries from the cache", e)
+        }
+    }
+
+    private fun insert(entry: DnsCacheEntry, now: Long) {
+        unlink(entry)
+
+        if (size == 0) {
+            // the wheel may have been idle, start at the current tick instead of walking over all the ticks since then
+            currentTick = Math.max(currentTick, floorTick(now))
+        }
+
+        // round up, so an entry never expires early
+        val deadline = entry.expiresAt - origin
+        var deadlineTick = if (deadline <= 0) 0 else (deadline + tickNanos - 1) / tickNanos
+        if (deadlineTick < currentTick) {
+            deadlineTick = currentTick
+        }
+
+        entry.deadlineTick = deadlineTick
+        link(entry, deadlineTick)
+    }
+
+    /**
+     * Links the entry into the level where the deadline first differs from the current tick.
+     */
+    private fun link(entry: DnsCacheEntry, deadlineTick: Long) {
+        val diff = deadlineTick xor currentTick
+        val level = if (diff == 0L) 0 else (63 - java.lang.Long.numberOfLeadingZeros(diff)) / SLOT_BITS
+        val slot = ((deadlineTick ushr (level * SLOT_BITS)) and SLOT_MASK).toInt()
+
+        val head = wheel[level][slot]
+        entry.next = head
+        entry.prev = null
+        head?.prev = entry
+        wheel[level][slot] = entry
+
+        entry.level = level
+        entry.slot = slot
+        size++
+    }
+
+    private fun unlink(entry: DnsCacheEntry) {
+        if (entry.level < 0) {
+            return
+        }
+
+        val prev = entry.prev
+        val next = entry.next
+        if (prev == null) {
+            wheel[entry.level][entry.slot] = next
+        } else {
+            prev.next = next
+        }
+        next?.prev = prev
+
+        entry.prev = null
+        entry.next = null
+        entry.level = -1
+        size--
+    }
+
+    private fun stopIfEmpty() {
+        if (size == 0) {
+            ticker?.cancel(false)
+            ticker = null
+        }
+    }
+
+    private fun floorTick(now: Long): Long {
+        val elapsed = now - origin
+        return if (elapsed <= 0) 0 else elapsed / tickNanos
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.resolver.cache
+
+import java.util.concurrent.atomic.AtomicLongArray
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+/**
+ * Records the hostnames that were looked up, so the eviction policy can learn about them later (in a batch), without every lookup
+ * having to take the eviction lock.
+ *
+ * There is one small ring buffer per stripe, and each thread writes to the stripe of its thread id. When a ring buffer is full, the
+ * lookup is not recorded. Only one thread at a time may [drain] the buffer.
+ */
+internal class DnsCacheReadBuffer {
+    companion object {
+        private const val BUFFER_SIZE = 16
+        private const val BUFFER_MASK = BUFFER_SIZE - 1
+
+        private val STRIPES = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1) shl 1
+    }
+
+    private val buffers = Array(STRIPES) { AtomicReferenceArray<String>(BUFFER_SIZE) }
+    private val writes = AtomicLongArray(STRIPES)
+    private val reads = AtomicLongArray(STRIPES)
+
+    /**
+     * @return true if the stripe of the calling thread is (at least half) full, and the buffer should be drained
+     */
+    fun offer(hostname: String): Boolean {
+        val id = Thread.currentThread().id.toInt() * -0x61c88647
+        val stripe = (id xor (id ushr 16)) and (STRIPES - 1)
+
+        val write = writes.get(stripe)
+        val pending = write - reads.get(stripe)
+        if (pending >= BUFFER_SIZE) {
+            return true
+        }
+
+        if (writes.compareAndSet(stripe, write, write + 1)) {
+            buffers[stripe].lazySet((write and BUFFER_MASK.toLong()).toInt(), hostname)
+        }
+        return pending + 1 >= BUFFER_SIZE / 2
+    }
+
+    /**
+     * Hands every recorded hostname to the consumer, and empties the buffer.
+     */
+    fun drain(consumer: (String) -> Unit) {
+        for (stripe in 0 until STRIPES) {
+            val buffer = buffers[stripe]
+            val write = writes.get(stripe)
+            var read = reads.get(stripe)
+
+            while (read < write) {
+                val index = (read and BUFFER_MASK.toLong()).toInt()
+
+                // the writer claimed the slot, but did not store the hostname yet
+                val hostname = buffer.get(index) ?: break
+                buffer.lazySet(index, null)
+                consumer(hostname)
+                read++
+            }
+
+            reads.lazySet(stripe, read)
+        }
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.resolver.cache
+
+import dorkbox.dns.dns.records.DnsRecord
+
+/**
+ * A negative answer from the cache: the name does not exist (NXDOMAIN), or it has no records of the type (NODATA).
+ *
+ * @param isNxDomain true if the name does not exist, false if it only has no records of the type
+ * @param authority the records for the authority section of the response (the SOA record of the zone, and the NSEC/NSEC3 records
+ *                  that prove the answer, with their signatures), with the TTL that is left of them
+ */
+class DnsNegativeAnswer(val isNxDomain: Boolean, val authority: List<DnsRecord>) {
+    override fun toString(): String {
+        return if (isNxDomain) "NXDOMAIN" else "NODATA"
+    }
+}
@@ -0,0 +1,516 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.resolver.cache
+
+import dorkbox.dns.dns.Name
+import dorkbox.dns.dns.constants.DnsRecordType
+import dorkbox.dns.dns.constants.DnsSection
+import dorkbox.dns.dns.constants.Flags
+import dorkbox.dns.dns.records.DnsMessage
+import dorkbox.dns.dns.records.DnsRecord
+import dorkbox.dns.dns.records.NSEC3Record
+import dorkbox.dns.dns.records.NSECRecord
+import dorkbox.dns.dns.records.RRSIGRecord
+import dorkbox.dns.dns.records.RRset
+import dorkbox.dns.dns.records.SOARecord
+import dorkbox.dns.dns.utils.base32
+import io.netty.util.internal.ObjectUtil
+import java.security.NoSuchAlgorithmException
+import java.util.*
+import java.util.concurrent.*
+
+/**
+ * A cache of the NSEC and NSEC3 records of signed zones, used to answer negative queries aggressively (RFC 8198). Such a record
+ * says that no name exists between its owner and the next name (in the canonical order of the zone, or of the hashes for NSEC3),
+ * and which types exist at its owner. A query for any name that falls into one of those gaps is answered with NXDOMAIN (or
+ * NODATA) from the cache, so random-subdomain floods do not reach the DNS servers one miss at a time.
+ *
+ * Signatures are not validated here. Only the records of responses that the DNS server validated (the AD flag is set) are kept,
+ * and only if they are signed by the zone they are in.
+ *
+ * @param maxZones the maximum number of zones in the cache
+ * @param maxSpansPerZone the maximum number of NSEC (or NSEC3) records per zone
+ * @param maxTtl the maximum TTL (in seconds) of a cached record, or -1 for no limit
+ */
+class DnsNsecCache(maxZones: Int = 1_000, maxSpansPerZone: Int = 10_000, private val maxTtl: Long = -1) {
+    companion object {
+        /**
+         * NSEC3 records with more iterations are not cached, hashing every query name that often costs more than it saves (RFC 9276)
+         */
+        const val MAX_NSEC3_ITERATIONS = 100
+
+        private val b32 = base32(base32.Alphabet.BASE32HEX, false, false)
+
+        private val HASH_ORDER = Comparator<ByteArray> { a, b ->
+            val length = Math.min(a.size, b.size)
+            for (i in 0 until length) {
+                val n = (a[i].toInt() and 0xFF) - (b[i].toInt() and 0xFF)
+                if (n != 0) {
+                    return@Comparator n
+                }
+            }
+            a.size - b.size
+        }
+
+        private val NAME_ORDER = Comparator<Name> { a, b -> a.compareTo(b) }
+
+        /**
+         * @return the last labels of the name
+         */
+        private fun suffix(name: Name, labels: Int): Name {
+            val n = name.labels()
+            return if (labels >= n) name else Name(name, n - labels)
+        }
+
+        /**
+         * @return the longest name that both names are in
+         */
+        private fun commonAncestor(a: Name, b: Name): Name {
+            val max = Math.min(a.labels(), b.labels())
+            var labels = 1
+            while (labels < max && suffix(a, labels + 1) == suffix(b, labels + 1)) {
+                labels++
+            }
+            return suffix(a, labels)
+        }
+
+        private fun signer(rrset: RRset): Name? {
+            val sigs = rrset.sigs()
+            return if (sigs.hasNext()) (sigs.next() as RRSIGRecord).signer else null
+        }
+
+        private fun hasType(rrset: RRset, type: Int): Boolean {
+            return when (val record = rrset.first()) {
+                is NSECRecord -> record.hasType(type)
+                is NSEC3Record -> record.hasType(type)
+                else -> false
+            }
+        }
+
+        /**
+         * At a delegation, the records of the parent only prove what is not there for the DS records, everything else is in the child
+         */
+        private fun isDelegation(rrset: RRset): Boolean {
+            return hasType(rrset, DnsRecordType.NS) && !hasType(rrset, DnsRecordType.SOA)
+        }
+
+        /**
+         * @return true if the key is between the owner and the next key, the last span of a zone wraps around to the start of it
+         */
+        private fun <K> covers(owner: K, next: K, key: K, comparator: Comparator<in K>): Boolean {
+            return if (comparator.compare(owner, next) < 0) {
+                comparator.compare(owner, key) < 0 && comparator.compare(key, next) < 0
+            } else {
+                comparator.compare(owner, key) < 0 || comparator.compare(key, next) < 0
+            }
+        }
+    }
+
+    private class Span<K>(val rrset: RRset, val next: K, val expiresAt: Long) {
+        fun isExpired(now: Long): Boolean {
+            return now - expiresAt >= 0
+        }
+    }
+
+    /**
+     * The spans of a zone, guarded by its own lock
+     */
+    private class Zone(val name: Name) {
+        val nsec = TreeMap<Name, Span<Name>>(NAME_ORDER)
+        val nsec3 = TreeMap<ByteArray, Span<ByteArray>>(HASH_ORDER)
+
+        // the parameters that all the NSEC3 records of the zone are hashed with
+        var hashAlgorithm = 0
+        var iterations = 0
+        var salt: ByteArray? = null
+
+        var soa: Span<Name>? = null
+
+        val size: Int
+            get() = nsec.size + nsec3.size
+    }
+
+    private val maxZones = ObjectUtil.checkPositive(maxZones, "maxZones")
+    private val maxSpansPerZone = ObjectUtil.checkPositive(maxSpansPerZone, "maxSpansPerZone")
+    private val zones = ConcurrentHashMap<Name, Zone>()
+
+    /**
+     * The number of zones in the cache
+     */
+    val size: Int
+        get() = zones.size
+
+    /**
+     * Empties the cache.
+     */
+    fun clear() {
+        zones.clear()
+    }
+
+    /**
+     * Removes the zones that are at or below the domain, and the zone that the domain is in, as its NSEC/NSEC3 records may prove
+     * that names below the domain do not exist.
+     */
+    fun purge(domain: Name) {
+        zones.keys.removeIf { it.subdomain(domain) || domain.subdomain(it) }
+    }
+
+    private inline fun withZone(name: Name, action: (Zone) -> Unit) {
+        var zone = zones[name]
+        if (zone == null) {
+            if (zones.size >= maxZones) {
+                // make room for it, any zone will do
+                val i = zones.keys.iterator()
+                if (i.hasNext()) {
+                    zones.remove(i.next())
+                }
+            }
+
+            val newZone = Zone(name)
+            zone = zones.putIfAbsent(name, newZone) ?: newZone
+        }
+
+        synchronized(zone) {
+            action(zone)
+            trim(zone)
+        }
+    }
+
+    /**
+     * Removes the expired spans of the zone, and if that is not enough, the first ones, until it is within its bounds again
+     */
+    private fun trim(zone: Zone) {
+        if (zone.size <= maxSpansPerZone) {
+            return
+        }
+
+        val now = System.nanoTime()
+        zone.nsec.values.removeIf { it.isExpired(now) }
+        zone.nsec3.values.removeIf { it.isExpired(now) }
+
+        while (zone.size > maxSpansPerZone) {
+            if (zone.nsec.isNotEmpty()) {
+                zone.nsec.pollFirstEntry()
+            } else {
+                zone.nsec3.pollFirstEntry()
+            }
+        }
+    }
+
+    /**
+     * @return how long (in seconds) the RRset can be cached: its TTL, bounded by the negative TTL of the zone (RFC 8198, 5.4) and the
+     *         expiration of its signatures
+     */
+    private fun ttl(rrset: RRset, soa: RRset?): Long {
+        var ttl = rrset.TTL
+        if (soa != null) {
+            ttl = Math.min(ttl, Math.min(soa.TTL, (soa.first() as SOARecord).minimum))
+        }
+        if (maxTtl in 0 until ttl) {
+            ttl = maxTtl
+        }
+
+        val now = System.currentTimeMillis()
+        val sigs = rrset.sigs()
+        while (sigs.hasNext()) {
+            val sig = sigs.next() as RRSIGRecord
+            ttl = Math.min(ttl, TimeUnit.MILLISECONDS.toSeconds(sig.expire.time - now))
+        }
+        return ttl
+    }
+
+    /**
+     * Adds the NSEC and NSEC3 records of the authority section of a validated response to the cache.
+     *
+     * @param message The response, it is ignored if the DNS server did not validate it
+     */
+    fun addMessage(message: DnsMessage) {
+        if (!message.header.getFlag(Flags.AD)) {
+            return
+        }
+
+        val authority = message.getSectionRRsets(DnsSection.AUTHORITY)
+
+        var soa: RRset? = null
+        for (rrset in authority) {
+            if (rrset.size() > 0 && rrset.type == DnsRecordType.SOA && signer(rrset) == rrset.name) {
+                soa = rrset
+            }
+        }
+
+        val now = System.nanoTime()
+        for (rrset in authority) {
+            if (rrset.size() == 0) {
+                continue
+            }
+
+            when (rrset.type) {
+                DnsRecordType.NSEC -> addNsec(rrset, soa, now)
+                DnsRecordType.NSEC3 -> addNsec3(rrset, soa, now)
+            }
+        }
+    }
+
+    private fun addNsec(rrset: RRset, soa: RRset?, now: Long) {
+        val signer = signer(rrset) ?: return
+        val owner = rrset.name
+        val next = (rrset.first() as NSECRecord).next ?: return
+
+        // the next name of the last record of the zone is the apex
+        if (!owner.subdomain(signer) || !next.subdomain(signer)) {
+            return
+        }
+
+        val ttl = ttl(rrset, soa)
+        if (ttl <= 0) {
+            return
+        }
+
+        withZone(signer) { zone ->
+            zone.nsec[owner] = Span(RRset(rrset), next, now + TimeUnit.SECONDS.toNanos(ttl))
+            updateSoa(zone, soa, now)
+        }
+    }
+
+    private fun addNsec3(rrset: RRset, soa: RRset?, now: Long) {
+        val signer = signer(rrset) ?: return
+        val owner = rrset.name
+
+        // the owner is the hash of a name of the zone, right below the apex
+        if (owner.labels() != signer.labels() + 1 || !owner.subdomain(signer)) {
+            return
+        }
+
+        val record = rrset.first() as NSEC3Record
+        if (record.hashAlgorithm != NSEC3Record.Digest.SHA1 || record.iterations > MAX_NSEC3_ITERATIONS) {
+            return
+        }
+
+        val hash = b32.fromString(owner.getLabelString(0)) ?: return
+        if (hash.size != record.next.size) {
+            return
+        }
+
+        val ttl = ttl(rrset, soa)
+        if (ttl <= 0) {
+            return
+        }
+
+        withZone(signer) { zone ->
+            if (zone.hashAlgorithm != record.hashAlgorithm || zone.iterations != record.iterations || !Arrays.equals(zone.salt, record.salt)) {
+                // the zone has new NSEC3 parameters, the hashes of the old ones are of no use anymore
+                zone.nsec3.clear()
+                zone.hashAlgorithm = record.hashAlgorithm
+                zone.iterations = record.iterations
+                zone.salt = record.salt
+            }
+
+            zone.nsec3[hash] = Span(RRset(rrset), record.next, now + TimeUnit.SECONDS.toNanos(ttl))
+            updateSoa(zone, soa, now)
+        }
+    }
+
+    private fun updateSoa(zone: Zone, soa: RRset?, now: Long) {
+        if (soa != null && soa.name == zone.name) {
+            zone.soa = Span(RRset(soa), zone.name, now + TimeUnit.SECONDS.toNanos(Math.max(0L, ttl(soa, null))))
+        }
+    }
+
+    /**
+     * Answers a query from the cached NSEC/NSEC3 records.
+     *
+     * @param name The name to look up
+     * @param type The type to look up
+     *
+     * @return NXDOMAIN or NODATA if the cached records prove it, otherwise null
+     */
+    fun lookup(name: Name, type: Int): DnsNegativeAnswer? {
+        if (zones.isEmpty() || !DnsRecordType.isRR(type)) {
+            return null
+        }
+
+        // the DS records of a zone are in its parent
+        val labels = name.labels()
+        val first = if (type == DnsRecordType.DS) labels - 1 else labels
+
+        for (n in first downTo 1) {
+            val zone = zones[suffix(name, n)] ?: continue
+
+            synchronized(zone) {
+                val now = System.nanoTime()
+                return lookupNsec(zone, name, type, now) ?: lookupNsec3(zone, name, type, now)
+            }
+        }
+        return null
+    }
+
+    private fun <K> exact(spans: TreeMap<K, Span<K>>, key: K, now: Long): Span<K>? {
+        val span = spans[key] ?: return null
+        if (span.isExpired(now)) {
+            spans.remove(key)
+            return null
+        }
+        return span
+    }
+
+    private fun <K> covering(spans: TreeMap<K, Span<K>>, key: K, now: Long): Span<K>? {
+        // the last span wraps around to the keys before the first one
+        val entry = spans.lowerEntry(key) ?: spans.lastEntry() ?: return null
+        val span = entry.value
+        if (!covers(entry.key, span.next, key, spans.comparator())) {
+            return null
+        }
+        if (span.isExpired(now)) {
+            spans.remove(entry.key)
+            return null
+        }
+        return span
+    }
+
+    private fun lookupNsec(zone: Zone, name: Name, type: Int, now: Long): DnsNegativeAnswer? {
+        if (zone.nsec.isEmpty()) {
+            return null
+        }
+
+        val exact = exact(zone.nsec, name, now)
+        if (exact != null) {
+            if (hasType(exact.rrset, type) || hasType(exact.rrset, DnsRecordType.CNAME) || (isDelegation(exact.rrset) && type != DnsRecordType.DS)) {
+                return null
+            }
+            return answer(zone, false, now, exact)
+        }
+
+        val cover = covering(zone.nsec, name, now) ?: return null
+        val owner = cover.rrset.name
+
+        // the name is below a delegation (or DNAME), what is there is not in this zone
+        if (name.subdomain(owner) && (isDelegation(cover.rrset) || hasType(cover.rrset, DnsRecordType.DNAME))) {
+            return null
+        }
+
+        // an empty non-terminal exists, it has no records of any type
+        if (cover.next.subdomain(name)) {
+            return answer(zone, false, now, cover)
+        }
+
+        // the wildcard of the closest encloser must not exist either
+        val ownerAncestor = commonAncestor(name, owner)
+        val nextAncestor = commonAncestor(name, cover.next)
+        val encloser = if (ownerAncestor.labels() > nextAncestor.labels()) ownerAncestor else nextAncestor
+        if (!encloser.subdomain(zone.name)) {
+            return null
+        }
+
+        val wildcard = name.wild(name.labels() - encloser.labels())
+        if (exact(zone.nsec, wildcard, now) != null) {
+            return null
+        }
+        val wildcardCover = covering(zone.nsec, wildcard, now) ?: return null
+
+        return answer(zone, true, now, cover, wildcardCover)
+    }
+
+    private fun hash(zone: Zone, name: Name): ByteArray? {
+        return try {
+            NSEC3Record.hashName(name, zone.hashAlgorithm, zone.iterations, zone.salt)
+        } catch (e: NoSuchAlgorithmException) {
+            null
+        }
+    }
+
+    private fun lookupNsec3(zone: Zone, name: Name, type: Int, now: Long): DnsNegativeAnswer? {
+        if (zone.nsec3.isEmpty()) {
+            return null
+        }
+
+        val hash = hash(zone, name) ?: return null
+        val exact = exact(zone.nsec3, hash, now)
+        if (exact != null) {
+            if (hasType(exact.rrset, type) || hasType(exact.rrset, DnsRecordType.CNAME) || (isDelegation(exact.rrset) && type != DnsRecordType.DS)) {
+                return null
+            }
+            return answer(zone, false, now, exact)
+        }
+
+        // the closest encloser proof (RFC 5155, 8.3): the closest encloser exists, but the name one label below it (the next closer
+        // name) does not, and neither does the wildcard of the closest encloser
+        var nextCloser = name
+        for (labels in name.labels() - 1 downTo zone.name.labels()) {
+            val encloser = suffix(name, labels)
+            val encloserSpan = exact(zone.nsec3, hash(zone, encloser) ?: return null, now)
+            if (encloserSpan == null) {
+                nextCloser = encloser
+                continue
+            }
+
+            if (isDelegation(encloserSpan.rrset) || hasType(encloserSpan.rrset, DnsRecordType.DNAME)) {
+                return null
+            }
+
+            val nextCloserSpan = covering(zone.nsec3, hash(zone, nextCloser) ?: return null, now) ?: return null
+
+            // an opt-out span may hide an unsigned delegation
+            if ((nextCloserSpan.rrset.first() as NSEC3Record).flags and NSEC3Record.Flags.OPT_OUT != 0) {
+                return null
+            }
+
+            val wildcard = name.wild(name.labels() - labels)
+            val wildcardSpan = covering(zone.nsec3, hash(zone, wildcard) ?: return null, now) ?: return null
+
+            return answer(zone, true, now, encloserSpan, nextCloserSpan, wildcardSpan)
+        }
+        return null
+    }
+
+    /**
+     * @return the answer, with the SOA of the zone and the proof in the authority section (with the TTL that is left of them)
+     */
+    private fun answer(zone: Zone, isNxDomain: Boolean, now: Long, vararg proof: Span<*>): DnsNegativeAnswer {
+        val records = ArrayList<DnsRecord>()
+
+        val soa = zone.soa
+        if (soa != null && !soa.isExpired(now)) {
+            addRecords(soa, now, records)
+        }
+
+        // the same span can prove more than one part
+        for (i in proof.indices) {
+            if ((0 until i).none { proof[it] === proof[i] }) {
+                addRecords(proof[i], now, records)
+            }
+        }
+        return DnsNegativeAnswer(isNxDomain, records)
+    }
+
+    private fun addRecords(span: Span<*>, now: Long, records: MutableList<DnsRecord>) {
+        val rrset = span.rrset
+        val ttl = TimeUnit.NANOSECONDS.toSeconds(span.expiresAt - now)
+
+        val rrs = rrset.rrs(false)
+        while (rrs.hasNext()) {
+            val record = (rrs.next() as DnsRecord).cloneRecord()
+            record.ttl = Math.min(record.ttl, ttl)
+            records.add(record)
+        }
+
+        val sigs = rrset.sigs()
+        while (sigs.hasNext()) {
+            val record = (sigs.next() as DnsRecord).cloneRecord()
+            record.ttl = Math.min(record.ttl, ttl)
+            records.add(record)
+        }
+    }
+}
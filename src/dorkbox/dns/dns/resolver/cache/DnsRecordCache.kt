@@ -0,0 +1,830 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.resolver.cache
+
+import dorkbox.dns.dns.Name
+import dorkbox.dns.dns.cache.DnsSuffixIndex
+import dorkbox.dns.dns.constants.DnsClass
+import dorkbox.dns.dns.constants.DnsRecordType
+import dorkbox.dns.dns.constants.DnsResponseCode
+import dorkbox.dns.dns.constants.DnsSection
+import dorkbox.dns.dns.constants.Flags
+import dorkbox.dns.dns.exceptions.NameTooLongException
+import dorkbox.dns.dns.records.CNAMERecord
+import dorkbox.dns.dns.records.DNAMERecord
+import dorkbox.dns.dns.records.DnsMessage
+import dorkbox.dns.dns.records.DnsRecord
+import dorkbox.dns.dns.records.RRset
+import dorkbox.dns.dns.records.SOARecord
+import io.netty.util.internal.ObjectUtil
+import java.util.*
+import java.util.concurrent.*
+import java.util.concurrent.locks.ReentrantLock
+
+/**
+ * A cache of RRsets (of any type) and negative answers, keyed by name, type and class. Every set is ranked by the [Credibility] of
+ * the section it came from, so less credible data (glue, additional records) never replaces more credible data (authoritative
+ * answers), and it is only used to answer a query when it is credible enough.
+ *
+ * Expired sets are removed when they are looked up. The cache holds at most [maxEntries] names, when it is full the [evictionPolicy]
+ * (W-TinyLFU by default) picks the names to evict. The names that are used often (ie: the NS and glue records of popular zones) stay
+ * cached, even when a lot of names are only ever asked for once.
+ *
+ * The NSEC/NSEC3 records of validated negative answers are kept in the [nsecCache], so negative answers can also be synthesized for
+ * names that were never asked for (RFC 8198).
+ *
+ * The names are also indexed by their labels (from the top level domain down), so a whole domain can be [purge]d without looking at
+ * the names that are not in it.
+ *
+ * A name that does not exist (NXDOMAIN) is a cut: no name below it exists either (RFC 8020), so the lookup of any name below it is
+ * answered with NXDOMAIN as well. Finding the cut is a walk over the labels of the name, every step is one lookup in the cache.
+ *
+ * @param maxEntries the maximum number of names in the cache
+ * @param maxTtl the maximum TTL (in seconds) of a cached RRset, or -1 for no limit
+ * @param maxNegativeTtl the maximum TTL (in seconds) of a cached negative answer, or -1 for no limit
+ * @param nsecCache the cache of NSEC/NSEC3 records, or null to only answer negatively for the names that were asked for
+ * @param nxDomainCut true if the names below a name that does not exist do not exist either
+ * @param missTracker counts the names that do not exist per zone, or null to not count them
+ * @param evictionPolicy picks the names to evict when the cache is full (by their lower-cased name), every cache needs its own
+ */
+class DnsRecordCache(
+    maxEntries: Int = 50_000,
+    private val maxTtl: Long = -1,
+    private val maxNegativeTtl: Long = -1,
+    private val nsecCache: DnsNsecCache? = DnsNsecCache(maxTtl = maxNegativeTtl),
+    private val nxDomainCut: Boolean = true,
+    val missTracker: DnsZoneMissTracker? = null,
+    evictionPolicy: DnsCacheEvictionPolicy? = null
+) {
+    companion object {
+        /**
+         * How many CNAMEs are followed when answering from the cache
+         */
+        private const val MAX_CHAIN_LENGTH = 16
+
+        private fun expiresAt(ttl: Long, maxTtl: Long, now: Long): Long {
+            var ttl = ttl
+            if (maxTtl in 0 until ttl) {
+                ttl = maxTtl
+            }
+            return now + TimeUnit.SECONDS.toNanos(Math.min(ttl, Int.MAX_VALUE.toLong()))
+        }
+
+        private fun credibility(section: Int, isAuth: Boolean): Int {
+            return when (section) {
+                DnsSection.ANSWER -> if (isAuth) Credibility.AUTH_ANSWER else Credibility.NONAUTH_ANSWER
+                DnsSection.AUTHORITY -> if (isAuth) Credibility.AUTH_AUTHORITY else Credibility.NONAUTH_AUTHORITY
+                DnsSection.ADDITIONAL -> Credibility.ADDITIONAL
+                else -> throw IllegalArgumentException("invalid section")
+            }
+        }
+
+        private fun markAdditional(rrset: RRset, names: MutableSet<Name>) {
+            if (rrset.first().additionalName == null) {
+                return
+            }
+
+            val i = rrset.rrs()
+            while (i.hasNext()) {
+                val name = (i.next() as DnsRecord).additionalName
+                if (name != null) {
+                    names.add(name)
+                }
+            }
+        }
+    }
+
+    private abstract class Element(val type: Int, val dclass: Int, val credibility: Int, val expiresAt: Long) {
+        fun isExpired(now: Long): Boolean {
+            return now - expiresAt >= 0
+        }
+    }
+
+    private class CacheRRset(val rrset: RRset, credibility: Int, expiresAt: Long) :
+        Element(rrset.type, rrset.dClass, credibility, expiresAt) {
+
+        override fun toString(): String {
+            return "$rrset cl = $credibility"
+        }
+    }
+
+    /**
+     * NXDOMAIN (type 0), or no data for the type (NXRRSET)
+     */
+    private class NegativeElement(val name: Name, val soa: SOARecord?, type: Int, dclass: Int, credibility: Int, expiresAt: Long) :
+        Element(type, dclass, credibility, expiresAt) {
+
+        override fun toString(): String {
+            return if (type == 0) {
+                "NXDOMAIN $name cl = $credibility"
+            } else {
+                "NXRRSET $name ${DnsRecordType.string(type)} cl = $credibility"
+            }
+        }
+    }
+
+    /**
+     * All the elements of a name. Guarded by its own lock, once it is removed from the map it must not be used anymore.
+     */
+    private class Node {
+        val elements = ArrayList<Element>(2)
+        var removed = false
+
+        fun find(type: Int, dclass: Int): Element? {
+            for (element in elements) {
+                if (element.type == type && element.dclass == dclass) {
+                    return element
+                }
+            }
+            return null
+        }
+
+        fun remove(type: Int, dclass: Int) {
+            val i = elements.iterator()
+            while (i.hasNext()) {
+                val element = i.next()
+                if (element.type == type && element.dclass == dclass) {
+                    i.remove()
+                    return
+                }
+            }
+        }
+
+        fun put(element: Element) {
+            for (i in elements.indices) {
+                val old = elements[i]
+                if (old.type == element.type && old.dclass == element.dclass) {
+                    elements[i] = element
+                    return
+                }
+            }
+            elements.add(element)
+        }
+    }
+
+    private val maxEntries = ObjectUtil.checkPositive(maxEntries, "maxEntries")
+    private val data = ConcurrentHashMap<Name, Node>()
+    private val index = DnsSuffixIndex<Name>()
+
+    // the names that the policy knows about (by their key), they and the policy are guarded by the eviction lock
+    private val policy = evictionPolicy ?: TinyLfuDnsCacheEvictionPolicy(maxEntries)
+    private val policyNames = HashMap<String, Name>()
+    private val evictionLock = ReentrantLock()
+    private val readBuffer = DnsCacheReadBuffer()
+
+    /**
+     * The number of names in the cache
+     */
+    val size: Int
+        get() = data.size
+
+    /**
+     * Empties the cache.
+     */
+    fun clear() {
+        data.clear()
+        index.clear()
+        nsecCache?.clear()
+        missTracker?.clear()
+
+        evictionLock.lock()
+        try {
+            for (key in policyNames.keys) {
+                policy.onRemove(key)
+            }
+            policyNames.clear()
+        } finally {
+            evictionLock.unlock()
+        }
+    }
+
+    /**
+     * Runs the action with the (locked) node of the name, and removes the node if it is empty afterwards.
+     *
+     * @param create if the node should be created when the name is not in the cache
+     */
+    private inline fun <T> withNode(name: Name, create: Boolean, action: (Node) -> T): T? {
+        while (true) {
+            var created = false
+            var node = data[name]
+            if (node == null) {
+                if (!create) {
+                    return null
+                }
+
+                val newNode = Node()
+                val oldNode = data.putIfAbsent(name, newNode)
+                if (oldNode == null) {
+                    index.add(DnsSuffixIndex.labels(name), name)
+                    created = true
+                } else {
+                    accessed(name)
+                }
+                node = oldNode ?: newNode
+            } else {
+                accessed(name)
+            }
+
+            var done = false
+            var empty = false
+            var result: T? = null
+            synchronized(node) {
+                if (!node.removed) {
+                    result = action(node)
+                    done = true
+
+                    if (node.elements.isEmpty()) {
+                        node.removed = true
+                        empty = true
+                        data.remove(name, node)
+
+                        // it may have been cached again in the meantime, it was indexed again after it was put into the cache
+                        index.remove(DnsSuffixIndex.labels(name), name) { data.containsKey(name) }
+                    }
+                }
+            }
+
+            // the eviction policy is only told about it outside the node lock, evicting takes the node lock while holding its own
+            if (empty) {
+                removed(name)
+            } else if (created && done) {
+                added(name)
+            }
+
+            if (done) {
+                return result
+            }
+            // the node was removed while we waited for it, try again with a new one
+        }
+    }
+
+    private fun policyKey(name: Name): String {
+        return name.toString().lowercase(Locale.ROOT)
+    }
+
+    /**
+     * Records the lookup of the name, the eviction policy learns about it (in a batch) the next time the eviction lock is free
+     */
+    private fun accessed(name: Name) {
+        if (readBuffer.offer(policyKey(name)) && evictionLock.tryLock()) {
+            try {
+                drainReads()
+            } finally {
+                evictionLock.unlock()
+            }
+        }
+    }
+
+    /**
+     * Adds the name to the eviction policy, and evicts the names that it picks until the cache is within [maxEntries] again
+     */
+    private fun added(name: Name) {
+        val key = policyKey(name)
+
+        evictionLock.lock()
+        try {
+            drainReads()
+
+            if (policyNames.put(key, name) == null) {
+                policy.onAdd(key)
+            }
+
+            while (policyNames.size > maxEntries) {
+                val victim = policy.victim() ?: break
+                policy.onRemove(victim)
+
+                val victimName = policyNames.remove(victim) ?: continue
+                flushName(victimName)
+            }
+        } finally {
+            evictionLock.unlock()
+        }
+    }
+
+    /**
+     * Forgets the name in the eviction policy, after it was removed from the cache (because it expired, was flushed or evicted)
+     */
+    private fun removed(name: Name) {
+        evictionLock.lock()
+        try {
+            if (data.containsKey(name)) {
+                // it was cached again in the meantime
+                return
+            }
+
+            val key = policyKey(name)
+            if (policyNames.remove(key) != null) {
+                policy.onRemove(key)
+            }
+        } finally {
+            evictionLock.unlock()
+        }
+    }
+
+    private fun drainReads() {
+        readBuffer.drain { key ->
+            if (policyNames.containsKey(key)) {
+                policy.onAccess(key)
+            }
+        }
+    }
+
+    /**
+     * @return the element of the name, if it has not expired and is credible enough
+     */
+    private fun Node.findElement(type: Int, dclass: Int, minCred: Int, now: Long): Element? {
+        val element = find(type, dclass) ?: return null
+        if (element.isExpired(now)) {
+            remove(type, dclass)
+            return null
+        }
+        if (element.credibility < minCred) {
+            return null
+        }
+        return element
+    }
+
+    /**
+     * Adds an RRset to the cache, unless there is more credible data for it already.
+     *
+     * @param rrset The RRset to be added
+     * @param cred The credibility of these records
+     */
+    fun addRRset(rrset: RRset, cred: Int) {
+        val type = rrset.type
+        if (!DnsRecordType.isRR(type)) {
+            return
+        }
+
+        val ttl = rrset.TTL
+        val dclass = rrset.dClass
+        val now = System.nanoTime()
+
+        withNode(rrset.name, ttl != 0L) { node ->
+            val element = node.findElement(type, dclass, 0, now)
+            if (ttl == 0L) {
+                // a TTL of 0 must not be cached, but it does remove what was there
+                if (element != null && element.credibility <= cred) {
+                    node.remove(type, dclass)
+                }
+            } else if (element == null || element.credibility <= cred) {
+                node.put(CacheRRset(RRset(rrset), cred, expiresAt(ttl, maxTtl, now)))
+            }
+        }
+    }
+
+    /**
+     * Adds a negative entry to the cache.
+     *
+     * @param name The name of the negative entry
+     * @param type The type of the negative entry, 0 if the name does not exist at all
+     * @param dclass The class of the negative entry
+     * @param soa The SOA record of the zone, the negative TTL is the minimum of its TTL and MINIMUM field (RFC 2308). Without it,
+     *            nothing is cached
+     * @param cred The credibility of the negative entry
+     */
+    fun addNegative(name: Name, type: Int, dclass: Int, soa: SOARecord?, cred: Int) {
+        val ttl = if (soa == null) 0L else Math.min(soa.ttl, soa.minimum)
+        val now = System.nanoTime()
+
+        withNode(name, ttl != 0L) { node ->
+            val element = node.findElement(type, dclass, 0, now)
+            if (ttl == 0L) {
+                if (element != null && element.credibility <= cred) {
+                    node.remove(type, dclass)
+                }
+            } else if (element == null || element.credibility <= cred) {
+                node.put(NegativeElement(name, soa, type, dclass, cred, expiresAt(ttl, maxNegativeTtl, now)))
+            }
+        }
+    }
+
+    /**
+     * Looks up records in the cache. This finds the set of the name/type, or something that stops the lookup: a CNAME at the name,
+     * a DNAME or delegation above it, or a negative answer.
+     *
+     * @param name The name to look up
+     * @param type The type to look up
+     * @param dclass The class to look up
+     * @param minCred The minimum acceptable credibility
+     *
+     * @return A SetResponse object
+     */
+    fun lookupRecords(name: Name, type: Int, dclass: Int = DnsClass.IN, minCred: Int = Credibility.NORMAL): SetResponse {
+        val labels = name.labels()
+        val now = System.nanoTime()
+
+        for (tlabels in labels downTo 1) {
+            val isRoot = tlabels == 1
+            val isExact = tlabels == labels
+
+            val tname = when {
+                isRoot -> Name.root
+                isExact -> name
+                else -> Name(name, labels - tlabels)
+            }
+
+            val response = withNode(tname, false) { node ->
+                lookupNode(node, tname, isExact, type, dclass, minCred, now)
+            }
+            if (response != null) {
+                return response
+            }
+        }
+
+        return SetResponse.ofType(SetResponse.UNKNOWN)
+    }
+
+    /**
+     * @return the response for the name, or null if the lookup continues with the parent of the name
+     */
+    private fun lookupNode(node: Node, tname: Name, isExact: Boolean, type: Int, dclass: Int, minCred: Int, now: Long): SetResponse? {
+        if (isExact && type == DnsRecordType.ANY) {
+            var response: SetResponse? = null
+
+            val i = node.elements.iterator()
+            while (i.hasNext()) {
+                val element = i.next()
+                if (element.isExpired(now)) {
+                    i.remove()
+                    continue
+                }
+                if (element !is CacheRRset || element.dclass != dclass || element.credibility < minCred) {
+                    continue
+                }
+
+                if (response == null) {
+                    response = SetResponse.ofType(SetResponse.SUCCESSFUL)
+                }
+                response.addRRset(element.rrset)
+            }
+
+            // there were positive entries
+            if (response != null) {
+                return response
+            }
+        }
+        else if (isExact) {
+            var element = node.findElement(type, dclass, minCred, now)
+            if (element is CacheRRset) {
+                val response = SetResponse.ofType(SetResponse.SUCCESSFUL)
+                response.addRRset(element.rrset)
+                return response
+            }
+            else if (element != null) {
+                return SetResponse.ofType(SetResponse.NXRRSET)
+            }
+
+            element = node.findElement(DnsRecordType.CNAME, dclass, minCred, now)
+            if (element is CacheRRset) {
+                return SetResponse.of(SetResponse.CNAME, element.rrset)
+            }
+        }
+        else {
+            val element = node.findElement(DnsRecordType.DNAME, dclass, minCred, now)
+            if (element is CacheRRset) {
+                return SetResponse.of(SetResponse.DNAME, element.rrset)
+            }
+        }
+
+        // look for an NS
+        val element = node.findElement(DnsRecordType.NS, dclass, minCred, now)
+        if (element is CacheRRset) {
+            return SetResponse.of(SetResponse.DELEGATION, element.rrset)
+        }
+
+        // check for the special NXDOMAIN element, nothing below it exists either
+        if ((isExact || nxDomainCut) && node.findElement(0, dclass, minCred, now) != null) {
+            return SetResponse.ofType(SetResponse.NXDOMAIN)
+        }
+
+        return null
+    }
+
+    /**
+     * Answers a query from the cache, following CNAMEs within the cache.
+     *
+     * With [dnssecOk] (the query has the EDNS DO bit), every set also comes with the RRSIGs that cover it. A set without any (it was
+     * cached from an answer to a query without the DO bit, or its zone is not signed) can not be told apart from one whose signatures
+     * were stripped, so then there is no answer, and the query has to go upstream.
+     *
+     * @return the records of the answer (the CNAMEs followed by the records of the type) with the TTL that is left of them, or null
+     *         if the cache does not have a (credible) answer for the query
+     */
+    fun answer(name: Name, type: Int, dclass: Int = DnsClass.IN, dnssecOk: Boolean = false): List<DnsRecord>? {
+        if (!DnsRecordType.isRR(type)) {
+            // the cache can not know if it has everything for ANY (or other meta types)
+            return null
+        }
+
+        val records = ArrayList<DnsRecord>()
+        var current = name
+
+        for (i in 0 until MAX_CHAIN_LENGTH) {
+            val response = lookupRecords(current, type, dclass)
+            when {
+                response.isSuccessful -> {
+                    for (rrset in response.answers()!!) {
+                        if (!addRecords(rrset, records, dnssecOk)) {
+                            return null
+                        }
+                    }
+                    return records
+                }
+                response.isCNAME -> {
+                    if (!addRecords(response.rrset()!!, records, dnssecOk)) {
+                        return null
+                    }
+                    current = response.cname.target
+                }
+                else -> return null
+            }
+        }
+        return null
+    }
+
+    /**
+     * Answers a query negatively from the cache: with a negative answer that was cached for the name (or for a name above it that
+     * does not exist), or one that the cached NSEC/NSEC3 records prove.
+     *
+     * With [dnssecOk] (the query has the EDNS DO bit), only the negative answers that the cached NSEC/NSEC3 records prove are used,
+     * as those come with the records (and signatures) that prove them.
+     *
+     * @return NXDOMAIN or NODATA, or null if the cache does not have a (credible) negative answer for the query
+     */
+    fun negative(name: Name, type: Int, dclass: Int = DnsClass.IN, dnssecOk: Boolean = false): DnsNegativeAnswer? {
+        if (!DnsRecordType.isRR(type)) {
+            return null
+        }
+
+        if (dnssecOk) {
+            return if (dclass == DnsClass.IN) nsecCache?.lookup(name, type) else null
+        }
+
+        val now = System.nanoTime()
+        var element = withNode(name, false) { node ->
+            (node.findElement(0, dclass, Credibility.NORMAL, now) ?: node.findElement(type, dclass, Credibility.NORMAL, now)) as? NegativeElement
+        }
+
+        if (element == null && nxDomainCut) {
+            // the closest name above it that does not exist (the root always does)
+            val labels = name.labels()
+            for (n in labels - 1 downTo 2) {
+                element = withNode(Name(name, labels - n), false) { node ->
+                    node.findElement(0, dclass, Credibility.NORMAL, now) as? NegativeElement
+                }
+                if (element != null) {
+                    break
+                }
+            }
+        }
+
+        if (element != null) {
+            val authority = ArrayList<DnsRecord>(1)
+            if (element.soa != null) {
+                val soa = element.soa.cloneRecord()
+                soa.ttl = Math.min(soa.ttl, Math.max(0L, TimeUnit.NANOSECONDS.toSeconds(element.expiresAt - now)))
+                authority.add(soa)
+            }
+            return DnsNegativeAnswer(element.type == 0, authority)
+        }
+
+        if (dclass != DnsClass.IN) {
+            return null
+        }
+        return nsecCache?.lookup(name, type)
+    }
+
+    /**
+     * @return true if the name is in a zone that is flooded with names that do not exist, so it should not be asked for upstream
+     */
+    fun isFlooded(name: Name): Boolean {
+        return missTracker != null && missTracker.isFlooded(name)
+    }
+
+    /**
+     * Copies the records of the set (and its RRSIGs, with [dnssecOk]), with the TTL that is left of it
+     *
+     * @return false if the RRSIGs were asked for, but the set does not have any
+     */
+    private fun addRecords(rrset: RRset, records: MutableList<DnsRecord>, dnssecOk: Boolean): Boolean {
+        if (dnssecOk && !rrset.sigs().hasNext()) {
+            return false
+        }
+
+        val element = withNode(rrset.name, false) { node ->
+            node.find(rrset.type, rrset.dClass)
+        }
+        val ttl = if (element == null) 0L else Math.max(0L, TimeUnit.NANOSECONDS.toSeconds(element.expiresAt - System.nanoTime()))
+
+        val i = rrset.rrs()
+        while (i.hasNext()) {
+            val record = (i.next() as DnsRecord).cloneRecord()
+            record.ttl = ttl
+            records.add(record)
+        }
+
+        if (dnssecOk) {
+            val sigs = rrset.sigs()
+            while (sigs.hasNext()) {
+                val record = (sigs.next() as DnsRecord).cloneRecord()
+                record.ttl = ttl
+                records.add(record)
+            }
+        }
+        return true
+    }
+
+    /**
+     * Adds all data from a message into the cache. Each record is added with the appropriate credibility, and negative answers are
+     * cached as such.
+     *
+     * @param message The message to be added
+     *
+     * @return A SetResponse that reflects what would be returned from a cache lookup, or null if nothing useful could be cached from
+     *         the message.
+     */
+    fun addMessage(message: DnsMessage): SetResponse? {
+        val isAuth = message.header.getFlag(Flags.AA)
+        val question = message.question
+        val rcode = message.header.rcode
+
+        if ((rcode != DnsResponseCode.NOERROR && rcode != DnsResponseCode.NXDOMAIN) || question == null) {
+            return null
+        }
+
+        val qname = question.name
+        val qtype = question.type
+        val qclass = question.dclass
+
+        nsecCache?.addMessage(message)
+
+        var curname = qname
+        var completed = false
+        var response: SetResponse? = null
+        val additionalNames = HashSet<Name>()
+
+        for (answer in message.getSectionRRsets(DnsSection.ANSWER)) {
+            if (answer.dClass != qclass) {
+                continue
+            }
+
+            val type = answer.type
+            val name = answer.name
+            val cred = credibility(DnsSection.ANSWER, isAuth)
+
+            if ((type == qtype || qtype == DnsRecordType.ANY) && name == curname) {
+                addRRset(answer, cred)
+                completed = true
+                if (curname === qname) {
+                    if (response == null) {
+                        response = SetResponse.ofType(SetResponse.SUCCESSFUL)
+                    }
+                    response.addRRset(answer)
+                }
+                markAdditional(answer, additionalNames)
+            }
+            else if (type == DnsRecordType.CNAME && name == curname) {
+                addRRset(answer, cred)
+                if (curname === qname) {
+                    response = SetResponse.of(SetResponse.CNAME, answer)
+                }
+                curname = (answer.first() as CNAMERecord).target
+            }
+            else if (type == DnsRecordType.DNAME && curname.subdomain(name)) {
+                addRRset(answer, cred)
+                if (curname === qname) {
+                    response = SetResponse.of(SetResponse.DNAME, answer)
+                }
+                curname = try {
+                    curname.fromDNAME(answer.first() as DNAMERecord) ?: break
+                } catch (e: NameTooLongException) {
+                    break
+                }
+            }
+        }
+
+        var soa: RRset? = null
+        var ns: RRset? = null
+        for (auth in message.getSectionRRsets(DnsSection.AUTHORITY)) {
+            if (auth.type == DnsRecordType.SOA && curname.subdomain(auth.name)) {
+                soa = auth
+            }
+            else if (auth.type == DnsRecordType.NS && curname.subdomain(auth.name)) {
+                ns = auth
+            }
+        }
+
+        if (!completed) {
+            // this is a negative response or a referral
+            val cachetype = if (rcode == DnsResponseCode.NXDOMAIN) 0 else qtype
+            if (rcode == DnsResponseCode.NXDOMAIN || soa != null || ns == null) {
+                // negative response
+                val cred = credibility(DnsSection.AUTHORITY, isAuth)
+                addNegative(curname, cachetype, qclass, soa?.first() as SOARecord?, cred)
+                if (rcode == DnsResponseCode.NXDOMAIN && missTracker != null) {
+                    missTracker.miss(soa?.name ?: if (curname.labels() > 1) Name(curname, 1) else curname)
+                }
+                if (response == null) {
+                    response = SetResponse.ofType(if (rcode == DnsResponseCode.NXDOMAIN) SetResponse.NXDOMAIN else SetResponse.NXRRSET)
+                }
+                // DNSSEC records are not cached
+            }
+            else {
+                // referral response
+                val cred = credibility(DnsSection.AUTHORITY, isAuth)
+                addRRset(ns, cred)
+                markAdditional(ns, additionalNames)
+                if (response == null) {
+                    response = SetResponse.of(SetResponse.DELEGATION, ns)
+                }
+            }
+        }
+        else if (rcode == DnsResponseCode.NOERROR && ns != null) {
+            // cache the NS set from a positive response
+            val cred = credibility(DnsSection.AUTHORITY, isAuth)
+            addRRset(ns, cred)
+            markAdditional(ns, additionalNames)
+        }
+
+        for (additional in message.getSectionRRsets(DnsSection.ADDITIONAL)) {
+            val type = additional.type
+            if (type != DnsRecordType.A && type != DnsRecordType.AAAA && type != DnsRecordType.A6) {
+                continue
+            }
+            // only the addresses of names that the other sections refer to, anything else in there is not to be trusted
+            if (!additionalNames.contains(additional.name)) {
+                continue
+            }
+            addRRset(additional, credibility(DnsSection.ADDITIONAL, isAuth))
+        }
+
+        return response
+    }
+
+    /**
+     * Flushes an RRset from the cache
+     *
+     * @param name The name of the records to be flushed
+     * @param type The type of the records to be flushed
+     * @param dclass The class of the records to be flushed
+     */
+    fun flushSet(name: Name, type: Int, dclass: Int = DnsClass.IN) {
+        withNode(name, false) { node ->
+            node.remove(type, dclass)
+        }
+    }
+
+    /**
+     * Flushes all RRsets with a given name from the cache
+     *
+     * @param name The name of the records to be flushed
+     */
+    fun flushName(name: Name) {
+        withNode(name, false) { node ->
+            node.elements.clear()
+        }
+    }
+
+    /**
+     * Flushes all RRsets of the domain, and of every name below it, from the cache. The rest of the cache is kept.
+     *
+     * @param domain The domain to be flushed
+     *
+     * @return the number of names that were flushed
+     */
+    fun purge(domain: Name): Int {
+        nsecCache?.purge(domain)
+
+        val names = index.under(DnsSuffixIndex.labels(domain))
+        for (name in names) {
+            flushName(name)
+        }
+        return names.size
+    }
+
+    override fun toString(): String {
+        val sb = StringBuilder()
+        for (node in data.values) {
+            synchronized(node) {
+                for (element in node.elements) {
+                    sb.append(element).append("\n")
+                }
+            }
+        }
+        return sb.toString()
+    }
+}
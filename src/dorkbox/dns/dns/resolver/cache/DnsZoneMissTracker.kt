@@ -0,0 +1,121 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.resolver.cache
+
+import dorkbox.dns.dns.Name
+import io.netty.util.internal.ObjectUtil
+import java.util.concurrent.*
+
+/**
+ * Counts the names that do not exist (NXDOMAIN) per zone, every second. A random-subdomain flood asks for names that are all
+ * different, so no cache can answer them, but they all miss in the same zone. Once a zone has [maxMissesPerSecond] misses in a
+ * second, it is flooded for the rest of that second, and names in it that are not in the cache are not asked for.
+ *
+ * The root and the top-level domains are never flooded: a flood of random names below `com.` would otherwise fail every lookup in
+ * `com.` that is not cached. Only the zones with at least two labels (ie: `example.com.`) are counted.
+ *
+ * @param maxMissesPerSecond how many names that do not exist are asked for per zone and second
+ * @param maxZones the maximum number of zones that are tracked
+ */
+class DnsZoneMissTracker(maxMissesPerSecond: Int, maxZones: Int = 10_000) {
+    private class Window {
+        var second = 0L
+        var count = 0
+    }
+
+    private val maxMissesPerSecond = ObjectUtil.checkPositive(maxMissesPerSecond, "maxMissesPerSecond")
+    private val maxZones = ObjectUtil.checkPositive(maxZones, "maxZones")
+    private val zones = ConcurrentHashMap<Name, Window>()
+
+    companion object {
+        /**
+         * The fewest labels (including the root label) a zone must have to be counted, so `example.com.` but not `com.`
+         */
+        private const val MIN_ZONE_LABELS = 3
+    }
+
+    private fun second(): Long {
+        return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime())
+    }
+
+    /**
+     * Counts a name that does not exist.
+     *
+     * @param zone the zone of the name (the owner of the SOA record in the response, or the parent of the name)
+     */
+    fun miss(zone: Name) {
+        if (zone.labels() < MIN_ZONE_LABELS) {
+            return
+        }
+
+        var window = zones[zone]
+        if (window == null) {
+            if (zones.size >= maxZones) {
+                // only the zones that missed in this second matter
+                val now = second()
+                zones.values.removeIf { synchronized(it) { it.second != now } }
+            }
+
+            val newWindow = Window()
+            window = zones.putIfAbsent(zone, newWindow) ?: newWindow
+        }
+
+        val now = second()
+        synchronized(window) {
+            if (window.second != now) {
+                window.second = now
+                window.count = 0
+            }
+            window.count++
+        }
+    }
+
+    /**
+     * @return how many names that do not exist were asked for in the zone during this second
+     */
+    fun misses(zone: Name): Int {
+        val window = zones[zone] ?: return 0
+        val now = second()
+        synchronized(window) {
+            return if (window.second == now) window.count else 0
+        }
+    }
+
+    /**
+     * @return true if the name is in a zone that is flooded with names that do not exist
+     */
+    fun isFlooded(name: Name): Boolean {
+        if (zones.isEmpty()) {
+            return false
+        }
+
+        val labels = name.labels()
+        for (n in labels downTo MIN_ZONE_LABELS) {
+            val zone = if (n == labels) name else Name(name, labels - n)
+            if (misses(zone) >= maxMissesPerSecond) {
+                return true
+            }
+        }
+        return false
+    }
+
+    /**
+     * Forgets all the zones.
+     */
+    fun clear() {
+        zones.clear()
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.resolver.cache
+
+/**
+ * Evicts the hostname that was not used for the longest time.
+ */
+class LruDnsCacheEvictionPolicy : DnsCacheEvictionPolicy {
+    private val order = LinkedHashSet<String>()
+
+    override fun onAdd(hostname: String) {
+        order.remove(hostname)
+        order.add(hostname)
+    }
+
+    override fun onAccess(hostname: String) {
+        if (order.remove(hostname)) {
+            order.add(hostname)
+        }
+    }
+
+    override fun onRemove(hostname: String) {
+        order.remove(hostname)
+    }
+
+    override fun victim(): String? {
+        return order.firstOrNull()
+    }
+}
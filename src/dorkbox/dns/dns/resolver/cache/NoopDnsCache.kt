@@ -33,12 +33,26 @@ private constructor() : DnsCache {
         return false
     }
 
+    override fun purge(domain: String): Int {
+        return 0
+    }
+
     override fun get(hostname: String): MutableList<DnsCacheEntry>? {
         return mutableListOf<DnsCacheEntry>()
     }
 
     override fun cache(hostname: String, address: InetAddress, originalTtl: Long, loop: EventLoop) {}
     override fun cache(hostname: String, cause: Throwable, loop: EventLoop) {}
+    override fun cache(hostname: String, cause: Throwable, ttl: Long, loop: EventLoop) {}
+    override fun cacheNoData(hostname: String, type: Int, ttl: Long, loop: EventLoop) {}
+    override fun isNxDomain(hostname: String): Boolean {
+        return false
+    }
+
+    override fun isNoData(hostname: String, type: Int): Boolean {
+        return false
+    }
+
     override fun toString(): String {
         return NoopDnsCache::class.java.simpleName
     }
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.resolver.cache
+
+import dorkbox.dns.dns.records.CNAMERecord
+import dorkbox.dns.dns.records.DNAMERecord
+import dorkbox.dns.dns.records.RRset
+
+/**
+ * The response from a lookup in the [DnsRecordCache]
+ */
+class SetResponse private constructor(val type: Int, private val rrset: RRset?) {
+    companion object {
+        /**
+         * The cache contains no information about the requested name/type
+         */
+        const val UNKNOWN = 0
+
+        /**
+         * The cache has determined that the name does not exist.
+         */
+        const val NXDOMAIN = 1
+
+        /**
+         * The cache has determined that the name exists and has no data of the requested type.
+         */
+        const val NXRRSET = 2
+
+        /**
+         * A delegation enclosing the requested name was found.
+         */
+        const val DELEGATION = 3
+
+        /**
+         * The cache found a CNAME when looking for the name.
+         */
+        const val CNAME = 4
+
+        /**
+         * The cache found a DNAME when looking for the name.
+         */
+        const val DNAME = 5
+
+        /**
+         * The cache has successfully answered the question for the requested name/type/class.
+         */
+        const val SUCCESSFUL = 6
+
+        private val unknown = SetResponse(UNKNOWN, null)
+        private val nxdomain = SetResponse(NXDOMAIN, null)
+        private val nxrrset = SetResponse(NXRRSET, null)
+
+        fun ofType(type: Int): SetResponse {
+            return when (type) {
+                UNKNOWN -> unknown
+                NXDOMAIN -> nxdomain
+                NXRRSET -> nxrrset
+                DELEGATION, CNAME, DNAME, SUCCESSFUL -> SetResponse(type, null)
+                else -> throw IllegalArgumentException("invalid type")
+            }
+        }
+
+        /**
+         * @return a response that carries the RRset of a delegation, CNAME or DNAME
+         */
+        fun of(type: Int, rrset: RRset): SetResponse {
+            require(type == DELEGATION || type == CNAME || type == DNAME) { "invalid type" }
+            return SetResponse(type, rrset)
+        }
+    }
+
+    private var answers: MutableList<RRset>? = null
+
+    fun addRRset(rrset: RRset) {
+        var answers = answers
+        if (answers == null) {
+            answers = ArrayList(1)
+            this.answers = answers
+        }
+        answers.add(rrset)
+    }
+
+    /**
+     * Is the answer to the query unknown?
+     */
+    val isUnknown: Boolean
+        get() = type == UNKNOWN
+
+    /**
+     * Is the answer to the query that the name does not exist?
+     */
+    val isNXDOMAIN: Boolean
+        get() = type == NXDOMAIN
+
+    /**
+     * Is the answer to the query that the name exists, but the type does not?
+     */
+    val isNXRRSET: Boolean
+        get() = type == NXRRSET
+
+    /**
+     * Is the result of the lookup that the name is below a delegation?
+     */
+    val isDelegation: Boolean
+        get() = type == DELEGATION
+
+    /**
+     * Is the result of the lookup a CNAME?
+     */
+    val isCNAME: Boolean
+        get() = type == CNAME
+
+    /**
+     * Is the result of the lookup a DNAME?
+     */
+    val isDNAME: Boolean
+        get() = type == DNAME
+
+    /**
+     * Was the query successful?
+     */
+    val isSuccessful: Boolean
+        get() = type == SUCCESSFUL
+
+    /**
+     * If the query was successful, return the answers
+     */
+    fun answers(): List<RRset>? {
+        if (type != SUCCESSFUL) {
+            return null
+        }
+        return answers ?: emptyList()
+    }
+
+    /**
+     * If the query encountered a CNAME, DNAME or delegation, the RRset of it
+     */
+    fun rrset(): RRset? {
+        return rrset
+    }
+
+    /**
+     * If the query encountered a CNAME, return it.
+     */
+    val cname: CNAMERecord
+        get() = rrset!!.first() as CNAMERecord
+
+    /**
+     * If the query encountered a DNAME, return it.
+     */
+    val dname: DNAMERecord
+        get() = rrset!!.first() as DNAMERecord
+
+    override fun toString(): String {
+        return when (type) {
+            UNKNOWN -> "unknown"
+            NXDOMAIN -> "NXDOMAIN"
+            NXRRSET -> "NXRRSET"
+            DELEGATION -> "delegation: $rrset"
+            CNAME -> "CNAME: $rrset"
+            DNAME -> "DNAME: $rrset"
+            SUCCESSFUL -> "successful"
+            else -> throw IllegalStateException()
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.resolver.cache
+
+/**
+ * Segmented LRU: new hostnames start in a probation segment, and move to the protected segment when they are used again. Hostnames
+ * that are only ever used once are evicted first, so a scan of unique names can not push out the names that are used all the time.
+ *
+ * @param protectedPercent how much of the cache (by count) the protected segment may take up
+ */
+class SlruDnsCacheEvictionPolicy(private val protectedPercent: Int = 80) : DnsCacheEvictionPolicy {
+    private val probationQueue = LinkedHashSet<String>()
+    private val protectedQueue = LinkedHashSet<String>()
+
+    init {
+        if (protectedPercent < 0 || protectedPercent > 100) {
+            throw IllegalArgumentException("protectedPercent: $protectedPercent (expected: 0 <= protectedPercent <= 100)")
+        }
+    }
+
+    override fun onAdd(hostname: String) {
+        protectedQueue.remove(hostname)
+        probationQueue.remove(hostname)
+        probationQueue.add(hostname)
+    }
+
+    override fun onAccess(hostname: String) {
+        if (probationQueue.remove(hostname)) {
+            protectedQueue.add(hostname)
+
+            // the protected segment is full, the least recently used of it gets another chance in probation
+            val max = Math.max(1L, (probationQueue.size + protectedQueue.size).toLong() * protectedPercent / 100)
+            while (protectedQueue.size > max) {
+                val demoted = protectedQueue.first()
+                protectedQueue.remove(demoted)
+                probationQueue.add(demoted)
+            }
+        } else if (protectedQueue.remove(hostname)) {
+            protectedQueue.add(hostname)
+        }
+    }
+
+    override fun onRemove(hostname: String) {
+        if (!probationQueue.remove(hostname)) {
+            protectedQueue.remove(hostname)
+        }
+    }
+
+    override fun victim(): String? {
+        return probationQueue.firstOrNull() ?: protectedQueue.firstOrNull()
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.resolver.cache
+
+import dorkbox.dns.dns.cache.DnsFrequencySketch
+
+/**
+ * W-TinyLFU: new hostnames start in a small LRU window. When the window is full, its oldest hostname has to compete with the
+ * oldest hostname of the main (segmented LRU) part of the cache, and only the one that was used more often (recently) stays.
+ *
+ * This keeps the popular names in the cache, even when a lot of names are only ever resolved once.
+ *
+ * @param expectedEntries how many hostnames the cache is expected to hold, this sizes the frequency sketch
+ * @param windowPercent how much of the cache (by count) the window takes up
+ * @param protectedPercent how much of the main part of the cache (by count) the protected segment may take up
+ */
+class TinyLfuDnsCacheEvictionPolicy(
+    expectedEntries: Int = 10_000,
+    private val windowPercent: Int = 1,
+    private val protectedPercent: Int = 80
+) : DnsCacheEvictionPolicy {
+    private val sketch = DnsFrequencySketch(expectedEntries)
+
+    private val windowQueue = LinkedHashSet<String>()
+    private val probationQueue = LinkedHashSet<String>()
+    private val protectedQueue = LinkedHashSet<String>()
+
+    // the hostname that most recently moved from the window into probation, it has to win against the oldest one there to stay
+    private var candidate: String? = null
+
+    init {
+        if (windowPercent < 0 || windowPercent > 100) {
+            throw IllegalArgumentException("windowPercent: $windowPercent (expected: 0 <= windowPercent <= 100)")
+        }
+        if (protectedPercent < 0 || protectedPercent > 100) {
+            throw IllegalArgumentException("protectedPercent: $protectedPercent (expected: 0 <= protectedPercent <= 100)")
+        }
+    }
+
+    /**
+     * @return how often (recently) the hostname was used, at most 15
+     */
+    fun frequency(hostname: String): Int {
+        return sketch.frequency(hostname.hashCode())
+    }
+
+    override fun onAdd(hostname: String) {
+        onRemove(hostname)
+        sketch.increment(hostname.hashCode())
+        windowQueue.add(hostname)
+
+        val size = windowQueue.size + probationQueue.size + protectedQueue.size
+        val windowMax = Math.max(1L, size.toLong() * windowPercent / 100)
+        while (windowQueue.size > windowMax) {
+            val oldest = windowQueue.first()
+            windowQueue.remove(oldest)
+            probationQueue.add(oldest)
+            candidate = oldest
+        }
+    }
+
+    override fun onAccess(hostname: String) {
+        sketch.increment(hostname.hashCode())
+
+        if (windowQueue.remove(hostname)) {
+            windowQueue.add(hostname)
+        } else if (probationQueue.remove(hostname)) {
+            protectedQueue.add(hostname)
+            if (candidate == hostname) {
+                candidate = null
+            }
+
+            val max = Math.max(1L, (probationQueue.size + protectedQueue.size).toLong() * protectedPercent / 100)
+            while (protectedQueue.size > max) {
+                val demoted = protectedQueue.first()
+                protectedQueue.remove(demoted)
+                probationQueue.add(demoted)
+            }
+        } else if (protectedQueue.remove(hostname)) {
+            protectedQueue.add(hostname)
+        }
+    }
+
+    override fun onRemove(hostname: String) {
+        if (candidate == hostname) {
+            candidate = null
+        }
+        if (!windowQueue.remove(hostname) && !probationQueue.remove(hostname)) {
+            protectedQueue.remove(hostname)
+        }
+    }
+
+    override fun victim(): String? {
+        val candidate = candidate
+        val victim = probationQueue.firstOrNull()
+
+        if (candidate == null || victim == null || victim == candidate) {
+            return victim ?: protectedQueue.firstOrNull() ?: windowQueue.firstOrNull()
+        }
+
+        // the hostname that was used less often (recently) is evicted, on a tie the one that was already cached stays
+        return if (frequency(candidate) > frequency(victim)) victim else candidate
+    }
+}
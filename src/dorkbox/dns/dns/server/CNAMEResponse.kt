@@ -17,23 +17,18 @@ package dorkbox.dns.dns.server
 
 import dorkbox.dns.dns.Name
 import dorkbox.dns.dns.constants.DnsResponseCode
+import dorkbox.dns.dns.constants.DnsSection
+import dorkbox.dns.dns.records.CNAMERecord
 import dorkbox.dns.dns.records.DnsMessage
-import dorkbox.dns.dns.records.DnsRecord
 
-class CNAMEResponse(cname: DnsRecord, queryType: Int) : DefaultResponse(DnsResponseCode.NOERROR) {
-    val cname: Name
-    val qtype: Int
-
-    init {
-        this.cname = cname.name
-        qtype = queryType
-    }
+/**
+ * The query name is an alias. The CNAME is added to the answer, and the query continues at the [target]
+ */
+class CNAMEResponse(val cname: CNAMERecord, val qtype: Int) : DefaultResponse(DnsResponseCode.NOERROR) {
+    val target: Name
+        get() = cname.target
 
     override fun postProcess(message: DnsMessage) {
-        System.err.println("WHAT?")
-
-        // context.response().answer().add(this.cname);
-        // Response r = context.resolve(this.cname.oneName(), this.qtype);
-        // r.postProcess(context);
+        message.addRecord(cname, DnsSection.ANSWER)
     }
 }
@@ -17,34 +17,43 @@ package dorkbox.dns.dns.server
 
 import dorkbox.dns.dns.Name
 import dorkbox.dns.dns.constants.DnsResponseCode
+import dorkbox.dns.dns.constants.DnsSection
+import dorkbox.dns.dns.exceptions.NameTooLongException
+import dorkbox.dns.dns.records.CNAMERecord
+import dorkbox.dns.dns.records.DNAMERecord
 import dorkbox.dns.dns.records.DnsMessage
-import dorkbox.dns.dns.records.DnsRecord
 
-class DNAMEResponse(dname: DnsRecord, qname: Name, qtype: Int) : DefaultResponse(DnsResponseCode.NOERROR) {
-    val dname: Name
-    val qname: Name
-    val qtype: Int
+/**
+ * The query name is below a DNAME. The DNAME and a CNAME synthesized from it are added to the answer, and the query continues
+ * at the [target]. If the rewritten name is too long, the response is YXDOMAIN (RFC 6672) and [target] is null.
+ */
+class DNAMEResponse(val dname: DNAMERecord, val qname: Name, val qtype: Int) : DefaultResponse(DnsResponseCode.NOERROR) {
+    val target: Name?
 
     init {
-        this.dname = dname.name
-        this.qname = qname
-        this.qtype = qtype
+        target = try {
+            qname.fromDNAME(dname)
+        } catch (e: NameTooLongException) {
+            null
+        }
+    }
+
+    override fun responseCode(): Int {
+        return if (target == null) {
+            DnsResponseCode.YXDOMAIN
+        } else {
+            DnsResponseCode.NOERROR
+        }
     }
 
-    override fun postProcess(context: DnsMessage) {
-        System.err.println("WWHAT?")
-        // DNSMessage res = context.response();
-        // res.answer().add(this.dname);
-        // Name name = this.qname.replace(this.dname.name(), this.dname.oneName());
-        // if (name == null) {
-        // 	context.response().header().rcode(RCode.YXDomain);
-        // } else {
-        // 	SingleNameRecord cname = new SingleNameRecord(RRType.CNAME, name);
-        // 	cname.name(this.qname);
-        // 	res.answer().add(cname);
-        // 	res.header().aa(true);
-        // 	Response r = context.resolve(name, this.qtype);
-        // 	r.postProcess(context);
-        // }
+    override fun postProcess(message: DnsMessage) {
+        message.addRecord(dname, DnsSection.ANSWER)
+
+        val target = target
+        if (target == null) {
+            message.header.rcode = DnsResponseCode.YXDOMAIN
+        } else {
+            message.addRecord(CNAMERecord(qname, dname.dclass, dname.ttl, target), DnsSection.ANSWER)
+        }
     }
 }
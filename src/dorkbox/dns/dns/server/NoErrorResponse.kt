@@ -21,7 +21,7 @@ import dorkbox.dns.dns.constants.Flags
 import dorkbox.dns.dns.records.DnsMessage
 import dorkbox.dns.dns.records.DnsRecord
 
-class NoErrorResponse(val records: Set<DnsRecord>, val authoritativeAnswer: Boolean = true) :
+class NoErrorResponse(val records: Collection<DnsRecord>, val authoritativeAnswer: Boolean = true) :
     DefaultResponse(DnsResponseCode.NOERROR) {
     override fun postProcess(message: DnsMessage) {
         message.header.rcode = responseCode()
@@ -35,7 +35,5 @@ class NoErrorResponse(val records: Set<DnsRecord>, val authoritativeAnswer: Bool
         for (record in records) {
             message.addRecord(record, DnsSection.ANSWER)
         }
-
-        // TODO additional section ?
     }
 }
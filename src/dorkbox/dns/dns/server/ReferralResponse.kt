@@ -20,7 +20,7 @@ import dorkbox.dns.dns.constants.DnsSection
 import dorkbox.dns.dns.records.DnsMessage
 import dorkbox.dns.dns.records.DnsRecord
 
-class ReferralResponse(val nsRecords: Set<DnsRecord>) : DefaultResponse(DnsResponseCode.NOERROR) {
+class ReferralResponse(val nsRecords: Collection<DnsRecord>) : DefaultResponse(DnsResponseCode.NOERROR) {
     override fun postProcess(message: DnsMessage) {
         message.header.rcode = responseCode()
 
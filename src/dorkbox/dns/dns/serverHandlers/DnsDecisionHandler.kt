@@ -18,6 +18,7 @@ package dorkbox.dns.dns.serverHandlers
 import dorkbox.collections.LockFreeHashMap
 import dorkbox.dns.DnsClient
 import dorkbox.dns.dns.DnsEnvelope
+import dorkbox.dns.dns.DnsQuestion
 import dorkbox.dns.dns.DnsServerResponse
 import dorkbox.dns.dns.Name
 import dorkbox.dns.dns.constants.DnsOpCode
@@ -27,16 +28,38 @@ import dorkbox.dns.dns.constants.DnsSection
 import dorkbox.dns.dns.constants.Flags
 import dorkbox.dns.dns.records.ARecord
 import dorkbox.dns.dns.records.DnsMessage
-import dorkbox.dns.dns.records.Update
+import dorkbox.dns.dns.records.OPTRecord
+import dorkbox.dns.dns.zone.Zone
+import dorkbox.dns.dns.zone.ZoneDatabase
+import io.netty.channel.ChannelHandler.Sharable
 import io.netty.channel.ChannelHandlerContext
 import io.netty.channel.ChannelInboundHandlerAdapter
 import io.netty.util.concurrent.FutureListener
 import org.slf4j.Logger
 import java.net.InetSocketAddress
+import java.util.concurrent.TimeUnit
 
-class DnsDecisionHandler(private val logger: Logger) : ChannelInboundHandlerAdapter() {
+@Sharable
+class DnsDecisionHandler(
+    private val logger: Logger,
+    maxCoalescedQueries: Int = 1024,
+    responseCacheMaxBytes: Long = 0,
+    serveStaleMaxMillis: Long = 0,
+    private val clientResponseTimeoutMillis: Long = 1800
+) : ChannelInboundHandlerAdapter() {
     private val aRecordMap = LockFreeHashMap<Name, List<ARecord>>()
     private val dnsClient: DnsClient = DnsClient()
+    private val zoneDatabase = ZoneDatabase()
+
+    /**
+     * Identical queries that are waiting on the forwarder share a single upstream fetch
+     */
+    val coalescer = DnsQueryCoalescer(maxCoalescedQueries)
+
+    /**
+     * The answers from the forwarder, which are kept for as long as their TTL
+     */
+    val responseCache = if (responseCacheMaxBytes > 0) DnsResponseCache(responseCacheMaxBytes, serveStaleMaxMillis) else null
 
     init {
         dnsClient.start()
@@ -52,9 +75,36 @@ class DnsDecisionHandler(private val logger: Logger) : ChannelInboundHandlerAdap
         aRecordMap[domainName] = aRecords
     }
 
+    /**
+     * Adds a zone that we are authoritative for
+     *
+     * @param zone the zone to answer queries from
+     */
+    fun addZone(zone: Zone) {
+        zoneDatabase.add(zone)
+    }
+
+    /**
+     * Removes the cached answers for the domain, and for every name below it, from the forwarded responses and the resolver caches
+     *
+     * @param domain the domain to purge
+     *
+     * @return the number of names (and forwarded responses) that were removed
+     */
+    fun purge(domain: Name): Int {
+        val count = dnsClient.purge(domain.toString(true))
+        return count + (responseCache?.purge(domain) ?: 0)
+    }
+
     @Throws(Exception::class)
     override fun channelRead(context: ChannelHandlerContext, message: Any) {
-        onChannelRead(context, message as DnsEnvelope)
+        val dnsMessage = message as DnsEnvelope
+        try {
+            onChannelRead(context, dnsMessage)
+        } finally {
+            // anything that answers later must retain the message
+            dnsMessage.release()
+        }
     }
 
     @Throws(Exception::class)
@@ -75,7 +125,7 @@ class DnsDecisionHandler(private val logger: Logger) : ChannelInboundHandlerAdap
                 return
             }
             DnsOpCode.NOTIFY -> {
-                onNotify(context, dnsMessage, dnsMessage.recipient()!!)
+                onNotify(context, dnsMessage, dnsMessage.recipient())
                 return
             }
             DnsOpCode.STATUS -> {
@@ -83,26 +133,28 @@ class DnsDecisionHandler(private val logger: Logger) : ChannelInboundHandlerAdap
                 return
             }
             DnsOpCode.UPDATE -> {
-                onUpdate(context, dnsMessage as Update, dnsMessage.recipient())
+                onUpdate(context, dnsMessage, dnsMessage.recipient())
                 return
             }
-            else -> logger.error(
-                "Unknown DNS opcode {} from {}", opcode, context.channel().remoteAddress()
-            )
+            else -> {
+                logger.error("Unknown DNS opcode {} from {}", opcode, context.channel().remoteAddress())
+                respondWithError(context, dnsMessage, dnsMessage.recipient(), DnsResponseCode.NOTIMP)
+            }
         }
     }
 
-    private fun onIQuery(context: ChannelHandlerContext, dnsQuestion: DnsMessage, recipient: InetSocketAddress?) {
-        System.err.println("DECISION HANDLER READ")
-        System.err.println(dnsQuestion)
+    private fun onIQuery(context: ChannelHandlerContext, dnsQuestion: DnsEnvelope, recipient: InetSocketAddress?) {
+        // inverse queries are obsolete (RFC 3425)
+        logger.debug("Inverse query is not implemented: {}", dnsQuestion)
+        respondWithError(context, dnsQuestion, recipient, DnsResponseCode.NOTIMP)
     }
 
-    private fun onNotify(context: ChannelHandlerContext, dnsQuestion: DnsMessage, recipient: InetSocketAddress) {
-        System.err.println("DECISION HANDLER READ")
-        System.err.println(dnsQuestion)
+    private fun onNotify(context: ChannelHandlerContext, dnsQuestion: DnsEnvelope, recipient: InetSocketAddress?) {
+        logger.debug("NOTIFY is not implemented: {}", dnsQuestion)
+        respondWithError(context, dnsQuestion, recipient, DnsResponseCode.NOTIMP)
     }
 
-    private fun onQuery(context: ChannelHandlerContext, dnsQuestion: DnsMessage, recipient: InetSocketAddress) {
+    private fun onQuery(context: ChannelHandlerContext, dnsQuestion: DnsEnvelope, recipient: InetSocketAddress) {
         // either I have an answer, or I don't (and have to forward to another DNS server
         // it might be more than 1 question...
         val header = dnsQuestion.header
@@ -116,6 +168,22 @@ class DnsDecisionHandler(private val logger: Logger) : ChannelInboundHandlerAdap
             val ttl = dnsRecord.ttl
             val type = dnsRecord.type
 
+            // names in our own zones are answered from the zone, whatever the type is
+            val query = zoneDatabase.prepare(name, dnsRecord.dclass)
+            if (query != null) {
+                val dnsResponse = DnsServerResponse(
+                    dnsQuestion, context.channel().localAddress() as InetSocketAddress, recipient
+                )
+                dnsResponse.addRecord(dnsRecord, DnsSection.QUESTION)
+
+                if (query.execute(type, dnsResponse)) {
+                    context.channel().writeAndFlush(dnsResponse)
+                    return
+                }
+
+                // the zone does not have answers (ie: a forward zone)
+                dnsResponse.release()
+            }
 
             // what type of record? A, AAAA, MX, PTR, etc?
             if (DnsRecordType.A == type) {
@@ -136,12 +204,12 @@ class DnsDecisionHandler(private val logger: Logger) : ChannelInboundHandlerAdap
 
                     val aRecord = ARecord(name, dnsRecord.dclass, ttl, inetAddress)
                     dnsResponse.addRecord(aRecord, DnsSection.ANSWER)
-                    context.channel().write(dnsResponse)
+                    context.channel().writeAndFlush(dnsResponse)
                     return
                 }
 
 
-                // check our local cache
+                // check our local records
                 val records = aRecordMap[name]
                 if (records != null) {
                     val dnsResponse = DnsServerResponse(
@@ -157,61 +225,203 @@ class DnsDecisionHandler(private val logger: Logger) : ChannelInboundHandlerAdap
                         logger.debug("Writing A record response: {}", record.address)
                     }
 
-                    context.channel().write(dnsResponse)
+                    context.channel().writeAndFlush(dnsResponse)
+                    return
+                }
+            }
+
+            val key = DnsQueryKey(name, type, dnsRecord.dclass, DnsQueryKey.dnssecOk(dnsQuestion))
+
+            // check the answers we already have from the forwarder
+            if (responseCache != null) {
+                val dnsResponse = DnsServerResponse(
+                    dnsQuestion, context.channel().localAddress() as InetSocketAddress, recipient
+                )
+                dnsResponse.addRecord(dnsRecord, DnsSection.QUESTION)
+
+                if (responseCache.answer(key, dnsResponse)) {
+                    context.channel().writeAndFlush(dnsResponse)
+                    return
+                }
+
+                // refreshing this recently failed, so the stale answer is used without asking the forwarder again (yet)
+                if (responseCache.isRefreshDeferred(key) && responseCache.answerStale(key, dnsResponse)) {
+                    context.channel().writeAndFlush(dnsResponse)
                     return
+                }
+                dnsResponse.release()
+            }
+
+            // have to send this on to the forwarder
+            forward(context, dnsQuestion, recipient, key)
+            return
+        }
+
+        logger.debug("Received a query with {} questions from {}", count, recipient)
+        respondWithError(context, dnsQuestion, recipient, DnsResponseCode.FORMERR)
+    }
+
+    /**
+     * Sends the query to the forwarder (upstream DNS server). Identical queries that arrive while we wait share the same answer.
+     */
+    private fun forward(context: ChannelHandlerContext, dnsQuestion: DnsEnvelope, recipient: InetSocketAddress, key: DnsQueryKey) {
+        val waiter = DnsQueryCoalescer.Waiter(context.channel(), dnsQuestion, recipient)
+
+        // the question is used again when the answer arrives
+        dnsQuestion.retain()
+
+        when (coalescer.join(key, waiter)) {
+            DnsQueryCoalescer.Result.MERGED -> {
+                logger.trace("Waiting on the forwarder for {}", key)
+                return
+            }
+            DnsQueryCoalescer.Result.DROPPED -> {
+                // answered right away (stale, or SERVFAIL), otherwise the client only retries once it timed out, which adds to the burst
+                logger.debug("Too many queries are waiting on the forwarder for {}", key)
+                respond(listOf(waiter), null, key)
+                return
+            }
+            DnsQueryCoalescer.Result.LATE -> {
+                // the forwarder is already taking too long for this
+                respond(listOf(waiter), null, key)
+                return
+            }
+            DnsQueryCoalescer.Result.FETCH -> logger.debug("Sending DNS query to the forwarder...")
+        }
+
+        val upstreamFuture = try {
+            val resolver = dnsClient.resolver!!
+            val upstreamQuestion = DnsQuestion.newQuery(key.name, key.type, key.dclass, true)
+
+            if (key.dnssecOk) {
+                // the client wants the DNSSEC records, so we have to ask for them too
+                upstreamQuestion.addRecord(OPTRecord(resolver.maxPayloadSize(), 0, 0, DnsQueryKey.DO_BIT), DnsSection.ADDITIONAL)
+            }
+
+            resolver.query(upstreamQuestion).addListener(FutureListener {
+                upstreamQuestion.release()
+            })
+        } catch (e: Exception) {
+            logger.error("Unable to send the query to the forwarder", e)
+            respond(coalescer.complete(key), null, key)
+            return
+        }
+
+        // when there is a stale answer, clients only wait so long for the forwarder before they get the stale answer instead (RFC 8767)
+        val deadline = if (clientResponseTimeoutMillis > 0 && responseCache != null && responseCache.hasStale(key)) {
+            context.channel().eventLoop().schedule(Runnable {
+                respond(coalescer.expire(key), null, key)
+            }, clientResponseTimeoutMillis, TimeUnit.MILLISECONDS)
+        } else {
+            null
+        }
+
+        upstreamFuture.addListener(FutureListener { future ->
+            deadline?.cancel(false)
+
+            // everyone that asked the same question while we were waiting gets the same answer
+            val waiters = coalescer.complete(key)
+
+            if (!future.isSuccess) {
+                logger.debug("The forwarder did not answer {}", key, future.cause())
+                responseCache?.refreshFailed(key)
+                respond(waiters, null, key)
+                return@FutureListener
+            }
+
+            val upstream = future.now
+            try {
+                val rcode = upstream.header.rcode
+                if ((rcode == DnsResponseCode.SERVFAIL || rcode == DnsResponseCode.REFUSED) && responseCache != null && responseCache.hasStale(key)) {
+                    // a stale answer is better than a failure
+                    responseCache.refreshFailed(key)
+                    respond(waiters, null, key)
+                } else {
+                    responseCache?.store(key, upstream)
+                    respond(waiters, upstream, key)
+                }
+            } finally {
+                upstream.release()
+            }
+        })
+    }
+
+    /**
+     * Answers each of the waiting queries with their own copy of the upstream response. If there is no upstream response, they get
+     * the stale answer (if there is one), otherwise SERVFAIL.
+     */
+    private fun respond(waiters: List<DnsQueryCoalescer.Waiter>, upstream: DnsMessage?, key: DnsQueryKey) {
+        for (i in waiters.indices) {
+            val waiting = waiters[i]
+            val question = waiting.question
+            try {
+                val dnsResponse = DnsServerResponse(
+                    question, waiting.channel.localAddress() as InetSocketAddress, waiting.recipient
+                )
+
+                val responseHeader = dnsResponse.header
+                responseHeader.setFlag(Flags.QR)
+                responseHeader.setFlag(Flags.RA)
+                dnsResponse.addRecord(question.getSectionArray(DnsSection.QUESTION)[0], DnsSection.QUESTION)
+
+                if (upstream == null) {
+                    if (responseCache == null || !responseCache.answerStale(key, dnsResponse)) {
+                        responseHeader.rcode = DnsResponseCode.SERVFAIL
+                    }
                 } else {
-                    // have to send this on to the forwarder
-                    logger.debug("Sending DNS query to the forwarder...")
-
-
-                    // use "resolve", since it handles A/AAAA records + redirects correctly
-                    resolver.resolveAll(domainName).addListener(FutureListener { future ->
-                            val resolvedAddresses = future.now
-                            val dnsResponse = DnsServerResponse(
-                                dnsQuestion, context.channel().localAddress() as InetSocketAddress, recipient
-                            )
-
-                            val responseHeader = dnsResponse.header
-                            responseHeader.setFlag(Flags.QR)
-                            dnsResponse.addRecord(dnsRecord, DnsSection.QUESTION)
-
-                            if (resolvedAddresses == null || resolvedAddresses.isEmpty()) {
-                                responseHeader.rcode = DnsResponseCode.NXDOMAIN
-                            } else {
-                                responseHeader.rcode = DnsResponseCode.NOERROR
-
-                                val records = ArrayList<ARecord>()
-                                for (i in resolvedAddresses.indices) {
-                                    val resolvedAddress = resolvedAddresses[i]
-                                    val record = ARecord(name, dnsRecord.dclass, ttl, resolvedAddress!!)
-                                    records.add(record)
-                                    dnsResponse.addRecord(record, DnsSection.ANSWER)
-                                }
-
-
-                                // we got here because there were no cached records in our record map -- so we save them!
-                                // duplicates are not an issue because they will always be the same answer
-                                aRecordMap[name] = records
+                    val upstreamHeader = upstream.header
+                    responseHeader.rcode = upstreamHeader.rcode
+                    if (upstreamHeader.getFlag(Flags.AD)) {
+                        responseHeader.setFlag(Flags.AD)
+                    }
+
+                    for (section in DnsSection.ANSWER..DnsSection.ADDITIONAL) {
+                        for (record in upstream.getSectionArray(section)) {
+                            // OPT and TSIG are for the upstream hop only
+                            if (record.type != DnsRecordType.OPT && record.type != DnsRecordType.TSIG) {
+                                dnsResponse.addRecord(record, section)
                             }
-                            context.channel().write(dnsResponse)
-                        })
+                        }
+                    }
                 }
+
+                waiting.channel.writeAndFlush(dnsResponse)
+            } catch (e: Exception) {
+                logger.error("Unable to answer a forwarded query", e)
+            } finally {
+                question.release()
             }
-            return
         }
-        val sectionArray = dnsQuestion.getSectionArray(DnsSection.QUESTION)
-        val dnsRecord = sectionArray[0]
-        System.err.println(dnsRecord)
     }
 
-    private fun onStatus(context: ChannelHandlerContext, dnsQuestion: DnsMessage, recipient: InetSocketAddress?) {
-        System.err.println("DECISION HANDLER READ")
-        System.err.println(dnsQuestion)
+    private fun onStatus(context: ChannelHandlerContext, dnsQuestion: DnsEnvelope, recipient: InetSocketAddress?) {
+        logger.debug("STATUS is not implemented: {}", dnsQuestion)
+        respondWithError(context, dnsQuestion, recipient, DnsResponseCode.NOTIMP)
     }
 
-    private fun onUpdate(context: ChannelHandlerContext, dnsUpdate: Update?, recipient: InetSocketAddress?) {
-        System.err.println("DECISION HANDLER READ")
-        System.err.println(dnsUpdate)
+    private fun onUpdate(context: ChannelHandlerContext, dnsUpdate: DnsEnvelope, recipient: InetSocketAddress?) {
+        logger.debug("UPDATE is not implemented: {}", dnsUpdate)
+        respondWithError(context, dnsUpdate, recipient, DnsResponseCode.NOTIMP)
+    }
+
+    /**
+     * Answers the query with just the rcode (and its question), when there is nothing else to answer it with. Every query gets an
+     * answer: otherwise the client waits for it until it times out, and over TCP the query keeps its in-flight slot on the connection
+     * (see [DnsTcpConnectionHandler]) until then.
+     */
+    private fun respondWithError(context: ChannelHandlerContext, dnsQuestion: DnsEnvelope, recipient: InetSocketAddress?, rcode: Int) {
+        val dnsResponse = DnsServerResponse(dnsQuestion, context.channel().localAddress() as InetSocketAddress, recipient)
+
+        val responseHeader = dnsResponse.header
+        responseHeader.setFlag(Flags.QR)
+        responseHeader.opcode = dnsQuestion.header.opcode
+        responseHeader.rcode = rcode
+
+        for (record in dnsQuestion.getSectionArray(DnsSection.QUESTION)) {
+            dnsResponse.addRecord(record, DnsSection.QUESTION)
+        }
+
+        context.channel().writeAndFlush(dnsResponse)
     }
 
     fun stop() {
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.serverHandlers
+
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.ByteBufHolder
+import io.netty.channel.ChannelDuplexHandler
+import io.netty.channel.ChannelHandlerContext
+import io.netty.channel.ChannelPromise
+
+/**
+ * Holds back flushes while the channel is reading a batch of queries, and flushes once when the read is complete (or once more than
+ * [maxPendingBytes] are waiting to be flushed). When there are several answers waiting, the epoll transport will send them with a
+ * single syscall (sendmmsg for UDP, writev for TCP).
+ *
+ * Answers that are written outside a read (for example, after waiting on an upstream server) are flushed right away.
+ *
+ * This handler must be the first one in the pipeline, and it must not be shared.
+ */
+class DnsFlushConsolidationHandler(private val maxPendingBytes: Int) : ChannelDuplexHandler() {
+    private var readInProgress = false
+    private var flushPending = false
+    private var pendingBytes = 0
+
+    override fun channelRead(context: ChannelHandlerContext, msg: Any) {
+        readInProgress = true
+        context.fireChannelRead(msg)
+    }
+
+    override fun channelReadComplete(context: ChannelHandlerContext) {
+        readInProgress = false
+        flushIfPending(context)
+        context.fireChannelReadComplete()
+    }
+
+    override fun write(context: ChannelHandlerContext, msg: Any, promise: ChannelPromise) {
+        if (msg is ByteBufHolder) {
+            pendingBytes += msg.content().readableBytes()
+        } else if (msg is ByteBuf) {
+            pendingBytes += msg.readableBytes()
+        }
+
+        context.write(msg, promise)
+    }
+
+    override fun flush(context: ChannelHandlerContext) {
+        if (readInProgress && pendingBytes < maxPendingBytes) {
+            flushPending = true
+        } else {
+            flushPending = false
+            pendingBytes = 0
+            context.flush()
+        }
+    }
+
+    override fun exceptionCaught(context: ChannelHandlerContext, cause: Throwable) {
+        readInProgress = false
+        flushIfPending(context)
+        context.fireExceptionCaught(cause)
+    }
+
+    override fun handlerRemoved(context: ChannelHandlerContext) {
+        flushIfPending(context)
+    }
+
+    private fun flushIfPending(context: ChannelHandlerContext) {
+        if (flushPending) {
+            flushPending = false
+            pendingBytes = 0
+            context.flush()
+        }
+    }
+}
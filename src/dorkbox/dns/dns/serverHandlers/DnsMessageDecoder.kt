@@ -18,11 +18,13 @@ package dorkbox.dns.dns.serverHandlers
 import dorkbox.dns.dns.DnsEnvelope
 import dorkbox.dns.dns.exceptions.WireParseException
 import dorkbox.dns.dns.records.Header
+import io.netty.channel.ChannelHandler.Sharable
 import io.netty.channel.ChannelHandlerContext
 import io.netty.channel.socket.DatagramPacket
 import io.netty.handler.codec.MessageToMessageDecoder
 import org.slf4j.Logger
 
+@Sharable
 class DnsMessageDecoder(private val logger: Logger) : MessageToMessageDecoder<DatagramPacket>() {
     @Throws(Exception::class)
     override fun exceptionCaught(context: ChannelHandlerContext, cause: Throwable) {
@@ -38,17 +40,10 @@ class DnsMessageDecoder(private val logger: Logger) : MessageToMessageDecoder<Da
         if (buf.readableBytes() < Header.LENGTH) {
             throw WireParseException("invalid DNS header - " + "too short")
         }
-        var success = false
-        success = try {
-            val localAddress = packet.recipient()
-            val remoteAddress = packet.sender()
-            val dnsEnvelope = DnsEnvelope(buf, localAddress, remoteAddress)
-            out.add(dnsEnvelope)
-            true
-        } finally {
-            if (!success) {
-                buf.release()
-            }
-        }
+        val localAddress = packet.recipient()
+        val remoteAddress = packet.sender()
+
+        // only the header and question are decoded now, the buffer is retained until the envelope is released
+        out.add(DnsEnvelope(buf, localAddress, remoteAddress, true))
     }
 }
@@ -17,29 +17,36 @@ package dorkbox.dns.dns.serverHandlers
 
 import dorkbox.dns.dns.DnsOutput
 import dorkbox.dns.dns.DnsServerResponse
-import io.netty.buffer.ByteBuf
 import io.netty.channel.ChannelHandler.Sharable
 import io.netty.channel.ChannelHandlerContext
 import io.netty.channel.socket.DatagramPacket
-import io.netty.handler.codec.MessageToByteEncoder
+import io.netty.handler.codec.MessageToMessageEncoder
 import org.slf4j.Logger
 import java.io.IOException
 
 /**
- *
+ * Renders the DNS response into a [DatagramPacket], which continues down the pipeline as part of the same write. Flushing is left to
+ * whoever wrote the response (and to the [DnsFlushConsolidationHandler], when it is in the pipeline).
  */
 @Sharable
-class DnsMessageEncoder(private val logger: Logger) : MessageToByteEncoder<DnsServerResponse>() {
+class DnsMessageEncoder(private val logger: Logger, private val wireCache: DnsWireCache? = null) : MessageToMessageEncoder<DnsServerResponse>() {
     @Throws(Exception::class)
-    override fun encode(context: ChannelHandlerContext, message: DnsServerResponse, out: ByteBuf) {
+    override fun encode(context: ChannelHandlerContext, message: DnsServerResponse, out: MutableList<Any>) {
+        val buf = context.alloc().ioBuffer(DnsServerResponse.MIN_UDP_PAYLOAD_SIZE)
+
+        var success = false
         try {
-            val dnsOutput = DnsOutput(out)
-            out.retain()
-            message.toWire(dnsOutput)
-            val packet = DatagramPacket(out, message.recipient(), message.sender())
-            context.channel().writeAndFlush(packet)
+            // responses that are too large for the client are truncated, so the client will retry over TCP
+            message.toWire(DnsOutput(buf), message.maxUdpPayloadSize)
+            wireCache?.store(buf, message.dnssecOk)
+            out.add(DatagramPacket(buf, message.recipient(), message.sender()))
+            success = true
         } catch (e: Exception) {
             context.fireExceptionCaught(IOException("Unable to write dns message: $message", e))
+        } finally {
+            if (!success) {
+                buf.release()
+            }
         }
     }
 
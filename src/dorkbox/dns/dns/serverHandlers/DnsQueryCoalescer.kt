@@ -0,0 +1,153 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.serverHandlers
+
+import dorkbox.dns.dns.DnsEnvelope
+import io.netty.channel.Channel
+import java.net.InetSocketAddress
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Tracks the queries that are waiting on an upstream (forwarded) answer, so identical queries that arrive while that answer is on its
+ * way join the same upstream fetch instead of each starting their own. Queries are identical when they have the same [DnsQueryKey].
+ *
+ * Each waiter keeps its own question (and so its own ID, addresses and UDP payload size), and gets its own response once the fetch
+ * completes.
+ *
+ * @param maxWaiters the most queries that can wait on a single fetch. Queries past this are not added (they are answered right away
+ * with the stale answer, or SERVFAIL), so a flood of one name can not pile up without limit.
+ */
+class DnsQueryCoalescer(private val maxWaiters: Int) {
+    enum class Result {
+        /** this is the first query for the key, and it must do the upstream fetch */
+        FETCH,
+
+        /** the query was added to a fetch that is already in progress */
+        MERGED,
+
+        /** too many queries are already waiting for this key, and the query was not added (it must be answered without the fetch) */
+        DROPPED,
+
+        /** the fetch in progress is past its deadline (see [expire]), and the query was not added */
+        LATE
+    }
+
+    /**
+     * A query that is waiting on a fetch. The question must be retained for as long as it is waiting.
+     */
+    class Waiter(val channel: Channel, val question: DnsEnvelope, val recipient: InetSocketAddress)
+
+    private class Flight {
+        var waiters = ArrayList<Waiter>(2)
+        var late = false
+    }
+
+    private val inFlight = ConcurrentHashMap<DnsQueryKey, Flight>()
+
+    private val fetches = LongAdder()
+    private val merged = LongAdder()
+    private val dropped = LongAdder()
+
+    /**
+     * The number of upstream fetches that were started
+     */
+    val fetchCount: Long
+        get() = fetches.sum()
+
+    /**
+     * The number of queries that were answered by a fetch that another query started
+     */
+    val mergedCount: Long
+        get() = merged.sum()
+
+    /**
+     * The number of queries that were answered without waiting (stale, or SERVFAIL), because too many queries were already waiting on
+     * the same fetch
+     */
+    val droppedCount: Long
+        get() = dropped.sum()
+
+    /**
+     * The number of fetches in progress
+     */
+    val size: Int
+        get() = inFlight.size
+
+    /**
+     * Adds a query to the fetch in progress for the key, or starts a new one.
+     *
+     * When the result is [Result.FETCH], the caller must do the fetch and then call [complete], even if the fetch fails.
+     */
+    fun join(key: DnsQueryKey, waiter: Waiter): Result {
+        var result = Result.FETCH
+
+        inFlight.compute(key) { _, flight ->
+            if (flight == null) {
+                val newFlight = Flight()
+                newFlight.waiters.add(waiter)
+                newFlight
+            } else if (flight.late) {
+                result = Result.LATE
+                flight
+            } else if (flight.waiters.size >= maxWaiters) {
+                result = Result.DROPPED
+                flight
+            } else {
+                flight.waiters.add(waiter)
+                result = Result.MERGED
+                flight
+            }
+        }
+
+        when (result) {
+            Result.FETCH -> fetches.increment()
+            Result.MERGED -> merged.increment()
+            Result.DROPPED -> dropped.increment()
+            Result.LATE -> {}
+        }
+
+        return result
+    }
+
+    /**
+     * Ends the fetch for the key. Queries that arrive after this start a new fetch.
+     *
+     * @return every query that was waiting on the fetch (including the one that started it)
+     */
+    fun complete(key: DnsQueryKey): List<Waiter> {
+        return inFlight.remove(key)?.waiters ?: emptyList()
+    }
+
+    /**
+     * The fetch for the key is taking too long for the queries that are waiting on it. The fetch carries on (and must still be
+     * completed), but queries that arrive from now on get [Result.LATE] instead of waiting.
+     *
+     * @return the queries that were waiting on the fetch so far
+     */
+    fun expire(key: DnsQueryKey): List<Waiter> {
+        var waiters: List<Waiter> = emptyList()
+
+        inFlight.computeIfPresent(key) { _, flight ->
+            waiters = flight.waiters
+            flight.waiters = ArrayList(0)
+            flight.late = true
+            flight
+        }
+
+        return waiters
+    }
+}
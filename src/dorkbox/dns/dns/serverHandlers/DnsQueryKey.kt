@@ -0,0 +1,70 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.serverHandlers
+
+import dorkbox.dns.dns.Name
+import dorkbox.dns.dns.constants.DnsSection
+import dorkbox.dns.dns.records.DnsMessage
+
+/**
+ * Identifies a question: the name (compared without case), type, class and the EDNS DO bit. Queries with the same key get the same answer.
+ */
+class DnsQueryKey(val name: Name, val type: Int, val dclass: Int, val dnssecOk: Boolean) {
+    companion object {
+        /** the DNSSEC OK bit, in the flags of the OPT record */
+        const val DO_BIT = 0x8000
+
+        /**
+         * @return the key for the (first) question of the query, or null if there is no question
+         */
+        fun of(query: DnsMessage): DnsQueryKey? {
+            val question = query.getSectionArray(DnsSection.QUESTION).firstOrNull() ?: return null
+            return DnsQueryKey(question.name, question.type, question.dclass, dnssecOk(query))
+        }
+
+        /**
+         * @return true if the query has an OPT record with the DO bit set
+         */
+        fun dnssecOk(query: DnsMessage): Boolean {
+            val optRecord = query.optRecord ?: return false
+            return optRecord.flags and DO_BIT != 0
+        }
+    }
+
+    override fun equals(other: Any?): Boolean {
+        if (this === other) {
+            return true
+        }
+        if (other !is DnsQueryKey) {
+            return false
+        }
+
+        // names are compared without case
+        return type == other.type && dclass == other.dclass && dnssecOk == other.dnssecOk && name == other.name
+    }
+
+    override fun hashCode(): Int {
+        var result = name.hashCode()
+        result = 31 * result + type
+        result = 31 * result + dclass
+        result = 31 * result + if (dnssecOk) 1 else 0
+        return result
+    }
+
+    override fun toString(): String {
+        return "$name $type $dclass${if (dnssecOk) " DO" else ""}"
+    }
+}
@@ -0,0 +1,507 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.serverHandlers
+
+import dorkbox.dns.dns.Name
+import dorkbox.dns.dns.cache.DnsFrequencySketch
+import dorkbox.dns.dns.cache.DnsSuffixIndex
+import dorkbox.dns.dns.constants.DnsRecordType
+import dorkbox.dns.dns.constants.DnsResponseCode
+import dorkbox.dns.dns.constants.DnsSection
+import dorkbox.dns.dns.constants.Flags
+import dorkbox.dns.dns.records.DnsMessage
+import dorkbox.dns.dns.records.DnsRecord
+import dorkbox.dns.dns.records.SOARecord
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.LongAdder
+import java.util.concurrent.locks.ReentrantLock
+
+/**
+ * Caches forwarded (upstream) responses, keyed on the question and the EDNS DO bit.
+ *
+ * The answer, authority and additional sections are kept as-is for the smallest TTL of their records (negative answers use the
+ * SOA minimum, RFC 2308), and every record is sent back with its TTL decreased by the time it has been in the cache.
+ *
+ * The cache is limited by the (approximate) number of bytes it uses, and evicts with W-TinyLFU: new entries go into a small LRU
+ * window, and only move into the main (segmented LRU) space if they have been asked for more often than the entry they would replace.
+ * A flood of one-off names (ie: random subdomains) only churns the window, and can not push out the popular answers. Expired entries
+ * are removed when they are found (on lookup, or when looking for something to evict).
+ *
+ * With serve-stale (RFC 8767), expired responses are kept for a while longer, so they can still be used (with a small TTL) when the
+ * upstream servers can not be reached. They are the first to go when room is needed.
+ *
+ * The keys are also indexed by the labels of their name, so the responses for a whole domain can be [purge]d.
+ *
+ * @param maxBytes the approximate memory that the cached responses can use
+ * @param maxStaleMillis how long expired responses are kept for serve-stale. 0 to disable.
+ * @param staleTtl the TTL of the records in a stale answer (in seconds)
+ * @param staleRefreshMillis after a refresh failed, stale answers are used for this long before the upstream servers are tried again
+ */
+class DnsResponseCache(
+    private val maxBytes: Long,
+    maxStaleMillis: Long = 0L,
+    private val staleTtl: Long = 30L,
+    staleRefreshMillis: Long = 30_000L
+) {
+    companion object {
+        /** the approximate memory used by an entry, on top of its records */
+        private const val ENTRY_OVERHEAD = 128
+
+        /** the approximate memory used by a record, on top of its wire size */
+        private const val RECORD_OVERHEAD = 64
+
+        /** the (guessed) average size of an entry, to size the frequency sketch */
+        private const val AVERAGE_ENTRY_SIZE = 512
+
+        private const val REMOVED = -1
+        private const val WINDOW = 0
+        private const val PROBATION = 1
+        private const val PROTECTED = 2
+    }
+
+    private class Entry(
+        val key: DnsQueryKey,
+        val rcode: Int,
+        val authenticData: Boolean,
+        val sections: Array<Array<DnsRecord>>,
+        val stored: Long,
+        val expires: Long,
+        val dead: Long,
+        val weight: Int
+    ) {
+        // refreshing a stale entry is not tried again before this (after it failed)
+        @Volatile
+        var retryAfter = expires
+
+        var queue = WINDOW
+        var prev: Entry? = null
+        var next: Entry? = null
+    }
+
+    /**
+     * A doubly linked list of entries, least recently used first
+     */
+    private class AccessOrder {
+        var first: Entry? = null
+        var last: Entry? = null
+        var weight = 0L
+
+        fun addLast(entry: Entry) {
+            entry.prev = last
+            entry.next = null
+            if (last == null) {
+                first = entry
+            } else {
+                last!!.next = entry
+            }
+            last = entry
+            weight += entry.weight
+        }
+
+        fun remove(entry: Entry) {
+            val prev = entry.prev
+            val next = entry.next
+            if (prev == null) {
+                first = next
+            } else {
+                prev.next = next
+            }
+            if (next == null) {
+                last = prev
+            } else {
+                next.prev = prev
+            }
+            entry.prev = null
+            entry.next = null
+            weight -= entry.weight
+        }
+
+        fun moveToLast(entry: Entry) {
+            if (last !== entry) {
+                remove(entry)
+                addLast(entry)
+            }
+        }
+
+        fun clear() {
+            first = null
+            last = null
+            weight = 0L
+        }
+    }
+
+    private val entries = ConcurrentHashMap<DnsQueryKey, Entry>()
+    private val index = DnsSuffixIndex<DnsQueryKey>()
+
+    // the eviction policy is guarded by the lock. Lookups only try to take it, so a busy cache can drop some access updates.
+    private val lock = ReentrantLock()
+    private val windowQueue = AccessOrder()
+    private val probationQueue = AccessOrder()
+    private val protectedQueue = AccessOrder()
+    private val sketch = DnsFrequencySketch((maxBytes / AVERAGE_ENTRY_SIZE).coerceAtMost(Int.MAX_VALUE.toLong()).toInt())
+
+    private val maxStale = TimeUnit.MILLISECONDS.toNanos(maxStaleMillis)
+    private val staleRefresh = TimeUnit.MILLISECONDS.toNanos(staleRefreshMillis)
+
+    private val maxWindow = (maxBytes / 100).coerceAtLeast(1)
+    private val maxMain = maxBytes - maxWindow
+    private val maxProtected = maxMain * 80 / 100
+
+    private val hits = LongAdder()
+    private val misses = LongAdder()
+    private val evictions = LongAdder()
+    private val staleHits = LongAdder()
+
+    /**
+     * @return the number of cached responses (including expired ones that have not been removed yet)
+     */
+    val size: Int
+        get() = entries.size
+
+    /**
+     * @return the approximate memory used by the cached responses
+     */
+    val weightedSize: Long
+        get() {
+            lock.lock()
+            try {
+                return windowQueue.weight + probationQueue.weight + protectedQueue.weight
+            } finally {
+                lock.unlock()
+            }
+        }
+
+    /**
+     * The number of queries answered from the cache
+     */
+    val hitCount: Long
+        get() = hits.sum()
+
+    /**
+     * The number of queries that were not in the cache (or had expired)
+     */
+    val missCount: Long
+        get() = misses.sum()
+
+    /**
+     * The number of responses removed to make room for others, or because they expired
+     */
+    val evictionCount: Long
+        get() = evictions.sum()
+
+    /**
+     * The number of queries answered with a stale (expired) response
+     */
+    val staleHitCount: Long
+        get() = staleHits.sum()
+
+    /**
+     * Removes all cached responses
+     */
+    fun clear() {
+        lock.lock()
+        try {
+            for (entry in entries.values) {
+                entry.queue = REMOVED
+            }
+            entries.clear()
+            index.clear()
+            windowQueue.clear()
+            probationQueue.clear()
+            protectedQueue.clear()
+        } finally {
+            lock.unlock()
+        }
+    }
+
+    /**
+     * Removes the cached responses for the domain, and for every name below it. The rest of the cache is kept.
+     *
+     * @return the number of responses that were removed
+     */
+    fun purge(domain: Name): Int {
+        lock.lock()
+        try {
+            var count = 0
+            for (key in index.under(DnsSuffixIndex.labels(domain))) {
+                val entry = entries[key] ?: continue
+                remove(entry)
+                count++
+            }
+            return count
+        } finally {
+            lock.unlock()
+        }
+    }
+
+    /**
+     * Copies the cached response for the key into the response (which must already have the question)
+     *
+     * @return true if the response was answered from the cache
+     */
+    fun answer(key: DnsQueryKey, response: DnsMessage): Boolean {
+        return answer(key, response, System.nanoTime())
+    }
+
+    internal fun answer(key: DnsQueryKey, response: DnsMessage, now: Long): Boolean {
+        val entry = entries[key]
+        if (entry == null || now - entry.expires >= 0) {
+            misses.increment()
+
+            if (lock.tryLock()) {
+                try {
+                    // misses count towards how popular a name is, so it can be admitted once it is stored
+                    sketch.increment(key.hashCode())
+                    if (entry != null && now - entry.dead >= 0) {
+                        remove(entry)
+                        evictions.increment()
+                    }
+                } finally {
+                    lock.unlock()
+                }
+            }
+            return false
+        }
+
+        hits.increment()
+        if (lock.tryLock()) {
+            try {
+                onAccess(entry)
+            } finally {
+                lock.unlock()
+            }
+        }
+
+        write(entry, response, TimeUnit.NANOSECONDS.toSeconds(now - entry.stored), Long.MAX_VALUE)
+        return true
+    }
+
+    /**
+     * @return true if there is an expired response for the key that can still be used as a stale answer
+     */
+    fun hasStale(key: DnsQueryKey): Boolean {
+        return hasStale(key, System.nanoTime())
+    }
+
+    internal fun hasStale(key: DnsQueryKey, now: Long): Boolean {
+        val entry = entries[key] ?: return false
+        return now - entry.expires >= 0 && now - entry.dead < 0
+    }
+
+    /**
+     * @return true if refreshing the stale response for the key recently failed, so it should be answered stale without trying again
+     */
+    fun isRefreshDeferred(key: DnsQueryKey): Boolean {
+        return isRefreshDeferred(key, System.nanoTime())
+    }
+
+    internal fun isRefreshDeferred(key: DnsQueryKey, now: Long): Boolean {
+        val entry = entries[key] ?: return false
+        return now - entry.expires >= 0 && now - entry.retryAfter < 0 && now - entry.dead < 0
+    }
+
+    /**
+     * Refreshing the (stale) response for the key failed, so stale answers are used for a while before trying again
+     */
+    fun refreshFailed(key: DnsQueryKey) {
+        refreshFailed(key, System.nanoTime())
+    }
+
+    internal fun refreshFailed(key: DnsQueryKey, now: Long) {
+        val entry = entries[key] ?: return
+        entry.retryAfter = now + staleRefresh
+    }
+
+    /**
+     * Copies the stale (expired) response for the key into the response. Every record has the stale TTL.
+     *
+     * @return true if the response was answered with a stale response
+     */
+    fun answerStale(key: DnsQueryKey, response: DnsMessage): Boolean {
+        return answerStale(key, response, System.nanoTime())
+    }
+
+    internal fun answerStale(key: DnsQueryKey, response: DnsMessage, now: Long): Boolean {
+        val entry = entries[key] ?: return false
+        if (now - entry.dead >= 0) {
+            return false
+        }
+
+        staleHits.increment()
+        write(entry, response, 0L, staleTtl)
+        return true
+    }
+
+    private fun write(entry: Entry, response: DnsMessage, elapsed: Long, maxTtl: Long) {
+        val header = response.header
+        header.setFlag(Flags.QR)
+        header.setFlag(Flags.RA)
+        if (entry.authenticData) {
+            header.setFlag(Flags.AD)
+        }
+        header.rcode = entry.rcode
+
+        for (i in entry.sections.indices) {
+            val section = DnsSection.ANSWER + i
+            for (record in entry.sections[i]) {
+                response.addRecord(record.withDClass(record.dclass, (record.ttl - elapsed).coerceIn(0, maxTtl)), section)
+            }
+        }
+    }
+
+    /**
+     * Caches the upstream response for the key. Only successful (NOERROR or NXDOMAIN), complete responses that have a TTL are cached.
+     */
+    fun store(key: DnsQueryKey, response: DnsMessage) {
+        store(key, response, System.nanoTime())
+    }
+
+    internal fun store(key: DnsQueryKey, response: DnsMessage, now: Long) {
+        val header = response.header
+        val rcode = header.rcode
+        if (rcode != DnsResponseCode.NOERROR && rcode != DnsResponseCode.NXDOMAIN || header.getFlag(Flags.TC)) {
+            return
+        }
+
+        var minTtl = Long.MAX_VALUE
+        var count = 0
+        var weight = ENTRY_OVERHEAD
+
+        val sections = Array(3) { i ->
+            val records = response.getSectionArray(DnsSection.ANSWER + i)
+
+            // OPT and TSIG are for this hop only, and are never passed on
+            val kept = records.filter { it.type != DnsRecordType.OPT && it.type != DnsRecordType.TSIG }.toTypedArray()
+            for (record in kept) {
+                var ttl = record.ttl
+                if (record is SOARecord && i == DnsSection.AUTHORITY - DnsSection.ANSWER) {
+                    ttl = ttl.coerceAtMost(record.minimum)
+                }
+                minTtl = minTtl.coerceAtMost(ttl)
+                weight += RECORD_OVERHEAD + record.toWire(DnsSection.ANSWER).size
+            }
+            count += kept.size
+            kept
+        }
+
+        if (count == 0 || minTtl <= 0 || weight > maxMain) {
+            return
+        }
+
+        val expires = now + TimeUnit.SECONDS.toNanos(minTtl)
+        val entry = Entry(key, rcode, header.getFlag(Flags.AD), sections, now, expires, expires + maxStale, weight)
+
+        lock.lock()
+        try {
+            val previous = entries.put(key, entry)
+            if (previous != null) {
+                unlink(previous)
+            } else {
+                index.add(DnsSuffixIndex.labels(key.name), key)
+            }
+
+            sketch.increment(key.hashCode())
+            windowQueue.addLast(entry)
+            evict(now)
+        } finally {
+            lock.unlock()
+        }
+    }
+
+    private fun onAccess(entry: Entry) {
+        sketch.increment(entry.key.hashCode())
+
+        when (entry.queue) {
+            WINDOW -> windowQueue.moveToLast(entry)
+            PROTECTED -> protectedQueue.moveToLast(entry)
+            PROBATION -> {
+                // a second hit while in the main space promotes it, and the least recently used protected entry makes room
+                probationQueue.remove(entry)
+                entry.queue = PROTECTED
+                protectedQueue.addLast(entry)
+
+                while (protectedQueue.weight > maxProtected) {
+                    val demoted = protectedQueue.first!!
+                    protectedQueue.remove(demoted)
+                    demoted.queue = PROBATION
+                    probationQueue.addLast(demoted)
+                }
+            }
+        }
+    }
+
+    private fun evict(now: Long) {
+        // the window overflows into the main space, but only if it is more popular than what it would replace
+        while (windowQueue.weight > maxWindow) {
+            val candidate = windowQueue.first!!
+            windowQueue.remove(candidate)
+            admit(candidate, now)
+        }
+    }
+
+    private fun admit(candidate: Entry, now: Long) {
+        if (now - candidate.dead >= 0) {
+            removeKey(candidate)
+            candidate.queue = REMOVED
+            evictions.increment()
+            return
+        }
+
+        while (probationQueue.weight + protectedQueue.weight + candidate.weight > maxMain) {
+            val victim = probationQueue.first ?: protectedQueue.first ?: break
+
+            if (now - victim.expires >= 0 || sketch.frequency(candidate.key.hashCode()) > sketch.frequency(victim.key.hashCode())) {
+                remove(victim)
+                evictions.increment()
+            } else {
+                removeKey(candidate)
+                candidate.queue = REMOVED
+                evictions.increment()
+                return
+            }
+        }
+
+        candidate.queue = PROBATION
+        probationQueue.addLast(candidate)
+    }
+
+    private fun remove(entry: Entry) {
+        if (removeKey(entry)) {
+            unlink(entry)
+        }
+    }
+
+    /**
+     * Removes the entry from the map and the index, the lock must be held
+     */
+    private fun removeKey(entry: Entry): Boolean {
+        if (!entries.remove(entry.key, entry)) {
+            return false
+        }
+        index.remove(DnsSuffixIndex.labels(entry.key.name), entry.key)
+        return true
+    }
+
+    private fun unlink(entry: Entry) {
+        when (entry.queue) {
+            WINDOW -> windowQueue.remove(entry)
+            PROBATION -> probationQueue.remove(entry)
+            PROTECTED -> protectedQueue.remove(entry)
+        }
+        entry.queue = REMOVED
+    }
+}
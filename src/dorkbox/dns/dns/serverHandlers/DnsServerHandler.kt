@@ -17,23 +17,48 @@ package dorkbox.dns.dns.serverHandlers
 
 import dorkbox.dns.dns.Name
 import dorkbox.dns.dns.records.ARecord
+import dorkbox.dns.dns.zone.Zone
 import io.netty.channel.Channel
+import io.netty.channel.ChannelHandler.Sharable
 import io.netty.channel.ChannelHandlerContext
 import io.netty.channel.ChannelInboundHandlerAdapter
 import org.slf4j.Logger
 
 /**
- *
+ * Sets up the pipeline for the UDP socket(s). With SO_REUSEPORT there is one socket per worker event loop, and they all share the
+ * same (stateless) handlers.
  */
-class DnsServerHandler(private val logger: Logger) : ChannelInboundHandlerAdapter() {
+@Sharable
+class DnsServerHandler(
+    private val logger: Logger,
+    private val consolidateFlushes: Boolean = false,
+    private val maxPendingFlushBytes: Int = 0,
+    wireCacheMaxEntries: Int = 0,
+    wireCacheMaxBytes: Long = Long.MAX_VALUE,
+    maxCoalescedQueries: Int = 1024,
+    responseCacheMaxBytes: Long = 0,
+    serveStaleMaxMillis: Long = 0,
+    clientResponseTimeoutMillis: Long = 1800
+) : ChannelInboundHandlerAdapter() {
     protected val decoder: DnsMessageDecoder
-    private val decisionHandler: DnsDecisionHandler
+    internal val decisionHandler: DnsDecisionHandler
     private val encoder: DnsMessageEncoder
 
+    private val wireCache: DnsWireCache?
+    private val wireCacheHandler: DnsWireCacheHandler?
+
     init {
+        if (wireCacheMaxEntries > 0) {
+            wireCache = DnsWireCache(wireCacheMaxEntries, wireCacheMaxBytes)
+            wireCacheHandler = DnsWireCacheHandler(wireCache)
+        } else {
+            wireCache = null
+            wireCacheHandler = null
+        }
+
         decoder = DnsMessageDecoder(logger)
-        decisionHandler = DnsDecisionHandler(logger)
-        encoder = DnsMessageEncoder(logger)
+        decisionHandler = DnsDecisionHandler(logger, maxCoalescedQueries, responseCacheMaxBytes, serveStaleMaxMillis, clientResponseTimeoutMillis)
+        encoder = DnsMessageEncoder(logger, wireCache)
     }
 
     fun stop() {
@@ -48,6 +73,36 @@ class DnsServerHandler(private val logger: Logger) : ChannelInboundHandlerAdapte
      */
     fun addARecord(domainName: Name, aRecords: List<ARecord>) {
         decisionHandler.addARecord(domainName, aRecords)
+
+        // cached answers might be for this name
+        wireCache?.clear()
+    }
+
+    /**
+     * Adds a zone that queries are answered from
+     *
+     * @param zone the zone to answer queries from
+     */
+    fun addZone(zone: Zone) {
+        decisionHandler.addZone(zone)
+
+        // cached answers might be for names in this zone
+        wireCache?.clear()
+    }
+
+    /**
+     * Removes the cached answers for the domain, and for every name below it
+     *
+     * @param domain the domain to purge
+     *
+     * @return the number of names (and forwarded responses) that were removed
+     */
+    fun purge(domain: Name): Int {
+        val count = decisionHandler.purge(domain)
+
+        // the rendered answers are keyed by their wire format, and are cheap to render again from the other caches
+        wireCache?.clear()
+        return count
     }
 
     override fun channelRegistered(context: ChannelHandlerContext) {
@@ -71,9 +126,18 @@ class DnsServerHandler(private val logger: Logger) : ChannelInboundHandlerAdapte
     protected fun initChannel(channel: Channel) {
         val pipeline = channel.pipeline()
 
+        if (consolidateFlushes) {
+            // answers written while reading a batch of queries are flushed together once the batch is complete
+            pipeline.addFirst("flushConsolidation", DnsFlushConsolidationHandler(maxPendingFlushBytes))
+        }
+
         ///////////////////////
         // DECODE (or upstream)
         ///////////////////////
+        if (wireCacheHandler != null) {
+            // cache hits are answered before the query is decoded
+            pipeline.addLast("wireCache", wireCacheHandler)
+        }
         pipeline.addLast("decoder", decoder)
         pipeline.addLast("dnsDecision", decisionHandler)
 
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.serverHandlers
+
+import io.netty.channel.ChannelDuplexHandler
+import io.netty.channel.ChannelHandlerContext
+import io.netty.channel.ChannelPromise
+import io.netty.util.concurrent.ScheduledFuture
+import org.slf4j.Logger
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Enforces the per-connection limits for DNS over TCP (RFC 7766).
+ *
+ * Clients may pipeline many queries on one connection, and each one is answered as soon as it is ready (not in the order it was
+ * received). When too many queries are waiting for an answer, we stop reading from the connection until some of them have been
+ * written. Connections without any traffic for the idle timeout are closed.
+ *
+ * This handler sits between the decoder and the decision handler, so every inbound message is a query and every outbound message is
+ * an (encoded) answer. The decision handler answers every query exactly once (with an error, if there is nothing else to answer it
+ * with), which frees its slot again.
+ */
+class DnsTcpConnectionHandler(
+    private val logger: Logger,
+    private val connectionCount: AtomicInteger,
+    private val maxConnections: Int,
+    private val maxInFlightQueries: Int,
+    idleTimeoutMillis: Long
+) : ChannelDuplexHandler() {
+
+    private val idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis)
+
+    private var inFlightQueries = 0
+    private var lastActivity = 0L
+    private var idleTimeout: ScheduledFuture<*>? = null
+
+    override fun channelActive(context: ChannelHandlerContext) {
+        // this is decremented again in channelInactive, which is also called for connections that we reject
+        if (connectionCount.incrementAndGet() > maxConnections) {
+            logger.debug("Too many TCP connections, rejecting {}", context.channel().remoteAddress())
+            context.close()
+            return
+        }
+
+        lastActivity = System.nanoTime()
+        scheduleIdleTimeout(context, idleTimeoutNanos)
+        context.fireChannelActive()
+    }
+
+    override fun channelInactive(context: ChannelHandlerContext) {
+        connectionCount.decrementAndGet()
+
+        idleTimeout?.cancel(false)
+        idleTimeout = null
+
+        context.fireChannelInactive()
+    }
+
+    override fun channelRead(context: ChannelHandlerContext, msg: Any) {
+        lastActivity = System.nanoTime()
+
+        inFlightQueries++
+        if (inFlightQueries >= maxInFlightQueries) {
+            // stop reading more queries until we have caught up on the answers
+            context.channel().config().isAutoRead = false
+        }
+
+        context.fireChannelRead(msg)
+    }
+
+    override fun write(context: ChannelHandlerContext, msg: Any, promise: ChannelPromise) {
+        lastActivity = System.nanoTime()
+
+        if (inFlightQueries > 0) {
+            inFlightQueries--
+        }
+
+        val config = context.channel().config()
+        if (!config.isAutoRead && inFlightQueries < maxInFlightQueries) {
+            config.isAutoRead = true
+        }
+
+        context.write(msg, promise)
+    }
+
+    private fun scheduleIdleTimeout(context: ChannelHandlerContext, delayNanos: Long) {
+        idleTimeout = context.executor().schedule(Runnable {
+            if (context.channel().isOpen) {
+                val remaining = idleTimeoutNanos - (System.nanoTime() - lastActivity)
+                if (remaining <= 0) {
+                    logger.trace("Closing idle TCP connection {}", context.channel().remoteAddress())
+                    context.close()
+                } else {
+                    scheduleIdleTimeout(context, remaining)
+                }
+            }
+        }, delayNanos, TimeUnit.NANOSECONDS)
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.serverHandlers
+
+import dorkbox.dns.dns.DnsEnvelope
+import dorkbox.dns.dns.exceptions.WireParseException
+import dorkbox.dns.dns.records.Header
+import io.netty.buffer.ByteBuf
+import io.netty.channel.ChannelHandler.Sharable
+import io.netty.channel.ChannelHandlerContext
+import io.netty.handler.codec.MessageToMessageDecoder
+import org.slf4j.Logger
+import java.net.InetSocketAddress
+
+/**
+ * Decodes a single DNS message from a TCP connection. The 2-byte length prefix has already been removed by the frame decoder.
+ */
+@Sharable
+class DnsTcpMessageDecoder(private val logger: Logger) : MessageToMessageDecoder<ByteBuf>() {
+    @Throws(Exception::class)
+    override fun exceptionCaught(context: ChannelHandlerContext, cause: Throwable) {
+        logger.error("DnsTcpMessageDecoder#exceptionCaught", cause)
+        super.exceptionCaught(context, cause)
+    }
+
+    @Throws(Exception::class)
+    override fun decode(context: ChannelHandlerContext, frame: ByteBuf, out: MutableList<Any>) {
+        // Check that the query is long enough.
+        if (frame.readableBytes() < Header.LENGTH) {
+            throw WireParseException("invalid DNS header - " + "too short")
+        }
+
+        val channel = context.channel()
+        val localAddress = channel.localAddress() as InetSocketAddress
+        val remoteAddress = channel.remoteAddress() as InetSocketAddress
+
+        // only the header and question are decoded now, the frame is retained until the envelope is released
+        out.add(DnsEnvelope(frame, localAddress, remoteAddress, true))
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.serverHandlers
+
+import dorkbox.dns.dns.DnsOutput
+import dorkbox.dns.dns.DnsServerResponse
+import dorkbox.dns.dns.records.DnsMessage
+import io.netty.buffer.ByteBuf
+import io.netty.channel.ChannelHandler.Sharable
+import io.netty.channel.ChannelHandlerContext
+import io.netty.handler.codec.MessageToByteEncoder
+import org.slf4j.Logger
+import java.io.IOException
+
+/**
+ * Encodes a DNS response for a TCP connection. The 2-byte length prefix is added afterwards by the frame encoder.
+ */
+@Sharable
+class DnsTcpMessageEncoder(private val logger: Logger) : MessageToByteEncoder<DnsServerResponse>() {
+    @Throws(Exception::class)
+    override fun encode(context: ChannelHandlerContext, message: DnsServerResponse, out: ByteBuf) {
+        try {
+            // the length prefix is only 2 bytes, so anything larger must be truncated
+            message.toWire(DnsOutput(out), DnsMessage.MAXLENGTH)
+        } catch (e: Exception) {
+            // a partial message would corrupt the framing for every other response on this connection
+            out.clear()
+            context.close()
+            context.fireExceptionCaught(IOException("Unable to write dns message: $message", e))
+        }
+    }
+
+    @Throws(Exception::class)
+    override fun exceptionCaught(context: ChannelHandlerContext, cause: Throwable) {
+        logger.error("DnsTcpMessageEncoder#exceptionCaught", cause)
+        super.exceptionCaught(context, cause)
+    }
+}
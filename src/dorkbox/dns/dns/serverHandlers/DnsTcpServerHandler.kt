@@ -0,0 +1,95 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.serverHandlers
+
+import dorkbox.dns.dns.records.DnsMessage
+import io.netty.channel.Channel
+import io.netty.channel.ChannelHandler.Sharable
+import io.netty.channel.ChannelHandlerContext
+import io.netty.channel.ChannelInboundHandlerAdapter
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder
+import io.netty.handler.codec.LengthFieldPrepender
+import org.slf4j.Logger
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Sets up the pipeline for every accepted DNS over TCP connection. Queries are answered by the same decision handler as UDP.
+ */
+@Sharable
+class DnsTcpServerHandler(
+    private val logger: Logger,
+    private val decisionHandler: DnsDecisionHandler,
+    private val maxConnections: Int,
+    private val maxInFlightQueries: Int,
+    private val idleTimeoutMillis: Long,
+    private val consolidateFlushes: Boolean = false,
+    private val maxPendingFlushBytes: Int = 0
+) : ChannelInboundHandlerAdapter() {
+
+    companion object {
+        /**
+         * Every DNS message over TCP is prefixed with a 2-byte length field (RFC 1035 4.2.2)
+         */
+        private const val LENGTH_FIELD_SIZE = 2
+    }
+
+    private val connectionCount = AtomicInteger()
+
+    private val decoder = DnsTcpMessageDecoder(logger)
+    private val encoder = DnsTcpMessageEncoder(logger)
+    private val framePrepender = LengthFieldPrepender(LENGTH_FIELD_SIZE)
+
+    override fun channelRegistered(context: ChannelHandlerContext) {
+        var success = false
+        try {
+            initChannel(context.channel())
+            context.fireChannelRegistered()
+            success = true
+        } catch (t: Throwable) {
+            logger.error("Failed to initialize a channel. Closing: {}", context.channel(), t)
+        } finally {
+            if (!success) {
+                context.close()
+            }
+        }
+    }
+
+    /**
+     * STEP 1: Channel is first created
+     */
+    private fun initChannel(channel: Channel) {
+        val pipeline = channel.pipeline()
+
+        if (consolidateFlushes) {
+            // answers to pipelined queries that were read together are flushed together
+            pipeline.addFirst("flushConsolidation", DnsFlushConsolidationHandler(maxPendingFlushBytes))
+        }
+
+        ///////////////////////
+        // DECODE (or upstream)
+        ///////////////////////
+        pipeline.addLast("frameDecoder", LengthFieldBasedFrameDecoder(DnsMessage.MAXLENGTH + LENGTH_FIELD_SIZE,
+                                                                      0, LENGTH_FIELD_SIZE, 0, LENGTH_FIELD_SIZE))
+        pipeline.addLast("framePrepender", framePrepender)
+        pipeline.addLast("decoder", decoder)
+        pipeline.addLast("connectionLimits", DnsTcpConnectionHandler(logger, connectionCount, maxConnections, maxInFlightQueries, idleTimeoutMillis))
+        pipeline.addLast("dnsDecision", decisionHandler)
+
+        // ENCODE (or downstream)
+        /////////////////////////
+        pipeline.addLast("encoder", encoder)
+    }
+}
@@ -0,0 +1,479 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.serverHandlers
+
+import dorkbox.dns.dns.DnsServerResponse
+import dorkbox.dns.dns.cache.DnsFrequencySketch
+import dorkbox.dns.dns.constants.DnsRecordType
+import dorkbox.dns.dns.constants.DnsResponseCode
+import dorkbox.dns.dns.records.DnsMessage
+import dorkbox.dns.dns.records.Header
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.ByteBufAllocator
+import io.netty.util.concurrent.FastThreadLocal
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+
+/**
+ * Caches rendered answers in their wire format, keyed on the lower-cased question (qname, qtype, qclass) and the EDNS DO bit.
+ *
+ * A hit is answered by copying the stored bytes and patching in the query ID, the RD/CD bits, the original case of the qname and the
+ * remaining TTLs. No [dorkbox.dns.dns.records.DnsMessage] is created on a hit.
+ *
+ * The cache is limited by the number of answers and by the (approximate) number of bytes they use. Once it is full, the least recently
+ * used answer is only replaced by one that has been asked for more often (TinyLFU admission), so a flood of one-off names (ie: random
+ * subdomains) can not push out the popular answers, and a popular answer that is not cached yet still gets in.
+ *
+ * @param maxEntries the maximum number of cached answers
+ * @param maxBytes the approximate memory that the cached answers can use
+ */
+class DnsWireCache(private val maxEntries: Int, private val maxBytes: Long = Long.MAX_VALUE) {
+    companion object {
+        /** qname (max 255 bytes) + qtype + qclass + DO bit */
+        private const val MAX_KEY_LENGTH = 255 + 2 + 2 + 1
+
+        private const val QR = 0x8000
+
+        /** OPCODE and TC from the header flags */
+        private const val OPCODE_TC_MASK = 0x7800 or 0x0200
+
+        /** RD and CD from the header flags, which are copied from the query */
+        private const val RD_CD_MASK = 0x0100 or 0x0010
+
+        private const val DO_BIT = 0x8000
+
+        /** the approximate memory used by an entry, on top of its answer and key */
+        private const val ENTRY_OVERHEAD = 96
+
+        private val probe = object : FastThreadLocal<Key>() {
+            override fun initialValue(): Key {
+                return Key(ByteArray(MAX_KEY_LENGTH))
+            }
+        }
+    }
+
+    private class Key(val bytes: ByteArray) {
+        var length = 0
+        var nameLength = 0
+        private var hash = 0
+
+        fun rehash() {
+            var h = 1
+            for (i in 0 until length) {
+                h = 31 * h + bytes[i]
+            }
+            hash = h
+        }
+
+        fun copy(): Key {
+            val key = Key(bytes.copyOf(length))
+            key.length = length
+            key.nameLength = nameLength
+            key.hash = hash
+            return key
+        }
+
+        override fun hashCode(): Int {
+            return hash
+        }
+
+        override fun equals(other: Any?): Boolean {
+            if (other !is Key || other.hash != hash || other.length != length) {
+                return false
+            }
+
+            val otherBytes = other.bytes
+            for (i in 0 until length) {
+                if (bytes[i] != otherBytes[i]) {
+                    return false
+                }
+            }
+            return true
+        }
+    }
+
+    private class Entry(val key: Key, val bytes: ByteArray, val ttlOffsets: IntArray, val ttls: LongArray, val created: Long, val expires: Long) {
+        val weight = ENTRY_OVERHEAD + bytes.size + key.length + ttlOffsets.size * 12
+
+        // the access order, least recently used first
+        var prev: Entry? = null
+        var next: Entry? = null
+        var removed = false
+    }
+
+    private val entries = ConcurrentHashMap<Key, Entry>()
+
+    // the access order and the frequency sketch are guarded by the lock. Lookups only try to take it, so a busy cache can drop some
+    // access updates.
+    private val lock = ReentrantLock()
+    private var first: Entry? = null
+    private var last: Entry? = null
+    private var weight = 0L
+    private val sketch = DnsFrequencySketch(maxEntries)
+
+    /**
+     * @return the approximate memory used by the cached answers
+     */
+    val weightedSize: Long
+        get() {
+            lock.lock()
+            try {
+                return weight
+            } finally {
+                lock.unlock()
+            }
+        }
+
+    /**
+     * @return the number of cached answers (including expired ones that have not been removed yet)
+     */
+    val size: Int
+        get() = entries.size
+
+    /**
+     * Removes all cached answers
+     */
+    fun clear() {
+        lock.lock()
+        try {
+            for (entry in entries.values) {
+                entry.removed = true
+            }
+            entries.clear()
+            first = null
+            last = null
+            weight = 0L
+        } finally {
+            lock.unlock()
+        }
+    }
+
+    /**
+     * Answers the query from the cache.
+     *
+     * @return the answer (which the caller must release), or null if the query has to be decoded and answered normally
+     */
+    fun answer(alloc: ByteBufAllocator, query: ByteBuf): ByteBuf? {
+        val start = query.readerIndex()
+        val end = query.writerIndex()
+        if (end - start < Header.LENGTH) {
+            return null
+        }
+
+        // only a standard query, with one question and (at most) an OPT record
+        val flags = query.getUnsignedShort(start + 2)
+        if (flags and (QR or OPCODE_TC_MASK) != 0 ||
+            query.getUnsignedShort(start + 4) != 1 ||
+            query.getUnsignedShort(start + 6) != 0 ||
+            query.getUnsignedShort(start + 8) != 0) {
+            return null
+        }
+
+        val additionalCount = query.getUnsignedShort(start + 10)
+        if (additionalCount > 1) {
+            return null
+        }
+
+        val key = probe.get()
+        var pos = readQuestion(query, start, end, key)
+        if (pos == -1) {
+            return null
+        }
+
+        var maxPayloadSize = DnsServerResponse.MIN_UDP_PAYLOAD_SIZE
+        var dnssecOk = false
+
+        if (additionalCount == 1) {
+            // OPT: root name, type, payload size (class), extended rcode, version, flags (ttl), rdata length
+            if (pos + 11 > end || query.getByte(pos).toInt() != 0 || query.getUnsignedShort(pos + 1) != DnsRecordType.OPT) {
+                return null
+            }
+
+            // unknown EDNS versions must be answered with BADVERS
+            if (query.getByte(pos + 6).toInt() != 0) {
+                return null
+            }
+
+            maxPayloadSize = query.getUnsignedShort(pos + 3).coerceAtLeast(maxPayloadSize)
+            dnssecOk = query.getUnsignedShort(pos + 7) and DO_BIT != 0
+            pos += 11 + query.getUnsignedShort(pos + 9)
+        }
+
+        if (pos != end) {
+            return null
+        }
+
+        key.bytes[key.length++] = if (dnssecOk) 1 else 0
+        key.rehash()
+
+        val entry = entries[key]
+        if (entry == null) {
+            if (lock.tryLock()) {
+                try {
+                    // misses count towards how popular a name is, so it can be admitted once it is stored
+                    sketch.increment(key.hashCode())
+                } finally {
+                    lock.unlock()
+                }
+            }
+            return null
+        }
+
+        val now = System.nanoTime()
+        if (now - entry.expires >= 0) {
+            lock.lock()
+            try {
+                remove(entry)
+            } finally {
+                lock.unlock()
+            }
+            return null
+        }
+
+        if (lock.tryLock()) {
+            try {
+                sketch.increment(key.hashCode())
+                moveToLast(entry)
+            } finally {
+                lock.unlock()
+            }
+        }
+
+        val bytes = entry.bytes
+        if (bytes.size > maxPayloadSize) {
+            // this will have to be truncated for this client
+            return null
+        }
+
+        val answer = alloc.ioBuffer(bytes.size)
+        answer.writeBytes(bytes)
+
+        // ID, RD/CD bits and the case of the qname are all from the query
+        answer.setShort(0, query.getUnsignedShort(start))
+        answer.setShort(2, (answer.getUnsignedShort(2) and RD_CD_MASK.inv()) or (flags and RD_CD_MASK))
+        answer.setBytes(Header.LENGTH, query, start + Header.LENGTH, key.nameLength)
+
+        val elapsed = TimeUnit.NANOSECONDS.toSeconds(now - entry.created)
+        val ttlOffsets = entry.ttlOffsets
+        val ttls = entry.ttls
+        for (i in ttlOffsets.indices) {
+            answer.setInt(ttlOffsets[i], (ttls[i] - elapsed).coerceAtLeast(0L).toInt())
+        }
+
+        return answer
+    }
+
+    /**
+     * Stores a rendered answer, if it can be cached. Only complete NOERROR/NXDOMAIN answers with a TTL are cached, and they expire
+     * with the smallest TTL in the answer.
+     */
+    fun store(response: ByteBuf, dnssecOk: Boolean) {
+        val start = response.readerIndex()
+        val end = response.writerIndex()
+        if (end - start < Header.LENGTH) {
+            return
+        }
+
+        val flags = response.getUnsignedShort(start + 2)
+        val rcode = flags and 0xF
+        if (flags and OPCODE_TC_MASK != 0 ||
+            (rcode != DnsResponseCode.NOERROR && rcode != DnsResponseCode.NXDOMAIN) ||
+            response.getUnsignedShort(start + 4) != 1) {
+            return
+        }
+
+        val key = Key(ByteArray(MAX_KEY_LENGTH))
+        var pos = readQuestion(response, start, end, key)
+        if (pos == -1) {
+            return
+        }
+
+        key.bytes[key.length++] = if (dnssecOk) 1 else 0
+        key.rehash()
+
+        val recordCount = response.getUnsignedShort(start + 6) + response.getUnsignedShort(start + 8) + response.getUnsignedShort(start + 10)
+        val ttlOffsets = IntArray(recordCount)
+        val ttls = LongArray(recordCount)
+        var ttlCount = 0
+        var minTtl = Long.MAX_VALUE
+
+        for (i in 0 until recordCount) {
+            pos = DnsMessage.skipName(response, pos, end)
+            if (pos == -1 || pos + 10 > end) {
+                return
+            }
+
+            // the TTL of an OPT record is really the extended rcode + flags
+            if (response.getUnsignedShort(pos) != DnsRecordType.OPT) {
+                val ttl = response.getUnsignedInt(pos + 4)
+                ttlOffsets[ttlCount] = pos + 4 - start
+                ttls[ttlCount] = ttl
+                ttlCount++
+
+                minTtl = minTtl.coerceAtMost(ttl)
+            }
+
+            pos += 10 + response.getUnsignedShort(pos + 8)
+        }
+
+        if (ttlCount == 0 || minTtl <= 0 || pos != end) {
+            return
+        }
+
+        val bytes = ByteArray(end - start)
+        response.getBytes(start, bytes)
+
+        val now = System.nanoTime()
+        val entry = Entry(key.copy(), bytes, ttlOffsets.copyOf(ttlCount), ttls.copyOf(ttlCount), now, now + TimeUnit.SECONDS.toNanos(minTtl))
+        if (entry.weight > maxBytes) {
+            return
+        }
+
+        lock.lock()
+        try {
+            val previous = entries[entry.key]
+            if (previous != null) {
+                remove(previous)
+            }
+
+            sketch.increment(entry.key.hashCode())
+            if (!makeRoom(entry, now)) {
+                return
+            }
+
+            entries[entry.key] = entry
+            addLast(entry)
+        } finally {
+            lock.unlock()
+        }
+    }
+
+    /**
+     * Evicts the least recently used answers until the candidate fits, as long as they are expired or less popular than it is. The lock
+     * must be held.
+     *
+     * @return false if the candidate is not cached, because it is less popular than what it would replace
+     */
+    private fun makeRoom(candidate: Entry, now: Long): Boolean {
+        while (entries.size >= maxEntries || weight + candidate.weight > maxBytes) {
+            val victim = first ?: break
+
+            if (now - victim.expires >= 0 || sketch.frequency(candidate.key.hashCode()) > sketch.frequency(victim.key.hashCode())) {
+                remove(victim)
+            } else {
+                // the victim gets a second chance, so the next candidate is compared against the one after it
+                moveToLast(victim)
+                return false
+            }
+        }
+        return true
+    }
+
+    /**
+     * Removes the entry from the map and the access order, the lock must be held
+     */
+    private fun remove(entry: Entry) {
+        if (entry.removed) {
+            return
+        }
+        entry.removed = true
+        entries.remove(entry.key, entry)
+        unlink(entry)
+    }
+
+    private fun unlink(entry: Entry) {
+        val prev = entry.prev
+        val next = entry.next
+        if (prev == null) {
+            first = next
+        } else {
+            prev.next = next
+        }
+        if (next == null) {
+            last = prev
+        } else {
+            next.prev = prev
+        }
+        entry.prev = null
+        entry.next = null
+        weight -= entry.weight
+    }
+
+    private fun addLast(entry: Entry) {
+        entry.prev = last
+        entry.next = null
+        if (last == null) {
+            first = entry
+        } else {
+            last!!.next = entry
+        }
+        last = entry
+        weight += entry.weight
+    }
+
+    private fun moveToLast(entry: Entry) {
+        if (!entry.removed && last !== entry) {
+            unlink(entry)
+            addLast(entry)
+        }
+    }
+
+    /**
+     * Reads the question (lower-cased qname, qtype, qclass) into the key.
+     *
+     * @return the index after the question, or -1 if it cannot be used as a key
+     */
+    private fun readQuestion(buf: ByteBuf, start: Int, end: Int, key: Key): Int {
+        val bytes = key.bytes
+        var pos = start + Header.LENGTH
+        var length = 0
+
+        while (true) {
+            if (pos >= end) {
+                return -1
+            }
+
+            // questions are never compressed
+            val labelLength = buf.getUnsignedByte(pos++).toInt()
+            if (labelLength and 0xC0 != 0 || length + 1 + labelLength > 255 || pos + labelLength > end) {
+                return -1
+            }
+
+            bytes[length++] = labelLength.toByte()
+            if (labelLength == 0) {
+                break
+            }
+
+            for (i in 0 until labelLength) {
+                val b = buf.getByte(pos++).toInt()
+                bytes[length++] = (if (b in 'A'.code..'Z'.code) b + ('a' - 'A') else b).toByte()
+            }
+        }
+
+        if (pos + 4 > end) {
+            return -1
+        }
+
+        key.nameLength = length
+
+        // qtype + qclass
+        buf.getBytes(pos, bytes, length, 4)
+        key.length = length + 4
+
+        return pos + 4
+    }
+}
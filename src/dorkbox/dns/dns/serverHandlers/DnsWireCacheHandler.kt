@@ -0,0 +1,40 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.serverHandlers
+
+import io.netty.channel.ChannelHandler.Sharable
+import io.netty.channel.ChannelHandlerContext
+import io.netty.channel.ChannelInboundHandlerAdapter
+import io.netty.channel.socket.DatagramPacket
+
+/**
+ * Answers queries straight from the [DnsWireCache], before they are decoded. Everything else continues on to the decoder.
+ */
+@Sharable
+class DnsWireCacheHandler(private val wireCache: DnsWireCache) : ChannelInboundHandlerAdapter() {
+    override fun channelRead(context: ChannelHandlerContext, msg: Any) {
+        if (msg is DatagramPacket) {
+            val answer = wireCache.answer(context.alloc(), msg.content())
+            if (answer != null) {
+                context.writeAndFlush(DatagramPacket(answer, msg.sender(), msg.recipient()))
+                msg.release()
+                return
+            }
+        }
+
+        context.fireChannelRead(msg)
+    }
+}
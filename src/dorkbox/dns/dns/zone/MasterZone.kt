@@ -18,8 +18,9 @@ package dorkbox.dns.dns.zone
 import dorkbox.dns.dns.Name
 import dorkbox.dns.dns.constants.DnsRecordType
 import dorkbox.dns.dns.constants.DnsResponseCode
+import dorkbox.dns.dns.records.CNAMERecord
+import dorkbox.dns.dns.records.DNAMERecord
 import dorkbox.dns.dns.records.DnsRecord
-import dorkbox.dns.dns.records.DnsRecord.Companion.newRecord
 import dorkbox.dns.dns.records.SOARecord
 import dorkbox.dns.dns.server.CNAMEResponse
 import dorkbox.dns.dns.server.DNAMEResponse
@@ -30,145 +31,160 @@ import dorkbox.dns.dns.server.Response
 import java.util.*
 import java.util.concurrent.*
 
-class MasterZone(name: Name, soaRecord: SOARecord) : AbstractZone(ZoneType.master, name) {
-    val records: ConcurrentMap<Name, ConcurrentMap<Int, NavigableSet<DnsRecord>>> = ConcurrentSkipListMap()
+/**
+ * A zone that we are authoritative for.
+ *
+ * Lookups do not lock, and (except for ANY and wildcard answers) return the stored record sets as-is instead of copying them.
+ */
+class MasterZone(name: Name, val soaRecord: SOARecord) : AbstractZone(ZoneType.master, name) {
+    // kept in canonical order, so that the names below a name are right after it (this is how empty non-terminals are found)
+    val records: ConcurrentNavigableMap<Name, ConcurrentMap<Int, NavigableSet<DnsRecord>>> = ConcurrentSkipListMap()
     val nxDomain: Response
+
+    // NODATA is NOERROR with the SOA in the authority section (NXRRSET is only for UPDATE prerequisites)
     val nxRRSet: Response
 
     init {
         nxDomain = NotFoundResponse(DnsResponseCode.NXDOMAIN, soaRecord)
-        nxRRSet = NotFoundResponse(DnsResponseCode.NXRRSET, soaRecord)
+        nxRRSet = NotFoundResponse(DnsResponseCode.NOERROR, soaRecord)
     }
 
     // add and remove needs queuing?
     // if modify operations works on single thread, not conflict.
     @Synchronized
     fun add(rr: DnsRecord) {
-        while (true) {
-            val current = records[rr.name]
-            if (current == null) {
-                val newone: ConcurrentMap<Int, NavigableSet<DnsRecord>> = ConcurrentSkipListMap()
-                val newset: NavigableSet<DnsRecord> = ConcurrentSkipListSet()
-                newset.add(rr)
-                newone[rr.type] = newset
-                val prevTypes = records.putIfAbsent(rr.name, newone) ?: break
-                synchronized(prevTypes) {
-                    val prevRecs = prevTypes.putIfAbsent(rr.type, newset) ?: return
-                    prevRecs.add(rr)
-                    return
-                }
-            } else {
-                synchronized(current) {
-                    val rrs: MutableSet<DnsRecord>? = current[rr.type]
-                    if (rrs == null) {
-                        val newset: NavigableSet<DnsRecord> = ConcurrentSkipListSet()
-                        newset.add(rr)
-                        current[rr.type] = newset
-                        return
-                    }
-                    if (!rrs.isEmpty()) {
-                        rrs.add(rr)
-                        return
-                    }
-                }
-            }
+        val types = records.computeIfAbsent(rr.name) { ConcurrentSkipListMap() }
+        types.computeIfAbsent(rr.type) { ConcurrentSkipListSet() }.add(rr)
+    }
+
+    /**
+     * @return the records of the given name and type, as they are stored in the zone (delegations, wildcards and aliases are ignored)
+     */
+    override fun rrset(name: Name, recordType: Int): Collection<DnsRecord>? {
+        val rrs = records[name]?.get(recordType)
+        if (rrs == null || rrs.isEmpty()) {
+            return null
         }
+        return rrs
     }
 
     override fun find(queryName: Name, recordType: Int): Response? {
-        if (!queryName.equals(name)) {
+        if (!queryName.subdomain(name)) {
             return nxDomain
         }
-        val exactMatch = records[queryName]
-        if (exactMatch != null) {
-            var rrs = exactMatch[recordType]
-            if (rrs != null) {
-                synchronized(rrs) {
-                    if (rrs!!.isEmpty()) {
-                        return NoErrorResponse(rrs!!)
-                    }
-                }
-            }
-            if (DnsRecordType.ANY == recordType) {
-                val newset: MutableSet<DnsRecord> = HashSet()
-                for (type in exactMatch.keys) {
-                    val s: Set<DnsRecord>? = exactMatch[type]
-                    if (s != null) {
-                        synchronized(s) { newset.addAll(s) }
+
+        // a delegation (or DNAME) above the query name takes precedence over anything at, or below, it
+        if (queryName.labels() > name.labels()) {
+            var qn = queryName.parent(1)
+            while (!name.equals(qn)) {
+                val match = records[qn]
+                if (match != null) {
+                    var set = match[DnsRecordType.NS]
+                    if (set != null && !set.isEmpty()) {
+                        return ReferralResponse(set)
                     }
-                }
-                if (newset.isEmpty()) {
-                    return null
-                }
-            }
-            if (DnsRecordType.CNAME == recordType) {
-                rrs = exactMatch[DnsRecordType.CNAME]
-                if (rrs != null) {
-                    synchronized(rrs) {
-                        if (!rrs.isEmpty()) {
-                            return CNAMEResponse(rrs.first(), recordType)
-                        }
+                    set = match[DnsRecordType.DNAME]
+                    if (set != null && !set.isEmpty()) {
+                        return DNAMEResponse(set.first() as DNAMERecord, queryName, recordType)
                     }
                 }
+                qn = qn.parent(1)
             }
-            return nxRRSet
         }
-        run {
-            var qn = queryName.parent(1)
-            while (!this.name().equals(qn)) {
-                val match = this.records[qn]
-                if (match != null) {
-                    synchronized(match) {
-                        if (!match.isEmpty()) {
-                            var set = match[DnsRecordType.NS]
-                            if (set != null && !set.isEmpty()) {
-                                return ReferralResponse(set)
-                            }
-                            set = match[DnsRecordType.DNAME]
-                            if (set != null && !set.isEmpty()) {
-                                return DNAMEResponse(set.first(), queryName, recordType)
-                            }
-                        }
-                    }
+
+        val exactMatch = records[queryName]
+        if (exactMatch != null) {
+            // the zone cut itself belongs to the child zone, except for the DS record
+            if (recordType != DnsRecordType.DS && !name.equals(queryName)) {
+                val set = exactMatch[DnsRecordType.NS]
+                if (set != null && !set.isEmpty()) {
+                    return ReferralResponse(set)
                 }
-                qn = qn.parent(1)
             }
+
+            return answer(exactMatch, queryName, recordType, false)
+        }
+
+        // an empty non-terminal (only names below it have records) exists, so it has no data rather than not existing
+        val next = records.higherKey(queryName)
+        if (next != null && next.subdomain(queryName)) {
+            return nxRRSet
         }
+
+        // the wildcard that applies is the one at the closest existing ancestor (the closest encloser)
         var qn = queryName
-        while (!name().equals(qn)) {
-            val wild = qn.wild(1)
-            val match = records[wild]
+        while (!name.equals(qn)) {
+            val parent = qn.parent(1)
+
+            val match = records[qn.wild(1)]
             if (match != null) {
-                synchronized(match) {
-                    if (!match.isEmpty()) {
-                        val matchSet: Set<DnsRecord> = match[recordType]!!
-                        if (!matchSet.isEmpty()) {
-                            val set: MutableSet<DnsRecord> = HashSet(matchSet.size)
-                            for (rr in matchSet) {
-                                set.add(newRecord(queryName, rr.type, rr.dclass, rr.ttl))
-                            }
-                            return NoErrorResponse(set)
-                        }
-                    }
-                }
+                return answer(match, queryName, recordType, true)
             }
-            qn = qn.parent(1)
+
+            // the closest encloser can also be an empty non-terminal, which stops the walk all the same (RFC 4592 2.2.2)
+            if (records.containsKey(parent) || records.higherKey(parent)?.subdomain(parent) == true) {
+                break
+            }
+            qn = parent
         }
+
         return nxDomain
     }
 
+    private fun answer(match: ConcurrentMap<Int, NavigableSet<DnsRecord>>, queryName: Name, recordType: Int, wildcard: Boolean): Response {
+        val rrs = match[recordType]
+        if (rrs != null && !rrs.isEmpty()) {
+            if (!wildcard) {
+                return NoErrorResponse(rrs)
+            }
+            return NoErrorResponse(synthesize(rrs, queryName))
+        }
+
+        if (DnsRecordType.ANY == recordType) {
+            val all = ArrayList<DnsRecord>()
+            for (set in match.values) {
+                if (wildcard) {
+                    all.addAll(synthesize(set, queryName))
+                } else {
+                    all.addAll(set)
+                }
+            }
+
+            if (!all.isEmpty()) {
+                return NoErrorResponse(all)
+            }
+        }
+
+        val cnames = match[DnsRecordType.CNAME]
+        if (cnames != null && !cnames.isEmpty()) {
+            var cname = cnames.first()
+            if (wildcard) {
+                cname = cname.withName(queryName)
+            }
+            return CNAMEResponse(cname as CNAMERecord, recordType)
+        }
+
+        return nxRRSet
+    }
+
+    private fun synthesize(rrs: Collection<DnsRecord>, queryName: Name): List<DnsRecord> {
+        val list = ArrayList<DnsRecord>(rrs.size)
+        for (rr in rrs) {
+            list.add(rr.withName(queryName))
+        }
+        return list
+    }
+
     @Synchronized
     fun remove(rr: DnsRecord, checkSets: Boolean, checkMap: Boolean) {
         val current = records[rr.name]
         if (current != null) {
-            synchronized(current) {
-                val sets = current[rr.type]!!
-                sets.remove(rr)
-                if (checkSets && sets.isEmpty()) {
-                    current.remove(rr.type)
-                    if (checkMap && current.isEmpty()) {
-                        records.remove(rr.name)
-                    }
+            val sets = current[rr.type] ?: return
+            sets.remove(rr)
+            if (checkSets && sets.isEmpty()) {
+                current.remove(rr.type)
+                if (checkMap && current.isEmpty()) {
+                    records.remove(rr.name)
                 }
             }
         }
@@ -16,7 +16,16 @@
 package dorkbox.dns.dns.zone
 
 import dorkbox.dns.dns.Name
+import dorkbox.dns.dns.constants.DnsRecordType
+import dorkbox.dns.dns.constants.DnsResponseCode
+import dorkbox.dns.dns.constants.DnsSection
+import dorkbox.dns.dns.constants.Flags
+import dorkbox.dns.dns.records.DnsMessage
 import dorkbox.dns.dns.records.DnsRecord
+import dorkbox.dns.dns.server.CNAMEResponse
+import dorkbox.dns.dns.server.DNAMEResponse
+import dorkbox.dns.dns.server.NoErrorResponse
+import dorkbox.dns.dns.server.ReferralResponse
 
 /**
  * @author taichi
@@ -28,6 +37,13 @@ class Query(
     protected var target: Zone,
     protected var database: ZoneDatabase
 ) {
+    companion object {
+        /**
+         * The maximum number of CNAME/DNAME records followed for a single query
+         */
+        const val MAX_CHAIN_LENGTH = 16
+    }
+
     protected operator fun contains(rrs: List<DnsRecord>): Boolean {
         for (rr in rrs) {
             if (origin.equals(rr.name)) {
@@ -36,4 +52,115 @@ class Query(
         }
         return false
     }
+
+    /**
+     * Answers the query from the zone database, and writes the answer into the response (which must already have the question).
+     *
+     * CNAME and DNAME chains are followed for as long as they stay inside a zone that is in the database, the authority section has
+     * the SOA for negative answers (or the NS records for a referral), and the additional section has the addresses of the names
+     * that the answer refers to.
+     *
+     * @return false if the zone did not have an answer (for example, it is a forward zone), and nothing was written to the response
+     */
+    fun execute(recordType: Int, response: DnsMessage): Boolean {
+        var zone = target
+        var qname = origin
+
+        // only allocated when an alias is followed
+        var chain: ArrayList<Name>? = null
+
+        var result = zone.find(qname, recordType) ?: return false
+
+        val header = response.header
+        header.setFlag(Flags.QR)
+        header.setFlag(Flags.AA)
+        header.rcode = DnsResponseCode.NOERROR
+
+        while (true) {
+            result.postProcess(response)
+
+            val next = when (result) {
+                is CNAMEResponse -> {
+                    if (recordType == DnsRecordType.CNAME || recordType == DnsRecordType.ANY) {
+                        null
+                    } else {
+                        result.target
+                    }
+                }
+                is DNAMEResponse -> result.target
+                is ReferralResponse -> {
+                    // we are not authoritative for anything below a zone cut. Once an alias was followed, the AA bit is for the first name.
+                    if (chain == null) {
+                        header.unsetFlag(Flags.AA)
+                    }
+                    null
+                }
+                else -> null
+            }
+
+            if (next == null) {
+                break
+            }
+
+            if (chain == null) {
+                chain = ArrayList(4)
+                chain.add(qname)
+            }
+
+            // alias loops (and overly long chains) end with what we have so far, the client will see the loop for itself
+            if (chain.size > MAX_CHAIN_LENGTH || chain.contains(next)) {
+                break
+            }
+            chain.add(next)
+
+            // the rest of the chain is outside of our zones, so the client has to look it up
+            if (!next.subdomain(zone.name())) {
+                val nextQuery = database.prepare(next, dnsClass) ?: break
+                zone = nextQuery.target
+            }
+
+            qname = next
+            result = zone.find(qname, recordType) ?: break
+        }
+
+        addAdditional(response, DnsSection.ANSWER)
+        addAdditional(response, DnsSection.AUTHORITY)
+        return true
+    }
+
+    /**
+     * Adds the A and AAAA records (from our zones) of the names that the records of a section refer to, ie: NS, MX and SRV targets
+     */
+    private fun addAdditional(response: DnsMessage, section: Int) {
+        val count = response.header.getCount(section)
+        if (count == 0) {
+            return
+        }
+
+        val records = response.getSectionArray(section)
+        for (record in records) {
+            val name = record.additionalName ?: continue
+
+            // glue can be in the zone that has the delegation, so check it first
+            var zone = target
+            if (!name.subdomain(zone.name())) {
+                zone = database.prepare(name, dnsClass)?.target ?: continue
+            }
+
+            addAdditional(response, zone.rrset(name, DnsRecordType.A))
+            addAdditional(response, zone.rrset(name, DnsRecordType.AAAA))
+        }
+    }
+
+    private fun addAdditional(response: DnsMessage, rrs: Collection<DnsRecord>?) {
+        if (rrs == null) {
+            return
+        }
+
+        for (rr in rrs) {
+            if (!response.findRecord(rr, DnsSection.ADDITIONAL)) {
+                response.addRecord(rr, DnsSection.ADDITIONAL)
+            }
+        }
+    }
 }
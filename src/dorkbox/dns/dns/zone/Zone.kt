@@ -16,6 +16,7 @@
 package dorkbox.dns.dns.zone
 
 import dorkbox.dns.dns.Name
+import dorkbox.dns.dns.records.DnsRecord
 import dorkbox.dns.dns.server.Response
 
 interface Zone {
@@ -23,4 +24,12 @@ interface Zone {
     fun find(qname: Name, recordType: Int): Response?
     fun name(): Name
     fun type(): ZoneType
+
+    /**
+     * @return the records stored in this zone for the name and type, or null if there are none. This is used for glue and the
+     * additional section, so delegations, wildcards and aliases are not followed.
+     */
+    fun rrset(name: Name, recordType: Int): Collection<DnsRecord>? {
+        return null
+    }
 }
@@ -19,14 +19,30 @@ import dorkbox.dns.dns.Name
 import java.util.concurrent.*
 
 class ZoneDatabase {
-    var zones: MutableMap<ZoneDatabaseKey, Zone> = ConcurrentSkipListMap()
+    var zones: MutableMap<ZoneDatabaseKey, Zone> = ConcurrentHashMap()
 
     /* TODO ZoneConfig? */
     fun add(zone: Zone) {
         zones[ZoneDatabaseKey(zone)] = zone
     }
 
+    fun remove(zone: Zone) {
+        zones.remove(ZoneDatabaseKey(zone))
+    }
+
+    val isEmpty: Boolean
+        get() = zones.isEmpty()
+
+    /**
+     * Finds the closest zone that contains the name (the zone with the most labels in common with it)
+     *
+     * @return the query for the name, or null if none of our zones contain it
+     */
     fun prepare(name: Name, dnsClass: Int): Query? {
+        if (zones.isEmpty()) {
+            return null
+        }
+
         val zk = ZoneDatabaseKey(name, dnsClass)
         var found = zones[zk]
         if (found != null) {
@@ -34,25 +50,17 @@ class ZoneDatabase {
             return Query(name, name, dnsClass, found, this)
         }
 
+        // partial match, the root zone is the last one that is checked
         var child = name
-
-        // partial match
-        var i = 0
-        val size = zones.size
-        while (i < size) {
+        while (child.labels() > 1) {
             val p = child.parent(1)
             zk.name(p)
             found = zones[zk]
 
-            if (found == null) {
-                if (p.labels() <= 1) {
-                    break
-                }
-                child = p
-            } else {
+            if (found != null) {
                 return Query(name, p, dnsClass, found, this)
             }
-            i++
+            child = p
         }
 
         // not found.
@@ -29,9 +29,10 @@ class ZoneDatabaseKey(var name: Name, val dnsClass: Int) : Comparable<ZoneDataba
         if (other == null) {
             return 1
         }
-        return if (equals(other)) {
-            0
-        } else this.hashCode() - other.hashCode()
+        val compare = name.compareTo(other.name)
+        return if (compare != 0) {
+            compare
+        } else dnsClass.compareTo(other.dnsClass)
     }
 
     fun equals(other: ZoneDatabaseKey): Boolean {
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns
+
+import dorkbox.dns.dns.DnsEnvelope
+import dorkbox.dns.dns.DnsOutput
+import dorkbox.dns.dns.DnsQuestion
+import dorkbox.dns.dns.DnsServerResponse
+import dorkbox.dns.dns.Name
+import dorkbox.dns.dns.constants.DnsClass
+import dorkbox.dns.dns.constants.DnsRecordType
+import dorkbox.dns.dns.constants.DnsResponseCode
+import dorkbox.dns.dns.constants.DnsSection
+import dorkbox.dns.dns.constants.Flags
+import dorkbox.dns.dns.records.ARecord
+import dorkbox.dns.dns.serverHandlers.DnsFlushConsolidationHandler
+import dorkbox.dns.dns.serverHandlers.DnsMessageDecoder
+import dorkbox.dns.dns.serverHandlers.DnsMessageEncoder
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.Unpooled
+import io.netty.channel.ChannelHandler
+import io.netty.channel.ChannelHandler.Sharable
+import io.netty.channel.ChannelHandlerContext
+import io.netty.channel.ChannelInboundHandlerAdapter
+import io.netty.channel.ChannelOutboundHandlerAdapter
+import io.netty.channel.ChannelPromise
+import io.netty.channel.embedded.EmbeddedChannel
+import io.netty.channel.socket.DatagramPacket
+import io.netty.handler.codec.MessageToByteEncoder
+import io.netty.util.ReferenceCountUtil
+import org.slf4j.LoggerFactory
+import java.net.InetAddress
+import java.net.InetSocketAddress
+
+/**
+ * Compares the old encoder (render into a buffer, then write and flush a new packet per answer) against the current one (write the
+ * packet through the pipeline, flushing once per read batch).
+ *
+ * This runs without a socket, so it measures the pipeline overhead and counts the flushes that would each be a syscall.
+ *
+ * It is not a test (so it is not part of the test run), run its [main] by hand to compare the two.
+ */
+object DnsMessageEncoderBenchmark {
+    private const val QUERIES_PER_READ = 16
+    private const val WARMUP_READS = 50_000
+    private const val READS = 200_000
+
+    private val logger = LoggerFactory.getLogger(DnsMessageEncoderBenchmark::class.java)
+
+    private val serverAddress = InetSocketAddress(InetAddress.getLoopbackAddress(), 53)
+    private val clientAddress = InetSocketAddress(InetAddress.getLoopbackAddress(), 40000)
+    private val answer = ARecord(Name.fromString("dorkbox.com."), DnsClass.IN, 60L, InetAddress.getLoopbackAddress())
+
+    /**
+     * Stands in for the socket: counts what is written and flushed, then throws it away
+     */
+    private class CountingSink : ChannelOutboundHandlerAdapter() {
+        var writes = 0L
+        var flushes = 0L
+
+        override fun write(context: ChannelHandlerContext, msg: Any, promise: ChannelPromise) {
+            writes++
+            ReferenceCountUtil.release(msg)
+            promise.trySuccess()
+        }
+
+        override fun flush(context: ChannelHandlerContext) {
+            flushes++
+        }
+    }
+
+    /**
+     * Answers every query right away, the same way the decision handler answers from local records
+     */
+    @Sharable
+    private class Responder : ChannelInboundHandlerAdapter() {
+        override fun channelRead(context: ChannelHandlerContext, msg: Any) {
+            val query = msg as DnsEnvelope
+
+            val response = DnsServerResponse(query, query.sender(), query.recipient())
+            response.header.setFlag(Flags.QR)
+            response.header.rcode = DnsResponseCode.NOERROR
+            response.addRecord(query.getSectionArray(DnsSection.QUESTION)[0], DnsSection.QUESTION)
+            response.addRecord(answer, DnsSection.ANSWER)
+
+            context.channel().writeAndFlush(response)
+        }
+    }
+
+    /**
+     * The encoder as it was before flush consolidation
+     */
+    @Sharable
+    private class LegacyEncoder : MessageToByteEncoder<DnsServerResponse>() {
+        override fun encode(context: ChannelHandlerContext, message: DnsServerResponse, out: ByteBuf) {
+            out.retain()
+            message.toWire(DnsOutput(out), message.maxUdpPayloadSize)
+            context.channel().writeAndFlush(DatagramPacket(out, message.recipient(), message.sender()))
+        }
+    }
+
+    @JvmStatic
+    fun main(args: Array<String>) {
+        val query = DnsQuestion.newQuery("dorkbox.com.", DnsRecordType.A, true)
+        val queryBytes = query.toWire()
+        query.release()
+
+        // run each twice, so the second run of each has a warm JIT
+        for (i in 0..1) {
+            run("legacy", queryBytes, LegacyEncoder())
+            run("consolidated", queryBytes, DnsFlushConsolidationHandler(64 * 1024), DnsMessageEncoder(logger))
+        }
+    }
+
+    private fun run(name: String, queryBytes: ByteArray, vararg handlers: ChannelHandler) {
+        val sink = CountingSink()
+        val channel = EmbeddedChannel(sink)
+
+        // the flush consolidation handler must be closest to the socket, the encoder is last
+        val encoder = handlers.last()
+        for (i in 0 until handlers.size - 1) {
+            channel.pipeline().addLast(handlers[i])
+        }
+        channel.pipeline().addLast(DnsMessageDecoder(logger), Responder(), encoder)
+
+        val batch = arrayOfNulls<Any>(QUERIES_PER_READ)
+
+        for (i in 0 until WARMUP_READS) {
+            read(channel, batch, queryBytes)
+        }
+
+        sink.writes = 0L
+        sink.flushes = 0L
+
+        val start = System.nanoTime()
+        for (i in 0 until READS) {
+            read(channel, batch, queryBytes)
+        }
+        val elapsed = System.nanoTime() - start
+
+        val queries = READS.toLong() * QUERIES_PER_READ
+        System.err.println(String.format("%-14s %8.1f ns/query   %.3f flushes/query   %.3f writes/query",
+                                         name,
+                                         elapsed.toDouble() / queries,
+                                         sink.flushes.toDouble() / queries,
+                                         sink.writes.toDouble() / queries))
+
+        channel.finishAndReleaseAll()
+    }
+
+    private fun read(channel: EmbeddedChannel, batch: Array<Any?>, queryBytes: ByteArray) {
+        for (i in batch.indices) {
+            batch[i] = DatagramPacket(Unpooled.wrappedBuffer(queryBytes), serverAddress, clientAddress)
+        }
+
+        // fires channelRead for every packet, then channelReadComplete, just like a batched socket read
+        channel.writeInbound(*batch)
+    }
+}
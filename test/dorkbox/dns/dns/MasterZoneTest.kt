@@ -0,0 +1,161 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns
+
+import dorkbox.dns.dns.Name.Companion.fromString
+import dorkbox.dns.dns.constants.DnsClass
+import dorkbox.dns.dns.constants.DnsRecordType
+import dorkbox.dns.dns.constants.DnsResponseCode
+import dorkbox.dns.dns.constants.DnsSection
+import dorkbox.dns.dns.constants.Flags
+import dorkbox.dns.dns.records.ARecord
+import dorkbox.dns.dns.records.CNAMERecord
+import dorkbox.dns.dns.records.DNAMERecord
+import dorkbox.dns.dns.records.DnsMessage
+import dorkbox.dns.dns.records.DnsRecord
+import dorkbox.dns.dns.records.MXRecord
+import dorkbox.dns.dns.records.NSRecord
+import dorkbox.dns.dns.records.SOARecord
+import dorkbox.dns.dns.zone.MasterZone
+import dorkbox.dns.dns.zone.ZoneDatabase
+import junit.framework.TestCase
+import java.net.InetAddress
+
+class MasterZoneTest : TestCase() {
+    private lateinit var db: ZoneDatabase
+
+    override fun setUp() {
+        val origin = fromString("example.com.")
+        val soa = SOARecord(origin, DnsClass.IN, 3600, fromString("ns.example.com."), fromString("admin.example.com."), 1, 3600, 600, 86400, 300)
+
+        val zone = MasterZone(origin, soa)
+        zone.add(soa)
+        zone.add(NSRecord(origin, DnsClass.IN, 3600, fromString("ns.example.com.")))
+        zone.add(a("ns.example.com.", "10.0.0.1"))
+        zone.add(a("www.example.com.", "10.0.0.2"))
+        zone.add(a("mail.example.com.", "10.0.0.3"))
+        zone.add(MXRecord(origin, DnsClass.IN, 3600, 10, fromString("mail.example.com.")))
+        zone.add(CNAMERecord(fromString("alias.example.com."), DnsClass.IN, 3600, fromString("www.example.com.")))
+        zone.add(CNAMERecord(fromString("loop1.example.com."), DnsClass.IN, 3600, fromString("loop2.example.com.")))
+        zone.add(CNAMERecord(fromString("loop2.example.com."), DnsClass.IN, 3600, fromString("loop1.example.com.")))
+        zone.add(DNAMERecord(fromString("old.example.com."), DnsClass.IN, 3600, fromString("example.com.")))
+        zone.add(a("*.wild.example.com.", "10.0.0.4"))
+        zone.add(a("c.b.wild.example.com.", "10.0.0.7"))
+        zone.add(a("host.deep.example.com.", "10.0.0.5"))
+
+        zone.add(NSRecord(fromString("sub.example.com."), DnsClass.IN, 3600, fromString("ns.sub.example.com.")))
+        zone.add(a("ns.sub.example.com.", "10.0.0.6"))
+
+        db = ZoneDatabase()
+        db.add(zone)
+    }
+
+    private fun a(name: String, address: String): ARecord {
+        return ARecord(fromString(name), DnsClass.IN, 3600, InetAddress.getByName(address))
+    }
+
+    private fun query(name: String, type: Int): DnsMessage {
+        val response = DnsMessage()
+        val question = DnsRecord.newRecord(fromString(name), type, DnsClass.IN)
+        response.addRecord(question, DnsSection.QUESTION)
+
+        val query = db.prepare(question.name, DnsClass.IN)
+        assertNotNull(query)
+        assertTrue(query!!.execute(type, response))
+        return response
+    }
+
+    fun testAnswer() {
+        val response = query("www.example.com.", DnsRecordType.A)
+        assertEquals(DnsResponseCode.NOERROR, response.header.rcode)
+        assertTrue(response.header.getFlag(Flags.AA))
+        assertEquals(1, response.header.getCount(DnsSection.ANSWER))
+        assertEquals(a("www.example.com.", "10.0.0.2"), response.getSectionArray(DnsSection.ANSWER)[0])
+    }
+
+    fun testNoDataAndNxDomain() {
+        var response = query("www.example.com.", DnsRecordType.AAAA)
+        assertEquals(DnsResponseCode.NOERROR, response.header.rcode)
+        assertEquals(0, response.header.getCount(DnsSection.ANSWER))
+        assertEquals(DnsRecordType.SOA, response.getSectionArray(DnsSection.AUTHORITY)[0].type)
+
+        // empty non-terminal
+        response = query("deep.example.com.", DnsRecordType.A)
+        assertEquals(DnsResponseCode.NOERROR, response.header.rcode)
+        assertEquals(0, response.header.getCount(DnsSection.ANSWER))
+
+        response = query("missing.example.com.", DnsRecordType.A)
+        assertEquals(DnsResponseCode.NXDOMAIN, response.header.rcode)
+        assertTrue(response.header.getFlag(Flags.AA))
+        assertEquals(DnsRecordType.SOA, response.getSectionArray(DnsSection.AUTHORITY)[0].type)
+    }
+
+    fun testCnameChain() {
+        val response = query("alias.example.com.", DnsRecordType.A)
+        assertEquals(2, response.header.getCount(DnsSection.ANSWER))
+
+        val answers = response.getSectionArray(DnsSection.ANSWER)
+        assertEquals(DnsRecordType.CNAME, answers[0].type)
+        assertEquals(a("www.example.com.", "10.0.0.2"), answers[1])
+    }
+
+    fun testCnameLoop() {
+        val response = query("loop1.example.com.", DnsRecordType.A)
+        assertEquals(DnsResponseCode.NOERROR, response.header.rcode)
+        assertEquals(2, response.header.getCount(DnsSection.ANSWER))
+    }
+
+    fun testDname() {
+        val response = query("www.old.example.com.", DnsRecordType.A)
+
+        val answers = response.getSectionArray(DnsSection.ANSWER)
+        assertEquals(3, answers.size)
+        assertEquals(DnsRecordType.DNAME, answers[0].type)
+        assertEquals(fromString("www.example.com."), (answers[1] as CNAMERecord).target)
+        assertEquals(a("www.example.com.", "10.0.0.2"), answers[2])
+    }
+
+    fun testWildcard() {
+        val response = query("anything.wild.example.com.", DnsRecordType.A)
+        assertEquals(a("anything.wild.example.com.", "10.0.0.4"), response.getSectionArray(DnsSection.ANSWER)[0])
+    }
+
+    fun testWildcardBelowEmptyNonTerminal() {
+        // b.wild.example.com only has names below it, so it is the closest encloser, and it has no wildcard
+        var response = query("a.b.wild.example.com.", DnsRecordType.A)
+        assertEquals(DnsResponseCode.NXDOMAIN, response.header.rcode)
+        assertEquals(0, response.header.getCount(DnsSection.ANSWER))
+
+        response = query("b.wild.example.com.", DnsRecordType.A)
+        assertEquals(DnsResponseCode.NOERROR, response.header.rcode)
+        assertEquals(0, response.header.getCount(DnsSection.ANSWER))
+    }
+
+    fun testReferralWithGlue() {
+        val response = query("www.sub.example.com.", DnsRecordType.A)
+        assertEquals(DnsResponseCode.NOERROR, response.header.rcode)
+        assertFalse(response.header.getFlag(Flags.AA))
+        assertEquals(0, response.header.getCount(DnsSection.ANSWER))
+        assertEquals(DnsRecordType.NS, response.getSectionArray(DnsSection.AUTHORITY)[0].type)
+        assertEquals(a("ns.sub.example.com.", "10.0.0.6"), response.getSectionArray(DnsSection.ADDITIONAL)[0])
+    }
+
+    fun testAdditional() {
+        val response = query("example.com.", DnsRecordType.MX)
+        assertEquals(1, response.header.getCount(DnsSection.ANSWER))
+        assertEquals(a("mail.example.com.", "10.0.0.3"), response.getSectionArray(DnsSection.ADDITIONAL)[0])
+    }
+}
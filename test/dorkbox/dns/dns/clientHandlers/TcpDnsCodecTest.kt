@@ -0,0 +1,88 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.clientHandlers
+
+import dorkbox.dns.dns.DnsQuestion
+import dorkbox.dns.dns.Name
+import dorkbox.dns.dns.constants.DnsRecordType
+import dorkbox.dns.dns.records.DnsMessage
+import io.netty.buffer.ByteBuf
+import io.netty.buffer.Unpooled
+import io.netty.channel.embedded.EmbeddedChannel
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder
+import io.netty.handler.codec.LengthFieldPrepender
+import junit.framework.TestCase
+import java.net.InetSocketAddress
+
+class TcpDnsCodecTest : TestCase() {
+    private val server = InetSocketAddress("127.0.0.1", 53)
+
+    private fun channel(): EmbeddedChannel {
+        return EmbeddedChannel(LengthFieldBasedFrameDecoder(DnsMessage.MAXLENGTH + 2, 0, 2, 0, 2), LengthFieldPrepender(2),
+                               TcpDnsResponseDecoder(), TcpDnsQueryEncoder())
+    }
+
+    /**
+     * @return the bytes that were written for the question, with their length prefix
+     */
+    private fun write(channel: EmbeddedChannel, id: Int): ByteBuf {
+        val question = DnsQuestion.newQuery("www.example.com", DnsRecordType.A, true)
+        question.init(id, server)
+        assertTrue(channel.writeOutbound(question))
+
+        val wire = Unpooled.buffer()
+        while (true) {
+            val buf = channel.readOutbound<ByteBuf>() ?: break
+            wire.writeBytes(buf)
+            buf.release()
+        }
+        return wire
+    }
+
+    fun testRoundTrip() {
+        val channel = channel()
+        val wire = write(channel, 1234)
+        assertEquals(wire.readableBytes() - 2, wire.getUnsignedShort(0))
+
+        // a frame that arrives in two parts
+        assertFalse(channel.writeInbound(wire.readRetainedSlice(5)))
+        assertTrue(channel.writeInbound(wire))
+
+        val response = channel.readInbound<DnsResponse>()
+        assertEquals(1234, response.header.id)
+        assertEquals(Name.fromString("www.example.com."), response.question!!.name)
+        response.release()
+
+        assertFalse(channel.finish())
+    }
+
+    fun testPipelined() {
+        val channel = channel()
+
+        // both frames arrive at once, and are decoded in order
+        val wire = Unpooled.wrappedBuffer(write(channel, 1), write(channel, 2))
+        assertTrue(channel.writeInbound(wire))
+
+        val first = channel.readInbound<DnsResponse>()
+        val second = channel.readInbound<DnsResponse>()
+        assertEquals(1, first.header.id)
+        assertEquals(2, second.header.id)
+        first.release()
+        second.release()
+
+        assertFalse(channel.finish())
+    }
+}
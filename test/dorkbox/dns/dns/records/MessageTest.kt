@@ -18,6 +18,7 @@ package dorkbox.dns.dns.records
 import dorkbox.dns.dns.Name.Companion.fromString
 import dorkbox.dns.dns.constants.DnsClass
 import dorkbox.dns.dns.constants.DnsOpCode
+import dorkbox.dns.dns.constants.DnsRecordType
 import dorkbox.dns.dns.constants.DnsSection
 import dorkbox.dns.dns.constants.Flags
 import dorkbox.dns.dns.exceptions.TextParseException
@@ -25,6 +26,7 @@ import dorkbox.dns.dns.records.DnsMessage.Companion.newQuery
 import junit.framework.Test
 import junit.framework.TestCase
 import junit.framework.TestSuite
+import io.netty.buffer.Unpooled
 import java.net.InetAddress
 import java.net.UnknownHostException
 import java.util.*
@@ -33,6 +35,7 @@ object MessageTest {
     fun suite(): Test {
         val s = TestSuite()
         s.addTestSuite(Test_init::class.java)
+        s.addTestSuite(Test_lazy::class.java)
         return s
     }
 
@@ -94,4 +97,67 @@ object MessageTest {
             assertEquals(true, h.getFlag(Flags.RD))
         }
     }
+
+    class Test_lazy : TestCase() {
+        private fun message(): DnsMessage {
+            val n = fromString("www.example.com.")
+            val m = DnsMessage(1234)
+            m.header.setFlag(Flags.QR)
+            m.addRecord(DnsRecord.newRecord(n, DnsRecordType.A, DnsClass.IN), DnsSection.QUESTION)
+            m.addRecord(ARecord(n, DnsClass.IN, 300, InetAddress.getByName("192.168.101.110")), DnsSection.ANSWER)
+            m.addRecord(ARecord(n, DnsClass.IN, 300, InetAddress.getByName("192.168.101.111")), DnsSection.ANSWER)
+            m.addRecord(NSRecord(fromString("example.com."), DnsClass.IN, 600, fromString("ns1.example.com.")), DnsSection.AUTHORITY)
+            m.addRecord(OPTRecord(4096, 0, 0), DnsSection.ADDITIONAL)
+            return m
+        }
+
+        fun test_sections() {
+            val wire = message().toWire()
+            val eager = DnsMessage(wire)
+
+            val buf = Unpooled.wrappedBuffer(wire)
+            val lazy = DnsMessage(buf, true)
+            assertEquals(2, buf.refCnt())
+
+            assertTrue(Arrays.equals(eager.getSectionArray(DnsSection.QUESTION), lazy.getSectionArray(DnsSection.QUESTION)))
+            assertTrue(Arrays.equals(eager.getSectionArray(DnsSection.ANSWER), lazy.getSectionArray(DnsSection.ANSWER)))
+            assertTrue(Arrays.equals(eager.getSectionArray(DnsSection.AUTHORITY), lazy.getSectionArray(DnsSection.AUTHORITY)))
+            assertEquals(4096, lazy.optRecord!!.payloadSize)
+            assertEquals(eager.numBytes(), lazy.numBytes())
+
+            lazy.release()
+            assertEquals(1, buf.refCnt())
+        }
+
+        fun test_recordView() {
+            val lazy = DnsMessage(Unpooled.wrappedBuffer(message().toWire()), true)
+            val view = DnsRecordView()
+
+            assertTrue(lazy.recordView(DnsSection.ANSWER, 1, view))
+            assertEquals(DnsRecordType.A, view.type)
+            assertEquals(DnsClass.IN, view.dclass)
+            assertEquals(300L, view.ttl)
+            assertEquals(4, view.rdataLength)
+            assertEquals(fromString("www.example.com."), view.name())
+
+            assertTrue(lazy.recordView(DnsSection.AUTHORITY, 0, view))
+            assertEquals(DnsRecordType.NS, view.type)
+            assertEquals(600L, view.ttl)
+
+            assertFalse(lazy.recordView(DnsSection.ANSWER, 2, view))
+            assertFalse(lazy.recordView(DnsSection.QUESTION, 0, view))
+
+            lazy.release()
+            assertFalse(lazy.recordView(DnsSection.ANSWER, 0, view))
+        }
+
+        fun test_modifiedSection() {
+            val lazy = DnsMessage(Unpooled.wrappedBuffer(message().toWire()), true)
+            lazy.removeAllRecords(DnsSection.ANSWER)
+
+            assertEquals(0, lazy.getSectionArray(DnsSection.ANSWER).size)
+            assertEquals(1, lazy.getSectionArray(DnsSection.AUTHORITY).size)
+            lazy.release()
+        }
+    }
 }
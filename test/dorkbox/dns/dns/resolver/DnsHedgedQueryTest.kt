@@ -0,0 +1,156 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.resolver
+
+import dorkbox.dns.dns.DnsQuestion
+import dorkbox.dns.dns.clientHandlers.DnsResponse
+import dorkbox.dns.dns.constants.DnsRecordType
+import dorkbox.dns.dns.constants.DnsResponseCode
+import dorkbox.dns.dns.resolver.addressProvider.SequentialDnsServerAddressStreamProvider
+import dorkbox.dns.dns.resolver.cache.DefaultDnsCache
+import dorkbox.netUtil.dnsUtils.ResolvedAddressTypes
+import io.netty.channel.EventLoopGroup
+import io.netty.channel.ReflectiveChannelFactory
+import io.netty.channel.nio.NioEventLoopGroup
+import io.netty.channel.socket.nio.NioDatagramChannel
+import io.netty.util.concurrent.Future
+import junit.framework.TestCase
+import java.net.InetSocketAddress
+import java.util.concurrent.*
+
+class DnsHedgedQueryTest : TestCase() {
+    private lateinit var group: EventLoopGroup
+
+    override fun setUp() {
+        group = NioEventLoopGroup(1)
+    }
+
+    override fun tearDown() {
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly()
+    }
+
+    /**
+     * A DNS server that answers with the rcode after the delay, or never if the rcode is -1
+     */
+    private fun server(rcode: Int, delayMillis: Long = 0): TestDnsServer {
+        return TestDnsServer { query, _ ->
+            Thread.sleep(delayMillis)
+            if (rcode < 0) null else TestDnsServer.reply(query, rcode)
+        }
+    }
+
+    private fun resolver(vararg nameServerAddrs: InetSocketAddress): DnsNameResolver {
+        return DnsNameResolver(group.next(),
+                               ReflectiveChannelFactory(NioDatagramChannel::class.java),
+                               DefaultDnsCache(),
+                               DefaultDnsCache(),
+                               NoopDnsQueryLifecycleObserverFactory.INSTANCE,
+                               500L,
+                               ResolvedAddressTypes.IPV4_ONLY,
+                               true,
+                               16,
+                               false,
+                               4096,
+                               SequentialDnsServerAddressStreamProvider(nameServerAddrs.toList()),
+                               arrayOf(),
+                               1,
+                               false,
+                               socketCount = 1)
+    }
+
+    /**
+     * Sends the query to the primary DNS server, which is hedged to the other one after 20 milliseconds
+     *
+     * @return the answer that won, and the socket that both queries were sent through
+     */
+    private fun hedge(resolver: DnsNameResolver, primary: InetSocketAddress, other: InetSocketAddress):
+        Pair<Future<DnsResponse>, DnsResolverSocket> {
+        val policy = DnsHedgingPolicy(minDelayMillis = 20, initialDelayMillis = 20)
+
+        // everything that a hedged query does happens on the executor of the resolver
+        return resolver.executor().submit(Callable {
+            val question = DnsQuestion.newQuery("dorkbox.com.", DnsRecordType.A, true)
+            val writePromise = resolver.newWritePromise(primary)
+            val socket = DnsResolverSocket.of(writePromise.channel())!!
+
+            val future = DnsHedgedQuery(resolver, policy, question, resolver.executor().newPromise(), { other }, { _, _ -> })
+                .query(primary, writePromise)
+            Pair(future, socket)
+        }).get()
+    }
+
+    private fun assertAnswer(resolver: DnsNameResolver, future: Future<DnsResponse>, rcode: Int, sender: InetSocketAddress) {
+        assertTrue(future.awaitUninterruptibly(5, TimeUnit.SECONDS))
+        assertTrue(future.cause()?.toString(), future.isSuccess)
+
+        // the other query is cancelled right after the answer was passed on, on the executor
+        resolver.executor().submit(Runnable {}).get()
+
+        val response = future.now
+        assertEquals(rcode, response.header.rcode)
+        assertEquals(sender, response.sender())
+        response.release()
+    }
+
+    fun testFirstGoodAnswerWins() {
+        server(DnsResponseCode.NOERROR, delayMillis = 200).use { slow ->
+            server(DnsResponseCode.NOERROR).use { fast ->
+                val resolver = resolver(slow.address, fast.address)
+                try {
+                    val (future, socket) = hedge(resolver, slow.address, fast.address)
+                    assertAnswer(resolver, future, DnsResponseCode.NOERROR, fast.address)
+
+                    // the slow query was cancelled, and its ID is free again
+                    assertEquals(0, socket.queryContextManager.size)
+                } finally {
+                    resolver.close()
+                }
+            }
+        }
+    }
+
+    fun testGoodAnswerAfterBadAnswer() {
+        // the primary fails after the hedge was sent, and the hedge is answered later on
+        server(DnsResponseCode.SERVFAIL, delayMillis = 100).use { failing ->
+            server(DnsResponseCode.NXDOMAIN, delayMillis = 200).use { other ->
+                val resolver = resolver(failing.address, other.address)
+                try {
+                    val (future, socket) = hedge(resolver, failing.address, other.address)
+                    assertAnswer(resolver, future, DnsResponseCode.NXDOMAIN, other.address)
+                    assertEquals(0, socket.queryContextManager.size)
+                } finally {
+                    resolver.close()
+                }
+            }
+        }
+    }
+
+    fun testFallbackOnBadAnswer() {
+        // the hedge is never answered, so the bad answer is all there is once it times out
+        server(DnsResponseCode.SERVFAIL, delayMillis = 100).use { failing ->
+            server(-1).use { silent ->
+                val resolver = resolver(failing.address, silent.address)
+                try {
+                    val (future, socket) = hedge(resolver, failing.address, silent.address)
+                    assertAnswer(resolver, future, DnsResponseCode.SERVFAIL, failing.address)
+                    assertEquals(0, socket.queryContextManager.size)
+                } finally {
+                    resolver.close()
+                }
+            }
+        }
+    }
+}
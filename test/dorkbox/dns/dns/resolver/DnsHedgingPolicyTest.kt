@@ -0,0 +1,88 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.resolver
+
+import junit.framework.TestCase
+import java.net.InetSocketAddress
+import java.util.concurrent.*
+
+class DnsHedgingPolicyTest : TestCase() {
+    private val server = InetSocketAddress("10.0.0.1", 53)
+    private val other = InetSocketAddress("10.0.0.2", 53)
+
+    private fun millis(millis: Long): Long {
+        return TimeUnit.MILLISECONDS.toNanos(millis)
+    }
+
+    fun testDelay() {
+        val policy = DnsHedgingPolicy(percentile = 95, minDelayMillis = 5, initialDelayMillis = 150)
+
+        // not enough answers yet
+        assertEquals(-1L, policy.percentileNanos(server))
+        assertEquals(millis(150), policy.queried(server))
+
+        // 90% of the answers are fast, the rest are slow
+        repeat(90) { policy.answered(server, millis(2)) }
+        repeat(10) { policy.answered(server, millis(50)) }
+
+        val delay = policy.percentileNanos(server)
+        assertTrue(delay >= millis(50))
+        assertTrue(delay < millis(63))
+        assertEquals(delay, policy.queried(server))
+
+        // the fast answers are below the minimum delay
+        val fast = DnsHedgingPolicy(percentile = 50, minDelayMillis = 5)
+        repeat(100) { fast.answered(server, millis(1)) }
+        assertTrue(fast.percentileNanos(server) < millis(5))
+        assertEquals(millis(5), fast.queried(server))
+
+        // every DNS server has its own round trip times
+        assertEquals(-1L, policy.percentileNanos(other))
+    }
+
+    fun testDecay() {
+        val policy = DnsHedgingPolicy(percentile = 90)
+        repeat(1000) { policy.answered(server, millis(100)) }
+        assertTrue(policy.percentileNanos(server) >= millis(100))
+
+        // the DNS server got faster, which the percentile follows
+        repeat(5000) { policy.answered(server, millis(1)) }
+        assertTrue(policy.percentileNanos(server) < millis(2))
+    }
+
+    fun testBudget() {
+        val policy = DnsHedgingPolicy(budgetPercent = 5)
+
+        // a single hedge to start with
+        assertTrue(policy.tryHedge())
+        assertFalse(policy.tryHedge())
+
+        // every 20 queries earn another one
+        repeat(19) { policy.queried(server) }
+        assertFalse(policy.tryHedge())
+        policy.queried(server)
+        assertTrue(policy.tryHedge())
+        assertFalse(policy.tryHedge())
+
+        // no more than a burst of them is saved up
+        repeat(10_000) { policy.queried(server) }
+        var hedges = 0
+        while (policy.tryHedge()) {
+            hedges++
+        }
+        assertEquals(10, hedges)
+    }
+}
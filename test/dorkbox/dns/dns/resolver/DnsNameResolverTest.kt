@@ -0,0 +1,161 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.resolver
+
+import dorkbox.dns.dns.constants.DnsClass
+import dorkbox.dns.dns.constants.DnsSection
+import dorkbox.dns.dns.constants.Flags
+import dorkbox.dns.dns.records.ARecord
+import dorkbox.dns.dns.resolver.addressProvider.SequentialDnsServerAddressStreamProvider
+import dorkbox.dns.dns.resolver.cache.DefaultDnsCache
+import dorkbox.netUtil.dnsUtils.ResolvedAddressTypes
+import io.netty.channel.EventLoopGroup
+import io.netty.channel.ReflectiveChannelFactory
+import io.netty.channel.nio.NioEventLoopGroup
+import io.netty.channel.socket.nio.NioDatagramChannel
+import io.netty.channel.socket.nio.NioSocketChannel
+import junit.framework.TestCase
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.util.concurrent.*
+
+class DnsNameResolverTest : TestCase() {
+    private lateinit var group: EventLoopGroup
+
+    override fun setUp() {
+        group = NioEventLoopGroup(4)
+    }
+
+    override fun tearDown() {
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly()
+    }
+
+    private fun resolver(nameServerAddr: InetSocketAddress, socketCount: Int = 1, forceTcp: Boolean = false,
+                         tcpMaxConnections: Int = 2, tcpIdleTimeoutMillis: Long = 10_000L): DnsNameResolver {
+        return DnsNameResolver(group.next(),
+                               ReflectiveChannelFactory(NioDatagramChannel::class.java),
+                               DefaultDnsCache(),
+                               DefaultDnsCache(),
+                               NoopDnsQueryLifecycleObserverFactory.INSTANCE,
+                               2000L,
+                               ResolvedAddressTypes.IPV4_ONLY,
+                               true,
+                               16,
+                               false,
+                               4096,
+                               SequentialDnsServerAddressStreamProvider(listOf(nameServerAddr)),
+                               arrayOf(),
+                               1,
+                               false,
+                               socketGroup = group,
+                               socketCount = socketCount,
+                               tcpChannelFactory = ReflectiveChannelFactory(NioSocketChannel::class.java),
+                               forceTcp = forceTcp,
+                               tcpMaxConnections = tcpMaxConnections,
+                               tcpIdleTimeoutMillis = tcpIdleTimeoutMillis)
+    }
+
+    /**
+     * @return the address that the test DNS servers answer for host<N>.example.com.
+     */
+    private fun addressOf(host: Int): InetAddress {
+        return InetAddress.getByAddress(byteArrayOf(10, 0, (host shr 8).toByte(), host.toByte()))
+    }
+
+    /**
+     * @param truncated true if the answers over UDP are truncated (without any records), so they must be asked for over TCP
+     */
+    private fun answerHosts(truncated: Boolean = false, tcpBatch: Int = 1): TestDnsServer {
+        return TestDnsServer(tcpBatch) { query, isTcp ->
+            val name = query.question!!.name
+            val host = name.getLabelString(0).removePrefix("host").toInt()
+
+            val response = TestDnsServer.reply(query)
+            if (truncated && !isTcp) {
+                response.header.setFlag(Flags.TC)
+            } else {
+                response.addRecord(ARecord(name, DnsClass.IN, 60L, addressOf(host)), DnsSection.ANSWER)
+            }
+            response
+        }
+    }
+
+    private fun assertResolved(resolver: DnsNameResolver, hosts: IntRange) {
+        val futures = hosts.map { resolver.resolveAll("host$it.example.com") }
+
+        for ((i, host) in hosts.withIndex()) {
+            val future = futures[i].awaitUninterruptibly()
+            assertTrue(future.cause()?.toString(), future.isSuccess)
+            assertEquals(listOf(addressOf(host)), future.now)
+        }
+    }
+
+    fun testResolveOnSocketsOfOtherEventLoops() {
+        answerHosts().use { server ->
+            // the resolver is on one event loop of the group, and (most of) its sockets are on the others
+            val resolver = resolver(server.address, socketCount = 4)
+            try {
+                assertResolved(resolver, 0 until 64)
+            } finally {
+                resolver.close()
+            }
+        }
+    }
+
+    fun testRetryTruncatedOverTcp() {
+        answerHosts(truncated = true).use { server ->
+            val resolver = resolver(server.address)
+            try {
+                assertResolved(resolver, 1..4)
+                assertEquals(4, server.tcpQueries.get())
+            } finally {
+                resolver.close()
+            }
+        }
+    }
+
+    fun testPipelinedQueriesAnsweredOutOfOrder() {
+        // the DNS server only answers once it has all 8 queries, and then the last one first
+        answerHosts(tcpBatch = 8).use { server ->
+            val resolver = resolver(server.address, forceTcp = true, tcpMaxConnections = 1)
+            try {
+                assertResolved(resolver, 1..8)
+                assertEquals(1, server.tcpConnections.get())
+                assertEquals(8, server.tcpQueries.get())
+            } finally {
+                resolver.close()
+            }
+        }
+    }
+
+    fun testIdleTcpConnectionClosed() {
+        answerHosts().use { server ->
+            val resolver = resolver(server.address, forceTcp = true, tcpIdleTimeoutMillis = 100)
+            try {
+                assertResolved(resolver, 1..1)
+                assertEquals(1, server.tcpConnections.get())
+
+                assertTrue(server.awaitTcpClosed(1, 5000))
+
+                // the next query opens another connection
+                assertResolved(resolver, 2..2)
+                assertEquals(2, server.tcpConnections.get())
+            } finally {
+                resolver.close()
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.resolver
+
+import junit.framework.TestCase
+import java.net.InetSocketAddress
+
+class DnsServerHealthTest : TestCase() {
+    private val server = InetSocketAddress("10.0.0.1", 53)
+    private val other = InetSocketAddress("10.0.0.2", 53)
+
+    fun testThreshold() {
+        val health = DnsServerHealth(3, 60_000)
+
+        health.failed(server)
+        health.failed(server)
+        assertEquals(DnsServerHealth.State.CLOSED, health.state(server))
+        assertTrue(health.isAvailable(server))
+
+        // an answer in between starts the count over
+        health.answered(server, 1000)
+        health.failed(server)
+        health.failed(server)
+        assertTrue(health.isAvailable(server))
+
+        health.failed(server)
+        assertEquals(DnsServerHealth.State.OPEN, health.state(server))
+        assertFalse(health.isAvailable(server))
+
+        // every DNS server has its own circuit
+        assertTrue(health.isAvailable(other))
+        assertEquals(DnsServerHealth.State.CLOSED, health.state(other))
+    }
+
+    fun testHalfOpen() {
+        val health = DnsServerHealth(1, 1)
+        health.failed(server)
+        assertEquals(DnsServerHealth.State.OPEN, health.state(server))
+
+        Thread.sleep(5)
+
+        // a probe is sent
+        assertTrue(health.isAvailable(server))
+        assertEquals(DnsServerHealth.State.HALF_OPEN, health.state(server))
+
+        // the probe was not answered
+        health.failed(server)
+        assertEquals(DnsServerHealth.State.OPEN, health.state(server))
+
+        Thread.sleep(5)
+        assertTrue(health.isAvailable(server))
+
+        // the probe was answered
+        health.answered(server, 1000)
+        assertEquals(DnsServerHealth.State.CLOSED, health.state(server))
+        assertTrue(health.isAvailable(server))
+    }
+
+    fun testClear() {
+        val health = DnsServerHealth(1, 60_000)
+        health.failed(server)
+        assertFalse(health.isAvailable(server))
+
+        health.clear()
+        assertTrue(health.isAvailable(server))
+    }
+}
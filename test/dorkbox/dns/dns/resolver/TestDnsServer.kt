@@ -0,0 +1,176 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.resolver
+
+import dorkbox.dns.dns.constants.DnsResponseCode
+import dorkbox.dns.dns.constants.DnsSection
+import dorkbox.dns.dns.constants.Flags
+import dorkbox.dns.dns.records.DnsMessage
+import java.io.Closeable
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.IOException
+import java.net.DatagramPacket
+import java.net.DatagramSocket
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.ServerSocket
+import java.net.Socket
+import java.net.SocketException
+import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * A DNS server on the loopback address for the resolver tests, which answers every query (over UDP and TCP, on the same port) with
+ * whatever [answer] returns for it, or nothing if it returns null.
+ *
+ * Over TCP, it waits for [tcpBatch] queries on a connection, and then answers them in the reverse order.
+ */
+internal class TestDnsServer(
+    private val tcpBatch: Int = 1,
+    private val answer: (query: DnsMessage, isTcp: Boolean) -> DnsMessage?
+) : Closeable {
+    companion object {
+        /**
+         * @return an (empty) answer to the query, with its ID and question
+         */
+        fun reply(query: DnsMessage, rcode: Int = DnsResponseCode.NOERROR): DnsMessage {
+            val response = DnsMessage(query.header.iD)
+            response.header.setFlag(Flags.QR)
+            response.header.setFlag(Flags.RA)
+            response.header.rcode = rcode
+            response.addRecord(query.question!!, DnsSection.QUESTION)
+            return response
+        }
+    }
+
+    private val udp = DatagramSocket(0, InetAddress.getLoopbackAddress())
+    private val tcp = ServerSocket(udp.localPort, 50, InetAddress.getLoopbackAddress())
+    private val tcpSockets = CopyOnWriteArrayList<Socket>()
+
+    val address: InetSocketAddress = udp.localSocketAddress as InetSocketAddress
+
+    /** the TCP connections that were accepted */
+    val tcpConnections = AtomicInteger()
+
+    /** the TCP connections that the resolver closed */
+    val tcpClosed = AtomicInteger()
+
+    /** the queries that were received over TCP */
+    val tcpQueries = AtomicInteger()
+
+    private val udpThread = Thread {
+        val buffer = ByteArray(DnsMessage.MAXLENGTH)
+        while (!udp.isClosed) {
+            val packet = DatagramPacket(buffer, buffer.size)
+            try {
+                udp.receive(packet)
+            } catch (e: SocketException) {
+                break
+            }
+
+            val query = DnsMessage(packet.data.copyOf(packet.length))
+            val response = answer(query, false) ?: continue
+            val bytes = response.toWire()
+            udp.send(DatagramPacket(bytes, bytes.size, packet.socketAddress))
+        }
+    }
+
+    private val tcpThread = Thread {
+        while (!tcp.isClosed) {
+            val socket = try {
+                tcp.accept()
+            } catch (e: SocketException) {
+                break
+            }
+
+            tcpConnections.incrementAndGet()
+            tcpSockets.add(socket)
+
+            val connectionThread = Thread { serve(socket) }
+            connectionThread.isDaemon = true
+            connectionThread.start()
+        }
+    }
+
+    init {
+        udpThread.isDaemon = true
+        udpThread.start()
+        tcpThread.isDaemon = true
+        tcpThread.start()
+    }
+
+    private fun serve(socket: Socket) {
+        val input = DataInputStream(socket.getInputStream())
+        val output = DataOutputStream(socket.getOutputStream())
+        val queries = ArrayList<DnsMessage>()
+
+        try {
+            while (true) {
+                val query = ByteArray(input.readUnsignedShort())
+                input.readFully(query)
+                tcpQueries.incrementAndGet()
+
+                queries.add(DnsMessage(query))
+                if (queries.size < tcpBatch) {
+                    continue
+                }
+
+                for (i in queries.indices.reversed()) {
+                    val response = answer(queries[i], true) ?: continue
+                    val bytes = response.toWire()
+                    output.writeShort(bytes.size)
+                    output.write(bytes)
+                }
+                output.flush()
+                queries.clear()
+            }
+        } catch (e: EOFException) {
+            tcpClosed.incrementAndGet()
+        } catch (e: IOException) {
+            // the server was closed
+        } finally {
+            socket.close()
+        }
+    }
+
+    /**
+     * Waits until the resolver has closed the number of TCP connections
+     *
+     * @return true if they were closed in time
+     */
+    fun awaitTcpClosed(count: Int, timeoutMillis: Long): Boolean {
+        val deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis)
+        while (tcpClosed.get() < count) {
+            if (System.nanoTime() - deadline > 0) {
+                return false
+            }
+            Thread.sleep(10)
+        }
+        return true
+    }
+
+    override fun close() {
+        udp.close()
+        tcp.close()
+        for (socket in tcpSockets) {
+            socket.close()
+        }
+        udpThread.join()
+        tcpThread.join()
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.resolver.addressProvider
+
+import junit.framework.TestCase
+import java.net.InetSocketAddress
+import java.util.concurrent.*
+
+class RttDnsServerAddressStreamProviderTest : TestCase() {
+    private val near = InetSocketAddress("10.0.0.1", 53)
+    private val far = InetSocketAddress("10.0.0.2", 53)
+    private val down = InetSocketAddress("10.0.0.3", 53)
+
+    private fun millis(millis: Long): Long {
+        return TimeUnit.MILLISECONDS.toNanos(millis)
+    }
+
+    fun testUntriedFirst() {
+        val provider = RttDnsServerAddressStreamProvider(listOf(near, far, down))
+        provider.answered(near, millis(10))
+
+        // the two that did not answer yet come before it, in any order
+        val stream = provider.nameServerAddressStream("")
+        assertEquals(3, stream.size())
+        assertTrue(stream.next() != near)
+        assertTrue(stream.next() != near)
+        assertEquals(near, stream.next())
+    }
+
+    fun testFastestFirst() {
+        val provider = RttDnsServerAddressStreamProvider(listOf(near, far, down), decayPercent = 0)
+        provider.answered(near, millis(10))
+        provider.answered(far, millis(80))
+        provider.failed(down)
+
+        val stream = provider.nameServerAddressStream("")
+        assertEquals(near, stream.next())
+        assertEquals(far, stream.next())
+        assertEquals(down, stream.next())
+
+        // the SRTT moves 30% of the way to every answer
+        provider.answered(near, millis(110))
+        assertTrue(provider.rttMicros(near) > TimeUnit.MILLISECONDS.toMicros(30))
+        assertTrue(provider.rttMicros(near) < TimeUnit.MILLISECONDS.toMicros(40))
+
+        assertEquals(-1L, provider.rttMicros(InetSocketAddress("10.0.0.4", 53)))
+    }
+
+    fun testRecovery() {
+        val provider = RttDnsServerAddressStreamProvider(listOf(near, down), failurePenaltyMillis = 1000)
+        provider.answered(near, millis(10))
+        provider.failed(down)
+        assertEquals(near, provider.nameServerAddressStream("").next())
+
+        // the DNS server that did not answer is picked again eventually, as its SRTT decays while the other is used
+        var picks = 0
+        while (provider.nameServerAddressStream("").next() == near) {
+            picks++
+            assertTrue(picks < 1000)
+        }
+        assertTrue(picks > 10)
+
+        // it answers quickly now, so it is used from now on
+        provider.answered(down, millis(1))
+        provider.answered(down, millis(1))
+        assertEquals(down, provider.nameServerAddressStream("").next())
+    }
+}
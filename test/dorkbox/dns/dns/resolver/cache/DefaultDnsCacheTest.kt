@@ -0,0 +1,194 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.resolver.cache
+
+import dorkbox.dns.dns.constants.DnsRecordType
+import io.netty.channel.DefaultEventLoop
+import junit.framework.TestCase
+import java.net.InetAddress
+import java.net.UnknownHostException
+
+class DefaultDnsCacheTest : TestCase() {
+    private val loop = DefaultEventLoop()
+    private val address = InetAddress.getByAddress(byteArrayOf(10, 0, 0, 1))
+
+    override fun tearDown() {
+        loop.shutdownGracefully()
+    }
+
+    fun testRefreshAhead() {
+        // the entire TTL is in the refresh window
+        val cache = DefaultDnsCache(refreshAheadPercent = 100, refreshAheadMinHits = 2)
+        val refreshed = ArrayList<String>()
+        cache.refresher = { refreshed.add(it) }
+
+        cache.cache("www.example.com", address, 60, loop)
+
+        // not popular enough yet
+        assertNotNull(cache["www.example.com"])
+        assertEquals(0, refreshed.size)
+
+        assertNotNull(cache["www.example.com"])
+        assertEquals(listOf("www.example.com"), refreshed)
+
+        // only one refresh per entry
+        assertNotNull(cache["www.example.com"])
+        assertEquals(1, refreshed.size)
+
+        // the refreshed answer replaces the old entry, and can be refreshed again
+        cache.cache("www.example.com", address, 60, loop)
+        assertEquals(1, cache["www.example.com"]!!.size)
+        cache["www.example.com"]
+        assertEquals(2, refreshed.size)
+    }
+
+    fun testNoRefresh() {
+        val cache = DefaultDnsCache(negativeTtl = 60, refreshAheadPercent = 10, refreshAheadMinHits = 0)
+        val refreshed = ArrayList<String>()
+        cache.refresher = { refreshed.add(it) }
+
+        // not near the end of the TTL
+        cache.cache("www.example.com", address, 60, loop)
+        cache["www.example.com"]
+        assertEquals(0, refreshed.size)
+
+        // failures are never refreshed
+        cache.cache("fail.example.com", UnknownHostException(), loop)
+        cache["fail.example.com"]
+        assertEquals(0, refreshed.size)
+    }
+
+    fun testExpired() {
+        val cache = DefaultDnsCache()
+
+        // a TTL of 0 is expired before the wheel ticks, and is never returned
+        cache.cache("www.example.com", address, 0, loop)
+        assertNull(cache["www.example.com"])
+        assertEquals(0, cache.size())
+
+        cache.cache("www.example.com", address, 60, loop)
+        assertEquals(1, cache["www.example.com"]!!.size)
+        assertEquals(1, cache.size())
+
+        assertTrue(cache.clear("www.example.com"))
+        assertEquals(0, cache.size())
+    }
+
+    fun testBounded() {
+        // room for about 10 hostnames
+        val cache = DefaultDnsCache(maxBytes = 10 * (96 + 2 * 15 + 64 + 4), evictionPolicy = LruDnsCacheEvictionPolicy())
+
+        for (i in 0 until 100) {
+            cache.cache("www$i.example.com", address, 60, loop)
+            assertTrue(cache.weightedSize() <= cache.maxBytes())
+        }
+
+        assertEquals(90L, cache.evictionCount)
+        assertNull(cache["www0.example.com"])
+        assertNotNull(cache["www99.example.com"])
+
+        assertTrue(cache.clear("www99.example.com"))
+        assertTrue(cache.weightedSize() < cache.maxBytes())
+
+        cache.clear()
+        assertEquals(0L, cache.weightedSize())
+        assertEquals(0, cache.size())
+    }
+
+    fun testNxDomain() {
+        // failures without a negative answer are not cached by default, NXDOMAIN is
+        val cache = DefaultDnsCache()
+        cache.cache("fail.example.com", UnknownHostException(), loop)
+        assertNull(cache["fail.example.com"])
+
+        cache.cache("www.example.com", address, 60, loop)
+        cache.cache("www.example.com", UnknownHostException(), 300, loop)
+        val entries = cache["www.example.com"]!!
+        assertEquals(1, entries.size)
+        assertNotNull(entries[0].cause())
+
+        // the TTL is bounded, and 0 disables it
+        val disabled = DefaultDnsCache(maxNegativeTtl = 0)
+        disabled.cache("www.example.com", UnknownHostException(), 300, loop)
+        assertNull(disabled["www.example.com"])
+    }
+
+    fun testNxDomainCut() {
+        val cache = DefaultDnsCache(negativeTtl = 60)
+        cache.cache("example.com", UnknownHostException(), 300, loop)
+
+        assertTrue(cache.isNxDomain("example.com"))
+        assertTrue(cache.isNxDomain("a.b.example.com"))
+        assertFalse(cache.isNxDomain("example.org"))
+
+        // only NXDOMAIN is a cut, not any failure
+        cache.cache("example.net", UnknownHostException(), loop)
+        assertFalse(cache.isNxDomain("www.example.net"))
+
+        val disabled = DefaultDnsCache(nxDomainCut = false)
+        disabled.cache("example.com", UnknownHostException(), 300, loop)
+        assertTrue(disabled.isNxDomain("example.com"))
+        assertFalse(disabled.isNxDomain("www.example.com"))
+    }
+
+    fun testPurge() {
+        val cache = DefaultDnsCache()
+        cache.cache("example.com", address, 60, loop)
+        cache.cache("www.example.com", address, 60, loop)
+        cache.cache("a.b.Example.com", address, 60, loop)
+        cache.cache("example.org", address, 60, loop)
+        cache.cache("notexample.com", address, 60, loop)
+
+        assertEquals(3, cache.purge("example.com."))
+        assertNull(cache["www.example.com"])
+        assertNull(cache["a.b.Example.com"])
+        assertNotNull(cache["example.org"])
+        assertNotNull(cache["notexample.com"])
+
+        // the index forgets what is no longer cached
+        assertEquals(0, cache.purge("example.com"))
+        cache.clear("notexample.com")
+        assertEquals(0, cache.purge("notexample.com"))
+    }
+
+    fun testNoData() {
+        val cache = DefaultDnsCache()
+        cache.cache("www.example.com", address, 60, loop)
+        cache.cacheNoData("www.example.com", DnsRecordType.AAAA, 300, loop)
+
+        // the address of the other type is kept
+        assertTrue(cache.isNoData("www.example.com", DnsRecordType.AAAA))
+        assertFalse(cache.isNoData("www.example.com", DnsRecordType.A))
+        val entries = cache["www.example.com"]!!
+        assertEquals(2, entries.size)
+        assertNull(entries[0].cause())
+        assertEquals(address, entries[0].address())
+
+        // a new address of the type replaces the negative answer
+        val address6 = InetAddress.getByName("::1")
+        cache.cache("www.example.com", address6, 60, loop)
+        assertFalse(cache.isNoData("www.example.com", DnsRecordType.AAAA))
+
+        // and the other way around
+        cache.cacheNoData("www.example.com", DnsRecordType.AAAA, 300, loop)
+        assertTrue(cache.isNoData("www.example.com", DnsRecordType.AAAA))
+        assertFalse(cache["www.example.com"]!!.any { it.address() == address6 })
+
+        // a TTL of 0 is not cached
+        cache.cacheNoData("other.example.com", DnsRecordType.AAAA, 0, loop)
+        assertFalse(cache.isNoData("other.example.com", DnsRecordType.AAAA))
+    }
+}
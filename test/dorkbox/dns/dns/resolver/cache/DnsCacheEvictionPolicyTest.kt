@@ -0,0 +1,82 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.resolver.cache
+
+import junit.framework.TestCase
+
+class DnsCacheEvictionPolicyTest : TestCase() {
+    fun testLru() {
+        val policy = LruDnsCacheEvictionPolicy()
+        policy.onAdd("a")
+        policy.onAdd("b")
+        policy.onAdd("c")
+        assertEquals("a", policy.victim())
+
+        policy.onAccess("a")
+        assertEquals("b", policy.victim())
+
+        policy.onRemove("b")
+        assertEquals("c", policy.victim())
+    }
+
+    fun testSlru() {
+        val policy = SlruDnsCacheEvictionPolicy()
+        policy.onAdd("popular")
+        policy.onAccess("popular")
+
+        // a scan of names that are used once does not push out the name that was used again
+        for (i in 0 until 100) {
+            policy.onAdd("scan$i")
+            assertEquals("scan$i", policy.victim())
+            policy.onRemove("scan$i")
+        }
+        assertEquals("popular", policy.victim())
+    }
+
+    fun testTinyLfu() {
+        val policy = TinyLfuDnsCacheEvictionPolicy(expectedEntries = 100)
+
+        // a cache with room for 11 hostnames, 10 of them are used a lot
+        for (i in 0 until 10) {
+            policy.onAdd("popular$i")
+        }
+        policy.onAdd("warm")
+        for (j in 0 until 5) {
+            for (i in 0 until 10) {
+                policy.onAccess("popular$i")
+            }
+        }
+
+        // new names that are used once have to compete with the popular ones, and lose
+        for (i in 0 until 100) {
+            policy.onAdd("scan$i")
+            val victim = policy.victim()!!
+            assertFalse(victim, victim.startsWith("popular"))
+            policy.onRemove(victim)
+        }
+
+        // a new name that is used more often than the popular ones wins
+        policy.onAdd("new")
+        policy.onRemove(policy.victim()!!)
+        for (j in 0 until 10) {
+            policy.onAccess("new")
+        }
+
+        policy.onAdd("next")
+        val victim = policy.victim()!!
+        assertTrue(victim, victim.startsWith("popular"))
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.resolver.cache
+
+import io.netty.channel.DefaultEventLoop
+import junit.framework.TestCase
+import java.net.InetAddress
+import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicBoolean
+
+class DnsCacheExpiryTest : TestCase() {
+    private val loop = DefaultEventLoop()
+    private val expired = ArrayList<DnsCacheEntry>()
+    private val expiry = DnsCacheExpiry(TimeUnit.SECONDS.toNanos(1)) { expired.addAll(it) }
+    private val base = System.nanoTime()
+
+    override fun tearDown() {
+        loop.shutdownGracefully()
+    }
+
+    private fun entry(ttl: Long): DnsCacheEntry {
+        val entry = DnsCacheEntry("www.example.com", InetAddress.getByAddress(byteArrayOf(10, 0, 0, 1)))
+        entry.expiresAt = base + TimeUnit.SECONDS.toNanos(ttl)
+        expiry.add(entry, loop)
+        return entry
+    }
+
+    private fun expireAt(seconds: Long) {
+        expiry.expire(base + TimeUnit.SECONDS.toNanos(seconds))
+    }
+
+    fun testLevels() {
+        // one entry on every level of the wheel that a TTL can reach
+        val ttls = longArrayOf(1, 63, 66, 70, 4095, 5000, 300_000, 30_000_000)
+        val entries = ttls.map { entry(it) }
+        assertEquals(ttls.size, expiry.size())
+
+        for (i in ttls.indices) {
+            expireAt(ttls[i] - 1)
+            assertFalse(expired.contains(entries[i]))
+
+            expireAt(ttls[i] + 1)
+            assertTrue(expired.contains(entries[i]))
+            assertEquals(i + 1, expired.size)
+        }
+        assertEquals(0, expiry.size())
+    }
+
+    fun testRemove() {
+        val a = entry(10)
+        val b = entry(10)
+        val c = entry(10)
+        expiry.remove(b)
+        assertEquals(2, expiry.size())
+
+        // removing twice is harmless
+        expiry.remove(b)
+        assertEquals(2, expiry.size())
+
+        expireAt(11)
+        assertEquals(2, expired.size)
+        assertTrue(expired.contains(a))
+        assertTrue(expired.contains(c))
+    }
+
+    fun testClear() {
+        entry(10)
+        entry(100_000)
+        expiry.clear()
+        assertEquals(0, expiry.size())
+
+        expireAt(200_000)
+        assertEquals(0, expired.size)
+    }
+
+    fun testExpiresAfterFailure() {
+        val failed = AtomicBoolean()
+        val latch = CountDownLatch(1)
+        val failingExpiry = DnsCacheExpiry(TimeUnit.MILLISECONDS.toNanos(10)) {
+            // the cache fails to remove the first entry, the task that advances the wheel keeps running anyways
+            if (failed.compareAndSet(false, true)) {
+                throw IllegalStateException("the cache failed")
+            }
+            latch.countDown()
+        }
+
+        val address = InetAddress.getByAddress(byteArrayOf(10, 0, 0, 1))
+        for (millis in longArrayOf(20, 200)) {
+            val entry = DnsCacheEntry("www.example.com", address)
+            entry.expiresAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis)
+            failingExpiry.add(entry, loop)
+        }
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS))
+        assertTrue(failed.get())
+        assertEquals(0, failingExpiry.size())
+    }
+}
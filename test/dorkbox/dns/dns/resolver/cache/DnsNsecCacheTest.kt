@@ -0,0 +1,161 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.resolver.cache
+
+import dorkbox.dns.dns.Name
+import dorkbox.dns.dns.constants.DnsClass
+import dorkbox.dns.dns.constants.DnsRecordType
+import dorkbox.dns.dns.constants.DnsResponseCode
+import dorkbox.dns.dns.constants.DnsSection
+import dorkbox.dns.dns.constants.Flags
+import dorkbox.dns.dns.records.DnsMessage
+import dorkbox.dns.dns.records.DnsRecord
+import dorkbox.dns.dns.records.NSEC3Record
+import dorkbox.dns.dns.records.NSECRecord
+import dorkbox.dns.dns.records.RRSIGRecord
+import dorkbox.dns.dns.records.SOARecord
+import dorkbox.dns.dns.utils.base32
+import junit.framework.TestCase
+import java.util.*
+
+class DnsNsecCacheTest : TestCase() {
+    private val zone = Name.fromString("example.com.")
+    private val a = Name.fromString("a.example.com.")
+    private val m = Name.fromString("m.example.com.")
+    private val ns = Name.fromString("ns1.example.com.")
+
+    private fun sign(record: DnsRecord, expire: Date = Date(System.currentTimeMillis() + 3_600_000)): RRSIGRecord {
+        return RRSIGRecord(record.name, DnsClass.IN, record.ttl, record.type, 8, record.ttl, expire, Date(), 1, zone, byteArrayOf(1, 2, 3))
+    }
+
+    private fun response(name: Name, authenticated: Boolean, vararg authority: DnsRecord): DnsMessage {
+        val message = DnsMessage(1)
+        message.header.setFlag(Flags.QR)
+        if (authenticated) {
+            message.header.setFlag(Flags.AD)
+        }
+        message.header.rcode = DnsResponseCode.NXDOMAIN
+        message.addRecord(DnsRecord.newRecord(name, DnsRecordType.A, DnsClass.IN), DnsSection.QUESTION)
+
+        val soa = SOARecord(zone, DnsClass.IN, 3600, ns, ns, 1, 3600, 600, 86400, 300)
+        message.addRecord(soa, DnsSection.AUTHORITY)
+        message.addRecord(sign(soa), DnsSection.AUTHORITY)
+        for (record in authority) {
+            message.addRecord(record, DnsSection.AUTHORITY)
+            if (record !is RRSIGRecord) {
+                message.addRecord(sign(record), DnsSection.AUTHORITY)
+            }
+        }
+        return message
+    }
+
+    private fun nsec(): DnsMessage {
+        val apex = NSECRecord(zone, DnsClass.IN, 3600, a, intArrayOf(DnsRecordType.SOA, DnsRecordType.NS, DnsRecordType.NSEC))
+        val span = NSECRecord(a, DnsClass.IN, 3600, m, intArrayOf(DnsRecordType.A, DnsRecordType.NSEC))
+        return response(Name.fromString("b.example.com."), true, apex, span)
+    }
+
+    fun testNsecNxDomain() {
+        val cache = DnsNsecCache()
+        cache.addMessage(nsec())
+
+        // covered by a -> m, and the wildcard by the apex -> a
+        val answer = cache.lookup(Name.fromString("c.example.com."), DnsRecordType.A)
+        assertNotNull(answer)
+        assertTrue(answer!!.isNxDomain)
+
+        // the SOA, two NSEC records and their signatures
+        assertEquals(6, answer.authority.size)
+        for (record in answer.authority) {
+            // bounded by the SOA minimum
+            assertTrue(record.ttl <= 300)
+        }
+
+        // not covered by any cached span
+        assertNull(cache.lookup(Name.fromString("x.example.com."), DnsRecordType.A))
+        assertNull(cache.lookup(Name.fromString("www.example.org."), DnsRecordType.A))
+    }
+
+    fun testNsecNoData() {
+        val cache = DnsNsecCache()
+        cache.addMessage(nsec())
+
+        val answer = cache.lookup(a, DnsRecordType.TXT)
+        assertNotNull(answer)
+        assertFalse(answer!!.isNxDomain)
+
+        // the type exists
+        assertNull(cache.lookup(a, DnsRecordType.A))
+    }
+
+    fun testNotValidated() {
+        val apex = NSECRecord(zone, DnsClass.IN, 3600, a, intArrayOf(DnsRecordType.SOA, DnsRecordType.NSEC))
+        val span = NSECRecord(a, DnsClass.IN, 3600, m, intArrayOf(DnsRecordType.A, DnsRecordType.NSEC))
+
+        // the DNS server did not validate it
+        val cache = DnsNsecCache()
+        cache.addMessage(response(Name.fromString("b.example.com."), false, apex, span))
+        assertEquals(0, cache.size)
+
+        // the signatures ran out
+        val expired = Date(System.currentTimeMillis() - 1000)
+        cache.addMessage(response(Name.fromString("b.example.com."), true, apex, sign(apex, expired), span, sign(span, expired)))
+        assertNull(cache.lookup(Name.fromString("c.example.com."), DnsRecordType.A))
+    }
+
+    fun testNsec3() {
+        val b32 = base32(base32.Alphabet.BASE32HEX, false, true)
+        val apexHash = NSEC3Record.hashName(zone, NSEC3Record.Digest.SHA1, 1, null)!!
+        val aHash = NSEC3Record.hashName(a, NSEC3Record.Digest.SHA1, 1, null)!!
+
+        // a chain of two records covers every other hash
+        fun record(hash: ByteArray, next: ByteArray, flags: Int, vararg types: Int): NSEC3Record {
+            val name = Name(b32.toString(hash), zone)
+            return NSEC3Record(name, DnsClass.IN, 3600, NSEC3Record.Digest.SHA1, flags, 1, null, next, intArrayOf(*types))
+        }
+
+        val cache = DnsNsecCache()
+        cache.addMessage(response(Name.fromString("b.example.com."), true,
+                                  record(apexHash, aHash, 0, DnsRecordType.SOA, DnsRecordType.NS),
+                                  record(aHash, apexHash, 0, DnsRecordType.A)))
+
+        val nxdomain = cache.lookup(Name.fromString("random123.example.com."), DnsRecordType.A)
+        assertNotNull(nxdomain)
+        assertTrue(nxdomain!!.isNxDomain)
+
+        val nodata = cache.lookup(a, DnsRecordType.TXT)
+        assertNotNull(nodata)
+        assertFalse(nodata!!.isNxDomain)
+        assertNull(cache.lookup(a, DnsRecordType.A))
+
+        // an opt-out span may hide a delegation
+        cache.clear()
+        cache.addMessage(response(Name.fromString("b.example.com."), true,
+                                  record(apexHash, aHash, NSEC3Record.Flags.OPT_OUT, DnsRecordType.SOA, DnsRecordType.NS),
+                                  record(aHash, apexHash, NSEC3Record.Flags.OPT_OUT, DnsRecordType.A)))
+        assertNull(cache.lookup(Name.fromString("random123.example.com."), DnsRecordType.A))
+    }
+
+    fun testRecordCache() {
+        val cache = DnsRecordCache()
+        cache.addMessage(nsec())
+
+        // the name that was asked for, and any other name in the same gap
+        assertTrue(cache.negative(Name.fromString("b.example.com."), DnsRecordType.A)!!.isNxDomain)
+        assertTrue(cache.negative(Name.fromString("c.example.com."), DnsRecordType.AAAA)!!.isNxDomain)
+        assertNull(cache.negative(Name.fromString("x.example.com."), DnsRecordType.A))
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.resolver.cache
+
+import dorkbox.dns.dns.Name
+import dorkbox.dns.dns.constants.DnsClass
+import dorkbox.dns.dns.constants.DnsRecordType
+import dorkbox.dns.dns.constants.DnsResponseCode
+import dorkbox.dns.dns.constants.DnsSection
+import dorkbox.dns.dns.constants.Flags
+import dorkbox.dns.dns.records.ARecord
+import dorkbox.dns.dns.records.CNAMERecord
+import dorkbox.dns.dns.records.DnsMessage
+import dorkbox.dns.dns.records.DnsRecord
+import dorkbox.dns.dns.records.NSRecord
+import dorkbox.dns.dns.records.RRSIGRecord
+import dorkbox.dns.dns.records.RRset
+import dorkbox.dns.dns.records.SOARecord
+import dorkbox.dns.dns.records.SRVRecord
+import junit.framework.TestCase
+import java.util.*
+
+class DnsRecordCacheTest : TestCase() {
+    private val zone = Name.fromString("example.com.")
+    private val srvName = Name.fromString("_http._tcp.example.com.")
+    private val host = Name.fromString("www.example.com.")
+    private val ns = Name.fromString("ns1.example.com.")
+
+    private fun address(name: Name, last: Int, ttl: Long = 300): ARecord {
+        return ARecord(name, DnsClass.IN, ttl, byteArrayOf(10, 0, 0, last.toByte()))
+    }
+
+    private fun response(question: DnsRecord, authoritative: Boolean, rcode: Int = DnsResponseCode.NOERROR): DnsMessage {
+        val message = DnsMessage(1)
+        message.header.setFlag(Flags.QR)
+        if (authoritative) {
+            message.header.setFlag(Flags.AA)
+        }
+        message.header.rcode = rcode
+        message.addRecord(question, DnsSection.QUESTION)
+        return message
+    }
+
+    fun testSrvAnswer() {
+        val cache = DnsRecordCache()
+        val message = response(DnsRecord.newRecord(srvName, DnsRecordType.SRV, DnsClass.IN), false)
+        message.addRecord(SRVRecord(srvName, DnsClass.IN, 300, 10, 5, 8080, host), DnsSection.ANSWER)
+        message.addRecord(NSRecord(zone, DnsClass.IN, 300, ns), DnsSection.AUTHORITY)
+        message.addRecord(address(host, 1), DnsSection.ADDITIONAL)
+
+        val response = cache.addMessage(message)
+        assertNotNull(response)
+        assertTrue(response!!.isSuccessful)
+
+        val answer = cache.answer(srvName, DnsRecordType.SRV)
+        assertNotNull(answer)
+        assertEquals(1, answer!!.size)
+        assertEquals(8080, (answer[0] as SRVRecord).port)
+        assertTrue(answer[0].ttl in 1..300)
+
+        // the address of the SRV target is only glue, it is not credible enough to answer with
+        assertNull(cache.answer(host, DnsRecordType.A))
+        assertTrue(cache.lookupRecords(host, DnsRecordType.A, minCred = Credibility.ADDITIONAL).isSuccessful)
+    }
+
+    fun testGlueDoesNotReplaceAnswer() {
+        val cache = DnsRecordCache()
+        cache.addRRset(RRset(address(host, 1)), Credibility.AUTH_ANSWER)
+        cache.addRRset(RRset(address(host, 2)), Credibility.GLUE)
+
+        val answer = cache.answer(host, DnsRecordType.A)
+        assertEquals(1, answer!!.size)
+        assertEquals("10.0.0.1", (answer[0] as ARecord).address!!.hostAddress)
+
+        // more credible data does replace it
+        cache.addRRset(RRset(address(host, 3)), Credibility.ZONE)
+        assertEquals("10.0.0.3", (cache.answer(host, DnsRecordType.A)!![0] as ARecord).address!!.hostAddress)
+    }
+
+    fun testCnameChain() {
+        val alias = Name.fromString("alias.example.com.")
+        val cache = DnsRecordCache()
+        cache.addRRset(RRset(CNAMERecord(alias, DnsClass.IN, 300, host)), Credibility.NONAUTH_ANSWER)
+        assertNull(cache.answer(alias, DnsRecordType.A))
+
+        cache.addRRset(RRset(address(host, 1)), Credibility.NONAUTH_ANSWER)
+        val answer = cache.answer(alias, DnsRecordType.A)
+        assertEquals(2, answer!!.size)
+        assertTrue(answer[0] is CNAMERecord)
+        assertTrue(answer[1] is ARecord)
+    }
+
+    fun testNegative() {
+        val cache = DnsRecordCache()
+        val message = response(DnsRecord.newRecord(host, DnsRecordType.TXT, DnsClass.IN), true, DnsResponseCode.NXDOMAIN)
+        message.addRecord(SOARecord(zone, DnsClass.IN, 300, ns, ns, 1, 3600, 600, 86400, 60), DnsSection.AUTHORITY)
+
+        assertTrue(cache.addMessage(message)!!.isNXDOMAIN)
+        assertTrue(cache.lookupRecords(host, DnsRecordType.TXT).isNXDOMAIN)
+        assertNull(cache.answer(host, DnsRecordType.TXT))
+    }
+
+    fun testNxDomainCut() {
+        val cache = DnsRecordCache()
+        val message = response(DnsRecord.newRecord(host, DnsRecordType.A, DnsClass.IN), true, DnsResponseCode.NXDOMAIN)
+        message.addRecord(SOARecord(zone, DnsClass.IN, 300, ns, ns, 1, 3600, 600, 86400, 60), DnsSection.AUTHORITY)
+        cache.addMessage(message)
+
+        // nothing exists below it
+        val below = Name.fromString("a.b.www.example.com.")
+        assertTrue(cache.lookupRecords(below, DnsRecordType.A).isNXDOMAIN)
+        assertTrue(cache.negative(below, DnsRecordType.TXT)!!.isNxDomain)
+        assertNull(cache.negative(Name.fromString("mail.example.com."), DnsRecordType.A))
+
+        val disabled = DnsRecordCache(nxDomainCut = false)
+        disabled.addMessage(message)
+        assertFalse(disabled.lookupRecords(below, DnsRecordType.A).isNXDOMAIN)
+        assertNull(disabled.negative(below, DnsRecordType.A))
+    }
+
+    fun testMissTracker() {
+        val cache = DnsRecordCache(missTracker = DnsZoneMissTracker(3))
+        for (i in 0 until 3) {
+            val message = response(DnsRecord.newRecord(Name.fromString("random$i.example.com."), DnsRecordType.A, DnsClass.IN), true,
+                                   DnsResponseCode.NXDOMAIN)
+            message.addRecord(SOARecord(zone, DnsClass.IN, 300, ns, ns, 1, 3600, 600, 86400, 60), DnsSection.AUTHORITY)
+            cache.addMessage(message)
+        }
+
+        // the misses are counted for the zone of the SOA record. They could all land in the same second, or span two of them
+        assertTrue(cache.missTracker!!.misses(zone) >= 1)
+        if (cache.missTracker!!.misses(zone) == 3) {
+            assertTrue(cache.isFlooded(Name.fromString("random9.example.com.")))
+        }
+        assertFalse(cache.isFlooded(Name.fromString("www.example.org.")))
+
+        cache.clear()
+        assertFalse(cache.isFlooded(Name.fromString("random9.example.com.")))
+    }
+
+    fun testMissTrackerIgnoresTopLevelDomains() {
+        val tracker = DnsZoneMissTracker(1)
+        val tld = Name.fromString("com.")
+
+        // random names below com. all miss in com., which must not stop every other lookup in com.
+        tracker.miss(tld)
+        tracker.miss(Name.root)
+        assertEquals(0, tracker.misses(tld))
+        assertFalse(tracker.isFlooded(Name.fromString("example.com.")))
+        assertFalse(tracker.isFlooded(tld))
+
+        tracker.miss(zone)
+        if (tracker.misses(zone) == 1) {
+            assertTrue(tracker.isFlooded(Name.fromString("random.example.com.")))
+        }
+        assertFalse(tracker.isFlooded(Name.fromString("example.org.")))
+    }
+
+    fun testPurge() {
+        val cache = DnsRecordCache()
+        cache.addRRset(RRset(address(host, 1)), Credibility.AUTH_ANSWER)
+        cache.addRRset(RRset(address(Name.fromString("a.b.example.com."), 1)), Credibility.AUTH_ANSWER)
+        cache.addRRset(RRset(address(Name.fromString("www.example.org."), 1)), Credibility.AUTH_ANSWER)
+
+        assertEquals(2, cache.purge(zone))
+        assertNull(cache.answer(host, DnsRecordType.A))
+        assertNotNull(cache.answer(Name.fromString("www.example.org."), DnsRecordType.A))
+        assertEquals(1, cache.size)
+    }
+
+    fun testZeroTtl() {
+        val cache = DnsRecordCache()
+        cache.addRRset(RRset(address(host, 1, 0)), Credibility.AUTH_ANSWER)
+        assertEquals(0, cache.size)
+        assertNull(cache.answer(host, DnsRecordType.A))
+    }
+
+    fun testMaxEntries() {
+        val cache = DnsRecordCache(maxEntries = 100)
+        for (i in 0 until 1000) {
+            cache.addRRset(RRset(address(Name.fromString("host$i.example.com."), 1)), Credibility.AUTH_ANSWER)
+        }
+        assertTrue(cache.size <= 100)
+    }
+
+    fun testMaxEntriesKeepsHotNames() {
+        val cache = DnsRecordCache(maxEntries = 100)
+        cache.addRRset(RRset(address(host, 1)), Credibility.AUTH_ANSWER)
+
+        // the names that are only asked for once do not push out the one that is used all the time
+        for (i in 0 until 1000) {
+            assertNotNull(cache.answer(host, DnsRecordType.A))
+            cache.addRRset(RRset(address(Name.fromString("host$i.example.com."), 1)), Credibility.AUTH_ANSWER)
+        }
+
+        assertTrue(cache.size <= 100)
+        assertNotNull(cache.answer(host, DnsRecordType.A))
+    }
+
+    fun testFlush() {
+        val cache = DnsRecordCache()
+        cache.addRRset(RRset(address(host, 1)), Credibility.AUTH_ANSWER)
+        cache.flushSet(host, DnsRecordType.A)
+        assertNull(cache.answer(host, DnsRecordType.A))
+        assertEquals(0, cache.size)
+    }
+
+    fun testDnssecOk() {
+        val cache = DnsRecordCache()
+        val signed = response(DnsRecord.newRecord(host, DnsRecordType.A, DnsClass.IN), true)
+        signed.addRecord(address(host, 1), DnsSection.ANSWER)
+        signed.addRecord(RRSIGRecord(host, DnsClass.IN, 300, DnsRecordType.A, 13, 300, Date(), Date(), 1, zone, ByteArray(64)),
+                         DnsSection.ANSWER)
+        cache.addMessage(signed)
+
+        // the signature is only for those that asked for it
+        var answer = cache.answer(host, DnsRecordType.A)
+        assertEquals(1, answer!!.size)
+
+        answer = cache.answer(host, DnsRecordType.A, dnssecOk = true)
+        assertNotNull(answer)
+        assertEquals(2, answer!!.size)
+        assertEquals(DnsRecordType.A, answer[0].type)
+        assertEquals(DnsRecordType.RRSIG, answer[1].type)
+        assertTrue(answer[1].ttl in 1..300)
+
+        // without a signature, it might have been stripped, so it is not an answer for a client that asked for them
+        val other = Name.fromString("other.example.com.")
+        val unsigned = response(DnsRecord.newRecord(other, DnsRecordType.A, DnsClass.IN), true)
+        unsigned.addRecord(address(other, 2), DnsSection.ANSWER)
+        cache.addMessage(unsigned)
+
+        assertNotNull(cache.answer(other, DnsRecordType.A))
+        assertNull(cache.answer(other, DnsRecordType.A, dnssecOk = true))
+
+        // a negative answer without the NSEC records that prove it is not either
+        val missing = Name.fromString("missing.example.com.")
+        val negative = response(DnsRecord.newRecord(missing, DnsRecordType.A, DnsClass.IN), true, DnsResponseCode.NXDOMAIN)
+        negative.addRecord(SOARecord(zone, DnsClass.IN, 300, ns, host, 1, 3600, 600, 86400, 300), DnsSection.AUTHORITY)
+        cache.addMessage(negative)
+
+        assertNotNull(cache.negative(missing, DnsRecordType.A))
+        assertNull(cache.negative(missing, DnsRecordType.A, dnssecOk = true))
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.serverHandlers
+
+import dorkbox.dns.dns.DnsEnvelope
+import dorkbox.dns.dns.DnsQuestion
+import dorkbox.dns.dns.DnsServerResponse
+import dorkbox.dns.dns.Name
+import dorkbox.dns.dns.constants.DnsClass
+import dorkbox.dns.dns.constants.DnsRecordType
+import dorkbox.dns.dns.constants.DnsResponseCode
+import dorkbox.dns.dns.constants.DnsSection
+import dorkbox.dns.dns.constants.Flags
+import dorkbox.dns.dns.records.ARecord
+import io.netty.buffer.Unpooled
+import io.netty.channel.ChannelHandler.Sharable
+import io.netty.channel.ChannelHandlerContext
+import io.netty.channel.ChannelInboundHandlerAdapter
+import io.netty.channel.ChannelOutboundHandlerAdapter
+import io.netty.channel.ChannelPromise
+import io.netty.channel.embedded.EmbeddedChannel
+import io.netty.channel.socket.DatagramPacket
+import io.netty.util.ReferenceCountUtil
+import junit.framework.TestCase
+import org.slf4j.LoggerFactory
+import java.net.InetAddress
+import java.net.InetSocketAddress
+
+class DnsFlushConsolidationHandlerTest : TestCase() {
+    private val logger = LoggerFactory.getLogger(DnsFlushConsolidationHandlerTest::class.java)
+
+    private val serverAddress = InetSocketAddress(InetAddress.getLoopbackAddress(), 53)
+    private val clientAddress = InetSocketAddress(InetAddress.getLoopbackAddress(), 40000)
+    private val answer = ARecord(Name.fromString("dorkbox.com."), DnsClass.IN, 60L, InetAddress.getLoopbackAddress())
+
+    /**
+     * Stands in for the socket: counts what is written and flushed, then throws it away
+     */
+    private class CountingSink : ChannelOutboundHandlerAdapter() {
+        var writes = 0
+        var flushes = 0
+
+        override fun write(context: ChannelHandlerContext, msg: Any, promise: ChannelPromise) {
+            writes++
+            ReferenceCountUtil.release(msg)
+            promise.trySuccess()
+        }
+
+        override fun flush(context: ChannelHandlerContext) {
+            flushes++
+        }
+    }
+
+    /**
+     * Answers every query right away, the same way the decision handler answers from local records, or holds on to the answers (as
+     * if it was waiting on an upstream server)
+     */
+    @Sharable
+    private inner class Responder(private val deferred: Boolean = false) : ChannelInboundHandlerAdapter() {
+        val held = mutableListOf<DnsServerResponse>()
+
+        override fun channelRead(context: ChannelHandlerContext, msg: Any) {
+            val query = msg as DnsEnvelope
+            if (deferred) {
+                held.add(response(query))
+            } else {
+                context.channel().writeAndFlush(response(query))
+            }
+            query.release()
+        }
+    }
+
+    private fun response(query: DnsEnvelope): DnsServerResponse {
+        val response = DnsServerResponse(query, query.sender(), query.recipient())
+        response.header.setFlag(Flags.QR)
+        response.header.rcode = DnsResponseCode.NOERROR
+        response.addRecord(query.getSectionArray(DnsSection.QUESTION)[0], DnsSection.QUESTION)
+        response.addRecord(answer, DnsSection.ANSWER)
+        return response
+    }
+
+    private fun channel(sink: CountingSink, maxPendingBytes: Int, responder: Responder = Responder()): EmbeddedChannel {
+        // the flush consolidation handler must be closest to the socket, the encoder is last
+        return EmbeddedChannel(sink, DnsFlushConsolidationHandler(maxPendingBytes), DnsMessageDecoder(logger), responder,
+                               DnsMessageEncoder(logger))
+    }
+
+    private fun queries(count: Int): Array<Any> {
+        val query = DnsQuestion.newQuery("dorkbox.com.", DnsRecordType.A, true)
+        val queryBytes = query.toWire()
+        query.release()
+
+        return Array(count) { DatagramPacket(Unpooled.wrappedBuffer(queryBytes), serverAddress, clientAddress) }
+    }
+
+    fun testOneFlushPerRead() {
+        val sink = CountingSink()
+        val channel = channel(sink, 64 * 1024)
+
+        // fires channelRead for every packet, then channelReadComplete, just like a batched socket read
+        channel.writeInbound(*queries(16))
+        assertEquals(16, sink.writes)
+        assertEquals(1, sink.flushes)
+
+        channel.writeInbound(*queries(4))
+        assertEquals(20, sink.writes)
+        assertEquals(2, sink.flushes)
+
+        assertFalse(channel.finishAndReleaseAll())
+    }
+
+    fun testFlushOutsideRead() {
+        val sink = CountingSink()
+        val responder = Responder(deferred = true)
+        val channel = channel(sink, 64 * 1024, responder)
+
+        channel.writeInbound(*queries(2))
+        assertEquals(0, sink.writes)
+        assertEquals(2, responder.held.size)
+
+        // the answers are written after the read is complete, so each one is flushed right away
+        channel.writeAndFlush(responder.held[0])
+        assertEquals(1, sink.writes)
+        assertEquals(1, sink.flushes)
+
+        channel.writeAndFlush(responder.held[1])
+        assertEquals(2, sink.writes)
+        assertEquals(2, sink.flushes)
+
+        assertFalse(channel.finishAndReleaseAll())
+    }
+
+    fun testFlushWhenPendingBytesExceeded() {
+        val sink = CountingSink()
+
+        // every answer is over the limit, so nothing is held back
+        val channel = channel(sink, 1)
+        channel.writeInbound(*queries(8))
+        assertEquals(8, sink.writes)
+        assertEquals(8, sink.flushes)
+
+        assertFalse(channel.finishAndReleaseAll())
+    }
+}
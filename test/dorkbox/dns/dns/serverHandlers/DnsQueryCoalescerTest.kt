@@ -0,0 +1,92 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.serverHandlers
+
+import dorkbox.dns.dns.DnsEnvelope
+import dorkbox.dns.dns.Name.Companion.fromString
+import dorkbox.dns.dns.constants.DnsClass
+import dorkbox.dns.dns.constants.DnsRecordType
+import io.netty.channel.embedded.EmbeddedChannel
+import junit.framework.TestCase
+import java.net.InetSocketAddress
+
+class DnsQueryCoalescerTest : TestCase() {
+    private val channel = EmbeddedChannel()
+    private val client = InetSocketAddress("127.0.0.1", 5353)
+
+    private fun waiter(id: Int): DnsQueryCoalescer.Waiter {
+        return DnsQueryCoalescer.Waiter(channel, DnsEnvelope(id, null, client), client)
+    }
+
+    fun testMerge() {
+        val coalescer = DnsQueryCoalescer(10)
+        val key = DnsQueryKey(fromString("www.example.com."), DnsRecordType.A, DnsClass.IN, false)
+
+        assertEquals(DnsQueryCoalescer.Result.FETCH, coalescer.join(key, waiter(1)))
+
+        // names are compared without case
+        val key2 = DnsQueryKey(fromString("WWW.example.COM."), DnsRecordType.A, DnsClass.IN, false)
+        assertEquals(DnsQueryCoalescer.Result.MERGED, coalescer.join(key2, waiter(2)))
+        assertEquals(1, coalescer.size)
+
+        val waiters = coalescer.complete(key)
+        assertEquals(2, waiters.size)
+        assertEquals(1, waiters[0].question.header.id)
+        assertEquals(2, waiters[1].question.header.id)
+        assertEquals(0, coalescer.size)
+
+        // once completed, the next query starts a new fetch
+        assertEquals(DnsQueryCoalescer.Result.FETCH, coalescer.join(key, waiter(3)))
+        assertEquals(2L, coalescer.fetchCount)
+        assertEquals(1L, coalescer.mergedCount)
+    }
+
+    fun testKey() {
+        val coalescer = DnsQueryCoalescer(10)
+        val name = fromString("www.example.com.")
+
+        assertEquals(DnsQueryCoalescer.Result.FETCH, coalescer.join(DnsQueryKey(name, DnsRecordType.A, DnsClass.IN, false), waiter(1)))
+        assertEquals(DnsQueryCoalescer.Result.FETCH, coalescer.join(DnsQueryKey(name, DnsRecordType.AAAA, DnsClass.IN, false), waiter(2)))
+        assertEquals(DnsQueryCoalescer.Result.FETCH, coalescer.join(DnsQueryKey(name, DnsRecordType.A, DnsClass.IN, true), waiter(3)))
+        assertEquals(3, coalescer.size)
+    }
+
+    fun testMaxWaiters() {
+        val coalescer = DnsQueryCoalescer(2)
+        val key = DnsQueryKey(fromString("www.example.com."), DnsRecordType.A, DnsClass.IN, false)
+
+        assertEquals(DnsQueryCoalescer.Result.FETCH, coalescer.join(key, waiter(1)))
+        assertEquals(DnsQueryCoalescer.Result.MERGED, coalescer.join(key, waiter(2)))
+        assertEquals(DnsQueryCoalescer.Result.DROPPED, coalescer.join(key, waiter(3)))
+        assertEquals(1L, coalescer.droppedCount)
+        assertEquals(2, coalescer.complete(key).size)
+    }
+
+    fun testExpire() {
+        val coalescer = DnsQueryCoalescer(10)
+        val key = DnsQueryKey(fromString("www.example.com."), DnsRecordType.A, DnsClass.IN, false)
+
+        assertEquals(DnsQueryCoalescer.Result.FETCH, coalescer.join(key, waiter(1)))
+        assertEquals(DnsQueryCoalescer.Result.MERGED, coalescer.join(key, waiter(2)))
+
+        // past the deadline, the waiters are answered without the fetch, and new queries do not wait on it
+        assertEquals(2, coalescer.expire(key).size)
+        assertEquals(DnsQueryCoalescer.Result.LATE, coalescer.join(key, waiter(3)))
+
+        assertEquals(0, coalescer.complete(key).size)
+        assertEquals(DnsQueryCoalescer.Result.FETCH, coalescer.join(key, waiter(4)))
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.serverHandlers
+
+import dorkbox.dns.dns.Name.Companion.fromString
+import dorkbox.dns.dns.constants.DnsClass
+import dorkbox.dns.dns.constants.DnsRecordType
+import dorkbox.dns.dns.constants.DnsResponseCode
+import dorkbox.dns.dns.constants.DnsSection
+import dorkbox.dns.dns.constants.Flags
+import dorkbox.dns.dns.records.ARecord
+import dorkbox.dns.dns.records.DnsMessage
+import dorkbox.dns.dns.records.DnsRecord
+import dorkbox.dns.dns.records.NSRecord
+import dorkbox.dns.dns.records.OPTRecord
+import dorkbox.dns.dns.records.SOARecord
+import junit.framework.TestCase
+import java.net.InetAddress
+import java.util.concurrent.TimeUnit
+
+class DnsResponseCacheTest : TestCase() {
+    private val name = fromString("www.example.com.")
+    private val key = DnsQueryKey(name, DnsRecordType.A, DnsClass.IN, false)
+
+    private fun upstream(rcode: Int): DnsMessage {
+        val response = DnsMessage(1)
+        response.header.setFlag(Flags.QR)
+        response.header.rcode = rcode
+        response.addRecord(DnsRecord.newRecord(name, DnsRecordType.A, DnsClass.IN), DnsSection.QUESTION)
+        return response
+    }
+
+    private fun response(): DnsMessage {
+        val response = DnsMessage(2)
+        response.addRecord(DnsRecord.newRecord(name, DnsRecordType.A, DnsClass.IN), DnsSection.QUESTION)
+        return response
+    }
+
+    fun testTtlDecreases() {
+        val cache = DnsResponseCache(64 * 1024)
+
+        val upstream = upstream(DnsResponseCode.NOERROR)
+        upstream.addRecord(ARecord(name, DnsClass.IN, 300, InetAddress.getByName("10.0.0.1")), DnsSection.ANSWER)
+        upstream.addRecord(NSRecord(fromString("example.com."), DnsClass.IN, 3600, fromString("ns.example.com.")), DnsSection.AUTHORITY)
+        upstream.addRecord(ARecord(fromString("ns.example.com."), DnsClass.IN, 3600, InetAddress.getByName("10.0.0.2")), DnsSection.ADDITIONAL)
+        upstream.addRecord(OPTRecord(4096, 0, 0), DnsSection.ADDITIONAL)
+
+        val now = System.nanoTime()
+        cache.store(key, upstream, now)
+        assertEquals(1, cache.size)
+
+        val response = response()
+        assertTrue(cache.answer(key, response, now + TimeUnit.SECONDS.toNanos(100)))
+        assertEquals(DnsResponseCode.NOERROR, response.header.rcode)
+        assertEquals(2, response.header.id)
+        assertEquals(200L, response.getSectionArray(DnsSection.ANSWER)[0].ttl)
+        assertEquals(3500L, response.getSectionArray(DnsSection.AUTHORITY)[0].ttl)
+
+        // the OPT record is not passed on
+        assertEquals(1, response.header.getCount(DnsSection.ADDITIONAL))
+
+        // the whole response expires with the smallest TTL
+        assertFalse(cache.answer(key, response(), now + TimeUnit.SECONDS.toNanos(300)))
+        assertEquals(0, cache.size)
+    }
+
+    fun testNegative() {
+        val cache = DnsResponseCache(64 * 1024)
+
+        val upstream = upstream(DnsResponseCode.NXDOMAIN)
+        upstream.addRecord(SOARecord(fromString("example.com."), DnsClass.IN, 3600, fromString("ns.example.com."), fromString("admin.example.com."),
+                                     1, 3600, 600, 86400, 60), DnsSection.AUTHORITY)
+
+        val now = System.nanoTime()
+        cache.store(key, upstream, now)
+
+        val response = response()
+        assertTrue(cache.answer(key, response, now + TimeUnit.SECONDS.toNanos(59)))
+        assertEquals(DnsResponseCode.NXDOMAIN, response.header.rcode)
+
+        // negative answers are kept for the SOA minimum
+        assertFalse(cache.answer(key, response(), now + TimeUnit.SECONDS.toNanos(60)))
+    }
+
+    fun testNotCached() {
+        val cache = DnsResponseCache(64 * 1024)
+
+        cache.store(key, upstream(DnsResponseCode.SERVFAIL))
+
+        // no records, so there is no TTL
+        cache.store(key, upstream(DnsResponseCode.NOERROR))
+
+        val zeroTtl = upstream(DnsResponseCode.NOERROR)
+        zeroTtl.addRecord(ARecord(name, DnsClass.IN, 0, InetAddress.getByName("10.0.0.1")), DnsSection.ANSWER)
+        cache.store(key, zeroTtl)
+
+        assertEquals(0, cache.size)
+    }
+
+    fun testKeyIncludesDnssecOk() {
+        val cache = DnsResponseCache(64 * 1024)
+
+        val upstream = upstream(DnsResponseCode.NOERROR)
+        upstream.addRecord(ARecord(name, DnsClass.IN, 300, InetAddress.getByName("10.0.0.1")), DnsSection.ANSWER)
+        cache.store(key, upstream)
+
+        assertFalse(cache.answer(DnsQueryKey(name, DnsRecordType.A, DnsClass.IN, true), response()))
+        assertTrue(cache.answer(DnsQueryKey(fromString("WWW.example.com."), DnsRecordType.A, DnsClass.IN, false), response()))
+    }
+
+    private fun store(cache: DnsResponseCache, host: String): DnsQueryKey {
+        val hostName = fromString(host)
+        val key = DnsQueryKey(hostName, DnsRecordType.A, DnsClass.IN, false)
+
+        val upstream = DnsMessage(1)
+        upstream.header.setFlag(Flags.QR)
+        upstream.addRecord(DnsRecord.newRecord(hostName, DnsRecordType.A, DnsClass.IN), DnsSection.QUESTION)
+        upstream.addRecord(ARecord(hostName, DnsClass.IN, 300, InetAddress.getByName("10.0.0.1")), DnsSection.ANSWER)
+
+        // a cold name is always a miss first
+        cache.answer(key, response())
+        cache.store(key, upstream)
+        return key
+    }
+
+    fun testByteLimit() {
+        val cache = DnsResponseCache(16 * 1024)
+        for (i in 0 until 500) {
+            store(cache, "host$i.example.com.")
+        }
+
+        assertTrue(cache.weightedSize <= 16 * 1024)
+        assertTrue(cache.evictionCount > 0)
+        assertEquals(500L, cache.missCount)
+    }
+
+    fun testFloodDoesNotEvictPopular() {
+        val cache = DnsResponseCache(64 * 1024)
+
+        val hot = store(cache, "www.example.com.")
+        for (i in 0 until 10) {
+            assertTrue(cache.answer(hot, response()))
+        }
+
+        // random subdomains, each asked for once
+        for (i in 0 until 2000) {
+            store(cache, "r$i.example.com.")
+        }
+
+        assertTrue(cache.answer(hot, response()))
+        assertEquals(11L, cache.hitCount)
+    }
+
+    fun testPurge() {
+        val cache = DnsResponseCache(64 * 1024)
+        val www = store(cache, "www.example.com.")
+        val other = store(cache, "www.example.org.")
+        store(cache, "a.b.example.com.")
+
+        assertEquals(2, cache.purge(fromString("example.com.")))
+        assertFalse(cache.answer(www, response()))
+        assertTrue(cache.answer(other, response()))
+        assertEquals(1, cache.size)
+    }
+
+    fun testServeStale() {
+        val cache = DnsResponseCache(64 * 1024, maxStaleMillis = TimeUnit.HOURS.toMillis(1), staleTtl = 30, staleRefreshMillis = 30_000)
+
+        val upstream = upstream(DnsResponseCode.NOERROR)
+        upstream.addRecord(ARecord(name, DnsClass.IN, 300, InetAddress.getByName("10.0.0.1")), DnsSection.ANSWER)
+
+        val now = System.nanoTime()
+        cache.store(key, upstream, now)
+        assertFalse(cache.hasStale(key, now))
+
+        // expired, but kept for serve-stale
+        val expired = now + TimeUnit.SECONDS.toNanos(600)
+        assertFalse(cache.answer(key, response(), expired))
+        assertTrue(cache.hasStale(key, expired))
+        assertFalse(cache.isRefreshDeferred(key, expired))
+
+        val response = response()
+        assertTrue(cache.answerStale(key, response, expired))
+        assertEquals(30L, response.getSectionArray(DnsSection.ANSWER)[0].ttl)
+        assertEquals(1L, cache.staleHitCount)
+
+        // after a failed refresh, the forwarder is not asked again for a while
+        cache.refreshFailed(key, expired)
+        assertTrue(cache.isRefreshDeferred(key, expired + TimeUnit.SECONDS.toNanos(29)))
+        assertFalse(cache.isRefreshDeferred(key, expired + TimeUnit.SECONDS.toNanos(30)))
+
+        // past the stale window, it is gone
+        val dead = now + TimeUnit.SECONDS.toNanos(300) + TimeUnit.HOURS.toNanos(1)
+        assertFalse(cache.hasStale(key, dead))
+        assertFalse(cache.answerStale(key, response(), dead))
+        assertFalse(cache.answer(key, response(), dead))
+        assertEquals(0, cache.size)
+    }
+}
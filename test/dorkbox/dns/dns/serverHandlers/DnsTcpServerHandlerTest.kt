@@ -0,0 +1,122 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.serverHandlers
+
+import dorkbox.dns.dns.Name
+import dorkbox.dns.dns.constants.DnsClass
+import dorkbox.dns.dns.constants.DnsOpCode
+import dorkbox.dns.dns.constants.DnsRecordType
+import dorkbox.dns.dns.constants.DnsResponseCode
+import dorkbox.dns.dns.constants.DnsSection
+import dorkbox.dns.dns.records.ARecord
+import dorkbox.dns.dns.records.DnsMessage
+import dorkbox.dns.dns.records.DnsRecord
+import io.netty.bootstrap.ServerBootstrap
+import io.netty.channel.Channel
+import io.netty.channel.EventLoopGroup
+import io.netty.channel.nio.NioEventLoopGroup
+import io.netty.channel.socket.nio.NioServerSocketChannel
+import junit.framework.TestCase
+import org.slf4j.LoggerFactory
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.Socket
+import java.util.concurrent.*
+
+class DnsTcpServerHandlerTest : TestCase() {
+    companion object {
+        private const val MAX_IN_FLIGHT_QUERIES = 4
+    }
+
+    private val logger = LoggerFactory.getLogger(DnsTcpServerHandlerTest::class.java)
+    private val name = Name.fromString("dorkbox.test.")
+    private val address = InetAddress.getByAddress(byteArrayOf(10, 0, 0, 1))
+
+    private lateinit var group: EventLoopGroup
+    private lateinit var decisionHandler: DnsDecisionHandler
+    private lateinit var serverChannel: Channel
+
+    override fun setUp() {
+        group = NioEventLoopGroup(1)
+
+        decisionHandler = DnsDecisionHandler(logger)
+        decisionHandler.addARecord(name, listOf(ARecord(name, DnsClass.IN, 60L, address)))
+
+        serverChannel = ServerBootstrap()
+            .group(group)
+            .channel(NioServerSocketChannel::class.java)
+            .childHandler(DnsTcpServerHandler(logger, decisionHandler, 8, MAX_IN_FLIGHT_QUERIES, 10_000L))
+            .bind(InetAddress.getLoopbackAddress(), 0)
+            .syncUninterruptibly()
+            .channel()
+    }
+
+    override fun tearDown() {
+        serverChannel.close().syncUninterruptibly()
+        decisionHandler.stop()
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly()
+    }
+
+    private fun DataOutputStream.writeQuery(id: Int, opcode: Int, type: Int) {
+        val query = DnsMessage(id)
+        query.header.opcode = opcode
+        query.addRecord(DnsRecord.newRecord(name, type, DnsClass.IN), DnsSection.QUESTION)
+
+        val bytes = query.toWire()
+        writeShort(bytes.size)
+        write(bytes)
+    }
+
+    private fun DataInputStream.readAnswer(): DnsMessage {
+        val bytes = ByteArray(readUnsignedShort())
+        readFully(bytes)
+        return DnsMessage(bytes)
+    }
+
+    fun testUnansweredQueriesDoNotStallConnection() {
+        Socket().use { socket ->
+            socket.soTimeout = 5000
+            socket.connect(serverChannel.localAddress() as InetSocketAddress)
+
+            val output = DataOutputStream(socket.getOutputStream())
+            val input = DataInputStream(socket.getInputStream())
+
+            // none of these are supported, and there are more of them than the queries that may be in progress on the connection
+            val unsupported = MAX_IN_FLIGHT_QUERIES * 2
+            for (id in 1..unsupported) {
+                output.writeQuery(id, DnsOpCode.NOTIFY, DnsRecordType.SOA)
+            }
+            output.writeQuery(unsupported + 1, DnsOpCode.QUERY, DnsRecordType.A)
+            output.flush()
+
+            for (id in 1..unsupported) {
+                val answer = input.readAnswer()
+                assertEquals(id, answer.header.iD)
+                assertEquals(DnsResponseCode.NOTIMP, answer.header.rcode)
+            }
+
+            val answer = input.readAnswer()
+            assertEquals(unsupported + 1, answer.header.iD)
+            assertEquals(DnsResponseCode.NOERROR, answer.header.rcode)
+
+            val records = answer.getSectionArray(DnsSection.ANSWER)
+            assertEquals(1, records.size)
+            assertEquals(address, (records[0] as ARecord).address)
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2023 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.dns.dns.serverHandlers
+
+import dorkbox.dns.dns.Name.Companion.fromString
+import dorkbox.dns.dns.constants.DnsClass
+import dorkbox.dns.dns.constants.DnsOpCode
+import dorkbox.dns.dns.constants.DnsRecordType
+import dorkbox.dns.dns.constants.DnsSection
+import dorkbox.dns.dns.constants.Flags
+import dorkbox.dns.dns.records.ARecord
+import dorkbox.dns.dns.records.DnsMessage
+import dorkbox.dns.dns.records.DnsRecord
+import dorkbox.dns.dns.records.OPTRecord
+import io.netty.buffer.ByteBufUtil
+import io.netty.buffer.Unpooled
+import io.netty.buffer.UnpooledByteBufAllocator
+import junit.framework.TestCase
+import java.net.InetAddress
+
+class DnsWireCacheTest : TestCase() {
+    private val alloc = UnpooledByteBufAllocator.DEFAULT
+
+    private fun query(id: Int, name: String, type: Int, dnssecOk: Boolean? = null): ByteArray {
+        val query = DnsMessage(id)
+        query.header.opcode = DnsOpCode.QUERY
+        query.header.setFlag(Flags.RD)
+        query.addRecord(DnsRecord.newRecord(fromString(name), type, DnsClass.IN), DnsSection.QUESTION)
+        if (dnssecOk != null) {
+            query.addRecord(OPTRecord(4096, 0, 0, if (dnssecOk) 0x8000 else 0), DnsSection.ADDITIONAL)
+        }
+        return query.toWire()
+    }
+
+    private fun response(id: Int, name: String, ttl: Long): ByteArray {
+        val response = DnsMessage(id)
+        response.header.opcode = DnsOpCode.QUERY
+        response.header.setFlag(Flags.QR)
+        response.addRecord(DnsRecord.newRecord(fromString(name), DnsRecordType.A, DnsClass.IN), DnsSection.QUESTION)
+        response.addRecord(ARecord(fromString(name), DnsClass.IN, ttl, InetAddress.getLoopbackAddress()), DnsSection.ANSWER)
+        return response.toWire()
+    }
+
+    fun testHitPatchesQuery() {
+        val cache = DnsWireCache(10)
+        assertNull(cache.answer(alloc, Unpooled.wrappedBuffer(query(1, "example.com.", DnsRecordType.A))))
+
+        cache.store(Unpooled.wrappedBuffer(response(1, "example.com.", 60)), false)
+        assertEquals(1, cache.size)
+
+        val answer = cache.answer(alloc, Unpooled.wrappedBuffer(query(4321, "ExAmPlE.cOm.", DnsRecordType.A)))
+        assertNotNull(answer)
+
+        val message = DnsMessage(ByteBufUtil.getBytes(answer!!))
+        answer.release()
+
+        assertEquals(4321, message.header.iD)
+        assertTrue(message.header.getFlag(Flags.QR))
+        assertTrue(message.header.getFlag(Flags.RD))
+
+        // the case of the question must match the query
+        assertEquals("ExAmPlE.cOm.", message.getSectionArray(DnsSection.QUESTION)[0].name.toString())
+
+        val records = message.getSectionArray(DnsSection.ANSWER)
+        assertEquals(1, records.size)
+        assertTrue(records[0].ttl in 59L..60L)
+    }
+
+    fun testKeyIncludesTypeAndDnssecOk() {
+        val cache = DnsWireCache(10)
+        cache.store(Unpooled.wrappedBuffer(response(1, "example.com.", 60)), false)
+
+        assertNull(cache.answer(alloc, Unpooled.wrappedBuffer(query(2, "example.com.", DnsRecordType.AAAA))))
+        assertNull(cache.answer(alloc, Unpooled.wrappedBuffer(query(2, "example.com.", DnsRecordType.A, true))))
+
+        val answer = cache.answer(alloc, Unpooled.wrappedBuffer(query(2, "example.com.", DnsRecordType.A, false)))
+        assertNotNull(answer)
+        answer!!.release()
+    }
+
+    fun testZeroTtlIsNotCached() {
+        val cache = DnsWireCache(10)
+        cache.store(Unpooled.wrappedBuffer(response(1, "example.com.", 0)), false)
+        assertEquals(0, cache.size)
+    }
+
+    fun testLimit() {
+        val cache = DnsWireCache(2)
+        cache.store(Unpooled.wrappedBuffer(response(1, "a.example.com.", 60)), false)
+        cache.store(Unpooled.wrappedBuffer(response(1, "b.example.com.", 60)), false)
+        cache.store(Unpooled.wrappedBuffer(response(1, "c.example.com.", 60)), false)
+        assertEquals(2, cache.size)
+    }
+
+    private fun hit(cache: DnsWireCache, name: String): Boolean {
+        val answer = cache.answer(alloc, Unpooled.wrappedBuffer(query(2, name, DnsRecordType.A))) ?: return false
+        answer.release()
+        return true
+    }
+
+    fun testFloodDoesNotEvictPopular() {
+        val cache = DnsWireCache(10)
+        cache.store(Unpooled.wrappedBuffer(response(1, "popular.example.com.", 60)), false)
+        for (i in 0 until 5) {
+            assertTrue(hit(cache, "popular.example.com."))
+        }
+
+        // a flood of one-off names churns through the rest of the cache
+        for (i in 0 until 1000) {
+            cache.store(Unpooled.wrappedBuffer(response(1, "r$i.example.com.", 60)), false)
+        }
+        assertEquals(10, cache.size)
+        assertTrue(hit(cache, "popular.example.com."))
+    }
+
+    fun testPopularIsAdmittedWhenFull() {
+        val cache = DnsWireCache(2)
+        cache.store(Unpooled.wrappedBuffer(response(1, "a.example.com.", 60)), false)
+        cache.store(Unpooled.wrappedBuffer(response(1, "b.example.com.", 60)), false)
+
+        // misses count towards how popular a name is, so a name that keeps being asked for replaces the least recently used one
+        for (i in 0 until 3) {
+            assertFalse(hit(cache, "c.example.com."))
+        }
+        assertTrue(hit(cache, "b.example.com."))
+
+        cache.store(Unpooled.wrappedBuffer(response(1, "c.example.com.", 60)), false)
+        assertEquals(2, cache.size)
+        assertTrue(hit(cache, "c.example.com."))
+        assertTrue(hit(cache, "b.example.com."))
+        assertFalse(hit(cache, "a.example.com."))
+    }
+
+    fun testByteLimit() {
+        val cache = DnsWireCache(1000, 400)
+        for (i in 0 until 10) {
+            cache.store(Unpooled.wrappedBuffer(response(1, "n$i.example.com.", 60)), false)
+        }
+        assertTrue(cache.size in 1..9)
+        assertTrue(cache.weightedSize <= 400)
+
+        // a popular answer still gets in
+        for (i in 0 until 5) {
+            assertFalse(hit(cache, "popular.example.com."))
+        }
+        cache.store(Unpooled.wrappedBuffer(response(1, "popular.example.com.", 60)), false)
+        assertTrue(hit(cache, "popular.example.com."))
+        assertTrue(cache.weightedSize <= 400)
+
+        // an answer that is larger than the whole cache is never cached
+        val tiny = DnsWireCache(1000, 50)
+        tiny.store(Unpooled.wrappedBuffer(response(1, "example.com.", 60)), false)
+        assertEquals(0, tiny.size)
+    }
+}